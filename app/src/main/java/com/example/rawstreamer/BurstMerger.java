@@ -0,0 +1,231 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+merges a burst of 16 bit Bayer frames into one lower noise frame, frames are streamed in one at a
+time and summed into an int accumulator, so memory stays at the accumulator plus the frame being
+added no matter how long the burst is, the accumulator is 4 bytes a pixel (48MB at 12MP, 200MB at
+50MP) so it lives in a direct buffer off the Java heap, the first frame of a burst overwrites it so
+starting a burst never clears it
+
+the frame is cut into square tiles that are processed in parallel on a fork-join pool, a tile of a
+later frame that strays too far from the running mean (something moved) is left out of the merge,
+every tile keeps its own frame count, plain Java with no Android dependencies so it runs on a
+desktop JVM against synthetic frames
+
+handheld frames are merged with per tile motion from FrameAligner, a tile is read from where it moved
+to in the later frame, offsets are even so colours line up, reads past the frame edge are clamped to
+the nearest sample of the same colour
+ */
+public class BurstMerger {
+
+    public static final int DEFAULT_TILE_SIZE = 32;
+    // tile rows per fork-join leaf task
+    private static final int TILE_ROWS_PER_TASK = 1;
+
+    private final ForkJoinPool fork_join_pool;
+    private final int width;
+    private final int height;
+    private final int tile_size;
+    private final int tiles_across;
+    private final int tiles_down;
+    // width * height sums, absolute gets and puts only so tasks can share it
+    private final IntBuffer accumulator;
+    private final int[] tile_counts;
+    private int frame_count;
+    // mean absolute difference from the running mean (in DN) above which a tile is rejected, 0 keeps all
+    private int rejection_threshold;
+    private final AtomicLong tiles_rejected = new AtomicLong();
+
+    public BurstMerger(ForkJoinPool fork_join_pool, int width, int height) {
+        this(fork_join_pool, width, height, DEFAULT_TILE_SIZE);
+    }
+
+    // tile_size must be even so tiles start on the same CFA colour
+    public BurstMerger(ForkJoinPool fork_join_pool, int width, int height, int tile_size) {
+        if (tile_size <= 0 || tile_size % 2 != 0) throw new IllegalArgumentException("Tile size must be even: " + tile_size);
+        this.fork_join_pool = fork_join_pool;
+        this.width = width;
+        this.height = height;
+        this.tile_size = tile_size;
+        this.tiles_across = (width + tile_size - 1) / tile_size;
+        this.tiles_down = (height + tile_size - 1) / tile_size;
+        this.accumulator = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        this.tile_counts = new int[tiles_across * tiles_down];
+    }
+
+    public void setRejectionThreshold(int rejection_threshold) {this.rejection_threshold = rejection_threshold;}
+
+    public int getWidth() {return width;}
+
+    public int getHeight() {return height;}
+
+    public int getTileSize() {return tile_size;}
+
+    public int getTilesAcross() {return tiles_across;}
+
+    public int getTilesDown() {return tiles_down;}
+
+    public synchronized int getFrameCount() {return frame_count;}
+
+    public long getTilesRejected() {return tiles_rejected.get();}
+
+    // starts a new burst, the accumulator is reused and overwritten by the burst's first frame
+    public synchronized void reset() {
+        Arrays.fill(tile_counts, 0);
+        frame_count = 0;
+        tiles_rejected.set(0);
+    }
+
+    /*
+    adds a frame whose 16 bit little-endian samples start at the plane buffer's position, rows
+    row_stride bytes apart, the first frame of a burst is the reference and is always kept whole, the
+    plane's position and limit are left untouched
+     */
+    public void add(ByteBuffer plane, int row_stride) {
+        add(plane, row_stride, null);
+    }
+
+    // as add(), with the motion of every tile as x, y pairs in Bayer pixels (see FrameAligner.align()), or null
+    public synchronized void add(ByteBuffer plane, int row_stride, int[] motion) {
+        if (motion != null && motion.length < tile_counts.length * 2) {
+            throw new IllegalArgumentException("Motion for " + motion.length / 2 + " tiles, need " + tile_counts.length);
+        }
+        ShortBuffer samples = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        fork_join_pool.invoke(new TileTask(samples, row_stride / 2, motion, null, 0, tiles_down, frame_count == 0));
+        frame_count++;
+    }
+
+    // writes the merged frame as 16 bit little-endian samples, rows row_stride bytes apart
+    public synchronized void resolve(ByteBuffer out, int row_stride) {
+        if (frame_count == 0) throw new IllegalStateException("No frames merged");
+        ShortBuffer samples = out.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        fork_join_pool.invoke(new TileTask(null, row_stride / 2, null, samples, 0, tiles_down, false));
+    }
+
+    // adds (source set) or resolves (destination set) a band of tile rows
+    private class TileTask extends RecursiveAction {
+        private final ShortBuffer source;
+        private final int stride;
+        private final int[] motion;
+        private final ShortBuffer destination;
+        private final int first_row;
+        private final int end_row;
+        private final boolean reference;
+
+        TileTask(ShortBuffer source, int stride, int[] motion, ShortBuffer destination, int first_row, int end_row,
+                 boolean reference) {
+            this.source = source;
+            this.stride = stride;
+            this.motion = motion;
+            this.destination = destination;
+            this.first_row = first_row;
+            this.end_row = end_row;
+            this.reference = reference;
+        }
+
+        @Override
+        protected void compute() {
+            if (end_row - first_row <= TILE_ROWS_PER_TASK) {
+                short[] row = new short[tile_size];
+                ShortBuffer view = source != null ? source.duplicate() : destination.duplicate();
+                for (int tile_y = first_row; tile_y < end_row; tile_y++) {
+                    for (int tile_x = 0; tile_x < tiles_across; tile_x++) {
+                        if (source != null) {
+                            addTile(view, stride, motion, tile_x, tile_y, row, reference);
+                        }
+                        else {
+                            resolveTile(view, stride, tile_x, tile_y, row);
+                        }
+                    }
+                }
+                return;
+            }
+            int middle = (first_row + end_row) >>> 1;
+            invokeAll(new TileTask(source, stride, motion, destination, first_row, middle, reference),
+                    new TileTask(source, stride, motion, destination, middle, end_row, reference));
+        }
+    }
+
+    private void addTile(ShortBuffer view, int stride, int[] motion, int tile_x, int tile_y, short[] row, boolean reference) {
+        int tile = tile_y * tiles_across + tile_x;
+        int dx = motion != null ? motion[tile * 2] : 0;
+        int dy = motion != null ? motion[tile * 2 + 1] : 0;
+        int x0 = tile_x * tile_size;
+        int y0 = tile_y * tile_size;
+        int tile_width = Math.min(tile_size, width - x0);
+        int tile_height = Math.min(tile_size, height - y0);
+        int count = tile_counts[tile];
+
+        if (!reference && rejection_threshold > 0) {
+            // mean absolute difference from the running mean, scaled by count to stay in integers
+            long difference = 0;
+            for (int y = 0; y < tile_height; y++) {
+                readRow(view, stride, x0, y0 + y, tile_width, dx, dy, row);
+                int base = (y0 + y) * width + x0;
+                for (int x = 0; x < tile_width; x++) {
+                    difference += Math.abs((row[x] & 0xffff) * count - accumulator.get(base + x));
+                }
+            }
+            if (difference > (long) rejection_threshold * count * tile_width * tile_height) {
+                tiles_rejected.incrementAndGet();
+                return;
+            }
+        }
+        for (int y = 0; y < tile_height; y++) {
+            readRow(view, stride, x0, y0 + y, tile_width, dx, dy, row);
+            int base = (y0 + y) * width + x0;
+            if (reference) {
+                for (int x = 0; x < tile_width; x++) accumulator.put(base + x, row[x] & 0xffff);
+            }
+            else {
+                for (int x = 0; x < tile_width; x++) accumulator.put(base + x, accumulator.get(base + x) + (row[x] & 0xffff));
+            }
+        }
+        tile_counts[tile] = count + 1;
+    }
+
+    // count samples of row y from x0, moved by dx, dy, out of frame reads take the nearest sample of the same colour
+    private void readRow(ShortBuffer view, int stride, int x0, int y, int count, int dx, int dy, short[] row) {
+        int source_y = y + dy;
+        if (source_y < 0) source_y = y & 1;
+        else if (source_y >= height) source_y = height - 2 + (y & 1);
+        int source_x0 = x0 + dx;
+        if (source_x0 >= 0 && source_x0 + count <= width) {
+            view.position(source_y * stride + source_x0);
+            view.get(row, 0, count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int x = x0 + i;
+            int source_x = x + dx;
+            if (source_x < 0) source_x = x & 1;
+            else if (source_x >= width) source_x = width - 2 + (x & 1);
+            row[i] = view.get(source_y * stride + source_x);
+        }
+    }
+
+    private void resolveTile(ShortBuffer view, int stride, int tile_x, int tile_y, short[] row) {
+        int tile = tile_y * tiles_across + tile_x;
+        int x0 = tile_x * tile_size;
+        int y0 = tile_y * tile_size;
+        int tile_width = Math.min(tile_size, width - x0);
+        int tile_height = Math.min(tile_size, height - y0);
+        int count = tile_counts[tile];
+        int half = count / 2;
+        for (int y = 0; y < tile_height; y++) {
+            int base = (y0 + y) * width + x0;
+            for (int x = 0; x < tile_width; x++) row[x] = (short) ((accumulator.get(base + x) + half) / count);
+            view.position((y0 + y) * stride + x0);
+            view.put(row, 0, tile_width);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.example.rawstreamer;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.util.SizeF;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+what the camera setup and lens / facing switches need to know about every camera ID, queried from
+the HAL once per process and persisted to a small file in the cache directory keyed by the build
+fingerprint, so later cold starts and every switch are plain lookups, a system update (new
+fingerprint), a version bump or a damaged file just means the HAL is queried again
+
+colour calibration for DNGs isn't indexed, RAW captures still read the full CameraCharacteristics
+of the open camera, cameras plugged in after the index was built (external USB) aren't listed
+ */
+public class CameraCapabilityIndex {
+    private static final String TAG = "CameraCapabilityIndex";
+    private static final String FILE_NAME = "camera_index.bin";
+    // "CIDX"
+    static final int MAGIC = 0x43494458;
+    static final int VERSION = 2;
+    // ratios within 2% count as the same lens
+    static final float LENS_RATIO_TOLERANCE = 1.02f;
+
+    // one camera ID, sizes and ranges are parallel primitive arrays
+    public static class Camera {
+        public final String id;
+        // a CameraCharacteristics.LENS_FACING_* value, -1 if unknown
+        public final int facing;
+        public final String[] physical_ids;
+        public final int sensor_orientation;
+        // sensor timestamps are in elapsedRealtimeNanos
+        public final boolean realtime_timestamps;
+        public final float min_zoom;
+        public final float max_zoom;
+        // AE target FPS ranges as lower, upper pairs
+        public final int[] fps_ranges;
+        // SurfaceTexture output sizes
+        public final int[] preview_widths;
+        public final int[] preview_heights;
+        // RAW_SENSOR output sizes, empty for cameras without the RAW capability
+        public final int[] raw_widths;
+        public final int[] raw_heights;
+        // for logical multi-cameras, the ascending zoom ratios at which each physical lens fills the
+        // frame, empty when there aren't at least two distinct lenses
+        public final float[] lens_zoom_ratios;
+
+        Camera(String id, int facing, String[] physical_ids, int sensor_orientation, boolean realtime_timestamps,
+               float min_zoom, float max_zoom, int[] fps_ranges, int[] preview_widths, int[] preview_heights,
+               int[] raw_widths, int[] raw_heights, float[] lens_zoom_ratios) {
+            this.id = id;
+            this.facing = facing;
+            this.physical_ids = physical_ids;
+            this.sensor_orientation = sensor_orientation;
+            this.realtime_timestamps = realtime_timestamps;
+            this.min_zoom = min_zoom;
+            this.max_zoom = max_zoom;
+            this.fps_ranges = fps_ranges;
+            this.preview_widths = preview_widths;
+            this.preview_heights = preview_heights;
+            this.raw_widths = raw_widths;
+            this.raw_heights = raw_heights;
+            this.lens_zoom_ratios = lens_zoom_ratios;
+        }
+
+        public boolean isLogicalMultiCamera() {return physical_ids.length > 1;}
+
+        public boolean isRawSupported() {return raw_widths.length > 0;}
+
+        // index of the largest RAW size by area, -1 without RAW
+        public int largestRawIndex() {
+            int largest = -1;
+            long largest_area = -1;
+            for (int i = 0; i < raw_widths.length; i++) {
+                long area = (long) raw_widths[i] * raw_heights[i];
+                if (area > largest_area) {
+                    largest = i;
+                    largest_area = area;
+                }
+            }
+            return largest;
+        }
+
+        public int getFpsRangeCount() {return fps_ranges.length / 2;}
+
+        public Range<Integer> getFpsRange(int index) {return new Range<>(fps_ranges[index * 2], fps_ranges[index * 2 + 1]);}
+
+        // the lens after the one covering ratio, back to the widest after the last, -1 without lenses
+        public float nextLensZoomRatio(float ratio) {
+            if (lens_zoom_ratios.length == 0) return -1;
+            for (float lens_ratio : lens_zoom_ratios) {
+                if (lens_ratio > ratio * LENS_RATIO_TOLERANCE) return lens_ratio;
+            }
+            return lens_zoom_ratios[0];
+        }
+    }
+
+    private static CameraCapabilityIndex process_index;
+
+    private final String fingerprint;
+    private final Camera[] cameras;
+
+    CameraCapabilityIndex(String fingerprint, Camera[] cameras) {
+        this.fingerprint = fingerprint;
+        this.cameras = cameras;
+    }
+
+    // the process wide index, read from the cache file or queried (and saved) on the first call
+    public static synchronized CameraCapabilityIndex get(Context context) {
+        if (process_index != null) return process_index;
+        long start_ms = SystemClock.elapsedRealtime();
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        String fingerprint = Build.FINGERPRINT;
+        CameraCapabilityIndex index = read(file, fingerprint);
+        if (index != null) {
+            Log.d(TAG, "Read " + index.getCameraCount() + " cameras in " + (SystemClock.elapsedRealtime() - start_ms) + " ms");
+            process_index = index;
+            return index;
+        }
+        try {
+            index = query((CameraManager) context.getSystemService(Context.CAMERA_SERVICE), fingerprint);
+        }
+        catch (Exception e) {
+            // not kept, so the next call tries again
+            Log.e(TAG, "Error querying cameras: " + e);
+            return new CameraCapabilityIndex(fingerprint, new Camera[0]);
+        }
+        Log.d(TAG, "Queried " + index.getCameraCount() + " cameras in " + (SystemClock.elapsedRealtime() - start_ms) + " ms");
+        try {
+            index.write(file);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Couldn't save " + file + ": " + e);
+        }
+        process_index = index;
+        return index;
+    }
+
+    // asks the HAL about every camera ID
+    static CameraCapabilityIndex query(CameraManager camera_manager, String fingerprint) throws CameraAccessException {
+        String[] ids = camera_manager.getCameraIdList();
+        Camera[] cameras = new Camera[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            cameras[i] = describe(camera_manager, ids[i], camera_manager.getCameraCharacteristics(ids[i]));
+        }
+        return new CameraCapabilityIndex(fingerprint, cameras);
+    }
+
+    private static Camera describe(CameraManager camera_manager, String id, CameraCharacteristics characteristics) {
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        Integer sensor_orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        Integer timestamp_source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        Range<Float> zoom_range = characteristics.get(CameraCharacteristics.CONTROL_ZOOM_RATIO_RANGE);
+        Range<Integer>[] fps = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        int[] fps_ranges = new int[fps != null ? fps.length * 2 : 0];
+        for (int i = 0; i < fps_ranges.length / 2; i++) {
+            fps_ranges[i * 2] = fps[i].getLower();
+            fps_ranges[i * 2 + 1] = fps[i].getUpper();
+        }
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] preview_sizes = map != null ? map.getOutputSizes(SurfaceTexture.class) : null;
+        Size[] raw_sizes = null;
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (map != null && capabilities != null && Utils.containsMode(capabilities,
+                CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW)) {
+            raw_sizes = map.getOutputSizes(ImageFormat.RAW_SENSOR);
+        }
+        String[] physical_ids = characteristics.getPhysicalCameraIds().toArray(new String[0]);
+        float min_zoom = zoom_range != null ? zoom_range.getLower() : 1;
+        float max_zoom = zoom_range != null ? zoom_range.getUpper() : 1;
+        float[] lens_zoom_ratios = new float[0];
+        if (physical_ids.length > 1) {
+            float[] physical_focals = new float[physical_ids.length];
+            for (int i = 0; i < physical_ids.length; i++) {
+                try {
+                    physical_focals[i] = equivalentFocalLength(camera_manager.getCameraCharacteristics(physical_ids[i]));
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Error querying physical camera " + physical_ids[i] + ": " + e);
+                }
+            }
+            lens_zoom_ratios = lensZoomRatios(equivalentFocalLength(characteristics), physical_focals, min_zoom, max_zoom);
+        }
+        return new Camera(id, facing != null ? facing : -1, physical_ids,
+                sensor_orientation != null ? sensor_orientation : 0,
+                timestamp_source != null && timestamp_source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME,
+                min_zoom, max_zoom, fps_ranges, widths(preview_sizes), heights(preview_sizes), widths(raw_sizes),
+                heights(raw_sizes), lens_zoom_ratios);
+    }
+
+    // focal length over sensor diagonal, proportional to the 35mm equivalent, 0 if unknown
+    private static float equivalentFocalLength(CameraCharacteristics characteristics) {
+        float[] focal_lengths = characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        SizeF physical_size = characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        if (focal_lengths == null || focal_lengths.length == 0 || physical_size == null) return 0;
+        double diagonal = Math.hypot(physical_size.getWidth(), physical_size.getHeight());
+        return diagonal > 0 ? (float) (focal_lengths[0] / diagonal) : 0;
+    }
+
+    /*
+    the logical camera's zoom ratio matching each physical lens's field of view, its equivalent focal
+    length over the logical camera's, clamped to the zoom range, rounded to hundredths and sorted with
+    lenses within the tolerance merged, unknown (0) focal lengths are skipped, empty when fewer than
+    two lenses are left
+     */
+    static float[] lensZoomRatios(float logical_focal, float[] physical_focals, float min_zoom, float max_zoom) {
+        if (logical_focal <= 0) return new float[0];
+        float[] ratios = new float[physical_focals.length];
+        int count = 0;
+        for (float physical_focal : physical_focals) {
+            if (physical_focal <= 0) continue;
+            float ratio = Math.max(min_zoom, Math.min(max_zoom, physical_focal / logical_focal));
+            ratios[count++] = Math.round(ratio * 100) / 100.0f;
+        }
+        Arrays.sort(ratios, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || ratios[i] > ratios[distinct - 1] * LENS_RATIO_TOLERANCE) ratios[distinct++] = ratios[i];
+        }
+        return distinct > 1 ? Arrays.copyOf(ratios, distinct) : new float[0];
+    }
+
+    private static int[] widths(Size[] sizes) {
+        int[] widths = new int[sizes != null ? sizes.length : 0];
+        for (int i = 0; i < widths.length; i++) widths[i] = sizes[i].getWidth();
+        return widths;
+    }
+
+    private static int[] heights(Size[] sizes) {
+        int[] heights = new int[sizes != null ? sizes.length : 0];
+        for (int i = 0; i < heights.length; i++) heights[i] = sizes[i].getHeight();
+        return heights;
+    }
+
+    public String getFingerprint() {return fingerprint;}
+
+    public int getCameraCount() {return cameras.length;}
+
+    // cameras in getCameraIdList() order
+    public Camera getCamera(int index) {return cameras[index];}
+
+    // null for an ID that isn't indexed
+    public Camera getCamera(String id) {
+        for (Camera camera : cameras) {
+            if (camera.id.equals(id)) return camera;
+        }
+        return null;
+    }
+
+    // gets the lens facing direction of a camera ID, -1 if it isn't indexed
+    public int getFacing(String id) {
+        Camera camera = getCamera(id);
+        return camera != null ? camera.facing : -1;
+    }
+
+    // IDs with the given facing in getCameraIdList() order
+    public List<String> getIds(int facing) {
+        List<String> ids = new ArrayList<>();
+        for (Camera camera : cameras) {
+            if (camera.facing == facing) ids.add(camera.id);
+        }
+        return ids;
+    }
+
+    // first ID with the given facing, "" if there is none
+    public String getFirstId(int facing) {
+        for (Camera camera : cameras) {
+            if (camera.facing == facing) return camera.id;
+        }
+        return "";
+    }
+
+    // writes to a temporary file renamed over the old one, so readers never see half a file
+    void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            output.writeUTF(fingerprint);
+            output.writeShort(cameras.length);
+            for (Camera camera : cameras) {
+                output.writeUTF(camera.id);
+                output.writeByte(camera.facing);
+                output.writeShort(camera.physical_ids.length);
+                for (String physical_id : camera.physical_ids) output.writeUTF(physical_id);
+                output.writeShort(camera.sensor_orientation);
+                output.writeBoolean(camera.realtime_timestamps);
+                output.writeFloat(camera.min_zoom);
+                output.writeFloat(camera.max_zoom);
+                writeInts(output, camera.fps_ranges);
+                writeInts(output, camera.preview_widths);
+                writeInts(output, camera.preview_heights);
+                writeInts(output, camera.raw_widths);
+                writeInts(output, camera.raw_heights);
+                output.writeShort(camera.lens_zoom_ratios.length);
+                for (float ratio : camera.lens_zoom_ratios) output.writeFloat(ratio);
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Couldn't rename " + temporary);
+        }
+    }
+
+    private static void writeInts(DataOutputStream output, int[] values) throws IOException {
+        output.writeShort(values.length);
+        for (int value : values) output.writeInt(value);
+    }
+
+    // null when the file is missing, from another build or version, or damaged
+    static CameraCapabilityIndex read(File file, String fingerprint) {
+        if (!file.isFile()) return null;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readUnsignedShort() != VERSION) return null;
+            if (!input.readUTF().equals(fingerprint)) return null;
+            Camera[] cameras = new Camera[input.readUnsignedShort()];
+            for (int i = 0; i < cameras.length; i++) {
+                String id = input.readUTF();
+                int facing = input.readByte();
+                String[] physical_ids = new String[input.readUnsignedShort()];
+                for (int j = 0; j < physical_ids.length; j++) physical_ids[j] = input.readUTF();
+                int sensor_orientation = input.readShort();
+                boolean realtime_timestamps = input.readBoolean();
+                float min_zoom = input.readFloat();
+                float max_zoom = input.readFloat();
+                int[] fps_ranges = readInts(input);
+                int[] preview_widths = readInts(input);
+                int[] preview_heights = readInts(input);
+                int[] raw_widths = readInts(input);
+                int[] raw_heights = readInts(input);
+                float[] lens_zoom_ratios = new float[input.readUnsignedShort()];
+                for (int j = 0; j < lens_zoom_ratios.length; j++) lens_zoom_ratios[j] = input.readFloat();
+                cameras[i] = new Camera(id, facing, physical_ids, sensor_orientation, realtime_timestamps, min_zoom,
+                        max_zoom, fps_ranges, preview_widths, preview_heights, raw_widths, raw_heights, lens_zoom_ratios);
+            }
+            // anything after the last camera means the file isn't what it claims to be
+            if (input.read() >= 0) return null;
+            return new CameraCapabilityIndex(fingerprint, cameras);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int[] readInts(DataInputStream input) throws IOException {
+        int[] values = new int[input.readUnsignedShort()];
+        for (int i = 0; i < values.length; i++) values[i] = input.readInt();
+        return values;
+    }
+}
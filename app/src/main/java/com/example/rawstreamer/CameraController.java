@@ -1,12 +1,10 @@
 package com.example.rawstreamer;
 
-import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraDevice;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
-import android.view.TextureView;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 
 import androidx.viewpager.widget.ViewPager;
@@ -19,27 +17,53 @@ public class CameraController {
     private static final String TAG = "CameraController";
 
     private final UIManager ui_manager;
+    // the camera, its session and threads belong to the process wide host and outlive this controller
+    private final CameraSessionHost camera_session_host;
     private final CustomCameraManager custom_camera_manager;
     private Runnable sleep_event;
     private final int sec_until_sleep = 60;
     private boolean init_state = false;
+    // set while the slider follows a zoom change (pinch, lens switch), so it doesn't snap the zoom back to a step
+    private boolean following_zoom = false;
 
-    // offload camera configuration tasks from UI thread
-    private HandlerThread background_handler_thread;
+    // the host's camera thread, and its shutter thread where presses wait for a free saver slot
     private Handler background_handler;
+    private Handler shutter_handler;
+
+    private volatile CameraCaptureSession capture_session;
+    private final CameraSessionHost.Listener session_listener = new CameraSessionHost.Listener() {
+        @Override
+        public void onCameraSetup(int lens_facing) {
+            ui_manager.setLensFacingImage(lens_facing);
+            setupCamFacingSwitch();
+            setupLensSwitch();
+            setupCaptureButton();
+            setupQuickSettings();
+        }
 
-    // listeners & callbacks for state management
-    private TextureView.SurfaceTextureListener surface_texture_listener;
-    private CameraDevice.StateCallback camera_device_state_callback;
-    private CameraCaptureSession.StateCallback session_callback;
-    private CameraCaptureSession capture_session;
+        @Override
+        public void onSessionReady(CameraCaptureSession session) {
+            capture_session = session;
+            // zoom must be set up after the camera is set up to adjust the progress bar available ratios
+            initZoomSlider();
+        }
+    };
     private int quick_settings_position = 2;
     private int set_fps = 30;
     private String set_res = "HD";
+    // frame metrics refresh the overlay twice a second while it's shown and go to the log every 10 s
+    private static final long METRICS_OVERLAY_MS = 500;
+    private static final long METRICS_DUMP_MS = 10000;
+    private boolean metrics_overlay = false;
+    private long last_metrics_dump_ms;
+    private final StringBuilder metrics_text = new StringBuilder();
+    private final Runnable metrics_event = this::reportFrameMetrics;
 
     public CameraController(UIManager ui_manager) {
         this.ui_manager = ui_manager;
-        this.custom_camera_manager = new CustomCameraManager(ui_manager.getContext(), ui_manager.getTextureView());
+        this.camera_session_host = CameraSessionHost.get(ui_manager.getContext());
+        this.custom_camera_manager = camera_session_host.getCameraManager();
+        initPinchZoom();
     }
 
     private void setupCamFacingSwitch() {
@@ -47,7 +71,7 @@ public class CameraController {
             @Override
             public void onClick(View view) {
                 ui_manager.disableUIActions();
-                int lens_facing = custom_camera_manager.switchFacing(camera_device_state_callback, background_handler);
+                int lens_facing = camera_session_host.switchFacing();
                 ui_manager.setLensFacingImage(lens_facing);
                 setupQuickSettings();
                 ui_manager.enableUIActions();
@@ -60,13 +84,33 @@ public class CameraController {
             @Override
             public void onClick(View view) {
                 ui_manager.disableUIActions();
-                custom_camera_manager.switchLens(camera_device_state_callback, background_handler);
+                if (camera_session_host.switchLens()) followZoom();
                 setupQuickSettings();
                 ui_manager.enableUIActions();
             }
         });
     }
 
+    private void setupCaptureButton() {
+        ui_manager.getCaptureButton().setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (capture_session == null) return;
+                custom_camera_manager.captureRawImage(capture_session, shutter_handler, background_handler);
+            }
+        });
+        // long press toggles zero shutter lag
+        ui_manager.getCaptureButton().setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                if (capture_session == null || !custom_camera_manager.isRawSupported()) return false;
+                custom_camera_manager.setZslEnabled(!custom_camera_manager.isZslEnabled(), 0, capture_session,
+                        background_handler);
+                return true;
+            }
+        });
+    }
+
     // get FPS range and set appropriate buttons for FPS event
     private void fpsClickEvent() {
         boolean has30FPS = custom_camera_manager.findBest30FPS();
@@ -77,14 +121,41 @@ public class CameraController {
             if (set_fps == 30) {
                 set_fps = 60;
                 ui_manager.setCarouselFPS(60, quick_settings_position);
-                custom_camera_manager.setFPS(60, capture_session, background_handler);
+                custom_camera_manager.setFPS(60);
             }
             else {
                 set_fps = 30;
                 ui_manager.setCarouselFPS(30, quick_settings_position);
-                custom_camera_manager.setFPS(30, capture_session, background_handler);
+                custom_camera_manager.setFPS(30);
+            }
+        }
+    }
+
+    // shows or hides the frame metrics overlay
+    private void metricsClickEvent() {
+        metrics_overlay = !metrics_overlay;
+        ui_manager.setMetricsOverlayVisible(metrics_overlay);
+    }
+
+    // runs on the background thread, reposting itself until the thread stops
+    private void reportFrameMetrics() {
+        long now = SystemClock.uptimeMillis();
+        boolean dump = now - last_metrics_dump_ms >= METRICS_DUMP_MS;
+        if (metrics_overlay || dump) {
+            metrics_text.setLength(0);
+            custom_camera_manager.getFrameMetrics().appendSummary(metrics_text);
+            metrics_text.append('\n');
+            custom_camera_manager.getRequestUpdateScheduler().appendSummary(metrics_text, SystemClock.elapsedRealtimeNanos());
+            metrics_text.append('\n');
+            custom_camera_manager.getSwitchLatency().appendSummary(metrics_text);
+            String summary = metrics_text.toString();
+            if (metrics_overlay) ui_manager.setMetricsOverlayText(summary);
+            if (dump) {
+                Log.d(TAG, "Frame metrics:\n" + summary);
+                last_metrics_dump_ms = now;
             }
         }
+        if (background_handler != null) background_handler.postDelayed(metrics_event, METRICS_OVERLAY_MS);
     }
 
     // get available resolutions and set appropriate buttons for resolution event
@@ -119,104 +190,55 @@ public class CameraController {
                         Log.d(TAG, "Resolution event clicked");
                         resolutionClickEvent();
                         break;
+                    case 3:
+                        Log.d(TAG, "Metrics event clicked");
+                        metricsClickEvent();
+                        break;
                 }
                 ui_manager.enableUIActions();
             }
         });
     }
 
-    public void initSurfaceTextureListener() {
-        surface_texture_listener = new TextureView.SurfaceTextureListener() {
-            @Override
-            public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height) {
-                Log.d(TAG, "TextureView is available, width: " + width + " height: " + height);
-                setupCamera(width, height);
-                custom_camera_manager.openCamera(camera_device_state_callback, background_handler);
-                setupCamFacingSwitch();
-                setupLensSwitch();
-                setupQuickSettings();
-            }
-            public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width, int height) {}
-            public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {return false;}
-            public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {}
-        };
-    }
-
-    private void initCameraStateCallback() {
-        camera_device_state_callback = new CameraDevice.StateCallback() {
-            @Override
-            public void onOpened(CameraDevice camera) {
-                initCameraSessionCallback();
-                Log.d(TAG, "Camera opened successfully, memory: " + camera);
-                // only when camera device is open, start preview
-                startCameraPreview(camera);
-            }
-
-            @Override
-            public void onDisconnected(CameraDevice camera) {
-                custom_camera_manager.closeCamera();
-                Log.d(TAG, "Camera disconnected");
-            }
-
-            @Override
-            public void onError(CameraDevice camera, int error) {
-                onDisconnected(camera);
-                Log.e(TAG, "Camera error: " + error);
-            }
-        };
-    }
-
     // initialize zoom slider and update UI elements for zoom (zoom text, fade out properties)
-    private void initZoomSlider(CameraCaptureSession session) {
+    private void initZoomSlider() {
         ArcSeekBar zoom_slider = ui_manager.getZoomSlider();
         ui_manager.setZoomSlider(custom_camera_manager.getMaxProgress());
-        ui_manager.setZoomProgressValue(0);
         zoom_slider.setOnProgressChangedListener(progress -> {
-            custom_camera_manager.zoomTo(progress, session, background_handler);
+            if (!following_zoom) custom_camera_manager.zoomTo(progress);
             ui_manager.setZoomValue(custom_camera_manager.getZoomTimes(), init_state);
             init_state = true;
         });
         zoom_slider.setOnStopTrackingTouch(listener -> ui_manager.fadeOutZoomValue());
+        ui_manager.setZoomProgressValue(custom_camera_manager.getZoomProgress());
     }
 
-    private void initCameraSessionCallback() {
-        session_callback = new CameraCaptureSession.StateCallback() {
+    // pinching the preview scales the zoom target freely between steps, the slider follows it, set up
+    // once on the UI thread, pinches before a camera is open do nothing
+    private void initPinchZoom() {
+        ScaleGestureDetector scale_detector = new ScaleGestureDetector(ui_manager.getContext(),
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
             @Override
-            public void onConfigured(CameraCaptureSession session) {
-                Log.d(TAG, "Capture session successfully configured");
+            public boolean onScale(ScaleGestureDetector detector) {
+                if (!custom_camera_manager.pinchZoom(detector.getScaleFactor())) return false;
+                followZoom();
+                return true;
             }
 
             @Override
-            public void onReady(CameraCaptureSession session) {
-                capture_session = session;
-                // zoom must be set up after the camera is set up to adjust the progress bar available ratios
-                initZoomSlider(session);
-                try {
-                    custom_camera_manager.setRepeatingRequest(session, background_handler);
-                }
-                catch (Exception e) {
-                    Log.d(TAG, "Set repeating request error: " + e);
-                }
-            }
-
-            @Override
-            public void onConfigureFailed(CameraCaptureSession session) {
-                Log.e(TAG, "Capture session failed to configure");
+            public void onScaleEnd(ScaleGestureDetector detector) {
+                ui_manager.fadeOutZoomValue();
             }
-        };
-    }
-
-    // start camera preview and adjust view properties based on the preview configuration settings
-    private void startCameraPreview(CameraDevice camera) {
-        custom_camera_manager.startCameraPreview(camera, background_handler, session_callback);
+        });
+        ui_manager.getTextureView().setOnTouchListener((view, event) -> scale_detector.onTouchEvent(event));
     }
 
-    // set up camera (and characteristics) through the manager, and adjust view properties
-    // based on retrieved characteristics
-    private void setupCamera(int width, int height) {
-        Log.d(TAG, "Attempting to set up camera");
-        int lens_facing_status = custom_camera_manager.setupCamera(width, height);
-        ui_manager.setLensFacingImage(lens_facing_status);
+    // moves the slider to the zoom target and shows it, without the slider setting the zoom
+    private void followZoom() {
+        following_zoom = true;
+        ui_manager.setZoomProgressValue(custom_camera_manager.getZoomProgress());
+        following_zoom = false;
+        ui_manager.setZoomValue(custom_camera_manager.getZoomTimes(), true);
     }
 
     private void initCarouselListener() {
@@ -234,56 +256,31 @@ public class CameraController {
         });
     }
 
-    // call in main activity's onResume() to set up listeners and initialize the entire program state
+    // call when the photo fragment is shown to set up listeners and attach to the camera session
     public void onResume() {
         ui_manager.initNonCameraElements();
         initCarouselListener();
         init_state = false;
-        startBackgroundThread();
+        camera_session_host.attach(ui_manager.getTextureView(), session_listener);
+        background_handler = camera_session_host.getBackgroundHandler();
+        shutter_handler = camera_session_host.getShutterHandler();
         sleep_event = ui_manager::sleep;
         background_handler.postDelayed(sleep_event, sec_until_sleep * 1000);
-
-        TextureView texture_view = ui_manager.getTextureView();
-        // initialization step of the texture view before proceeding to set up preview and camera properties
-        if (!texture_view.isAvailable()) {
-            initSurfaceTextureListener();
-            initCameraStateCallback();
-            ui_manager.getTextureView().setSurfaceTextureListener(surface_texture_listener);
-        }
-        else {
-            setupCamera(texture_view.getWidth(), texture_view.getHeight());
-            custom_camera_manager.openCamera(camera_device_state_callback, background_handler);
-        }
+        last_metrics_dump_ms = SystemClock.uptimeMillis();
+        background_handler.postDelayed(metrics_event, METRICS_OVERLAY_MS);
     }
 
-    // call in main activity's onPause() to free resources
+    // call when the photo fragment is hidden or paused, the session is kept by the host
     public void onPause() {
-        custom_camera_manager.closeCamera();
         if (sleep_event != null) background_handler.removeCallbacks(sleep_event);
-        stopBackgroundThread();
+        background_handler.removeCallbacks(metrics_event);
+        background_handler = null;
+        shutter_handler = null;
+        camera_session_host.detach();
+        capture_session = null;
         init_state = false;
     }
 
-    // set up and start background thread
-    private void startBackgroundThread() {
-        background_handler_thread = new HandlerThread("CameraControllerThread");
-        background_handler_thread.start();
-        background_handler = new Handler(background_handler_thread.getLooper());
-    }
-
-    // stop background thread on application pause / exit
-    private void stopBackgroundThread() {
-        background_handler_thread.quitSafely();
-        try {
-            background_handler_thread.join();
-            background_handler_thread = null;
-            background_handler = null;
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Stop background thread error: " + e);
-        }
-    }
-
     public void wake() {
         if (sleep_event != null) background_handler.removeCallbacks(sleep_event);
         // reset the timer on sleep trigger if UI interaction
@@ -0,0 +1,87 @@
+package com.example.rawstreamer;
+
+/*
+the arithmetic of setting a camera up, zoom steps and preview size choice, kept free of android
+classes so it runs (and is benchmarked) on a desktop JVM
+ */
+public class CameraMath {
+
+    // index of the smallest size with the view's aspect ratio that covers it, 0 if none does
+    public static int chooseOptimalSize(int[] widths, int[] heights, int width, int height) {
+        int best = -1;
+        long best_area = Long.MAX_VALUE;
+        for (int i = 0; i < widths.length; i++) {
+            // aspect ratio check
+            if (heights[i] == widths[i] * height / width && widths[i] >= width && heights[i] >= height) {
+                long area = (long) widths[i] * heights[i];
+                if (area < best_area) {
+                    best = i;
+                    best_area = area;
+                }
+            }
+        }
+        return best >= 0 ? best : 0;
+    }
+
+    // zoom seekbar steps as ratios (to a hundredth), 20 steps per 2x factor from min_zoom to max_zoom
+    public static float[] buildZoomRatios(float min_zoom, float max_zoom) {
+        float zoom_max_min_ratio = max_zoom / min_zoom;
+        // set 20 steps per 2x factor
+        final int steps_per_2x_factor = 20;
+        int n_steps = (int)((steps_per_2x_factor *
+                Math.log(zoom_max_min_ratio + 1.0e-11)) / Math.log(2.0));
+
+        // ratios * 100, never more than the steps below, at and above 1x plus both ends
+        int[] zoom_ratios = new int[2 * Math.max(0, n_steps) + 4];
+        int count = 0;
+
+        // add minimum zoom
+        zoom_ratios[count++] = (int)(min_zoom * 100);
+        if (zoom_ratios[0] / 100.0f < min_zoom) {
+            // fix for rounding down to less than the min_zoom
+            // e.g. if min_zoom = 0.666, would have stored a zoom ratio of 66 which then would
+            // convert back to 0.66
+            zoom_ratios[0]++;
+        }
+
+        if(zoom_ratios[0] < 100 ) {
+            int n_steps_below_one = Math.max(1, n_steps/5);
+            // if the min zoom is < 1.0, we add multiple entries for 1x zoom, when using the zoom
+            // seekbar it's easy for the user to zoom to exactly 1x
+            int n_steps_one = Math.max(1, n_steps/20);
+
+            // add rest of zoom values < 1.0f
+            double zoom = min_zoom;
+            final double scale_factor = Math.pow(1.0f / min_zoom, 1.0/ (double) n_steps_below_one);
+            for(int i = 0; i < n_steps_below_one - 1; i++) {
+                zoom *= scale_factor;
+                int zoom_ratio = (int)(zoom * 100);
+                if(zoom_ratio > zoom_ratios[0]) {
+                    // on some devices (e.g., Pixel 6 Pro), the second entry would equal the first
+                    // entry, due to the rounding fix above
+                    zoom_ratios[count++] = zoom_ratio;
+                }
+            }
+
+            // add values for 1.0f
+            for(int i = 0;i < n_steps_one; i++)
+                zoom_ratios[count++] = 100;
+        }
+
+        final int n_steps_above_one = Math.max(1, n_steps - count);
+        // add zoom values > 1.0f
+        double zoom = 1.0f;
+        final double scale_factor = Math.pow(max_zoom, 1.0/ (double) n_steps_above_one);
+        for(int i = 0; i < n_steps_above_one - 1; i++) {
+            zoom *= scale_factor;
+            zoom_ratios[count++] = (int)(zoom * 100);
+        }
+
+        // add maximum zoom
+        zoom_ratios[count++] = (int)(max_zoom*100);
+
+        float[] ratios = new float[count];
+        for (int i = 0; i < count; i++) ratios[i] = zoom_ratios[i] / 100.0f;
+        return ratios;
+    }
+}
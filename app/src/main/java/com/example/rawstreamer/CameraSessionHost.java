@@ -0,0 +1,294 @@
+package com.example.rawstreamer;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.TextureView;
+
+/*
+owns the camera for the whole process, the device, its capture session, the camera threads and the
+preview's SurfaceTexture outlive the photo fragment, so a trip to another tab and back doesn't reopen
+the camera or configure a new session, while no view is attached the repeating request is stopped
+(the sensor idles, the session stays configured) and the texture is kept off screen, the next view
+takes the texture over and the preview restarts with a single request, a camera left detached for
+IDLE_CLOSE_MS is closed so it doesn't hold the sensor for nothing
+
+the activity closes it on pause like before, tab to first preview frame is timed as a switch, warm
+when the session was reused and cold when the camera had to be opened (what every tab switch cost
+before), attach, detach and close run on the UI thread, camera setup and the camera callbacks on
+the camera thread
+ */
+public class CameraSessionHost {
+
+    // what the attached controller hears about the camera
+    public interface Listener {
+        // a camera is set up for the attached view, on the UI thread
+        void onCameraSetup(int lens_facing);
+
+        // the session streams to the attached view, on the camera thread
+        void onSessionReady(CameraCaptureSession session);
+    }
+
+    private static final String TAG = "CameraSessionHost";
+    // a camera detached this long is closed
+    private static final long IDLE_CLOSE_MS = 30000;
+    private static CameraSessionHost process_host;
+
+    private final CustomCameraManager custom_camera_manager;
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+    private final Runnable idle_close_event = this::closeIdleCamera;
+
+    // camera callbacks run here, shutter presses wait for a free saver slot on their own thread
+    private HandlerThread background_handler_thread;
+    private Handler background_handler;
+    private HandlerThread shutter_handler_thread;
+    private Handler shutter_handler;
+
+    private CameraDevice.StateCallback camera_device_state_callback;
+    private CameraCaptureSession.StateCallback session_callback;
+    private TextureView.SurfaceTextureListener surface_texture_listener;
+    // from openCamera() until the camera is closed
+    private volatile boolean camera_open = false;
+    private volatile CameraCaptureSession capture_session;
+    // the attached controller, null while no view shows the preview
+    private volatile Listener listener;
+    private TextureView texture_view;
+    // the preview's texture while no view holds it
+    private SurfaceTexture retained_texture;
+
+    private CameraSessionHost(Context context) {
+        custom_camera_manager = new CustomCameraManager(context);
+        initCameraStateCallback();
+        initCameraSessionCallback();
+        initSurfaceTextureListener();
+    }
+
+    public static synchronized CameraSessionHost get(Context context) {
+        if (process_host == null) process_host = new CameraSessionHost(context.getApplicationContext());
+        return process_host;
+    }
+
+    public CustomCameraManager getCameraManager() {return custom_camera_manager;}
+
+    public Handler getBackgroundHandler() {return background_handler;}
+
+    public Handler getShutterHandler() {return shutter_handler;}
+
+    // shows the preview in a view, reusing the running session if there is one
+    public void attach(TextureView texture_view, Listener listener) {
+        startBackgroundThread();
+        main_handler.removeCallbacks(idle_close_event);
+        this.texture_view = texture_view;
+        this.listener = listener;
+        custom_camera_manager.attachTextureView(texture_view);
+        texture_view.setSurfaceTextureListener(surface_texture_listener);
+        if (retained_texture != null) {
+            // setSurfaceTexture() doesn't call onSurfaceTextureAvailable(), start once the view is laid out
+            texture_view.setSurfaceTexture(retained_texture);
+            retained_texture = null;
+            texture_view.post(this::startPreview);
+        }
+        else if (texture_view.isAvailable()) {
+            startPreview();
+        }
+    }
+
+    // the view is going away, the session stays but stops streaming
+    public void detach() {
+        listener = null;
+        custom_camera_manager.pausePreview();
+        main_handler.postDelayed(idle_close_event, IDLE_CLOSE_MS);
+    }
+
+    // frees the camera, its threads and the retained texture, call in the activity's onPause()
+    public void close() {
+        main_handler.removeCallbacks(idle_close_event);
+        listener = null;
+        closeCamera();
+        releaseRetainedTexture();
+        stopBackgroundThread();
+    }
+
+    public int switchFacing() {
+        return custom_camera_manager.switchFacing(camera_device_state_callback, background_handler);
+    }
+
+    public boolean switchLens() {
+        return custom_camera_manager.switchLens(camera_device_state_callback, background_handler);
+    }
+
+    // restarts the running session's preview in the attached view, or sets up and opens the camera
+    private void startPreview() {
+        Listener listener = this.listener;
+        if (listener == null || texture_view == null || !texture_view.isAvailable()) return;
+        SwitchLatency switch_latency = custom_camera_manager.getSwitchLatency();
+        long now_ns = SystemClock.elapsedRealtimeNanos();
+        CameraCaptureSession session = capture_session;
+        if (session != null) {
+            switch_latency.begin(SwitchLatency.KIND_TAB_WARM, now_ns);
+            switch_latency.mark(SwitchLatency.PHASE_CONFIGURED, now_ns);
+            if (custom_camera_manager.resumePreview()) {
+                Log.d(TAG, "Preview resumed on the running session");
+                listener.onCameraSetup(custom_camera_manager.getLensFacing());
+                background_handler.post(() -> listener.onSessionReady(session));
+                return;
+            }
+            switch_latency.cancel();
+        }
+        // still opening (or switching), the session streams to this view once it's configured
+        if (camera_open) return;
+        switch_latency.begin(SwitchLatency.KIND_TAB_COLD, now_ns);
+        Log.d(TAG, "Attempting to set up camera");
+        camera_open = true;
+        int width = texture_view.getWidth();
+        int height = texture_view.getHeight();
+        // the first setup reads the capability index (or queries the HAL), keep it off the UI thread
+        background_handler.post(() -> {
+            // closed before the setup got to run
+            if (!camera_open) return;
+            int lens_facing = custom_camera_manager.setupCamera(width, height);
+            main_handler.post(() -> {
+                Listener setup_listener = this.listener;
+                if (setup_listener != null) setup_listener.onCameraSetup(lens_facing);
+            });
+            if (lens_facing >= 0) {
+                custom_camera_manager.openCamera(camera_device_state_callback, background_handler);
+            }
+            else {
+                camera_open = false;
+                switch_latency.cancel();
+            }
+        });
+    }
+
+    private void closeCamera() {
+        custom_camera_manager.closeCamera();
+        capture_session = null;
+        camera_open = false;
+    }
+
+    private void closeIdleCamera() {
+        Log.d(TAG, "Closing camera detached for " + IDLE_CLOSE_MS + " ms");
+        closeCamera();
+        releaseRetainedTexture();
+    }
+
+    private void releaseRetainedTexture() {
+        if (retained_texture != null) {
+            retained_texture.release();
+            retained_texture = null;
+        }
+    }
+
+    private void initSurfaceTextureListener() {
+        surface_texture_listener = new TextureView.SurfaceTextureListener() {
+            @Override
+            public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height) {
+                Log.d(TAG, "TextureView is available, width: " + width + " height: " + height);
+                startPreview();
+            }
+
+            public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width, int height) {}
+
+            // the session's output lives in the texture, keep it for the next view while the camera is open
+            public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
+                if (!camera_open) return true;
+                retained_texture = surfaceTexture;
+                return false;
+            }
+
+            public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {}
+        };
+    }
+
+    private void initCameraStateCallback() {
+        camera_device_state_callback = new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice camera) {
+                Log.d(TAG, "Camera opened successfully, memory: " + camera);
+                // detached while opening, the view's texture can't be used, the next attach opens again
+                if (listener == null) {
+                    camera.close();
+                    camera_open = false;
+                    custom_camera_manager.getSwitchLatency().cancel();
+                    return;
+                }
+                // only when camera device is open, start preview
+                custom_camera_manager.startCameraPreview(camera, background_handler, session_callback);
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                closeCamera();
+                Log.d(TAG, "Camera disconnected");
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                onDisconnected(camera);
+                Log.e(TAG, "Camera error: " + error);
+            }
+        };
+    }
+
+    // the repeating request starts once per session in onConfigured(), onReady() also comes every
+    // time a paused session runs out of work
+    private void initCameraSessionCallback() {
+        session_callback = new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                Log.d(TAG, "Capture session successfully configured");
+                capture_session = session;
+                try {
+                    custom_camera_manager.setRepeatingRequest(session, background_handler);
+                }
+                catch (Exception e) {
+                    Log.d(TAG, "Set repeating request error: " + e);
+                }
+                Listener listener = CameraSessionHost.this.listener;
+                if (listener != null) listener.onSessionReady(session);
+                else custom_camera_manager.pausePreview();
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                Log.e(TAG, "Capture session failed to configure");
+            }
+        };
+    }
+
+    // set up and start background thread
+    private void startBackgroundThread() {
+        if (background_handler_thread != null) return;
+        background_handler_thread = new HandlerThread("CameraControllerThread");
+        background_handler_thread.start();
+        background_handler = new Handler(background_handler_thread.getLooper());
+        shutter_handler_thread = new HandlerThread("ShutterThread");
+        shutter_handler_thread.start();
+        shutter_handler = new Handler(shutter_handler_thread.getLooper());
+    }
+
+    // stop background thread on application pause / exit
+    private void stopBackgroundThread() {
+        if (background_handler_thread == null) return;
+        background_handler_thread.quitSafely();
+        shutter_handler_thread.quitSafely();
+        try {
+            background_handler_thread.join();
+            shutter_handler_thread.join();
+            background_handler_thread = null;
+            background_handler = null;
+            shutter_handler_thread = null;
+            shutter_handler = null;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Stop background thread error: " + e);
+        }
+    }
+}
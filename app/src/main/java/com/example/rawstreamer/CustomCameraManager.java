@@ -6,7 +6,6 @@ import android.content.pm.PackageManager;
 import android.graphics.*;
 import android.hardware.camera2.*;
 import android.hardware.camera2.params.OutputConfiguration;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.*;
 import android.os.*;
 import android.util.*;
@@ -16,46 +15,172 @@ import androidx.core.content.ContextCompat;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // manages camera operations, "model" in MVC structure
 public class CustomCameraManager {
 
     private static final String TAG = "CustomCameraManager";
     private final Context context;
-    private final TextureView texture_view;
+    // the view showing the preview, replaced when the session moves to a new view
+    private volatile TextureView texture_view;
 
     // camera/lens-related fields
     private CameraManager camera_manager;
     private CameraDevice camera_device;
-    private String camera_id = "0";
-    private String physical_id = "";
-
-    // request-related fields
-    private CameraCharacteristics camera_characteristics;
-    private Range<Float> zoom_range;
-    private List<Integer> zoom_ratios;
-    private double zoom_times;
-    private int lens_facing;
-    private boolean is_logical_multi_cam;
+    // the camera to set up next, set on the UI thread at a switch so a second tap before the switch
+    // runs moves on from it
+    private volatile String camera_id = "0";
+
+    // request-related fields, everything but RAW captures works from the process wide capability index
+    private volatile CameraCapabilityIndex camera_index;
+    // the set up camera, replaced whole on the camera thread at a switch while the UI thread reads it
+    private volatile CameraSetup camera_setup;
+    // full characteristics for DNG metadata, read when a session with RAW starts
+    private volatile CameraCharacteristics camera_characteristics;
+    // set on the UI thread at a facing switch too, so a second tap before the switch runs goes back
+    private volatile int lens_facing;
     private CaptureRequest.Builder preview_capture_request;
     private CameraCaptureSession.CaptureCallback capture_callback;
+    // session and handler the repeating preview request runs on, set by setRepeatingRequest()
+    private volatile CameraCaptureSession preview_session;
+    private volatile Handler preview_handler;
+    // set while no view shows the preview, nothing is submitted until it resumes
+    private volatile boolean preview_paused = false;
+    // live control changes are coalesced into at most one preview request per frame
+    private final RequestUpdateScheduler request_scheduler = new RequestUpdateScheduler(new RequestUpdateScheduler.Target() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void set(Object key, Object value) {
+            if (preview_capture_request != null) preview_capture_request.set((CaptureRequest.Key<Object>) key, value);
+        }
+
+        @Override
+        public Object submit() {
+            CameraCaptureSession session = preview_session;
+            if (session == null || preview_paused || preview_capture_request == null) return null;
+            try {
+                CaptureRequest request = preview_capture_request.build();
+                session.setRepeatingRequest(request, capture_callback, preview_handler);
+                switch_latency.requestSubmitted(request);
+                return request;
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Error setting repeating request: " + e);
+                return null;
+            }
+        }
+    });
     private Surface preview_surface;
-    private Size preview_size;
     private Range<Integer> thirty_fps_range;
     private Range<Integer> sixty_fps_range;
+    // preview results are diffed every frame on the callback thread, changes are logged at VERBOSE
+    private final ResultDiffEngine preview_result_diff = ResultDiffEngine.withDefaultKeys();
+    private final StringBuilder preview_result_changes = new StringBuilder();
+    // every result of a camera session goes to its journal, at 60 fps the ring holds about 17 s
+    private static final int JOURNAL_RING_RECORDS = 1024;
+    private volatile MetadataJournal metadata_journal;
+    // frame timing of every callback, read by the controller for the overlay and periodic dumps
+    private final FrameMetrics frame_metrics = new FrameMetrics();
+    // tap to first frame of facing, logical ID and lens switches
+    private final SwitchLatency switch_latency = new SwitchLatency();
 
     // file management fields
     private final FileManager file_manager = new FileManager();
-    private File raw_image_file;
     private ImageReader raw_image_reader;
 
+    // RAW capture pipeline fields, images are copied into a pooled frame buffer and closed as soon as
+    // they are matched, each capture holds a saver pool slot (and so a frame buffer) until its DNG is
+    // written, so slow storage never keeps images acquired from the reader
+    // frame buffers, and so captures in flight, one buffer is width * height * 2 bytes off-heap
+    private static final int RAW_FRAME_BUFFERS = 6;
+    // streamed ZSL images waiting for (or in) their copy into the ring, frames beyond this are dropped
+    private static final int RAW_ZSL_STREAM_IMAGES = 3;
+    // an image stays acquired until its result is matched (or a streamed one until it's copied), so the
+    // reader needs one per capture in flight plus the streaming headroom
+    private static final int RAW_MAX_IMAGES = RAW_FRAME_BUFFERS + RAW_ZSL_STREAM_IMAGES;
+    // zero shutter lag ring, frames kept from the continuous RAW stream (more when committing frames
+    // around the press needs them) and how long a commit waits for frames after the press
+    private static final int RAW_ZSL_FRAMES = 4;
+    private static final long RAW_ZSL_COMMIT_TIMEOUT_MS = 500;
+    private static final String ZSL_REQUEST_TAG = "zsl";
+    // burst merge, every frame of a burst holds a slot until merged so a burst is at most one slot per
+    // frame buffer, frames are aligned tile by tile first, tiles still further than this (in DN) from the
+    // running mean are left out as motion the alignment couldn't follow
+    private static final int RAW_BURST_REJECTION_DN = 48;
+    // every frame of a burst is acquired from the reader before any is matched, so a burst can't be
+    // longer than the images the reader holds for captures (ZSL streaming's headroom isn't one of them)
+    private static final int RAW_MAX_BURST_FRAMES = Math.min(RAW_FRAME_BUFFERS, RAW_MAX_IMAGES - RAW_ZSL_STREAM_IMAGES);
+    private static final int RAW_SAVER_THREADS = 2;
+    private static final long RAW_SAVER_SHUTDOWN_MS = 2000;
+    // unmatched images / results that can wait for their partner, and for how long
+    private static final int RAW_MATCHER_CAPACITY = 32;
+    private static final long RAW_MATCHER_TIMEOUT_MS = 1000;
+    private DngSaverPool dng_saver_pool;
+    private FrameBufferPool frame_buffer_pool;
+    private volatile ZslRingBuffer zsl_ring;
+    // streamed frames are copied into the ring here, off the camera thread preview results arrive on
+    private ExecutorService zsl_copy_executor;
+    private final AtomicInteger zsl_copies_pending = new AtomicInteger();
+    private volatile boolean zsl_enabled = false;
+    private int zsl_frames_around = 0;
+    private DngSaverPool.BackpressurePolicy raw_backpressure_policy = DngSaverPool.BackpressurePolicy.BLOCK;
+    // lossless JPEG roughly halves the bytes per frame at the cost of CPU time on the savers
+    private volatile int raw_compression = DngWriter.COMPRESSION_NONE;
+    private volatile int raw_burst_frames = 1;
+    private BurstMerger burst_merger;
+    private FrameAligner frame_aligner;
+    private RawBurst raw_burst;
+    private CameraCaptureSession.CaptureCallback raw_capture_callback;
+    private FrameMatcher<Image, TotalCaptureResult> raw_frame_matcher;
+
     private Toast toast;
 
-    public CustomCameraManager(Context context, TextureView texture_view) {
+    public CustomCameraManager(Context context) {
         this.context = context;
+        initCaptureCallback();
+    }
+
+    /*
+    everything setupCamera() picks for one camera, built on whichever thread sets the camera up and
+    published whole through camera_setup, so the UI thread reading it during a switch sees either the
+    old camera or the new one and never half of each, readers take the reference once per call
+     */
+    private static final class CameraSetup {
+        final String id;
+        final CameraCapabilityIndex.Camera info;
+        // zoom table of the camera, the preview request follows its target once per frame
+        final SmoothZoom zoom;
+        final Size preview_size;
+        // largest RAW_SENSOR output, null when the camera has no RAW
+        final Size raw_size;
+
+        CameraSetup(String id, CameraCapabilityIndex.Camera info, SmoothZoom zoom, Size preview_size, Size raw_size) {
+            this.id = id;
+            this.info = info;
+            this.zoom = zoom;
+            this.preview_size = preview_size;
+            this.raw_size = raw_size;
+        }
+    }
+
+    // zoom of the set up camera, null before there is one
+    private SmoothZoom getSmoothZoom() {
+        CameraSetup setup = camera_setup;
+        return setup != null ? setup.zoom : null;
+    }
+
+    public void attachTextureView(TextureView texture_view) {
         this.texture_view = texture_view;
     }
 
@@ -67,7 +192,7 @@ public class CustomCameraManager {
             // no issues if permission granted
             if (ContextCompat.checkSelfPermission(context, Manifest.permission.CAMERA) ==
                     PackageManager.PERMISSION_GRANTED) {
-                camera_manager.openCamera(camera_id, cb, background_handler);
+                camera_manager.openCamera(camera_setup.id, cb, background_handler);
             }
             Log.d(TAG, "Camera connected");
         }
@@ -76,117 +201,155 @@ public class CustomCameraManager {
         }
     }
 
-    // procedure to reopen camera during camera / lens switches, returns direction of facing
-    private int reopenCamera(CameraDevice.StateCallback callback, Handler handler) {
-        closeCamera();
-        int lens_facing = setupCamera(texture_view.getWidth(), texture_view.getHeight());
-        openCamera(callback, handler);
-        return lens_facing;
+    /*
+    procedure to reopen camera during camera / lens switches, posted to the camera thread so the UI
+    thread never waits on the HAL, the old device has to be closed before the new one opens (they may
+    share hardware) but in-flight DNG saves of the old session drain on their own thread meanwhile
+     */
+    private void reopenCamera(String next_id, CameraDevice.StateCallback callback, Handler handler) {
+        int width = texture_view.getWidth();
+        int height = texture_view.getHeight();
+        camera_id = next_id;
+        handler.post(() -> {
+            closeDevice();
+            startRawPipelineClose();
+            closeMetadataJournal();
+            switch_latency.mark(SwitchLatency.PHASE_CLOSED, SystemClock.elapsedRealtimeNanos());
+            if (setupCamera(next_id, width, height) >= 0) openCamera(callback, handler);
+            else switch_latency.cancel();
+        });
     }
 
-    // close camera to preserve resources
+    // close camera to preserve resources, called on the UI thread (pause, idle close) too, so in-flight
+    // DNG saves drain on a thread of their own and the caller never waits for them
     public void closeCamera() {
+        closeDevice();
+        startRawPipelineClose();
+        closeMetadataJournal();
+    }
+
+    private void closeDevice() {
         if (camera_device != null) {
             Log.d(TAG, "Camera closed, memory: " + camera_device);
             camera_device.close();
             preview_surface.release();
         }
+        preview_session = null;
+        request_scheduler.reset();
     }
 
-    // sets up various zoom ratios depending on availability, called after extracting zoom_range
-    private void setupZoomRatios() {
-        float min_zoom = zoom_range.getLower();
-        float max_zoom = zoom_range.getUpper();
-
-        float zoom_max_min_ratio = max_zoom / min_zoom;
-        // set 20 steps per 2x factor
-        final int steps_per_2x_factor = 20;
-        int n_steps = (int)((steps_per_2x_factor *
-                Math.log(zoom_max_min_ratio + 1.0e-11)) / Math.log(2.0));
-
-        zoom_ratios = new ArrayList<>();
-
-        // add minimum zoom
-        zoom_ratios.add((int)(min_zoom * 100));
-        if (zoom_ratios.get(0) / 100.0f < min_zoom) {
-            // fix for rounding down to less than the min_zoom
-            // e.g. if min_zoom = 0.666, would have stored a zoom ratio of 66 which then would
-            // convert back to 0.66
-            zoom_ratios.set(0, zoom_ratios.get(0) + 1);
-        }
-
-        if(zoom_ratios.get(0) < 100 ) {
-            int n_steps_below_one = Math.max(1, n_steps/5);
-            // if the min zoom is < 1.0, we add multiple entries for 1x zoom, when using the zoom
-            // seekbar it's easy for the user to zoom to exactly 1x
-            int n_steps_one = Math.max(1, n_steps/20);
-
-            // add rest of zoom values < 1.0f
-            double zoom = min_zoom;
-            final double scale_factor = Math.pow(1.0f / min_zoom, 1.0/ (double) n_steps_below_one);
-            for(int i = 0; i < n_steps_below_one - 1; i++) {
-                zoom *= scale_factor;
-                int zoom_ratio = (int)(zoom * 100);
-                if(zoom_ratio > zoom_ratios.get(0)) {
-                    // on some devices (e.g., Pixel 6 Pro), the second entry would equal the first
-                    // entry, due to the rounding fix above
-                    zoom_ratios.add(zoom_ratio);
-                }
-            }
-
-            // add values for 1.0f
-            for(int i = 0;i < n_steps_one; i++)
-                zoom_ratios.add(100);
+    // one journal per session, losing it never stops the preview
+    private void openMetadataJournal() {
+        closeMetadataJournal();
+        try {
+            File folder = new File(context.getExternalFilesDir(null), "journals");
+            metadata_journal = new MetadataJournal(file_manager.newJournalFile(folder), JOURNAL_RING_RECORDS,
+                    ForkJoinPool.commonPool());
         }
-
-        final int n_steps_above_one = Math.max(1, n_steps - zoom_ratios.size());
-        // add zoom values > 1.0f
-        double zoom = 1.0f;
-        final double scale_factor = Math.pow(max_zoom, 1.0/ (double) n_steps_above_one);
-        for(int i = 0; i < n_steps_above_one - 1; i++) {
-            zoom *= scale_factor;
-            int zoom_ratio = (int)(zoom * 100);
-            zoom_ratios.add(zoom_ratio);
+        catch (Exception e) {
+            Log.e(TAG, "Couldn't open metadata journal: " + e);
         }
+    }
 
-        // add maximum zoom
-        int zoom_ratio = (int)(max_zoom*100);
-        zoom_ratios.add(zoom_ratio);
+    private void closeMetadataJournal() {
+        MetadataJournal journal = metadata_journal;
+        metadata_journal = null;
+        if (journal == null) return;
+        journal.close();
+        Log.d(TAG, "Closed " + journal.getFile() + ", " + journal.getRecordedCount() + " records, "
+                + journal.getDroppedCount() + " dropped");
+    }
 
-        Log.d(TAG, "Number of zoom values: " + zoom_ratios.size());
-        Log.d(TAG, "Zoom Ratios: " + zoom_ratios);
+    // let in-flight DNG saves finish before the reader (and every image it handed out) is closed,
+    // the frame buffers are kept for the next session
+    private void closeRawPipeline() {
+        detachRawPipeline().run();
+    }
+
+    // the next session can start at once, it gets its own reader and saver pool
+    private void startRawPipelineClose() {
+        new Thread(detachRawPipeline(), "RawPipelineClose").start();
+    }
+
+    // takes the RAW pipeline out of the manager, the returned task closes it and may run on any thread
+    private Runnable detachRawPipeline() {
+        DngSaverPool saver_pool = dng_saver_pool;
+        ZslRingBuffer ring = zsl_ring;
+        ExecutorService copy_executor = zsl_copy_executor;
+        FrameBufferPool buffer_pool = frame_buffer_pool;
+        FrameMatcher<Image, TotalCaptureResult> matcher = raw_frame_matcher;
+        ImageReader reader = raw_image_reader;
+        dng_saver_pool = null;
+        zsl_ring = null;
+        zsl_copy_executor = null;
+        raw_frame_matcher = null;
+        raw_image_reader = null;
+        return () -> {
+            if (saver_pool != null) saver_pool.shutdown(RAW_SAVER_SHUTDOWN_MS);
+            // copies already queued still close their images before the reader goes
+            if (copy_executor != null) {
+                copy_executor.shutdown();
+                try {
+                    copy_executor.awaitTermination(RAW_SAVER_SHUTDOWN_MS, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    Log.e(TAG, "ZSL copy shutdown interrupted: " + e);
+                }
+            }
+            if (ring != null) ring.close();
+            if (buffer_pool != null) Log.d(TAG, "RAW " + buffer_pool);
+            if (matcher != null) matcher.drain();
+            if (reader != null) reader.close();
+        };
+    }
+
+    // sets up various zoom ratios depending on availability, called after looking up the camera
+    private SmoothZoom setupZoomRatios(CameraCapabilityIndex.Camera camera_info) {
+        float[] zoom_ratios = CameraMath.buildZoomRatios(camera_info.min_zoom, camera_info.max_zoom);
+        Log.d(TAG, "Number of zoom values: " + zoom_ratios.length);
+        Log.d(TAG, "Zoom Ratios: " + Arrays.toString(zoom_ratios));
+        return new SmoothZoom(zoom_ratios);
     }
 
     // sets up a camera with the current camera ID, returns direction of lens facing
     public int setupCamera(int width, int height) {
+        return setupCamera(camera_id, width, height);
+    }
+
+    private int setupCamera(String id, int width, int height) {
         camera_manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         try {
-            camera_characteristics =
-                    camera_manager.getCameraCharacteristics(camera_id);
-
-            // determine if this camera is backed by multiple physical IDs
-            is_logical_multi_cam = camera_characteristics.getPhysicalCameraIds().size() > 1;
-
-            // determine lens facing, 0 for front, 1 for rear
-            lens_facing = camera_characteristics.get(CameraCharacteristics.LENS_FACING);
+            camera_index = CameraCapabilityIndex.get(context);
+            CameraCapabilityIndex.Camera camera_info = camera_index.getCamera(id);
+            if (camera_info == null) {
+                Log.e(TAG, "Camera " + id + " not found");
+                return -1;
+            }
+            camera_characteristics = null;
 
-            zoom_range = camera_characteristics.get(CameraCharacteristics.CONTROL_ZOOM_RATIO_RANGE);
-            setupZoomRatios();
+            SmoothZoom zoom = setupZoomRatios(camera_info);
 
-            Range<Integer>[] fps_range = camera_characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
-            for (Range<Integer> range : fps_range) {
-                Log.d(TAG, "Range: " + range.getLower() + ", " + range.getUpper());
+            for (int i = 0; i < camera_info.getFpsRangeCount(); i++) {
+                Log.d(TAG, "Range: " + camera_info.getFpsRange(i));
             }
 
-            // resolutions map
-            StreamConfigurationMap map =
-                    camera_characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-
-            preview_size = Utils.chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                    width, height);
+            Size preview_size;
+            if (camera_info.preview_widths.length > 0) {
+                int preview = CameraMath.chooseOptimalSize(camera_info.preview_widths, camera_info.preview_heights, width, height);
+                preview_size = new Size(camera_info.preview_widths[preview], camera_info.preview_heights[preview]);
+            }
             preview_size = new Size(3840, 2160);
             // preview_size = new Size(1920, 1080);
             Log.d(TAG, "Preview size chosen: " + preview_size);
+
+            // largest RAW_SENSOR output, only for cameras that advertise the RAW capability
+            int raw = camera_info.largestRawIndex();
+            Size raw_size = raw >= 0 ? new Size(camera_info.raw_widths[raw], camera_info.raw_heights[raw]) : null;
+            Log.d(TAG, "RAW size chosen: " + raw_size);
+
+            camera_setup = new CameraSetup(id, camera_info, zoom, preview_size, raw_size);
+            // determine lens facing, 0 for front, 1 for rear
+            lens_facing = camera_info.facing;
             return lens_facing;
         }
         catch (Exception e) {
@@ -195,132 +358,98 @@ public class CustomCameraManager {
         }
     }
 
+    public int getLensFacing() {return lens_facing;}
+
     // gets the lens facing direction of a camera ID, 0 for rear, 1 for front
     private int getLensFacing(String id) {
-        try {
-            return camera_manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Error getting lens facing: " + e);
-        }
-        return -1;
+        return camera_index.getFacing(id);
     }
 
     // return the first available ID for the given lens facing direction
     private String getFirstAvailableID(int lens_facing) {
-        try {
-            for (String id : camera_manager.getCameraIdList()) {
-                if (getLensFacing(id) == lens_facing) {
-                    return id;
-                }
-            }
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Error getting available ID: " + e);
-        }
-        return "";
+        return camera_index.getFirstId(lens_facing);
     }
 
-    // switch between front and back facing cameras, returns the direction of facing
+    // switch between front and back facing cameras, returns the direction of facing, the camera
+    // itself switches on the camera thread
     public int switchFacing(CameraDevice.StateCallback callback, Handler handler) {
+        switch_latency.begin(SwitchLatency.KIND_FACING, SystemClock.elapsedRealtimeNanos());
         // if back facing, find first available front facing, vice versa
-        camera_id = (lens_facing == CameraCharacteristics.LENS_FACING_BACK) ?
+        String next_id = (lens_facing == CameraCharacteristics.LENS_FACING_BACK) ?
                 getFirstAvailableID(CameraCharacteristics.LENS_FACING_FRONT) :
                 getFirstAvailableID(CameraCharacteristics.LENS_FACING_BACK);
-        if (camera_id.equals("")) Log.e(TAG, "Error getting ID to switch to");
-        Log.d(TAG, "Switching to ID: " + camera_id);
-        return reopenCamera(callback, handler);
+        if (next_id.equals("")) {
+            Log.e(TAG, "Error getting ID to switch to");
+            switch_latency.cancel();
+            return lens_facing;
+        }
+        Log.d(TAG, "Switching to ID: " + next_id);
+        lens_facing = getLensFacing(next_id);
+        reopenCamera(next_id, callback, handler);
+        return lens_facing;
     }
 
     // determines if, for the current facing lens, there is at least one other same-facing logical ID to switch to
     private boolean canSwitchLogicalLens() {
-        int num_same_facing = 0;
-        // determine, for this facing direction, if there is more than one logical ID with same facing
-        try {
-            for (String logical_id : camera_manager.getCameraIdList())
-                if (getLensFacing(logical_id) == lens_facing) num_same_facing++;
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Error querying logical IDs: " + e);
-        }
-        return num_same_facing > 1;
+        return getLogicalIds().size() > 1;
     }
 
     // gets all logical IDs in the current lens facing direction
-    private ArrayList<String> getLogicalIds() {
-        ArrayList<String> ids = new ArrayList<>();
-        try {
-            for (String logical_id : camera_manager.getCameraIdList()) {
-                if (getLensFacing(logical_id) == lens_facing) ids.add(logical_id);
-            }
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Error getting IDs: " + e);
-        }
-        return ids;
+    private List<String> getLogicalIds() {
+        return camera_index.getIds(lens_facing);
     }
 
-    // cycle to the next available logical ID, called when there are at least 2 logical IDs of same lens facing
-    private void getNextLogical() {
-        ArrayList<String> same_facing_ids = getLogicalIds();
+    // the next available logical ID, called when there are at least 2 logical IDs of same lens facing
+    private String getNextLogical() {
+        List<String> same_facing_ids = getLogicalIds();
         boolean is_last = camera_id.equals(same_facing_ids.get(same_facing_ids.size() - 1));
         // if ID is the last in the set, go back to beginning
         Log.d(TAG, "Is last: " + is_last);
-        if (is_last) {
-            camera_id = same_facing_ids.get(0);
-        }
-        else {
-            camera_id = same_facing_ids.get(same_facing_ids.indexOf(camera_id) + 1);
-        }
-        Log.d(TAG, "Next logical ID chosen: " + camera_id);
+        String next_id = is_last ? same_facing_ids.get(0) : same_facing_ids.get(same_facing_ids.indexOf(camera_id) + 1);
+        Log.d(TAG, "Next logical ID chosen: " + next_id);
+        return next_id;
     }
 
-    // cycle to the next available physical ID, called when there are at least 2 physical IDs
-    private void getNextPhysical() {
-        Set<String> physical_ids = camera_characteristics.getPhysicalCameraIds();
-        boolean is_last = physical_id.equals(Utils.setNthElement(physical_ids, physical_ids.size() - 1));
-        // if ID is the last in the set, go back to beginning
-        Log.d(TAG, "Is last: " + is_last);
-        if (is_last) {
-            physical_id = Utils.setNthElement(physical_ids, 0);
-        }
-        // else get the next ID
-        else {
-            physical_id = Utils.setNthElement(physical_ids, Utils.setIndexOf(physical_ids, physical_id) + 1);
+    /*
+    switch lenses, if possible, returns whether the zoom jumped to another lens, a logical multi-camera
+    hands over to its next physical lens inside the running session by jumping the zoom ratio to where
+    that lens fills the frame, the HAL moves the stream to it on the next request, otherwise the next
+    same-facing logical ID is opened on the camera thread
+     */
+    public boolean switchLens(CameraDevice.StateCallback callback, Handler handler) {
+        CameraSetup setup = camera_setup;
+        SmoothZoom zoom = setup != null ? setup.zoom : null;
+        float lens_ratio = zoom != null ? setup.info.nextLensZoomRatio(zoom.getTargetRatio()) : -1;
+        if (lens_ratio > 0) {
+            long now_ns = SystemClock.elapsedRealtimeNanos();
+            zoom.jumpTo(lens_ratio);
+            switch_latency.begin(SwitchLatency.KIND_LENS, now_ns);
+            // the session is already configured, the next request carries the switch
+            switch_latency.mark(SwitchLatency.PHASE_CONFIGURED, now_ns);
+            request_scheduler.post(CaptureRequest.CONTROL_ZOOM_RATIO, lens_ratio, getSensorClockNanos());
+            Log.d(TAG, "Lens handover at zoom: " + lens_ratio);
+            return true;
         }
-        Log.d(TAG, "Next physical ID chosen: " + physical_id);
-    }
-
-    // switch lenses, if possible
-    public void switchLens(CameraDevice.StateCallback callback, Handler handler) {
         // for devices with multiple exposed logical IDs
         if (canSwitchLogicalLens()) {
-            getNextLogical();
-            reopenCamera(callback, handler);
-        }
-        // for devices with multiple exposed physical IDs or no other logical, use that logical ID only,
-        /*
-        else if (is_logical_multi_cam) {
-            getNextPhysical();
-            reopenCamera(callback, handler);
+            switch_latency.begin(SwitchLatency.KIND_LOGICAL, SystemClock.elapsedRealtimeNanos());
+            reopenCamera(getNextLogical(), callback, handler);
         }
-
-         */
         else {
             // can't switch lens
             if (toast != null) {toast.cancel();}
             String facing = (lens_facing == 0) ? "front" : "rear";
             toast = Toast.makeText(context, "No other " + facing + "-facing lens found", Toast.LENGTH_SHORT);
             toast.show();
-
         }
+        return false;
     }
 
     // adjust aspect ratio
-    private void setTextureTransform(TextureView texture_view) {
-        int width = preview_size.getWidth();
-        int height = preview_size.getHeight();
-        int sensorOrientation = getCameraSensorOrientation(camera_characteristics);
+    private void setTextureTransform(TextureView texture_view, CameraSetup setup) {
+        int width = setup.preview_size.getWidth();
+        int height = setup.preview_size.getHeight();
+        int sensorOrientation = getCameraSensorOrientation(setup.info.sensor_orientation);
         // Indicate the size of the buffer the texture should expect
         texture_view.getSurfaceTexture().setDefaultBufferSize(width, height);
         // Save the texture dimensions in a rectangle
@@ -382,84 +511,538 @@ public class CustomCameraManager {
         }
     }
 
-    private int getCameraSensorOrientation(CameraCharacteristics characteristics) {
-        Integer cameraOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-        return (360 - (cameraOrientation != null ? cameraOrientation : 0)) % 360;
+    private int getCameraSensorOrientation(int cameraOrientation) {
+        return (360 - cameraOrientation) % 360;
     }
 
-    // returns first available physical ID
-    private String getFirstPhysicalID() {return camera_characteristics.getPhysicalCameraIds().iterator().next();}
-
     // creates a TEMPLATE_PREVIEW request for the preview display
     private void createPreviewRequest(TextureView texture_view) {
         try {
             // get surface texture and create new surface dedicated to preview
-            setTextureTransform(texture_view);
+            CameraSetup setup = camera_setup;
+            setTextureTransform(texture_view, setup);
             SurfaceTexture surface_texture = texture_view.getSurfaceTexture();
-            surface_texture.setDefaultBufferSize(preview_size.getWidth(), preview_size.getHeight());
+            surface_texture.setDefaultBufferSize(setup.preview_size.getWidth(), setup.preview_size.getHeight());
             preview_surface = new Surface(surface_texture);
 
             // request for preview captures
-            preview_capture_request = camera_device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            preview_capture_request.addTarget(preview_surface);
+            synchronized (request_scheduler) {
+                preview_capture_request = camera_device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                preview_capture_request.addTarget(preview_surface);
+                preview_capture_request.set(CaptureRequest.CONTROL_ZOOM_RATIO, setup.zoom.getCurrentRatio());
+            }
         }
         catch (Exception e) {
             Log.e(TAG, "Error creating preview request: " + e);
         }
     }
 
-    //  finds the appropriate seekbar progress value for 1.0x standard zoom
-    private int findProgressValue() {
-        // find closest index in list of zoom values
-        int zoom_value = Math.round((float) 1.0 * 100);
-        Log.d(TAG, "Zoom value: " + zoom_value);
-        for (int i = 0; i < zoom_ratios.size(); i++) {
-            if (zoom_ratios.get(i) == zoom_value) {
-                Log.d(TAG, "Progress value found: " + i);
-                return i;
-            }
-        }
-        return 0;
+    // seekbar progress value of the step closest to the zoom target, 1.0x for a new camera, 0 before
+    // a camera is set up
+    public int getZoomProgress() {
+        SmoothZoom zoom = getSmoothZoom();
+        if (zoom == null) return 0;
+        return zoom.nearestIndex(zoom.getTargetRatio());
+    }
+
+    public int getMaxProgress() {
+        SmoothZoom zoom = getSmoothZoom();
+        return zoom != null ? zoom.getStepCount() - 1 : 0;
     }
 
-    public int getMaxProgress() {return zoom_ratios.size() - 1;}
+    public FrameMetrics getFrameMetrics() {return frame_metrics;}
+
+    public RequestUpdateScheduler getRequestUpdateScheduler() {return request_scheduler;}
+
+    public SwitchLatency getSwitchLatency() {return switch_latency;}
 
     private void initCaptureCallback() {
         capture_callback = new CameraCaptureSession.CaptureCallback() {
             @Override
             public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
                 super.onCaptureStarted(session, request, timestamp, frameNumber);
+                frame_metrics.captureStarted(FrameMetrics.STREAM_PREVIEW, frameNumber, timestamp);
+                request_scheduler.frameStarted(request, timestamp);
             }
 
             @Override
             public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
                 super.onCaptureCompleted(session, request, result);
-                //Log.d(TAG, "Result FPS: " + result.get(CaptureResult.CONTROL_AE_TARGET_FPS_RANGE));
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (timestamp != null) frame_metrics.captureCompleted(FrameMetrics.STREAM_PREVIEW, timestamp, getSensorClockNanos());
+                SmoothZoom zoom = getSmoothZoom();
+                if (timestamp != null && zoom != null && zoom.step(timestamp)) {
+                    request_scheduler.post(CaptureRequest.CONTROL_ZOOM_RATIO, zoom.getCurrentRatio(), getSensorClockNanos());
+                }
+                switch_latency.frameCompleted(request, SystemClock.elapsedRealtimeNanos());
+                MetadataJournal journal = metadata_journal;
+                if (journal != null) journal.record(result);
+                if (preview_result_diff.diff(result) > 0 && Log.isLoggable(TAG, Log.VERBOSE)) {
+                    preview_result_changes.setLength(0);
+                    preview_result_diff.appendChanges(preview_result_changes);
+                    Log.v(TAG, "Frame " + result.getFrameNumber() + " changed:\n" + preview_result_changes);
+                }
+                // ZSL preview frames also stream RAW, their results go to the matcher like a capture's
+                if (ZSL_REQUEST_TAG.equals(request.getTag())) {
+                    FrameMatcher<Image, TotalCaptureResult> matcher = raw_frame_matcher;
+                    if (timestamp != null && matcher != null) matcher.offerResult(timestamp, result);
+                }
+            }
+
+            @Override
+            public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+                super.onCaptureFailed(session, request, failure);
+                frame_metrics.captureFailed(FrameMetrics.STREAM_PREVIEW);
+            }
+
+            @Override
+            public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request, Surface target, long frameNumber) {
+                super.onCaptureBufferLost(session, request, target, frameNumber);
+                frame_metrics.bufferLost(FrameMetrics.STREAM_PREVIEW);
             }
         };
     }
 
-    public void setRepeatingRequest(CameraCaptureSession session, Handler handler) {
+    // sends RAW capture results to the matcher, a capture's saver slot is given back as soon as it is
+    // known that its image will never reach a saver
+    private void initRawCaptureCallback(ConcurrentSkipListSet<Long> slot_captures) {
+        raw_capture_callback = new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+                super.onCaptureStarted(session, request, timestamp, frameNumber);
+                frame_metrics.captureStarted(FrameMetrics.STREAM_RAW, frameNumber, timestamp);
+                // every capture sent with this callback holds a slot, one that failed without an image
+                // never comes back and is forgotten once far older than anything in flight
+                slot_captures.add(timestamp);
+                while (slot_captures.size() > RAW_MAX_IMAGES * 2) slot_captures.pollFirst();
+            }
+
+            @Override
+            public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+                super.onCaptureCompleted(session, request, result);
+                MetadataJournal journal = metadata_journal;
+                if (journal != null) journal.record(result);
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (timestamp != null) frame_metrics.captureCompleted(FrameMetrics.STREAM_RAW, timestamp, getSensorClockNanos());
+                FrameMatcher<Image, TotalCaptureResult> matcher = raw_frame_matcher;
+                if (timestamp != null && matcher != null) matcher.offerResult(timestamp, result);
+            }
+
+            @Override
+            public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+                super.onCaptureFailed(session, request, failure);
+                frame_metrics.captureFailed(FrameMetrics.STREAM_RAW);
+                Log.e(TAG, "RAW capture failed, reason: " + failure.getReason());
+                // an image captured anyway is released when the matcher orphans it
+                if (!failure.wasImageCaptured() && dng_saver_pool != null) dng_saver_pool.releaseSlot();
+                if (request.getTag() instanceof RawBurst) ((RawBurst) request.getTag()).frameLost();
+            }
+
+            @Override
+            public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request, Surface target, long frameNumber) {
+                super.onCaptureBufferLost(session, request, target, frameNumber);
+                frame_metrics.bufferLost(FrameMetrics.STREAM_RAW);
+                if (raw_image_reader != null && target == raw_image_reader.getSurface()) {
+                    Log.e(TAG, "RAW buffer lost for frame: " + frameNumber);
+                    if (dng_saver_pool != null) dng_saver_pool.releaseSlot();
+                }
+            }
+        };
+    }
+
+    // creates the RAW_SENSOR reader, images are handed to the saver pool as soon as their result is in
+    private void createRawImageReader(Size raw_size, Handler background_handler) {
+        closeRawPipeline();
+        raw_image_reader = ImageReader.newInstance(raw_size.getWidth(), raw_size.getHeight(),
+                ImageFormat.RAW_SENSOR, RAW_MAX_IMAGES);
+        ensureFrameBufferPool(raw_size, zsl_enabled ? RAW_FRAME_BUFFERS + getZslCapacity() : RAW_FRAME_BUFFERS);
+        if (zsl_enabled) zsl_ring = new ZslRingBuffer(frame_buffer_pool, getZslCapacity());
+        zsl_copy_executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "ZslCopyThread"));
+        raw_image_reader.setOnImageAvailableListener(reader -> {
+            Image image;
+            try {
+                image = reader.acquireNextImage();
+            }
+            catch (IllegalStateException e) {
+                // every image is still waiting for its result, this one is picked up by a later callback
+                Log.e(TAG, "RAW reader full: " + e);
+                return;
+            }
+            if (image == null) return;
+            FrameMatcher<Image, TotalCaptureResult> matcher = raw_frame_matcher;
+            if (matcher != null) {
+                matcher.offerImage(image.getTimestamp(), image);
+            }
+            else {
+                image.close();
+            }
+        }, background_handler);
+        // one slot per frame buffer, a matched image always finds a free buffer
+        DngSaverPool saver_pool = new DngSaverPool(RAW_FRAME_BUFFERS, RAW_SAVER_THREADS, raw_backpressure_policy);
+        dng_saver_pool = saver_pool;
+        // sensor timestamps of this pipeline's captures holding a saver slot, streamed ZSL frames never do
+        ConcurrentSkipListSet<Long> slot_captures = new ConcurrentSkipListSet<>();
+        FrameMatcher<Image, TotalCaptureResult> matcher = new FrameMatcher<>(RAW_MATCHER_CAPACITY,
+                RAW_MATCHER_TIMEOUT_MS, createRawMatchListener(saver_pool, slot_captures));
+        raw_frame_matcher = matcher;
+        // images orphaned while no new frames arrive would otherwise hold their slots forever
+        saver_pool.setStarvedCallback(matcher::evictExpired);
+        initRawCaptureCallback(slot_captures);
+    }
+
+    // buffers are only reallocated when the RAW size changes or more of them are needed, frames still
+    // out with savers go back to the pool they came from
+    private void ensureFrameBufferPool(Size raw_size, int buffer_count) {
+        if (frame_buffer_pool == null || frame_buffer_pool.getBufferCount() < buffer_count ||
+                frame_buffer_pool.getBufferBytes() != raw_size.getWidth() * raw_size.getHeight() * 2) {
+            frame_buffer_pool = FrameBufferPool.forRawSize(raw_size.getWidth(), raw_size.getHeight(), buffer_count);
+        }
+    }
+
+    // the ring has to hold every frame of a commit plus the one being streamed into
+    private int getZslCapacity() {return Math.max(RAW_ZSL_FRAMES, zsl_frames_around * 2 + 2);}
+
+    // copies every complete image + result pair into a frame buffer, closes the image and hands the
+    // frame to the saver pool, never blocks the callback thread, an orphaned image gives back a slot
+    // only if its own capture took one, whatever ZSL is set to by then
+    private FrameMatcher.Listener<Image, TotalCaptureResult> createRawMatchListener(DngSaverPool pipeline_saver_pool,
+                                                                                   Set<Long> slot_captures) {
+        return new FrameMatcher.Listener<Image, TotalCaptureResult>() {
+            @Override
+            public void onMatched(long timestamp, Image image, TotalCaptureResult result) {
+                Object tag = result.getRequest().getTag();
+                if (ZSL_REQUEST_TAG.equals(tag)) {
+                    streamToZslRing(timestamp, image, result);
+                    return;
+                }
+                slot_captures.remove(timestamp);
+                DngSaverPool saver_pool = dng_saver_pool;
+                FrameBufferPool buffer_pool = frame_buffer_pool;
+                RawFrame raw_frame = null;
+                try {
+                    if (saver_pool != null && buffer_pool != null) raw_frame = RawFrame.copyOf(image, result, buffer_pool);
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Error copying RAW image: " + e);
+                }
+                finally {
+                    image.close();
+                }
+                if (raw_frame == null) {
+                    Log.e(TAG, "RAW frame dropped, timestamp: " + timestamp);
+                    if (saver_pool != null) saver_pool.releaseSlot();
+                    if (tag instanceof RawBurst) ((RawBurst) tag).frameLost();
+                    return;
+                }
+                if (tag instanceof RawBurst) {
+                    ((RawBurst) tag).addFrame(raw_frame);
+                    return;
+                }
+                if (!saver_pool.submit(new DngImageSaver(raw_frame, camera_characteristics, file_manager, raw_compression))) {
+                    raw_frame.release();
+                }
+            }
+
+            @Override
+            public void onImageOrphaned(long timestamp, Image image) {
+                Log.w(TAG, "RAW image without capture result dropped, timestamp: " + timestamp);
+                image.close();
+                if (slot_captures.remove(timestamp)) pipeline_saver_pool.releaseSlot();
+            }
+
+            @Override
+            public void onResultOrphaned(long timestamp, TotalCaptureResult result) {
+                // its buffer was reported lost, the slot is already released
+                Log.w(TAG, "RAW capture result without image dropped, timestamp: " + timestamp);
+                slot_captures.remove(timestamp);
+                Object tag = result.getRequest().getTag();
+                if (tag instanceof RawBurst) ((RawBurst) tag).frameLost();
+            }
+        };
+    }
+
+    // one copy of a streamed frame into the oldest ring slot, the image is closed straight away
+    // the copy runs on the ZSL copy thread, a frame is dropped (the ring keeps its older ones) while
+    // RAW_ZSL_STREAM_IMAGES are already waiting so streaming never holds more images than the reader has
+    private void streamToZslRing(long timestamp, Image image, TotalCaptureResult result) {
+        ZslRingBuffer ring = zsl_ring;
+        ExecutorService executor = zsl_copy_executor;
+        if (ring == null || executor == null || zsl_copies_pending.get() >= RAW_ZSL_STREAM_IMAGES) {
+            image.close();
+            return;
+        }
+        zsl_copies_pending.incrementAndGet();
+        try {
+            executor.execute(() -> copyToZslRing(ring, timestamp, image, result));
+        }
+        catch (RejectedExecutionException e) {
+            // the pipeline is closing
+            zsl_copies_pending.decrementAndGet();
+            image.close();
+        }
+    }
+
+    private void copyToZslRing(ZslRingBuffer ring, long timestamp, Image image, TotalCaptureResult result) {
+        RawFrame raw_frame = ring.beginWrite();
+        try {
+            if (raw_frame != null) {
+                raw_frame.copyFrom(image, result);
+                ring.endWrite(timestamp);
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Error streaming RAW frame to ZSL ring: " + e);
+            ring.abortWrite();
+        }
+        finally {
+            image.close();
+            zsl_copies_pending.decrementAndGet();
+        }
+    }
+
+    /*
+    zero shutter lag: the preview request also streams RAW into a ring of pooled frames and the
+    shutter commits the frame closest to the press (plus frames_around on each side) instead of
+    issuing a capture, takes effect on the running session, RAW streaming can cap the preview frame
+    rate on some sensors
+     */
+    public void setZslEnabled(boolean enabled, int frames_around, CameraCaptureSession session, Handler background_handler) {
+        CameraSetup setup = camera_setup;
+        if (setup == null || setup.raw_size == null || raw_image_reader == null) return;
+        if (toast != null) {toast.cancel();}
+        toast = Toast.makeText(context, enabled ? "Zero shutter lag on" : "Zero shutter lag off", Toast.LENGTH_SHORT);
+        toast.show();
+        background_handler.post(() -> {
+            if (zsl_ring != null) {
+                zsl_ring.close();
+                zsl_ring = null;
+            }
+            zsl_enabled = enabled;
+            zsl_frames_around = Math.max(0, frames_around);
+            try {
+                if (zsl_enabled) {
+                    ensureFrameBufferPool(setup.raw_size, RAW_FRAME_BUFFERS + getZslCapacity());
+                    zsl_ring = new ZslRingBuffer(frame_buffer_pool, getZslCapacity());
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Error creating ZSL ring: " + e);
+                zsl_enabled = false;
+            }
+            synchronized (request_scheduler) {
+                setZslTarget();
+            }
+            setRepeatingRequest(session, background_handler);
+        });
+    }
+
+    public boolean isZslEnabled() {return zsl_enabled;}
+
+    // adds the RAW surface to (or removes it from) the preview request to match the ZSL state
+    private void setZslTarget() {
+        if (preview_capture_request == null || raw_image_reader == null) return;
+        if (zsl_ring != null) {
+            preview_capture_request.addTarget(raw_image_reader.getSurface());
+            preview_capture_request.setTag(ZSL_REQUEST_TAG);
+        }
+        else {
+            preview_capture_request.removeTarget(raw_image_reader.getSurface());
+            preview_capture_request.setTag(null);
+        }
+    }
+
+    // now in the sensor timestamp's clock, UNKNOWN sources are monotonic in practice
+    private long getSensorClockNanos() {
+        CameraSetup setup = camera_setup;
+        return setup != null && setup.info.realtime_timestamps ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+    }
+
+    // commits the ring's frames around the press, each frame to be saved holds a saver slot first
+    private void commitZslFrames(ZslRingBuffer ring, long press_ns) {
+        DngSaverPool saver_pool = dng_saver_pool;
+        if (saver_pool == null) return;
+        int wanted = zsl_frames_around * 2 + 1;
+        int slots = 0;
+        while (slots < wanted && saver_pool.acquireSlot()) slots++;
+        if (slots == 0) return;
+        // not enough room for the whole burst, keep just the frame closest to the press
+        int frames_around = slots == wanted ? zsl_frames_around : 0;
+        List<RawFrame> frames = ring.commit(press_ns, frames_around, frames_around, RAW_ZSL_COMMIT_TIMEOUT_MS);
+        if (frames.isEmpty()) Log.w(TAG, "No ZSL frame to commit");
+        for (RawFrame raw_frame : frames) {
+            Log.d(TAG, "ZSL frame committed, press to frame: " + (raw_frame.getTimestamp() - press_ns) / 1000000 + " ms");
+            if (!saver_pool.submit(new DngImageSaver(raw_frame, camera_characteristics, file_manager, raw_compression))) {
+                raw_frame.release();
+            }
+        }
+        for (int i = frames.size(); i < slots; i++) saver_pool.releaseSlot();
+    }
+
+    public void setRawBackpressurePolicy(DngSaverPool.BackpressurePolicy policy) {raw_backpressure_policy = policy;}
+
+    public boolean isRawSupported() {
+        CameraSetup setup = camera_setup;
+        return setup != null && setup.raw_size != null;
+    }
+
+    // DngWriter.COMPRESSION_NONE or DngWriter.COMPRESSION_LOSSLESS_JPEG, applies to frames saved from now on
+    public void setRawCompression(int compression) {
+        if (compression != DngWriter.COMPRESSION_NONE && compression != DngWriter.COMPRESSION_LOSSLESS_JPEG) {
+            throw new IllegalArgumentException("Unsupported DNG compression " + compression);
+        }
+        raw_compression = compression;
+    }
+
+    public int getRawCompression() {return raw_compression;}
+
+    // frames merged into each RAW picture, 1 saves single frames, ignored while ZSL is on, at most
+    // RAW_MAX_BURST_FRAMES so a whole burst fits in the reader
+    public void setRawBurstFrames(int frames) {
+        raw_burst_frames = Math.max(1, Math.min(frames, RAW_MAX_BURST_FRAMES));
+    }
+
+    public int getMaxRawBurstFrames() {return RAW_MAX_BURST_FRAMES;}
+
+    public int getRawBurstFrames() {return raw_burst_frames;}
+
+    // takes a RAW picture, waiting for (BLOCK) or dropping on (DROP) a full saver pool on the
+    // shutter thread so neither the UI nor the preview callbacks ever wait on storage
+    public void captureRawImage(CameraCaptureSession session, Handler shutter_handler, Handler background_handler) {
+        if (raw_image_reader == null) {
+            if (toast != null) {toast.cancel();}
+            toast = Toast.makeText(context, "RAW capture not supported on this lens", Toast.LENGTH_SHORT);
+            toast.show();
+            return;
+        }
+        ZslRingBuffer ring = zsl_ring;
+        if (ring != null) {
+            long press_ns = getSensorClockNanos();
+            shutter_handler.post(() -> commitZslFrames(ring, press_ns));
+            return;
+        }
+        int burst_frames = raw_burst_frames;
+        if (burst_frames > 1) {
+            shutter_handler.post(() -> captureRawBurst(session, burst_frames, background_handler));
+            return;
+        }
+        shutter_handler.post(() -> {
+            DngSaverPool saver_pool = dng_saver_pool;
+            if (saver_pool == null || !saver_pool.acquireSlot()) return;
+            try {
+                session.capture(createRawRequest().build(), raw_capture_callback, background_handler);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Error capturing RAW image: " + e);
+                saver_pool.releaseSlot();
+            }
+        });
+    }
+
+    private CaptureRequest.Builder createRawRequest() throws CameraAccessException {
+        CaptureRequest.Builder raw_request = camera_device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        raw_request.addTarget(preview_surface);
+        raw_request.addTarget(raw_image_reader.getSurface());
+        Float zoom;
+        synchronized (request_scheduler) {
+            zoom = preview_capture_request.get(CaptureRequest.CONTROL_ZOOM_RATIO);
+        }
+        if (zoom != null) raw_request.set(CaptureRequest.CONTROL_ZOOM_RATIO, zoom);
+        return raw_request;
+    }
+
+    // sends frame_count identical captures tagged with one RawBurst, runs on the shutter thread, slots for
+    // the whole burst are taken up front so a burst is either sent whole or not at all
+    private void captureRawBurst(CameraCaptureSession session, int frame_count, Handler background_handler) {
+        DngSaverPool saver_pool = dng_saver_pool;
+        if (saver_pool == null) return;
+        if (raw_burst != null && !raw_burst.isFinished()) {
+            Log.w(TAG, "Previous RAW burst still merging, capture skipped");
+            return;
+        }
+        int slots = 0;
+        while (slots < frame_count && saver_pool.acquireSlot()) slots++;
+        if (slots < frame_count) {
+            Log.w(TAG, "Saver pool full, RAW burst dropped");
+            for (int i = 0; i < slots; i++) saver_pool.releaseSlot();
+            return;
+        }
         try {
-            session.stopRepeating();
-            initCaptureCallback();
-            session.setRepeatingRequest(preview_capture_request.build(),
-                    capture_callback, handler);
+            Size raw_size = camera_setup.raw_size;
+            if (burst_merger == null || burst_merger.getWidth() != raw_size.getWidth() ||
+                    burst_merger.getHeight() != raw_size.getHeight()) {
+                burst_merger = new BurstMerger(ForkJoinPool.commonPool(), raw_size.getWidth(), raw_size.getHeight());
+                burst_merger.setRejectionThreshold(RAW_BURST_REJECTION_DN);
+                frame_aligner = new FrameAligner(ForkJoinPool.commonPool(), raw_size.getWidth(), raw_size.getHeight(),
+                        burst_merger.getTileSize());
+            }
+            RawBurst burst = new RawBurst(burst_merger, frame_aligner, ForkJoinPool.commonPool(), saver_pool, frame_count,
+                    camera_characteristics, file_manager, raw_compression);
+            CaptureRequest.Builder raw_request = createRawRequest();
+            raw_request.setTag(burst);
+            CaptureRequest request = raw_request.build();
+            session.captureBurst(Collections.nCopies(frame_count, request), raw_capture_callback, background_handler);
+            raw_burst = burst;
         }
         catch (Exception e) {
-            Log.e(TAG, "Error setting repeating request: " + e);
-            e.printStackTrace();
+            Log.e(TAG, "Error capturing RAW burst: " + e);
+            for (int i = 0; i < frame_count; i++) saver_pool.releaseSlot();
         }
     }
 
+    // (re)starts the repeating preview request on a session, replacing the running one in place
+    public void setRepeatingRequest(CameraCaptureSession session, Handler handler) {
+        switch_latency.mark(SwitchLatency.PHASE_CONFIGURED, SystemClock.elapsedRealtimeNanos());
+        preview_session = session;
+        preview_handler = handler;
+        preview_paused = false;
+        request_scheduler.submit();
+    }
+
+    // stops the repeating request while no view shows the preview, the session stays configured
+    public void pausePreview() {
+        synchronized (request_scheduler) {
+            preview_paused = true;
+            CameraCaptureSession session = preview_session;
+            if (session == null) return;
+            try {
+                session.stopRepeating();
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Error pausing preview: " + e);
+            }
+        }
+    }
+
+    // restarts the preview on the running session in the attached view, false without a session
+    public boolean resumePreview() {
+        CameraSetup setup = camera_setup;
+        if (preview_session == null || setup == null) return false;
+        setTextureTransform(texture_view, setup);
+        preview_paused = false;
+        request_scheduler.submit();
+        return true;
+    }
+
     // starts preview when camera is set up and connected
     public void startCameraPreview(CameraDevice camera, Handler background_handler, CameraCaptureSession.StateCallback session_callback) {
         Log.d(TAG, "Attempting to start camera preview");
+        switch_latency.mark(SwitchLatency.PHASE_OPENED, SystemClock.elapsedRealtimeNanos());
         camera_device = camera;
+        frame_metrics.reset();
+        openMetadataJournal();
         try {
             createPreviewRequest(texture_view);
             OutputConfiguration preview_output = new OutputConfiguration(preview_surface);
-            List<OutputConfiguration> configurations = Collections.singletonList(preview_output);
+            List<OutputConfiguration> configurations = new ArrayList<>();
+            configurations.add(preview_output);
+            // RAW surface lives next to the preview so captures never need a session reconfiguration
+            CameraSetup setup = camera_setup;
+            if (setup.raw_size != null) {
+                if (camera_characteristics == null) camera_characteristics = camera_manager.getCameraCharacteristics(setup.id);
+                createRawImageReader(setup.raw_size, background_handler);
+                configurations.add(new OutputConfiguration(raw_image_reader.getSurface()));
+                setZslTarget();
+            }
             camera_device.createCaptureSessionByOutputConfigurations(configurations, session_callback, background_handler);
         }
         catch (Exception e) {
@@ -470,37 +1053,39 @@ public class CustomCameraManager {
         }
     }
 
-    public int getMaxZoom() {return Math.round(zoom_range.getUpper()) * 10;}
-
-    public double getZoomTimes() {return zoom_times;}
+    // zoom target as magnification value to a hundredth, for example 1.0x, 6.3x, 7.94x, 1.0x before a
+    // camera is set up
+    public double getZoomTimes() {
+        SmoothZoom zoom = getSmoothZoom();
+        if (zoom == null) return 1.0;
+        return Math.round(zoom.getTargetRatio() * 100) / 100.0;
+    }
 
-    // sets zoom based on seekbar
-    public void zoomTo(int zoom_factor, CameraCaptureSession capture_session, Handler background_handler) {
-        if (zoom_factor < 0) {
-            zoom_factor = 0;
-        }
-        else if (zoom_factor > getMaxZoom()) {
-            zoom_factor = getMaxZoom();
-        }
-        float zoom = zoom_ratios.get(zoom_factor) / 100.0f;
-        // zoom value as magnification value, for example 1.0x, 6.3x, 7.9x
-        zoom_times = zoom_ratios.get(zoom_factor) / 100.0;
+    // sets the zoom target to a seekbar step, the preview glides there frame by frame, ignored before a
+    // camera is set up
+    public void zoomTo(int zoom_factor) {
+        SmoothZoom zoom = getSmoothZoom();
+        if (zoom == null) return;
+        zoom.setTargetIndex(zoom_factor);
+        Log.d(TAG, "Zoom chosen: " + zoom.getTargetRatio());
+    }
 
-        try {
-            Log.d(TAG, "Zoom chosen: " + zoom);
-            preview_capture_request.set(CaptureRequest.CONTROL_ZOOM_RATIO, zoom);
-            setRepeatingRequest(capture_session, background_handler);
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Error setting request when changing zoom: " + e);
-        }
+    // scales the zoom target by a pinch gesture's scale factor, false before a camera is set up
+    public boolean pinchZoom(float scale_factor) {
+        SmoothZoom zoom = getSmoothZoom();
+        if (zoom == null) return false;
+        zoom.scaleTarget(scale_factor);
+        return true;
     }
 
     // determines if there is a 30 FPS range and sets the best range
     public boolean findBest30FPS() {
         boolean has_30 = false;
         // find optimal 30 FPS range if possible, ex: [30, 30] more optimal than [15, 30]
-        for (Range<Integer> fps_range : camera_characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)) {
+        CameraSetup setup = camera_setup;
+        if (setup == null) return false;
+        for (int i = 0; i < setup.info.getFpsRangeCount(); i++) {
+            Range<Integer> fps_range = setup.info.getFpsRange(i);
             if (fps_range.getLower() == 30 || fps_range.getUpper() == 30) {
                 thirty_fps_range = fps_range;
                 has_30 = true;
@@ -513,7 +1098,10 @@ public class CustomCameraManager {
     public boolean findBest60FPS() {
         boolean has_60 = false;
         // find optimal 60 FPS range if possible, ex: [60, 60] more optimal than [30, 60]
-        for (Range<Integer> fps_range : camera_characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)) {
+        CameraSetup setup = camera_setup;
+        if (setup == null) return false;
+        for (int i = 0; i < setup.info.getFpsRangeCount(); i++) {
+            Range<Integer> fps_range = setup.info.getFpsRange(i);
             if (fps_range.getLower() == 60 || fps_range.getUpper() == 60) {
                 sixty_fps_range = fps_range;
                 has_60 = true;
@@ -523,20 +1111,9 @@ public class CustomCameraManager {
     }
 
     // sets current session's FPS to closest possible FPS range of request
-    public void setFPS(int fps, CameraCaptureSession capture_session, Handler background_handler) {
-        if (fps == 30) {
-            Log.d(TAG, "FPS set to: " + thirty_fps_range);
-            preview_capture_request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, thirty_fps_range);
-        }
-        else {
-            Log.d(TAG, "FPS set to: " + sixty_fps_range);
-            preview_capture_request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, sixty_fps_range);
-        }
-        try {
-            setRepeatingRequest(capture_session, background_handler);
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Error setting fps request: " + e);
-        }
+    public void setFPS(int fps) {
+        Range<Integer> fps_range = fps == 30 ? thirty_fps_range : sixty_fps_range;
+        Log.d(TAG, "FPS set to: " + fps_range);
+        request_scheduler.post(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fps_range, getSensorClockNanos());
     }
 }
@@ -0,0 +1,331 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+turns 16 bit Bayer frames into ARGB pixels for review thumbnails and previews, either full size with
+bilinear interpolation or half size with every 2x2 quad becoming one "superpixel", bin() goes further
+and averages n x n quads into each pixel for small embedded previews
+
+black level, white level, white balance and the sRGB curve are folded into one 64K entry lookup table
+per colour, rebuilt only when a setting changes, bands of output rows are processed in parallel on a
+fork-join pool, output goes into a caller owned int[] that can be reused frame after frame, and the
+only scratch space is a few rows per worker thread, so nothing is allocated per frame once warmed up
+
+settings that don't change keep their tables, so an engine can be configured for every frame, plain
+Java with no Android dependencies, the CFA constants match the values of camera2's
+SENSOR_INFO_COLOR_FILTER_ARRANGEMENT
+ */
+public class DemosaicEngine {
+
+    public static final int MODE_BILINEAR = 0;
+    public static final int MODE_SUPERPIXEL = 1;
+
+    public static final int CFA_RGGB = 0;
+    public static final int CFA_GRBG = 1;
+    public static final int CFA_GBRG = 2;
+    public static final int CFA_BGGR = 3;
+
+    // keeps the per channel sums of a bin within an int
+    public static final int MAX_BIN = 64;
+
+    private static final int RED = 0;
+    private static final int GREEN = 1;
+    private static final int BLUE = 2;
+    // colour of each 2x2 site (y & 1) * 2 + (x & 1), per CFA arrangement
+    private static final int[][] CFA_COLOURS = {
+            {RED, GREEN, GREEN, BLUE},
+            {GREEN, RED, BLUE, GREEN},
+            {GREEN, BLUE, RED, GREEN},
+            {BLUE, GREEN, GREEN, RED},
+    };
+
+    // output rows per fork-join leaf task
+    private static final int ROWS_PER_TASK = 16;
+
+    // per worker thread scratch space, sized for the widest frame seen
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static class Scratch {
+        // source rows, the row above, the row and the row below, padded by one sample each side
+        short[][] rows = new short[3][0];
+        // red, green, blue sums per output pixel of a binned row
+        int[] sums = new int[0];
+
+        void ensureCapacity(int width) {
+            if (rows[0].length < width + 2) {
+                for (int i = 0; i < 3; i++) rows[i] = new short[width + 2];
+                sums = new int[width / 2 * 3];
+            }
+        }
+    }
+
+    private final ForkJoinPool fork_join_pool;
+    private int cfa_pattern = CFA_RGGB;
+    // per 2x2 site, in the same order as camera2's SENSOR_BLACK_LEVEL_PATTERN
+    private final int[] black_levels = new int[4];
+    private int white_level = 65535;
+    private final float[] white_balance = {1, 1, 1};
+    private final byte[][] tone_tables = new byte[3][65536];
+    private boolean tables_valid;
+
+    public DemosaicEngine(ForkJoinPool fork_join_pool) {
+        this.fork_join_pool = fork_join_pool;
+    }
+
+    // one of the CFA_ constants
+    public synchronized void setCfaPattern(int cfa_pattern) {
+        if (cfa_pattern < CFA_RGGB || cfa_pattern > CFA_BGGR) throw new IllegalArgumentException("Unsupported CFA " + cfa_pattern);
+        if (this.cfa_pattern == cfa_pattern) return;
+        this.cfa_pattern = cfa_pattern;
+        tables_valid = false;
+    }
+
+    public synchronized int getCfaPattern() {return cfa_pattern;}
+
+    // black levels per 2x2 site, like SENSOR_BLACK_LEVEL_PATTERN, and the sensor white level
+    public synchronized void setLevels(int[] black_levels, int white_level) {
+        if (black_levels.length != 4) throw new IllegalArgumentException("Need 4 black levels");
+        for (int i = 0; i < 4; i++) {
+            if (black_levels[i] >= white_level) throw new IllegalArgumentException("Black level above white level");
+        }
+        if (Arrays.equals(this.black_levels, black_levels) && this.white_level == white_level) return;
+        System.arraycopy(black_levels, 0, this.black_levels, 0, 4);
+        this.white_level = white_level;
+        tables_valid = false;
+    }
+
+    // per channel gains, usually the reciprocal of the as shot neutral
+    public synchronized void setWhiteBalance(float red_gain, float green_gain, float blue_gain) {
+        if (white_balance[RED] == red_gain && white_balance[GREEN] == green_gain && white_balance[BLUE] == blue_gain) return;
+        white_balance[RED] = red_gain;
+        white_balance[GREEN] = green_gain;
+        white_balance[BLUE] = blue_gain;
+        tables_valid = false;
+    }
+
+    public static int getOutputWidth(int mode, int width) {return mode == MODE_SUPERPIXEL ? width / 2 : width;}
+
+    public static int getOutputHeight(int mode, int height) {return mode == MODE_SUPERPIXEL ? height / 2 : height;}
+
+    // width or height of bin() output
+    public static int getBinnedSize(int size, int bin) {return size / 2 / bin;}
+
+    /*
+    demosaics a frame whose 16 bit little-endian samples start at the plane buffer's position, rows
+    row_stride bytes apart, into argb, getOutputWidth() pixels per row, argb must hold at least
+    getOutputWidth() * getOutputHeight() pixels, the plane's position and limit are left untouched
+     */
+    public synchronized void demosaic(ByteBuffer plane, int width, int height, int row_stride, int mode, int[] argb) {
+        if (mode == MODE_SUPERPIXEL) {
+            bin(plane, width, height, row_stride, 1, argb);
+            return;
+        }
+        run(plane, width, height, row_stride, 0, argb, height);
+    }
+
+    /*
+    averages bin x bin quads into each pixel, getBinnedSize(width, bin) pixels per row and
+    getBinnedSize(height, bin) rows, quads that don't fill a whole bin at the right and bottom are
+    left out, bin 1 is the superpixel mode
+     */
+    public synchronized void bin(ByteBuffer plane, int width, int height, int row_stride, int bin, int[] argb) {
+        if (bin < 1 || bin > MAX_BIN) throw new IllegalArgumentException("Bin must be 1 - " + MAX_BIN + ": " + bin);
+        run(plane, width, height, row_stride, bin, argb, getBinnedSize(height, bin));
+    }
+
+    // bin 0 is bilinear
+    private void run(ByteBuffer plane, int width, int height, int row_stride, int bin, int[] argb, int output_height) {
+        if (width < 2 || height < 2 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Bayer frames need even dimensions: " + width + "x" + height);
+        }
+        int output_width = bin == 0 ? width : getBinnedSize(width, bin);
+        if (argb.length < output_width * output_height) throw new IllegalArgumentException("Output too small");
+        if (!tables_valid) buildToneTables();
+        ShortBuffer samples = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        fork_join_pool.invoke(new DemosaicTask(samples, width, height, row_stride / 2, bin, argb, 0, output_height));
+    }
+
+    // raw sample to 8 bit sRGB, per colour
+    private void buildToneTables() {
+        int[] colours = CFA_COLOURS[cfa_pattern];
+        for (int colour = RED; colour <= BLUE; colour++) {
+            // greens average the black levels of their two sites
+            int black_sum = 0;
+            int sites = 0;
+            for (int site = 0; site < 4; site++) {
+                if (colours[site] == colour) {
+                    black_sum += black_levels[site];
+                    sites++;
+                }
+            }
+            float black = black_sum / (float) sites;
+            float scale = white_balance[colour] / (white_level - black);
+            byte[] table = tone_tables[colour];
+            for (int value = 0; value < 65536; value++) {
+                float linear = Math.min(Math.max((value - black) * scale, 0), 1);
+                table[value] = (byte) Math.round(srgb(linear) * 255);
+            }
+        }
+        tables_valid = true;
+    }
+
+    private static float srgb(float linear) {
+        return linear <= 0.0031308f ? linear * 12.92f : (float) (1.055 * Math.pow(linear, 1 / 2.4) - 0.055);
+    }
+
+    private class DemosaicTask extends RecursiveAction {
+        private final ShortBuffer samples;
+        private final int width;
+        private final int height;
+        private final int stride;
+        private final int bin;
+        private final int[] argb;
+        private final int first_row;
+        private final int end_row;
+
+        DemosaicTask(ShortBuffer samples, int width, int height, int stride, int bin, int[] argb, int first_row, int end_row) {
+            this.samples = samples;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.bin = bin;
+            this.argb = argb;
+            this.first_row = first_row;
+            this.end_row = end_row;
+        }
+
+        @Override
+        protected void compute() {
+            if (end_row - first_row <= ROWS_PER_TASK) {
+                ShortBuffer view = samples.duplicate();
+                Scratch rows = scratch.get();
+                rows.ensureCapacity(width);
+                for (int y = first_row; y < end_row; y++) {
+                    if (bin > 0) {
+                        binnedRow(view, width, stride, bin, y, rows.rows[0], rows.sums, argb);
+                    }
+                    else {
+                        bilinearRow(view, width, height, stride, y, rows.rows, argb);
+                    }
+                }
+                return;
+            }
+            int middle = (first_row + end_row) >>> 1;
+            invokeAll(new DemosaicTask(samples, width, height, stride, bin, argb, first_row, middle),
+                    new DemosaicTask(samples, width, height, stride, bin, argb, middle, end_row));
+        }
+    }
+
+    // reads source row y into row[1 .. width], mirroring one sample at each end so neighbours keep their colour
+    private static void readRow(ShortBuffer view, int width, int stride, int y, short[] row) {
+        view.position(y * stride);
+        view.get(row, 1, width);
+        row[0] = row[2];
+        row[width + 1] = row[width - 1];
+    }
+
+    // sums each colour over the bin's bin * 2 source rows, then one table lookup per channel
+    private void binnedRow(ShortBuffer view, int width, int stride, int bin, int y, short[] row, int[] sums, int[] argb) {
+        int output_width = getBinnedSize(width, bin);
+        int span = bin * 2;
+        Arrays.fill(sums, 0, output_width * 3, 0);
+        int[] colours = CFA_COLOURS[cfa_pattern];
+        for (int j = 0; j < span; j++) {
+            int source_y = y * span + j;
+            view.position(source_y * stride);
+            view.get(row, 0, output_width * span);
+            int site_row = (source_y & 1) << 1;
+            int even_colour = colours[site_row];
+            int odd_colour = colours[site_row | 1];
+            for (int x = 0; x < output_width; x++) {
+                int start = x * span;
+                int even = 0;
+                int odd = 0;
+                for (int i = 0; i < span; i += 2) {
+                    even += row[start + i] & 0xffff;
+                    odd += row[start + i + 1] & 0xffff;
+                }
+                sums[x * 3 + even_colour] += even;
+                sums[x * 3 + odd_colour] += odd;
+            }
+        }
+        // a bin has bin * bin red and blue samples and twice as many green
+        int count = bin * bin;
+        byte[] red_table = tone_tables[RED];
+        byte[] green_table = tone_tables[GREEN];
+        byte[] blue_table = tone_tables[BLUE];
+        int base = y * output_width;
+        for (int x = 0; x < output_width; x++) {
+            int red = (sums[x * 3 + RED] + count / 2) / count;
+            int green = (sums[x * 3 + GREEN] + count) / (count * 2);
+            int blue = (sums[x * 3 + BLUE] + count / 2) / count;
+            argb[base + x] = pixel(red_table[red], green_table[green], blue_table[blue]);
+        }
+    }
+
+    private void bilinearRow(ShortBuffer view, int width, int height, int stride, int y, short[][] rows, int[] argb) {
+        short[] above = rows[0];
+        short[] row = rows[1];
+        short[] below = rows[2];
+        // mirrored at the top and bottom, like the ends of each row
+        readRow(view, width, stride, y == 0 ? 1 : y - 1, above);
+        readRow(view, width, stride, y, row);
+        readRow(view, width, stride, y == height - 1 ? height - 2 : y + 1, below);
+        int[] colours = CFA_COLOURS[cfa_pattern];
+        byte[] red_table = tone_tables[RED];
+        byte[] green_table = tone_tables[GREEN];
+        byte[] blue_table = tone_tables[BLUE];
+        int base = y * width;
+        for (int x = 0; x < width; x++) {
+            int i = x + 1;
+            int colour = colours[((y & 1) << 1) | (x & 1)];
+            int centre = row[i] & 0xffff;
+            int cross = ((above[i] & 0xffff) + (below[i] & 0xffff) + (row[i - 1] & 0xffff) + (row[i + 1] & 0xffff) + 2) >> 2;
+            int diagonal = ((above[i - 1] & 0xffff) + (above[i + 1] & 0xffff) + (below[i - 1] & 0xffff)
+                    + (below[i + 1] & 0xffff) + 2) >> 2;
+            int red;
+            int green;
+            int blue;
+            if (colour == RED) {
+                red = centre;
+                green = cross;
+                blue = diagonal;
+            }
+            else if (colour == BLUE) {
+                red = diagonal;
+                green = cross;
+                blue = centre;
+            }
+            else {
+                green = centre;
+                int horizontal = ((row[i - 1] & 0xffff) + (row[i + 1] & 0xffff) + 1) >> 1;
+                int vertical = ((above[i] & 0xffff) + (below[i] & 0xffff) + 1) >> 1;
+                // the colour to the left and right of a green site is the other colour of its row
+                if (colours[((y & 1) << 1) | ((x + 1) & 1)] == RED) {
+                    red = horizontal;
+                    blue = vertical;
+                }
+                else {
+                    red = vertical;
+                    blue = horizontal;
+                }
+            }
+            argb[base + x] = pixel(red_table[red], green_table[green], blue_table[blue]);
+        }
+    }
+
+    private static int pixel(byte red, byte green, byte blue) {
+        return 0xff000000 | (red & 0xff) << 16 | (green & 0xff) << 8 | (blue & 0xff);
+    }
+}
@@ -1,74 +1,153 @@
 package com.example.rawstreamer;
 
-import android.graphics.ImageFormat;
 import android.hardware.camera2.*;
-import android.media.Image;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.os.Build;
 import android.util.Log;
+import android.util.Rational;
+
 import java.io.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 
-// writes DNG images to disk from RAW image reader
+// writes DNG images to disk from RAW frames copied out of the image reader
 public class DngImageSaver implements Runnable{
     private static final String TAG = "DngImageSaver";
-    private final Image image;
+    // immutable and thread safe, shared by every saver thread instead of a formatter per frame
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss", Locale.US);
+    // one writer (and its reusable buffers) per saver thread, every DNG gets an embedded preview
+    private static final ThreadLocal<DngWriter> dng_writer = new ThreadLocal<DngWriter>() {
+        @Override
+        protected DngWriter initialValue() {
+            DngWriter writer = new DngWriter();
+            writer.setPreviewSize(DngWriter.DEFAULT_PREVIEW_SIZE);
+            return writer;
+        }
+    };
+    private final RawFrame raw_frame;
     private File raw_image_file;
-    private final CaptureResult capture_result;
     private final CameraCharacteristics camera_characteristics;
-    private final FileManager file_manager = new FileManager();
+    private final FileManager file_manager;
+    // DngWriter.COMPRESSION_NONE or DngWriter.COMPRESSION_LOSSLESS_JPEG
+    private final int compression;
 
-    public DngImageSaver(Image image, File raw_image_file, CaptureResult capture_result, CameraCharacteristics camera_characteristics) {
-        this.image = image;
-        this.raw_image_file = raw_image_file;
-        this.capture_result = capture_result;
+    public DngImageSaver(RawFrame raw_frame, CameraCharacteristics camera_characteristics, FileManager file_manager,
+                         int compression) {
+        this.raw_frame = raw_frame;
         this.camera_characteristics = camera_characteristics;
+        this.file_manager = file_manager;
+        this.compression = compression;
     }
 
 
     @Override
     public void run() {
-        processRawImage();
+        processRawFrame();
     }
 
-    public void processRawImage() {
-        if (image == null) {
-            Log.e(TAG, "No image to process");
+    // the frame's buffer goes back to its pool whether or not the write succeeds
+    public void processRawFrame() {
+        if (raw_frame == null) {
+            Log.e(TAG, "No frame to process");
+            return;
+        }
+        CaptureResult capture_result = raw_frame.getCaptureResult();
+        if (capture_result == null) {
+            Log.e(TAG, "No capture result");
+            raw_frame.release();
+            return;
+        }
+        if (camera_characteristics == null) {
+            Log.e(TAG, "No camera characteristics");
+            raw_frame.release();
             return;
         }
+        // sized first so the file is allocated once at its final size and filled through a mapping
+        MappedOutputFile output = null;
+        try {
+            DngWriter writer = dng_writer.get();
+            long size = writer.prepare(createMetadata(camera_characteristics, capture_result), raw_frame.getBuffer(),
+                    raw_frame.getWidth(), raw_frame.getHeight(), raw_frame.getRowStride(), compression);
+            output = file_manager.createRawOutput(size);
+            raw_image_file = output.getFile();
+            Log.d(TAG, "Raw image file: " + raw_image_file);
+            long written = writer.writeTo(output.getBuffer());
+            output.finish(written);
+            output = null;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Error writing raw image: " + e);
+            if (output != null) output.abort();
+        }
+        finally {
+            raw_frame.release();
+        }
+    }
 
-        int format = image.getFormat();
-        // handle raw image (.dng)
-        if (format == ImageFormat.RAW_SENSOR) {
-            if (capture_result == null) {
-                Log.e(TAG, "No capture result");
-                return;
-            }
-            if (camera_characteristics == null) {
-                Log.e(TAG, "No camera characteristics");
-                return;
-            }
-            raw_image_file = file_manager.createRawFile();
-            DngCreator dng_creator = new DngCreator(camera_characteristics, capture_result);
-            FileOutputStream raw_file_output_stream = null;
-            try {
-                raw_file_output_stream = new FileOutputStream(raw_image_file);
-                Log.d(TAG, "Raw image file: " + raw_image_file);
-                // this step will block thread until finished...
-                dng_creator.writeImage(raw_file_output_stream, image);
+    // collects the DNG tags for a frame from the static camera metadata and its capture result
+    public static DngMetadata createMetadata(CameraCharacteristics characteristics, CaptureResult result) {
+        DngMetadata metadata = new DngMetadata();
+        metadata.make = Build.MANUFACTURER;
+        metadata.model = Build.MODEL;
+        metadata.date_time = LocalDateTime.now().format(DATE_TIME_FORMAT);
+
+        Integer cfa = characteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        if (cfa != null) metadata.cfa_pattern = cfa;
+        Integer sensor_orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        if (sensor_orientation != null) metadata.orientation = DngMetadata.orientationFromDegrees(sensor_orientation);
+
+        // levels measured for this frame take precedence over the static ones
+        Integer white_level = result.get(CaptureResult.SENSOR_DYNAMIC_WHITE_LEVEL);
+        if (white_level == null) white_level = characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        if (white_level != null) metadata.white_level = white_level;
+        float[] dynamic_black_level = result.get(CaptureResult.SENSOR_DYNAMIC_BLACK_LEVEL);
+        BlackLevelPattern black_level_pattern = characteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        for (int i = 0; i < 4; i++) {
+            if (dynamic_black_level != null) {
+                metadata.black_level[i] = Math.round(dynamic_black_level[i]);
             }
-            catch (Exception e) {
-                Log.e(TAG, "Error writing raw image: " + e);
+            else if (black_level_pattern != null) {
+                metadata.black_level[i] = black_level_pattern.getOffsetForIndex(i % 2, i / 2);
             }
-            finally {
-                image.close();
-                Log.d(TAG, "Image closed");
-                if (raw_file_output_stream != null) {
-                    try {
-                        raw_file_output_stream.close();
-                    }
-                    catch(Exception e) {
-                        Log.e(TAG, "Error closing file output stream: " + e);
-                    }
-                }
+        }
+
+        metadata.color_matrix1 = toMatrix(characteristics.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM1));
+        metadata.color_matrix2 = toMatrix(characteristics.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM2));
+        metadata.forward_matrix1 = toMatrix(characteristics.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX1));
+        metadata.forward_matrix2 = toMatrix(characteristics.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX2));
+        metadata.camera_calibration1 = toMatrix(characteristics.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM1));
+        metadata.camera_calibration2 = toMatrix(characteristics.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM2));
+        Integer illuminant1 = characteristics.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1);
+        if (illuminant1 != null) metadata.calibration_illuminant1 = illuminant1;
+        Byte illuminant2 = characteristics.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT2);
+        if (illuminant2 != null) metadata.calibration_illuminant2 = illuminant2;
+        Rational[] neutral = result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT);
+        if (neutral != null && neutral.length == 3) {
+            metadata.as_shot_neutral = new double[3];
+            for (int i = 0; i < 3; i++) metadata.as_shot_neutral[i] = neutral[i].doubleValue();
+        }
+
+        Long exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (exposure_time != null) metadata.exposure_time_s = exposure_time / 1.0e9;
+        Float aperture = result.get(CaptureResult.LENS_APERTURE);
+        if (aperture != null) metadata.f_number = aperture;
+        Float focal_length = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+        if (focal_length != null) metadata.focal_length_mm = focal_length;
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (sensitivity != null) metadata.iso = sensitivity;
+        return metadata;
+    }
+
+    private static double[] toMatrix(ColorSpaceTransform transform) {
+        if (transform == null) return null;
+        double[] matrix = new double[9];
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                matrix[row * 3 + column] = transform.getElement(column, row).doubleValue();
             }
         }
+        return matrix;
     }
 }
@@ -0,0 +1,72 @@
+package com.example.rawstreamer;
+
+// plain description of a RAW frame for DngWriter, filled from CameraCharacteristics and the
+// CaptureResult on the device, or from synthetic values on the JVM
+public class DngMetadata {
+
+    // CFA layouts, same values as SENSOR_INFO_COLOR_FILTER_ARRANGEMENT
+    public static final int CFA_RGGB = 0;
+    public static final int CFA_GRBG = 1;
+    public static final int CFA_GBRG = 2;
+    public static final int CFA_BGGR = 3;
+
+    public String make = "";
+    public String model = "";
+    public String software = "RAW streamer";
+    // "yyyy:MM:dd HH:mm:ss", left out when empty
+    public String date_time = "";
+
+    public int cfa_pattern = CFA_RGGB;
+    public int white_level = 1023;
+    // per CFA position, row major over the 2x2 pattern
+    public int[] black_level = {64, 64, 64, 64};
+    // TIFF orientation, 1 is upright
+    public int orientation = 1;
+
+    // 3x3 row major matrices, left out when null
+    public double[] color_matrix1;
+    public double[] color_matrix2;
+    public double[] forward_matrix1;
+    public double[] forward_matrix2;
+    public double[] camera_calibration1;
+    public double[] camera_calibration2;
+    // EXIF light source values
+    public int calibration_illuminant1;
+    public int calibration_illuminant2;
+    public double[] as_shot_neutral;
+
+    // exposure information, left out when 0
+    public double exposure_time_s;
+    public double f_number;
+    public double focal_length_mm;
+    public int iso;
+
+    // CFAPattern tag values (0 red, 1 green, 2 blue) for a CFA layout
+    public static byte[] cfaColors(int cfa_pattern) {
+        switch (cfa_pattern) {
+            case CFA_GRBG:
+                return new byte[] {1, 0, 2, 1};
+            case CFA_GBRG:
+                return new byte[] {1, 2, 0, 1};
+            case CFA_BGGR:
+                return new byte[] {2, 1, 1, 0};
+            case CFA_RGGB:
+            default:
+                return new byte[] {0, 1, 1, 2};
+        }
+    }
+
+    // maps a sensor orientation in degrees to a TIFF orientation
+    public static int orientationFromDegrees(int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.rawstreamer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+reads TIFF and DNG files, such as the ones DngImageSaver writes, straight out of a memory mapping,
+nothing is parsed up front, IFDs are found by following the chain only as far as asked for, tags
+are binary searched in their IFD, which TIFF keeps sorted, and read as primitives, strips and
+tiles come back as slices of the mapping so image data is never copied, IFDs are addressed by
+their file offset, an int, so there are no per IFD or per entry objects either, both byte orders
+are accepted
+ */
+public class DngReader {
+    private final ByteBuffer file;
+    // offsets of the IFDs in the main chain found so far
+    private int[] chain = new int[4];
+    private int chain_length;
+    private boolean chain_ended;
+
+    public DngReader(File source) throws IOException {
+        this(map(source));
+    }
+
+    // reads from buffer's whole capacity, which is left untouched apart from its byte order
+    public DngReader(ByteBuffer buffer) throws IOException {
+        file = buffer.duplicate();
+        if (file.capacity() < DngWriter.HEADER_SIZE) throw new IOException("Too short for TIFF");
+        int order = file.getShort(0);
+        if (order == 0x4949) file.order(ByteOrder.LITTLE_ENDIAN);
+        else if (order == 0x4d4d) file.order(ByteOrder.BIG_ENDIAN);
+        else throw new IOException("Not a TIFF file");
+        if (file.getShort(2) != 42) throw new IOException("Not a TIFF file");
+        long first = unsigned(file.getInt(4));
+        if (!validIfd(first)) throw new IOException("Bad first IFD offset " + first);
+        chain[0] = (int) first;
+        chain_length = 1;
+    }
+
+    private static ByteBuffer map(File source) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(source, "r")) {
+            FileChannel channel = input.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public ByteOrder getByteOrder() {return file.order();}
+
+    public int getFileSize() {return file.capacity();}
+
+    // offset of the index'th IFD in the main chain, -1 if the chain is shorter
+    public int getIfd(int index) {
+        while (index >= chain_length && !chain_ended) {
+            int last = chain[chain_length - 1];
+            long next = unsigned(file.getInt(last + 2 + entryCount(last) * TiffIfd.ENTRY_SIZE));
+            // a loop back to an IFD already seen would never end
+            boolean seen = false;
+            for (int i = 0; i < chain_length; i++) seen |= chain[i] == next;
+            if (next == 0 || seen || !validIfd(next)) {
+                chain_ended = true;
+                break;
+            }
+            if (chain_length == chain.length) {
+                int[] grown = new int[chain.length * 2];
+                System.arraycopy(chain, 0, grown, 0, chain_length);
+                chain = grown;
+            }
+            chain[chain_length++] = (int) next;
+        }
+        return index < chain_length ? chain[index] : -1;
+    }
+
+    // offset of the index'th SubIFD of an IFD, -1 if there is none
+    public int getSubIfd(int ifd, int index) {
+        long offset = getLong(ifd, DngWriter.TAG_SUB_IFDS, index, -1);
+        return offset >= 0 && validIfd(offset) ? (int) offset : -1;
+    }
+
+    /*
+    the full resolution raw image, the first IFD or SubIFD of IFD0 whose NewSubFileType is 0 and
+    whose photometric interpretation is CFA, -1 if there is none
+     */
+    public int findRawIfd() {
+        return findImage(DngWriter.SUBFILE_MAIN, DngWriter.PHOTOMETRIC_CFA);
+    }
+
+    // the first reduced resolution RGB image, -1 if there is none
+    public int findPreviewIfd() {
+        return findImage(DngWriter.SUBFILE_PREVIEW, DngWriter.PHOTOMETRIC_RGB);
+    }
+
+    private int findImage(int subfile_type, int photometric) {
+        for (int index = 0; getIfd(index) >= 0; index++) {
+            int ifd = getIfd(index);
+            if (isImage(ifd, subfile_type, photometric)) return ifd;
+            for (int sub = 0; sub < getCount(ifd, DngWriter.TAG_SUB_IFDS); sub++) {
+                int sub_ifd = getSubIfd(ifd, sub);
+                if (sub_ifd >= 0 && isImage(sub_ifd, subfile_type, photometric)) return sub_ifd;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isImage(int ifd, int subfile_type, int photometric) {
+        return getLong(ifd, DngWriter.TAG_NEW_SUBFILE_TYPE, 0, DngWriter.SUBFILE_MAIN) == subfile_type
+                && getLong(ifd, DngWriter.TAG_PHOTOMETRIC_INTERPRETATION, 0, -1) == photometric;
+    }
+
+    public int getEntryCount(int ifd) {return entryCount(ifd);}
+
+    // tag of the index'th entry, entries are in ascending tag order
+    public int getTag(int ifd, int index) {return file.getShort(ifd + 2 + index * TiffIfd.ENTRY_SIZE) & 0xffff;}
+
+    // offset of a tag's entry, -1 if the IFD doesn't have it
+    public int findEntry(int ifd, int tag) {
+        int low = 0;
+        int high = entryCount(ifd) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middle_tag = getTag(ifd, middle);
+            if (middle_tag < tag) low = middle + 1;
+            else if (middle_tag > tag) high = middle - 1;
+            else return ifd + 2 + middle * TiffIfd.ENTRY_SIZE;
+        }
+        return -1;
+    }
+
+    public boolean hasTag(int ifd, int tag) {return findEntry(ifd, tag) >= 0;}
+
+    // TIFF type of a tag, 0 if it's missing
+    public int getType(int ifd, int tag) {
+        int entry = findEntry(ifd, tag);
+        return entry < 0 ? 0 : file.getShort(entry + 2) & 0xffff;
+    }
+
+    // number of values, 0 if the tag is missing
+    public int getCount(int ifd, int tag) {
+        int entry = findEntry(ifd, tag);
+        return entry < 0 ? 0 : file.getInt(entry + 4);
+    }
+
+    // index'th value of a BYTE, SHORT or LONG tag, or of their signed forms, fallback if missing
+    public long getLong(int ifd, int tag, int index, long fallback) {
+        int entry = findEntry(ifd, tag);
+        if (entry < 0 || index < 0 || index >= file.getInt(entry + 4)) return fallback;
+        int type = file.getShort(entry + 2) & 0xffff;
+        int position = valuePosition(entry, type, index);
+        if (position < 0) return fallback;
+        switch (type) {
+            case TiffIfd.TYPE_BYTE:
+            case TiffIfd.TYPE_UNDEFINED:
+                return file.get(position) & 0xff;
+            case TYPE_SBYTE:
+                return file.get(position);
+            case TiffIfd.TYPE_SHORT:
+                return file.getShort(position) & 0xffff;
+            case TYPE_SSHORT:
+                return file.getShort(position);
+            case TiffIfd.TYPE_LONG:
+                return unsigned(file.getInt(position));
+            case TYPE_SLONG:
+                return file.getInt(position);
+            default:
+                return fallback;
+        }
+    }
+
+    public int getInt(int ifd, int tag, int index, int fallback) {return (int) getLong(ifd, tag, index, fallback);}
+
+    // index'th value of a RATIONAL or SRATIONAL tag, integer types are converted, fallback if missing
+    public double getRational(int ifd, int tag, int index, double fallback) {
+        int entry = findEntry(ifd, tag);
+        if (entry < 0 || index < 0 || index >= file.getInt(entry + 4)) return fallback;
+        int type = file.getShort(entry + 2) & 0xffff;
+        if (type != TiffIfd.TYPE_RATIONAL && type != TiffIfd.TYPE_SRATIONAL) return getLong(ifd, tag, index, (long) fallback);
+        int position = valuePosition(entry, type, index);
+        if (position < 0) return fallback;
+        if (type == TiffIfd.TYPE_RATIONAL) {
+            long denominator = unsigned(file.getInt(position + 4));
+            return denominator == 0 ? fallback : unsigned(file.getInt(position)) / (double) denominator;
+        }
+        int denominator = file.getInt(position + 4);
+        return denominator == 0 ? fallback : file.getInt(position) / (double) denominator;
+    }
+
+    // an ASCII tag up to its first NUL, null if missing
+    public String getAscii(int ifd, int tag) {
+        int entry = findEntry(ifd, tag);
+        if (entry < 0 || (file.getShort(entry + 2) & 0xffff) != TiffIfd.TYPE_ASCII) return null;
+        int count = file.getInt(entry + 4);
+        int position = valuePosition(entry, TiffIfd.TYPE_ASCII, 0);
+        if (position < 0) return null;
+        int length = 0;
+        while (length < count && file.get(position + length) != 0) length++;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = file.get(position + i);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    public int getStripCount(int ifd) {return getCount(ifd, DngWriter.TAG_STRIP_OFFSETS);}
+
+    public int getTileCount(int ifd) {return getCount(ifd, DngWriter.TAG_TILE_OFFSETS);}
+
+    // the index'th strip as a slice of the mapping in the file's byte order, null if it's missing
+    public ByteBuffer getStrip(int ifd, int index) {
+        return getData(ifd, DngWriter.TAG_STRIP_OFFSETS, DngWriter.TAG_STRIP_BYTE_COUNTS, index);
+    }
+
+    public ByteBuffer getTile(int ifd, int index) {
+        return getData(ifd, DngWriter.TAG_TILE_OFFSETS, DngWriter.TAG_TILE_BYTE_COUNTS, index);
+    }
+
+    private ByteBuffer getData(int ifd, int offsets_tag, int counts_tag, int index) {
+        long offset = getLong(ifd, offsets_tag, index, -1);
+        long length = getLong(ifd, counts_tag, index, -1);
+        if (offset < 0 || length < 0 || offset + length > file.capacity()) return null;
+        ByteBuffer data = file.duplicate();
+        data.limit((int) (offset + length)).position((int) offset);
+        return data.slice().order(file.order());
+    }
+
+    private static final int TYPE_SBYTE = 6;
+    private static final int TYPE_SSHORT = 8;
+    private static final int TYPE_SLONG = 9;
+    private static final int TYPE_FLOAT = 11;
+    private static final int TYPE_DOUBLE = 12;
+
+    private static int typeSize(int type) {
+        switch (type) {
+            case TiffIfd.TYPE_BYTE:
+            case TiffIfd.TYPE_ASCII:
+            case TYPE_SBYTE:
+            case TiffIfd.TYPE_UNDEFINED:
+                return 1;
+            case TiffIfd.TYPE_SHORT:
+            case TYPE_SSHORT:
+                return 2;
+            case TiffIfd.TYPE_LONG:
+            case TYPE_SLONG:
+            case TYPE_FLOAT:
+                return 4;
+            case TiffIfd.TYPE_RATIONAL:
+            case TiffIfd.TYPE_SRATIONAL:
+            case TYPE_DOUBLE:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    // where the index'th value of an entry is, inline when all values fit in 4 bytes, -1 if out of the file
+    private int valuePosition(int entry, int type, int index) {
+        int size = typeSize(type);
+        if (size == 0) return -1;
+        long total = (long) size * file.getInt(entry + 4);
+        long data = total <= 4 ? entry + 8 : unsigned(file.getInt(entry + 8));
+        long position = data + (long) index * size;
+        return position + size <= file.capacity() ? (int) position : -1;
+    }
+
+    private int entryCount(int ifd) {return file.getShort(ifd) & 0xffff;}
+
+    private boolean validIfd(long offset) {
+        if (offset < DngWriter.HEADER_SIZE || offset + 2 > file.capacity()) return false;
+        return offset + 2 + (long) (file.getShort((int) offset) & 0xffff) * TiffIfd.ENTRY_SIZE + 4 <= file.capacity();
+    }
+
+    private static long unsigned(int value) {return value & 0xffffffffL;}
+}
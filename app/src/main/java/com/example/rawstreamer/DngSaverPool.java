@@ -0,0 +1,168 @@
+package com.example.rawstreamer;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// bounded pool of DngImageSaver workers, every capture holds one in-flight slot from the shutter
+// press until its saver finishes, so captures in flight never outnumber the slots, the RAW image
+// reader has to be built with at least one image per slot for it never to run out of images
+public class DngSaverPool {
+
+    private static final String TAG = "DngSaverPool";
+
+    // how long a blocked shutter waits between calls to the starved callback
+    private static final long STARVED_POLL_MS = 100;
+
+    // what happens to a shutter press when every in-flight slot is taken
+    public enum BackpressurePolicy {
+        // block the shutter thread until a saver frees a slot
+        BLOCK,
+        // drop the capture and count it
+        DROP
+    }
+
+    private final BackpressurePolicy policy;
+    private final int max_in_flight;
+    private final Semaphore in_flight_slots;
+    private final ThreadPoolExecutor saver_executor;
+    // run while a blocked shutter waits, gives back slots held by captures that were lost
+    private volatile Runnable starved_callback;
+
+    // throughput statistics
+    private final AtomicLong frames_saved = new AtomicLong();
+    private final AtomicLong frames_dropped = new AtomicLong();
+    private final AtomicLong total_save_ns = new AtomicLong();
+    private final AtomicLong first_submit_ns = new AtomicLong();
+
+    public DngSaverPool(int max_in_flight, int num_workers, BackpressurePolicy policy) {
+        this.policy = policy;
+        this.max_in_flight = max_in_flight;
+        this.in_flight_slots = new Semaphore(max_in_flight, true);
+        // queue can hold every in-flight frame, the semaphore guarantees it never overflows
+        this.saver_executor = new ThreadPoolExecutor(num_workers, num_workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(max_in_flight), new SaverThreadFactory());
+    }
+
+    // reserve a slot for a new capture, returns false if the capture should not be issued
+    public boolean acquireSlot() {
+        if (policy == BackpressurePolicy.BLOCK) {
+            try {
+                while (!in_flight_slots.tryAcquire(STARVED_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (saver_executor.isShutdown()) return false;
+                    Runnable callback = starved_callback;
+                    if (callback != null) callback.run();
+                }
+                // woken up by shutdown rather than by a finished save
+                return !saver_executor.isShutdown();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (saver_executor.isShutdown()) return false;
+        if (in_flight_slots.tryAcquire()) {
+            return true;
+        }
+        long dropped = frames_dropped.incrementAndGet();
+        Log.w(TAG, "All " + max_in_flight + " slots in flight, capture dropped (" + dropped + " total)");
+        return false;
+    }
+
+    // called on the shutter thread every STARVED_POLL_MS while it is blocked on a slot
+    public void setStarvedCallback(Runnable callback) {
+        starved_callback = callback;
+    }
+
+    // give back a slot whose capture will never reach a saver (failed or aborted capture)
+    public void releaseSlot() {
+        in_flight_slots.release();
+    }
+
+    // run a saver for a capture that already holds a slot, the slot is released once it finishes,
+    // returns false (slot released, saver never run) if the pool has been shut down
+    public boolean submit(Runnable saver) {
+        first_submit_ns.compareAndSet(0, System.nanoTime());
+        try {
+            saver_executor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    saver.run();
+                }
+                finally {
+                    in_flight_slots.release();
+                    recordSave(System.nanoTime() - start);
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            // executor shut down between capture and save
+            Log.e(TAG, "Saver rejected: " + e);
+            in_flight_slots.release();
+            return false;
+        }
+    }
+
+    private void recordSave(long save_ns) {
+        long saved = frames_saved.incrementAndGet();
+        long total_ns = total_save_ns.addAndGet(save_ns);
+        Log.d(TAG, "Frame " + saved + " saved in " + save_ns / 1000000 + " ms, average "
+                + total_ns / saved / 1000000 + " ms, throughput " + getThroughput() + " fps, in flight "
+                + getInFlight() + ", dropped " + frames_dropped.get());
+    }
+
+    // sustained frames per second written to disk since the first capture of this pool
+    public double getThroughput() {
+        long first = first_submit_ns.get();
+        long elapsed_ns = System.nanoTime() - first;
+        if (first == 0 || elapsed_ns <= 0) return 0;
+        return frames_saved.get() * 1.0e9 / elapsed_ns;
+    }
+
+    public int getInFlight() {return max_in_flight - in_flight_slots.availablePermits();}
+
+    public long getFramesSaved() {return frames_saved.get();}
+
+    public long getFramesDropped() {return frames_dropped.get();}
+
+    // stop accepting captures and wait up to timeout_ms for in-flight saves to finish
+    public void shutdown(long timeout_ms) {
+        saver_executor.shutdown();
+        try {
+            if (!saver_executor.awaitTermination(timeout_ms, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Savers still running after " + timeout_ms + " ms");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // wake any shutter still blocked on a slot whose capture was lost with the session
+        in_flight_slots.release(max_in_flight);
+        Log.d(TAG, "Saver pool shut down, saved: " + frames_saved.get() + ", dropped: " + frames_dropped.get());
+    }
+
+    // background priority threads so saving never competes with the preview
+    private static class SaverThreadFactory implements ThreadFactory {
+        private final AtomicInteger thread_count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "DngSaver-" + thread_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.rawstreamer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+reads the 8 bit RGB preview DngWriter puts in IFD0 and scales it down to a gallery thumbnail, the
+file is only mapped and DngReader touches just the header, the IFDs it walks and the preview strip,
+so this costs the same no matter how big the sensor data behind them is, files without such a
+preview give null
+ */
+public class DngThumbnail {
+    public final int width;
+    public final int height;
+    // packed 0xAARRGGBB, width * height
+    public final int[] argb;
+
+    public DngThumbnail(int width, int height, int[] argb) {
+        this.width = width;
+        this.height = height;
+        this.argb = argb;
+    }
+
+    // the embedded preview box filtered down so neither side is over max_size, null if there is none
+    public static DngThumbnail decode(File file, int max_size) throws IOException {
+        DngReader reader;
+        try {
+            reader = new DngReader(file);
+        } catch (IOException e) {
+            // not a TIFF, the caller has other decoders to try
+            return null;
+        }
+        int ifd = reader.findPreviewIfd();
+        if (ifd < 0) return null;
+        int width = reader.getInt(ifd, DngWriter.TAG_IMAGE_WIDTH, 0, 0);
+        int height = reader.getInt(ifd, DngWriter.TAG_IMAGE_LENGTH, 0, 0);
+        // only 8 bits in every channel, packed in one uncompressed strip, is supported
+        boolean eight_bit = reader.getCount(ifd, DngWriter.TAG_BITS_PER_SAMPLE) == 3;
+        for (int i = 0; i < 3; i++) eight_bit &= reader.getLong(ifd, DngWriter.TAG_BITS_PER_SAMPLE, i, 0) == 8;
+        if (!eight_bit || reader.getLong(ifd, DngWriter.TAG_SAMPLES_PER_PIXEL, 0, 1) != 3
+                || reader.getLong(ifd, DngWriter.TAG_COMPRESSION, 0, DngWriter.COMPRESSION_NONE) != DngWriter.COMPRESSION_NONE
+                || reader.getStripCount(ifd) != 1 || width <= 0 || height <= 0) {
+            return null;
+        }
+        ByteBuffer rgb = reader.getStrip(ifd, 0);
+        if (rgb == null || rgb.capacity() < (long) width * height * 3) return null;
+        return scale(rgb, width, height, max_size);
+    }
+
+    // box filters packed RGB down by the smallest whole factor that fits max_size
+    static DngThumbnail scale(ByteBuffer rgb, int width, int height, int max_size) {
+        int factor = Math.max(1, (Math.max(width, height) + max_size - 1) / max_size);
+        int out_width = Math.max(1, width / factor);
+        int out_height = Math.max(1, height / factor);
+        int box_width = Math.min(factor, width);
+        int box_height = Math.min(factor, height);
+        int area = box_width * box_height;
+        int[] argb = new int[out_width * out_height];
+        for (int y = 0; y < out_height; y++) {
+            for (int x = 0; x < out_width; x++) {
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                for (int j = 0; j < box_height; j++) {
+                    int index = ((y * factor + j) * width + x * factor) * 3;
+                    for (int i = 0; i < box_width; i++, index += 3) {
+                        red += rgb.get(index) & 0xff;
+                        green += rgb.get(index + 1) & 0xff;
+                        blue += rgb.get(index + 2) & 0xff;
+                    }
+                }
+                argb[y * out_width + x] = 0xff000000 | (red / area) << 16 | (green / area) << 8 | blue / area;
+            }
+        }
+        return new DngThumbnail(out_width, out_height, argb);
+    }
+}
@@ -0,0 +1,466 @@
+package com.example.rawstreamer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+streams a 16 bit Bayer frame into a DNG, laid out as the TIFF header, a single IFD and then the
+sensor data, either one uncompressed strip or lossless JPEG (compression 7) tiles
+
+the header and IFD are encoded into a reused direct buffer and an uncompressed strip is gathered
+straight out of the image plane's ByteBuffer (one view per row when rows are padded), so a frame is
+written with a handful of gathering writes and without ever copying pixels into a byte[], lossless
+JPEG tiles are encoded in parallel first and gathered out of the encoder's tile buffers
+
+prepare() + writeTo() split a write in two so the exact file size is known before the output is
+allocated, and the frame is then copied into a mapped, preallocated file, not thread safe, keep one
+writer per saver thread
+
+with a preview size set, IFD0 becomes a small 8 bit RGB preview binned straight out of the frame
+buffer while the frame is prepared, and the raw image moves to a SubIFD, viewers can then show the
+file without reading the sensor data, the layout is header, IFD0, raw IFD, preview, sensor data
+ */
+public class DngWriter {
+
+    // TIFF / EXIF tags
+    public static final int TAG_NEW_SUBFILE_TYPE = 254;
+    public static final int TAG_IMAGE_WIDTH = 256;
+    public static final int TAG_IMAGE_LENGTH = 257;
+    public static final int TAG_BITS_PER_SAMPLE = 258;
+    public static final int TAG_COMPRESSION = 259;
+    public static final int TAG_PHOTOMETRIC_INTERPRETATION = 262;
+    public static final int TAG_MAKE = 271;
+    public static final int TAG_MODEL = 272;
+    public static final int TAG_STRIP_OFFSETS = 273;
+    public static final int TAG_ORIENTATION = 274;
+    public static final int TAG_SAMPLES_PER_PIXEL = 277;
+    public static final int TAG_ROWS_PER_STRIP = 278;
+    public static final int TAG_STRIP_BYTE_COUNTS = 279;
+    public static final int TAG_PLANAR_CONFIGURATION = 284;
+    public static final int TAG_TILE_WIDTH = 322;
+    public static final int TAG_TILE_LENGTH = 323;
+    public static final int TAG_TILE_OFFSETS = 324;
+    public static final int TAG_TILE_BYTE_COUNTS = 325;
+    public static final int TAG_SOFTWARE = 305;
+    public static final int TAG_DATE_TIME = 306;
+    public static final int TAG_SUB_IFDS = 330;
+    public static final int TAG_CFA_REPEAT_PATTERN_DIM = 33421;
+    public static final int TAG_CFA_PATTERN = 33422;
+    public static final int TAG_EXPOSURE_TIME = 33434;
+    public static final int TAG_F_NUMBER = 33437;
+    public static final int TAG_ISO_SPEED_RATINGS = 34855;
+    public static final int TAG_FOCAL_LENGTH = 37386;
+
+    // DNG tags
+    public static final int TAG_DNG_VERSION = 50706;
+    public static final int TAG_DNG_BACKWARD_VERSION = 50707;
+    public static final int TAG_UNIQUE_CAMERA_MODEL = 50708;
+    public static final int TAG_BLACK_LEVEL_REPEAT_DIM = 50713;
+    public static final int TAG_BLACK_LEVEL = 50714;
+    public static final int TAG_WHITE_LEVEL = 50717;
+    public static final int TAG_COLOR_MATRIX1 = 50721;
+    public static final int TAG_COLOR_MATRIX2 = 50722;
+    public static final int TAG_CAMERA_CALIBRATION1 = 50723;
+    public static final int TAG_CAMERA_CALIBRATION2 = 50724;
+    public static final int TAG_AS_SHOT_NEUTRAL = 50728;
+    public static final int TAG_CALIBRATION_ILLUMINANT1 = 50778;
+    public static final int TAG_CALIBRATION_ILLUMINANT2 = 50779;
+    public static final int TAG_FORWARD_MATRIX1 = 50964;
+    public static final int TAG_FORWARD_MATRIX2 = 50965;
+
+    public static final int COMPRESSION_NONE = 1;
+    public static final int COMPRESSION_LOSSLESS_JPEG = 7;
+    public static final int PHOTOMETRIC_CFA = 32803;
+    public static final int PHOTOMETRIC_RGB = 2;
+    public static final int SUBFILE_MAIN = 0;
+    public static final int SUBFILE_PREVIEW = 1;
+    // long edge of the embedded preview, at most, the frame is binned by whole quads
+    public static final int DEFAULT_PREVIEW_SIZE = 512;
+
+    public static final int HEADER_SIZE = 8;
+    // row views handed to one gathering write, well below the kernel's IOV_MAX
+    private static final int ROWS_PER_GATHER = 64;
+
+    private ByteBuffer header_buffer = ByteBuffer.allocateDirect(4096).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer[] gather = new ByteBuffer[ROWS_PER_GATHER + 1];
+    // created on the first compressed frame
+    private LosslessJpegEncoder lossless_jpeg_encoder;
+    // 0 writes the raw image alone in IFD0
+    private int preview_size;
+    // created on the first frame with a preview, the pixels are reused between frames
+    private DemosaicEngine preview_engine;
+    private int[] preview_argb = new int[0];
+    private ByteBuffer preview_rgb = ByteBuffer.allocateDirect(0);
+
+    // frame between prepare() and the write
+    private TiffIfd prepared_preview_ifd;
+    private TiffIfd prepared_ifd;
+    private ByteBuffer prepared_plane;
+    private int prepared_width;
+    private int prepared_height;
+    private int prepared_row_stride;
+    private int prepared_compression;
+    private long prepared_data_offset;
+    private long prepared_size;
+
+    // long edge of the embedded preview, 0 (the default) for none
+    public void setPreviewSize(int preview_size) {this.preview_size = preview_size;}
+
+    public int getPreviewSize() {return preview_size;}
+
+    // builds the raw IFD for an uncompressed frame, strip offset and byte count are filled in by write()
+    public static TiffIfd buildIfd(DngMetadata metadata, int width, int height) {
+        return buildIfd(metadata, width, height, true);
+    }
+
+    // main_ifd false leaves out the camera and colour tags, for a raw SubIFD under a preview IFD0
+    public static TiffIfd buildIfd(DngMetadata metadata, int width, int height, boolean main_ifd) {
+        TiffIfd ifd = buildCommonIfd(metadata, width, height, COMPRESSION_NONE, main_ifd);
+        ifd.putLong(TAG_STRIP_OFFSETS, 0);
+        ifd.putLong(TAG_ROWS_PER_STRIP, height);
+        ifd.putLong(TAG_STRIP_BYTE_COUNTS, (long) width * height * 2);
+        return ifd;
+    }
+
+    // builds the raw IFD for a lossless JPEG frame, tile offsets are filled in by write()
+    public static TiffIfd buildTiledIfd(DngMetadata metadata, int width, int height, int tile_width,
+                                        int tile_height, long[] tile_byte_counts) {
+        return buildTiledIfd(metadata, width, height, tile_width, tile_height, tile_byte_counts, true);
+    }
+
+    public static TiffIfd buildTiledIfd(DngMetadata metadata, int width, int height, int tile_width,
+                                        int tile_height, long[] tile_byte_counts, boolean main_ifd) {
+        TiffIfd ifd = buildCommonIfd(metadata, width, height, COMPRESSION_LOSSLESS_JPEG, main_ifd);
+        ifd.putShort(TAG_TILE_WIDTH, tile_width);
+        ifd.putShort(TAG_TILE_LENGTH, tile_height);
+        ifd.putLong(TAG_TILE_OFFSETS, new long[tile_byte_counts.length]);
+        ifd.putLong(TAG_TILE_BYTE_COUNTS, tile_byte_counts);
+        return ifd;
+    }
+
+    private static TiffIfd buildCommonIfd(DngMetadata metadata, int width, int height, int compression, boolean main_ifd) {
+        TiffIfd ifd = new TiffIfd();
+        ifd.putLong(TAG_NEW_SUBFILE_TYPE, SUBFILE_MAIN);
+        ifd.putLong(TAG_IMAGE_WIDTH, width);
+        ifd.putLong(TAG_IMAGE_LENGTH, height);
+        ifd.putShort(TAG_BITS_PER_SAMPLE, 16);
+        ifd.putShort(TAG_COMPRESSION, compression);
+        ifd.putShort(TAG_PHOTOMETRIC_INTERPRETATION, PHOTOMETRIC_CFA);
+        ifd.putShort(TAG_SAMPLES_PER_PIXEL, 1);
+        ifd.putShort(TAG_PLANAR_CONFIGURATION, 1);
+        ifd.putShort(TAG_CFA_REPEAT_PATTERN_DIM, 2, 2);
+        ifd.putBytes(TAG_CFA_PATTERN, TiffIfd.TYPE_BYTE, DngMetadata.cfaColors(metadata.cfa_pattern));
+        ifd.putShort(TAG_BLACK_LEVEL_REPEAT_DIM, 2, 2);
+        long[] black_level = new long[4];
+        for (int i = 0; i < 4; i++) black_level[i] = metadata.black_level[i];
+        ifd.putLong(TAG_BLACK_LEVEL, black_level);
+        ifd.putLong(TAG_WHITE_LEVEL, metadata.white_level);
+        if (main_ifd) putCameraTags(ifd, metadata);
+        return ifd;
+    }
+
+    /*
+    builds IFD0 for an 8 bit RGB preview, one uncompressed strip whose offset is filled in by
+    prepare(), along with the camera and colour tags DNG wants in IFD0 and the SubIFDs pointer to
+    the raw IFD
+     */
+    public static TiffIfd buildPreviewIfd(DngMetadata metadata, int width, int height) {
+        TiffIfd ifd = new TiffIfd();
+        ifd.putLong(TAG_NEW_SUBFILE_TYPE, SUBFILE_PREVIEW);
+        ifd.putLong(TAG_IMAGE_WIDTH, width);
+        ifd.putLong(TAG_IMAGE_LENGTH, height);
+        ifd.putShort(TAG_BITS_PER_SAMPLE, 8, 8, 8);
+        ifd.putShort(TAG_COMPRESSION, COMPRESSION_NONE);
+        ifd.putShort(TAG_PHOTOMETRIC_INTERPRETATION, PHOTOMETRIC_RGB);
+        ifd.putLong(TAG_STRIP_OFFSETS, 0);
+        ifd.putShort(TAG_SAMPLES_PER_PIXEL, 3);
+        ifd.putLong(TAG_ROWS_PER_STRIP, height);
+        ifd.putLong(TAG_STRIP_BYTE_COUNTS, (long) width * height * 3);
+        ifd.putShort(TAG_PLANAR_CONFIGURATION, 1);
+        ifd.putLong(TAG_SUB_IFDS, 0);
+        putCameraTags(ifd, metadata);
+        return ifd;
+    }
+
+    // tags describing the camera and shot rather than one image, in the main IFD
+    private static void putCameraTags(TiffIfd ifd, DngMetadata metadata) {
+        if (!metadata.make.isEmpty()) ifd.putAscii(TAG_MAKE, metadata.make);
+        if (!metadata.model.isEmpty()) ifd.putAscii(TAG_MODEL, metadata.model);
+        ifd.putShort(TAG_ORIENTATION, metadata.orientation);
+        if (!metadata.software.isEmpty()) ifd.putAscii(TAG_SOFTWARE, metadata.software);
+        if (!metadata.date_time.isEmpty()) ifd.putAscii(TAG_DATE_TIME, metadata.date_time);
+
+        if (metadata.exposure_time_s > 0) ifd.putRational(TAG_EXPOSURE_TIME, metadata.exposure_time_s);
+        if (metadata.f_number > 0) ifd.putRational(TAG_F_NUMBER, metadata.f_number);
+        if (metadata.iso > 0) ifd.putShort(TAG_ISO_SPEED_RATINGS, Math.min(metadata.iso, 65535));
+        if (metadata.focal_length_mm > 0) ifd.putRational(TAG_FOCAL_LENGTH, metadata.focal_length_mm);
+
+        ifd.putBytes(TAG_DNG_VERSION, TiffIfd.TYPE_BYTE, (byte) 1, (byte) 4, (byte) 0, (byte) 0);
+        ifd.putBytes(TAG_DNG_BACKWARD_VERSION, TiffIfd.TYPE_BYTE, (byte) 1, (byte) 1, (byte) 0, (byte) 0);
+        String unique_model = (metadata.make + " " + metadata.model).trim();
+        ifd.putAscii(TAG_UNIQUE_CAMERA_MODEL, unique_model.isEmpty() ? "Unknown" : unique_model);
+
+        putMatrix(ifd, TAG_COLOR_MATRIX1, metadata.color_matrix1);
+        putMatrix(ifd, TAG_COLOR_MATRIX2, metadata.color_matrix2);
+        putMatrix(ifd, TAG_CAMERA_CALIBRATION1, metadata.camera_calibration1);
+        putMatrix(ifd, TAG_CAMERA_CALIBRATION2, metadata.camera_calibration2);
+        if (metadata.as_shot_neutral != null) ifd.putRational(TAG_AS_SHOT_NEUTRAL, metadata.as_shot_neutral);
+        if (metadata.color_matrix1 != null) ifd.putShort(TAG_CALIBRATION_ILLUMINANT1, metadata.calibration_illuminant1);
+        if (metadata.color_matrix2 != null) ifd.putShort(TAG_CALIBRATION_ILLUMINANT2, metadata.calibration_illuminant2);
+        putMatrix(ifd, TAG_FORWARD_MATRIX1, metadata.forward_matrix1);
+        putMatrix(ifd, TAG_FORWARD_MATRIX2, metadata.forward_matrix2);
+    }
+
+    private static void putMatrix(TiffIfd ifd, int tag, double[] matrix) {
+        if (matrix != null) ifd.putSRational(tag, matrix);
+    }
+
+    public long write(FileChannel channel, DngMetadata metadata, ByteBuffer plane, int width, int height,
+                      int row_stride) throws IOException {
+        return write(channel, metadata, plane, width, height, row_stride, COMPRESSION_NONE);
+    }
+
+    /*
+    writes a DNG for a frame whose 16 bit little-endian samples start at the plane buffer's position,
+    rows row_stride bytes apart, compression is COMPRESSION_NONE or COMPRESSION_LOSSLESS_JPEG, the
+    plane's position and limit are left untouched, returns the number of bytes written
+     */
+    public long write(FileChannel channel, DngMetadata metadata, ByteBuffer plane, int width, int height,
+                      int row_stride, int compression) throws IOException {
+        prepare(metadata, plane, width, height, row_stride, compression);
+        return writePrepared(channel);
+    }
+
+    /*
+    first half of a write, builds the IFD (encoding the tiles of a compressed frame) and returns the
+    exact file size so the output can be allocated before anything is written, the plane must stay
+    untouched until writeTo() has run
+     */
+    public long prepare(DngMetadata metadata, ByteBuffer plane, int width, int height, int row_stride,
+                        int compression) {
+        if (compression != COMPRESSION_LOSSLESS_JPEG && compression != COMPRESSION_NONE) {
+            throw new IllegalArgumentException("Unsupported compression " + compression);
+        }
+        TiffIfd preview_ifd = null;
+        long preview_bytes = 0;
+        if (preview_size > 0) {
+            preview_ifd = preparePreview(metadata, plane, width, height, row_stride);
+            preview_bytes = (preview_rgb.limit() + 1) & ~1;
+        }
+        boolean main_ifd = preview_ifd == null;
+        TiffIfd ifd;
+        long data_bytes;
+        if (compression == COMPRESSION_LOSSLESS_JPEG) {
+            if (lossless_jpeg_encoder == null) lossless_jpeg_encoder = new LosslessJpegEncoder(ForkJoinPool.commonPool());
+            LosslessJpegEncoder encoder = lossless_jpeg_encoder;
+            data_bytes = encoder.encode(plane, width, height, row_stride);
+            int tile_count = encoder.getTileCount();
+            long[] tile_byte_counts = new long[tile_count];
+            for (int i = 0; i < tile_count; i++) tile_byte_counts[i] = encoder.getTileLength(i);
+            ifd = buildTiledIfd(metadata, width, height, encoder.getTileWidth(), encoder.getTileHeight(),
+                    tile_byte_counts, main_ifd);
+            // the IFDs' sizes don't depend on the offsets, so they can be filled in now
+            long[] tile_offsets = new long[tile_count];
+            long offset = dataOffset(preview_ifd, ifd, preview_bytes);
+            for (int i = 0; i < tile_count; i++) {
+                tile_offsets[i] = offset;
+                offset += tile_byte_counts[i];
+            }
+            ifd.putLong(TAG_TILE_OFFSETS, tile_offsets);
+        }
+        else {
+            data_bytes = (long) width * height * 2;
+            ifd = buildIfd(metadata, width, height, main_ifd);
+            ifd.putLong(TAG_STRIP_OFFSETS, dataOffset(preview_ifd, ifd, preview_bytes));
+        }
+        long data_offset = dataOffset(preview_ifd, ifd, preview_bytes);
+        if (preview_ifd != null) {
+            preview_ifd.putLong(TAG_SUB_IFDS, HEADER_SIZE + preview_ifd.getByteSize());
+            preview_ifd.putLong(TAG_STRIP_OFFSETS, data_offset - preview_bytes);
+        }
+        prepared_preview_ifd = preview_ifd;
+        prepared_ifd = ifd;
+        prepared_plane = plane;
+        prepared_width = width;
+        prepared_height = height;
+        prepared_row_stride = row_stride;
+        prepared_compression = compression;
+        prepared_data_offset = data_offset;
+        prepared_size = data_offset + data_bytes;
+        return prepared_size;
+    }
+
+    // where the sensor data starts, after the header, the IFDs and the preview
+    private static long dataOffset(TiffIfd preview_ifd, TiffIfd ifd, long preview_bytes) {
+        long offset = HEADER_SIZE + ifd.getByteSize();
+        if (preview_ifd != null) offset += preview_ifd.getByteSize() + preview_bytes;
+        return offset;
+    }
+
+    /*
+    bins the frame down to at most preview_size on the long edge into the reused RGB buffer and
+    returns the preview's IFD, colour comes from the frame's levels and as shot neutral, there is
+    no colour matrix so it is a camera RGB preview, good enough to pick frames by
+     */
+    private TiffIfd preparePreview(DngMetadata metadata, ByteBuffer plane, int width, int height, int row_stride) {
+        int bin = Math.max(1, (Math.max(width, height) / 2 + preview_size - 1) / preview_size);
+        bin = Math.min(bin, Math.min(DemosaicEngine.MAX_BIN, Math.min(width, height) / 2));
+        int preview_width = DemosaicEngine.getBinnedSize(width, bin);
+        int preview_height = DemosaicEngine.getBinnedSize(height, bin);
+        int pixels = preview_width * preview_height;
+        if (preview_engine == null) preview_engine = new DemosaicEngine(ForkJoinPool.commonPool());
+        preview_engine.setCfaPattern(metadata.cfa_pattern);
+        preview_engine.setLevels(metadata.black_level, metadata.white_level);
+        double[] neutral = metadata.as_shot_neutral;
+        if (neutral != null && neutral[0] > 0 && neutral[1] > 0 && neutral[2] > 0) {
+            preview_engine.setWhiteBalance((float) (neutral[1] / neutral[0]), 1, (float) (neutral[1] / neutral[2]));
+        }
+        else {
+            preview_engine.setWhiteBalance(1, 1, 1);
+        }
+        if (preview_argb.length < pixels) preview_argb = new int[pixels];
+        preview_engine.bin(plane, width, height, row_stride, bin, preview_argb);
+        if (preview_rgb.capacity() < pixels * 3) preview_rgb = ByteBuffer.allocateDirect(pixels * 3);
+        preview_rgb.clear();
+        for (int i = 0; i < pixels; i++) {
+            int pixel = preview_argb[i];
+            preview_rgb.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+        }
+        preview_rgb.flip();
+        return buildPreviewIfd(metadata, preview_width, preview_height);
+    }
+
+    /*
+    second half of a write, copies the prepared frame to the buffer (typically a mapped output file)
+    from its position on, which must be file offset 0 and is moved past the frame, returns the number
+    of bytes written
+     */
+    public long writeTo(ByteBuffer out) {
+        if (prepared_ifd == null) throw new IllegalStateException("No frame prepared");
+        if (out.remaining() < prepared_size) throw new IllegalArgumentException("Output too small: " + out.remaining());
+        writeHeader(out);
+        if (prepared_compression == COMPRESSION_LOSSLESS_JPEG) {
+            for (int i = 0; i < lossless_jpeg_encoder.getTileCount(); i++) out.put(lossless_jpeg_encoder.getTile(i));
+        }
+        else {
+            int row_bytes = prepared_width * 2;
+            int base = prepared_plane.position();
+            ByteBuffer rows = prepared_plane.duplicate();
+            if (prepared_row_stride == row_bytes) {
+                rows.limit(base + row_bytes * prepared_height);
+                out.put(rows);
+            }
+            else {
+                for (int row = 0; row < prepared_height; row++) {
+                    int start = base + row * prepared_row_stride;
+                    rows.limit(start + row_bytes);
+                    rows.position(start);
+                    out.put(rows);
+                }
+            }
+        }
+        return finishPrepared();
+    }
+
+    // gathering writes of the prepared frame, the strip or tiles straight from their buffers
+    private long writePrepared(FileChannel channel) throws IOException {
+        ByteBuffer header = encodeHeader();
+        if (prepared_compression == COMPRESSION_LOSSLESS_JPEG) {
+            gather[0] = header;
+            int count = 1;
+            for (int i = 0; i < lossless_jpeg_encoder.getTileCount(); i++) {
+                gather[count++] = lossless_jpeg_encoder.getTile(i);
+                if (count == gather.length) {
+                    writeFully(channel, gather, count);
+                    count = 0;
+                }
+            }
+            if (count > 0) writeFully(channel, gather, count);
+        }
+        else {
+            int height = prepared_height;
+            int row_bytes = prepared_width * 2;
+            int base = prepared_plane.position();
+            if (prepared_row_stride == row_bytes) {
+                // tightly packed, the whole strip is a single view
+                ByteBuffer strip = prepared_plane.duplicate();
+                strip.limit(base + row_bytes * height);
+                gather[0] = header;
+                gather[1] = strip;
+                writeFully(channel, gather, 2);
+            }
+            else {
+                gather[0] = header;
+                writeFully(channel, gather, 1);
+                ByteBuffer[] rows = new ByteBuffer[Math.min(ROWS_PER_GATHER, height)];
+                for (int i = 0; i < rows.length; i++) rows[i] = prepared_plane.duplicate();
+                for (int row = 0; row < height; row += rows.length) {
+                    int count = Math.min(rows.length, height - row);
+                    for (int i = 0; i < count; i++) {
+                        int start = base + (row + i) * prepared_row_stride;
+                        // limit first, a row can start past the previous limit
+                        rows[i].limit(start + row_bytes);
+                        rows[i].position(start);
+                        gather[i] = rows[i];
+                    }
+                    writeFully(channel, gather, count);
+                }
+            }
+        }
+        clearGather();
+        return finishPrepared();
+    }
+
+    // don't keep the last frame's plane reachable between frames
+    private long finishPrepared() {
+        prepared_preview_ifd = null;
+        prepared_ifd = null;
+        prepared_plane = null;
+        return prepared_size;
+    }
+
+    // everything before the sensor data, header, IFDs and preview, encoded into the reused direct buffer, flipped for writing
+    private ByteBuffer encodeHeader() {
+        int size = (int) prepared_data_offset;
+        if (header_buffer.capacity() < size) {
+            header_buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        header_buffer.clear();
+        writeHeader(header_buffer);
+        header_buffer.flip();
+        return header_buffer;
+    }
+
+    // the TIFF header, the IFDs and the preview pixels, from the buffer's position, which must be file offset 0
+    private void writeHeader(ByteBuffer out) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(HEADER_SIZE);
+        if (prepared_preview_ifd != null) {
+            prepared_preview_ifd.write(out, HEADER_SIZE, 0);
+            prepared_ifd.write(out, HEADER_SIZE + prepared_preview_ifd.getByteSize(), 0);
+            out.put(preview_rgb.duplicate());
+            if (preview_rgb.limit() % 2 != 0) out.put((byte) 0);
+        }
+        else {
+            prepared_ifd.write(out, HEADER_SIZE, 0);
+        }
+        out.order(order);
+    }
+
+    // gathering writes can be partial, keep going until every buffer is drained
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        int first = 0;
+        while (first < count) {
+            channel.write(buffers, first, count - first);
+            while (first < count && !buffers[first].hasRemaining()) first++;
+        }
+    }
+
+    private void clearGather() {
+        for (int i = 0; i < gather.length; i++) gather[i] = null;
+    }
+}
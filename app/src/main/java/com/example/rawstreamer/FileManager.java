@@ -5,8 +5,11 @@ import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // manages gallery to store raw images
 public class FileManager {
@@ -14,9 +17,13 @@ public class FileManager {
 
     // folder to store raw images
     private File raw_gallery_folder;
+    // raw file names are RAW_<session start>_<sequence>.dng, the date is only formatted once
+    private final String raw_file_prefix;
+    private final AtomicInteger raw_file_sequence = new AtomicInteger();
 
     public FileManager() {
         createGallery();
+        raw_file_prefix = "RAW_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + "_";
     }
 
     // creates a new gallery for images, if none exists
@@ -34,18 +41,42 @@ public class FileManager {
         }
     }
 
-    // creates a file for a raw image, returns null if IOException encountered
-    public File createRawFile() {
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-        String imageFileName = "RAW_" + timeStamp + "_";
-        // raw images are in .dng format, createTempFile throws IOException
-        File image = null;
-        try {
-            image = File.createTempFile(imageFileName, ".dng", raw_gallery_folder);
-        }
-        catch (IOException e) {
-            Log.d(TAG, "Exception creating .dng file: ", e);
+    public File getRawGalleryFolder() {return raw_gallery_folder;}
+
+    // raw images in the gallery, newest first, names sort in capture order so this needs no stat calls
+    public File[] listRawFiles() {
+        File[] files = raw_gallery_folder.listFiles((folder, name) -> name.endsWith(".dng"));
+        if (files == null) return new File[0];
+        Arrays.sort(files, Collections.reverseOrder());
+        return files;
+    }
+
+    // name of the next raw image, only the sequence number changes between files so this is just
+    // a couple of appends, names sort in capture order
+    public File nextRawFile() {
+        int sequence = raw_file_sequence.incrementAndGet();
+        StringBuilder name = new StringBuilder(raw_file_prefix);
+        for (int digits = 1000; digits > 1 && sequence < digits; digits /= 10) name.append('0');
+        name.append(sequence).append(".dng");
+        return new File(raw_gallery_folder, name.toString());
+    }
+
+    // file for a camera session's metadata journal in folder, named by when the session started
+    public File newJournalFile(File folder) {
+        if (!folder.exists() && !folder.mkdirs()) Log.d(TAG, "Couldn't create journal folder");
+        String name = "JOURNAL_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File file = new File(folder, name + ".journal");
+        for (int i = 1; file.exists(); i++) file = new File(folder, name + "_" + i + ".journal");
+        return file;
+    }
+
+    // creates the next raw image file preallocated to size bytes and mapped for writing, names left
+    // behind by an earlier session that started in the same second are skipped
+    public MappedOutputFile createRawOutput(long size) throws IOException {
+        while (true) {
+            File file = nextRawFile();
+            if (file.createNewFile()) return MappedOutputFile.create(file, size);
+            Log.d(TAG, "Raw file already exists: " + file);
         }
-        return image;
     }
 }
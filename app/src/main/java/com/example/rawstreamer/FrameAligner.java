@@ -0,0 +1,334 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+tile based alignment of handheld burst frames against a reference frame, for BurstMerger
+
+every frame is reduced to a luminance image by averaging each 2x2 Bayer quad, then to a Gaussian
+pyramid of half size levels, the displacement of every merge tile is searched over a wide range on the
+coarsest level and refined level by level down to the quad image, so offsets come out in whole quads
+(even Bayer pixels) and never mix up CFA colours
+
+the pyramids are allocated once and reused for every frame of every burst, one for the reference and
+one for the frame being aligned, so alignment memory doesn't grow with the frame count, levels are 16
+bit and live in direct buffers so they stay off the Java heap next to the merger's accumulator, the
+search runs in parallel across tile rows on a fork-join pool, plain Java with no Android dependencies
+ */
+public class FrameAligner {
+
+    public static final int DEFAULT_LEVELS = 4;
+    // search radius on the coarsest level, in that level's pixels, 4 on level 3 is +-64 Bayer pixels
+    public static final int DEFAULT_SEARCH_RADIUS = 4;
+    // finer levels only refine the vector carried down from the level above
+    private static final int REFINE_RADIUS = 1;
+    // smallest half size of a tile's comparison window, coarse levels would otherwise compare a few pixels
+    private static final int MIN_WINDOW_HALF = 4;
+    // levels stop before they get smaller than this, tiny levels match anything
+    private static final int MIN_LEVEL_SIZE = 4 * MIN_WINDOW_HALF;
+    // a candidate must keep this fraction (1 / n) of the window inside the frame
+    private static final int MIN_OVERLAP_FRACTION = 2;
+    // fixed point scale of the per pixel cost
+    private static final int COST_SCALE = 256;
+    // pyramid rows per fork-join leaf task
+    private static final int ROWS_PER_TASK = 16;
+
+    private static final int STEP_LUMINANCE = 0;
+    private static final int STEP_DOWNSAMPLE = 1;
+    private static final int STEP_SEARCH = 2;
+
+    private final ForkJoinPool fork_join_pool;
+    private final int width;
+    private final int height;
+    private final int tile_size;
+    private final int tiles_across;
+    private final int tiles_down;
+    private final int level_count;
+    private final int search_radius;
+    private final int[] level_widths;
+    private final int[] level_heights;
+    // absolute gets and puts only so tasks can share them
+    private final ShortBuffer[] reference;
+    private final ShortBuffer[] frame;
+    private boolean has_reference;
+    // per tile vectors in the units of the level above and of the level being searched, x then y
+    private int[] vectors;
+    private int[] next_vectors;
+    // per tile motion in Bayer pixels, x then y, returned by align()
+    private final int[] motion;
+
+    public FrameAligner(ForkJoinPool fork_join_pool, int width, int height, int tile_size) {
+        this(fork_join_pool, width, height, tile_size, DEFAULT_LEVELS, DEFAULT_SEARCH_RADIUS);
+    }
+
+    // tile_size is the merge tile size in Bayer pixels, one vector is found per merge tile, small frames get
+    // fewer than level_count levels
+    public FrameAligner(ForkJoinPool fork_join_pool, int width, int height, int tile_size, int level_count, int search_radius) {
+        if (tile_size <= 0 || tile_size % 2 != 0) throw new IllegalArgumentException("Tile size must be even: " + tile_size);
+        if (level_count < 1) throw new IllegalArgumentException("Need at least one level: " + level_count);
+        if (width < 2 || height < 2) throw new IllegalArgumentException("Frame too small: " + width + "x" + height);
+        this.fork_join_pool = fork_join_pool;
+        this.width = width;
+        this.height = height;
+        this.tile_size = tile_size;
+        this.tiles_across = (width + tile_size - 1) / tile_size;
+        this.tiles_down = (height + tile_size - 1) / tile_size;
+        int levels = 1;
+        while (levels < level_count && Math.min(width / 2, height / 2) >> levels >= MIN_LEVEL_SIZE) levels++;
+        this.level_count = levels;
+        this.search_radius = search_radius;
+        this.level_widths = new int[levels];
+        this.level_heights = new int[levels];
+        level_widths[0] = width / 2;
+        level_heights[0] = height / 2;
+        for (int level = 1; level < levels; level++) {
+            level_widths[level] = (level_widths[level - 1] + 1) / 2;
+            level_heights[level] = (level_heights[level - 1] + 1) / 2;
+        }
+        this.reference = allocatePyramid();
+        this.frame = allocatePyramid();
+        this.vectors = new int[tiles_across * tiles_down * 2];
+        this.next_vectors = new int[tiles_across * tiles_down * 2];
+        this.motion = new int[tiles_across * tiles_down * 2];
+    }
+
+    private ShortBuffer[] allocatePyramid() {
+        ShortBuffer[] pyramid = new ShortBuffer[level_count];
+        for (int level = 0; level < level_count; level++) {
+            pyramid[level] = ByteBuffer.allocateDirect(level_widths[level] * level_heights[level] * 2)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+        return pyramid;
+    }
+
+    public int getTileSize() {return tile_size;}
+
+    public int getTilesAcross() {return tiles_across;}
+
+    public int getTilesDown() {return tiles_down;}
+
+    public int getLevelCount() {return level_count;}
+
+    // the next frame aligned becomes the reference
+    public synchronized void reset() {
+        has_reference = false;
+    }
+
+    /*
+    aligns a frame whose 16 bit little-endian samples start at the plane buffer's position, rows
+    row_stride bytes apart, returns the motion of every tile in Bayer pixels as x, y pairs in tile
+    order, where a tile of this frame is found, relative to the same tile of the reference
+
+    the first frame after reset() becomes the reference and gets all zero motion, the returned array
+    is reused by the next call
+     */
+    public synchronized int[] align(ByteBuffer plane, int row_stride) {
+        ShortBuffer samples = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        if (!has_reference) {
+            buildPyramid(reference, samples, row_stride / 2);
+            has_reference = true;
+            Arrays.fill(motion, 0);
+            return motion;
+        }
+        buildPyramid(frame, samples, row_stride / 2);
+        Arrays.fill(vectors, 0);
+        for (int level = level_count - 1; level >= 0; level--) {
+            fork_join_pool.invoke(new StepTask(STEP_SEARCH, level, null, null, 0, 0, tiles_down));
+            int[] searched = next_vectors;
+            next_vectors = vectors;
+            vectors = searched;
+        }
+        for (int i = 0; i < motion.length; i++) motion[i] = vectors[i] * 2;
+        return motion;
+    }
+
+    private void buildPyramid(ShortBuffer[] pyramid, ShortBuffer samples, int stride) {
+        fork_join_pool.invoke(new StepTask(STEP_LUMINANCE, 0, pyramid, samples, stride, 0, level_heights[0]));
+        for (int level = 1; level < level_count; level++) {
+            fork_join_pool.invoke(new StepTask(STEP_DOWNSAMPLE, level, pyramid, null, 0, 0, level_heights[level]));
+        }
+    }
+
+    // one pyramid step or one level of the search over a band of rows (pyramid rows, or tile rows for the search)
+    private class StepTask extends RecursiveAction {
+        private final int step;
+        private final int level;
+        private final ShortBuffer[] pyramid;
+        private final ShortBuffer samples;
+        private final int stride;
+        private final int first_row;
+        private final int end_row;
+
+        StepTask(int step, int level, ShortBuffer[] pyramid, ShortBuffer samples, int stride, int first_row, int end_row) {
+            this.step = step;
+            this.level = level;
+            this.pyramid = pyramid;
+            this.samples = samples;
+            this.stride = stride;
+            this.first_row = first_row;
+            this.end_row = end_row;
+        }
+
+        @Override
+        protected void compute() {
+            int rows_per_task = step == STEP_SEARCH ? 1 : ROWS_PER_TASK;
+            if (end_row - first_row <= rows_per_task) {
+                if (step == STEP_LUMINANCE) {
+                    luminanceRows(pyramid[0], samples.duplicate(), stride, first_row, end_row);
+                }
+                else if (step == STEP_DOWNSAMPLE) {
+                    downsampleRows(pyramid[level - 1], pyramid[level], level, first_row, end_row);
+                }
+                else {
+                    for (int tile_y = first_row; tile_y < end_row; tile_y++) {
+                        for (int tile_x = 0; tile_x < tiles_across; tile_x++) searchTile(level, tile_x, tile_y);
+                    }
+                }
+                return;
+            }
+            int middle = (first_row + end_row) >>> 1;
+            invokeAll(new StepTask(step, level, pyramid, samples, stride, first_row, middle),
+                    new StepTask(step, level, pyramid, samples, stride, middle, end_row));
+        }
+    }
+
+    // mean of each 2x2 Bayer quad, the same weight for every colour
+    private void luminanceRows(ShortBuffer luminance, ShortBuffer view, int stride, int first_row, int end_row) {
+        int level_width = level_widths[0];
+        short[] top = new short[level_width * 2];
+        short[] bottom = new short[level_width * 2];
+        for (int y = first_row; y < end_row; y++) {
+            view.position(y * 2 * stride);
+            view.get(top, 0, top.length);
+            view.position((y * 2 + 1) * stride);
+            view.get(bottom, 0, bottom.length);
+            int base = y * level_width;
+            for (int x = 0; x < level_width; x++) {
+                luminance.put(base + x, (short) (((top[x * 2] & 0xffff) + (top[x * 2 + 1] & 0xffff)
+                        + (bottom[x * 2] & 0xffff) + (bottom[x * 2 + 1] & 0xffff) + 2) >> 2));
+            }
+        }
+    }
+
+    // 1 2 1 Gaussian in both directions then every other pixel, edges clamped
+    private void downsampleRows(ShortBuffer source, ShortBuffer destination, int level, int first_row, int end_row) {
+        int source_width = level_widths[level - 1];
+        int source_height = level_heights[level - 1];
+        int level_width = level_widths[level];
+        for (int y = first_row; y < end_row; y++) {
+            int row_above = Math.max(y * 2 - 1, 0) * source_width;
+            int row_centre = Math.min(y * 2, source_height - 1) * source_width;
+            int row_below = Math.min(y * 2 + 1, source_height - 1) * source_width;
+            for (int x = 0; x < level_width; x++) {
+                int left = Math.max(x * 2 - 1, 0);
+                int centre = Math.min(x * 2, source_width - 1);
+                int right = Math.min(x * 2 + 1, source_width - 1);
+                int above = sample(source, row_above + left) + 2 * sample(source, row_above + centre)
+                        + sample(source, row_above + right);
+                int middle = sample(source, row_centre + left) + 2 * sample(source, row_centre + centre)
+                        + sample(source, row_centre + right);
+                int below = sample(source, row_below + left) + 2 * sample(source, row_below + centre)
+                        + sample(source, row_below + right);
+                destination.put(y * level_width + x, (short) ((above + 2 * middle + below + 8) >> 4));
+            }
+        }
+    }
+
+    // levels hold unsigned 16 bit luminance
+    private static int sample(ShortBuffer level, int index) {
+        return level.get(index) & 0xffff;
+    }
+
+    /*
+    full search on the coarsest level, on finer levels the best of the tile's and its four neighbours'
+    vectors from the level above is refined, so a tile whose coarse window was too flat to match picks
+    up the motion of the tiles around it
+     */
+    private void searchTile(int level, int tile_x, int tile_y) {
+        int tile = tile_y * tiles_across + tile_x;
+        int level_width = level_widths[level];
+        int level_height = level_heights[level];
+        int half = Math.max(MIN_WINDOW_HALF, (tile_size / 2 >> level) / 2);
+        int centre_x = Math.min((tile_x * tile_size + tile_size / 2) / 2 >> level, level_width - 1);
+        int centre_y = Math.min((tile_y * tile_size + tile_size / 2) / 2 >> level, level_height - 1);
+        int x0 = Math.max(centre_x - half, 0);
+        int x1 = Math.min(centre_x + half, level_width);
+        int y0 = Math.max(centre_y - half, 0);
+        int y1 = Math.min(centre_y + half, level_height);
+
+        boolean coarsest = level == level_count - 1;
+        int radius = coarsest ? search_radius : REFINE_RADIUS;
+        ShortBuffer reference_level = reference[level];
+        ShortBuffer frame_level = frame[level];
+
+        // the tile's own guess is tried first so ties keep it
+        int guess_x = coarsest ? 0 : vectors[tile * 2] * 2;
+        int guess_y = coarsest ? 0 : vectors[tile * 2 + 1] * 2;
+        long best = difference(reference_level, frame_level, level_width, level_height, x0, x1, y0, y1,
+                guess_x, guess_y, Long.MAX_VALUE);
+        if (!coarsest) {
+            for (int neighbour = 0; neighbour < 4; neighbour++) {
+                int neighbour_x = tile_x + (neighbour == 0 ? -1 : neighbour == 1 ? 1 : 0);
+                int neighbour_y = tile_y + (neighbour == 2 ? -1 : neighbour == 3 ? 1 : 0);
+                if (neighbour_x < 0 || neighbour_x >= tiles_across || neighbour_y < 0 || neighbour_y >= tiles_down) continue;
+                int other = neighbour_y * tiles_across + neighbour_x;
+                int candidate_x = vectors[other * 2] * 2;
+                int candidate_y = vectors[other * 2 + 1] * 2;
+                long cost = difference(reference_level, frame_level, level_width, level_height, x0, x1, y0, y1,
+                        candidate_x, candidate_y, best);
+                if (cost < best) {
+                    best = cost;
+                    guess_x = candidate_x;
+                    guess_y = candidate_y;
+                }
+            }
+        }
+        int best_x = guess_x;
+        int best_y = guess_y;
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                if (dx == 0 && dy == 0) continue;
+                long cost = difference(reference_level, frame_level, level_width, level_height, x0, x1, y0, y1,
+                        guess_x + dx, guess_y + dy, best);
+                if (cost < best) {
+                    best = cost;
+                    best_x = guess_x + dx;
+                    best_y = guess_y + dy;
+                }
+            }
+        }
+        next_vectors[tile * 2] = best_x;
+        next_vectors[tile * 2 + 1] = best_y;
+    }
+
+    /*
+    mean absolute difference (times COST_SCALE) over the part of the window that stays inside the frame
+    once moved, candidates that push most of the window out are not considered, clamped edge pixels
+    would otherwise make flat borders look like a match, gives up once the cost passes limit
+     */
+    private static long difference(ShortBuffer reference_level, ShortBuffer frame_level, int level_width, int level_height,
+                                   int x0, int x1, int y0, int y1, int dx, int dy, long limit) {
+        int overlap_x0 = Math.max(x0, -dx);
+        int overlap_x1 = Math.min(x1, level_width - dx);
+        int overlap_y0 = Math.max(y0, -dy);
+        int overlap_y1 = Math.min(y1, level_height - dy);
+        long count = (long) Math.max(overlap_x1 - overlap_x0, 0) * Math.max(overlap_y1 - overlap_y0, 0);
+        if (count == 0 || count * MIN_OVERLAP_FRACTION < (long) (x1 - x0) * (y1 - y0)) return Long.MAX_VALUE;
+        long sum_limit = limit == Long.MAX_VALUE ? Long.MAX_VALUE : limit * count / COST_SCALE + 1;
+        long sum = 0;
+        for (int y = overlap_y0; y < overlap_y1; y++) {
+            int base = y * level_width;
+            int frame_base = (y + dy) * level_width + dx;
+            for (int x = overlap_x0; x < overlap_x1; x++) {
+                sum += Math.abs(sample(reference_level, base + x) - sample(frame_level, frame_base + x));
+            }
+            if (sum >= sum_limit) return Long.MAX_VALUE;
+        }
+        return sum * COST_SCALE / count;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// fixed set of preallocated direct buffers, each big enough for one tightly packed RAW frame, so
+// frames can be copied out of the image reader and the Image released before the slow disk write
+public class FrameBufferPool {
+
+    private final int buffer_count;
+    private final int buffer_bytes;
+    private final ArrayBlockingQueue<ByteBuffer> free_buffers;
+
+    // sizing statistics
+    private final AtomicInteger in_use = new AtomicInteger();
+    private final AtomicInteger high_water = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong exhaustions = new AtomicLong();
+
+    public FrameBufferPool(int buffer_count, int buffer_bytes) {
+        this.buffer_count = buffer_count;
+        this.buffer_bytes = buffer_bytes;
+        this.free_buffers = new ArrayBlockingQueue<>(buffer_count);
+        for (int i = 0; i < buffer_count; i++) {
+            free_buffers.add(ByteBuffer.allocateDirect(buffer_bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    // pool for 16 bit RAW frames of the given dimensions
+    public static FrameBufferPool forRawSize(int width, int height, int buffer_count) {
+        return new FrameBufferPool(buffer_count, width * height * 2);
+    }
+
+    // returns a cleared buffer, or null (counted as an exhaustion) if every buffer is in use
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free_buffers.poll();
+        return onAcquired(buffer);
+    }
+
+    // waits up to timeout_ms for a buffer to come back, null on timeout
+    public ByteBuffer acquire(long timeout_ms) throws InterruptedException {
+        ByteBuffer buffer = free_buffers.poll(timeout_ms, TimeUnit.MILLISECONDS);
+        return onAcquired(buffer);
+    }
+
+    private ByteBuffer onAcquired(ByteBuffer buffer) {
+        if (buffer == null) {
+            exhaustions.incrementAndGet();
+            return null;
+        }
+        acquisitions.incrementAndGet();
+        int used = in_use.incrementAndGet();
+        int high = high_water.get();
+        while (used > high && !high_water.compareAndSet(high, used)) high = high_water.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (buffer.capacity() != buffer_bytes || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer does not belong to this pool");
+        }
+        in_use.decrementAndGet();
+        free_buffers.offer(buffer);
+    }
+
+    public int getBufferCount() {return buffer_count;}
+
+    public int getBufferBytes() {return buffer_bytes;}
+
+    public int getInUse() {return in_use.get();}
+
+    // most buffers ever in use at once, the pool can be shrunk down to this
+    public int getHighWater() {return high_water.get();}
+
+    public long getAcquisitions() {return acquisitions.get();}
+
+    // acquires that found the pool empty, the pool should grow if this is not 0
+    public long getExhaustions() {return exhaustions.get();}
+
+    @Override
+    public String toString() {
+        return "FrameBufferPool{buffers=" + buffer_count + ", bytes=" + buffer_bytes + ", in use=" + in_use.get()
+                + ", high water=" + high_water.get() + ", acquisitions=" + acquisitions.get()
+                + ", exhaustions=" + exhaustions.get() + "}";
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.rawstreamer;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+pairs the two halves of a frame that arrive on different callbacks (an Image from the image reader
+and the CaptureResult from onCaptureCompleted) by sensor timestamp
+
+halves waiting for their partner are parked in a fixed-capacity open-addressing table of primitive
+long keys, so matching never boxes, allocates or takes a lock, a per-slot state is the only thing
+threads race on, whoever moves a slot out of a HOLDS_* state owns it until it is set back to FREE
+ */
+public class FrameMatcher<I, R> {
+
+    public interface Listener<I, R> {
+        // both halves of a frame arrived
+        void onMatched(long timestamp, I image, R result);
+
+        // an image whose result never arrived within the timeout, or that found no free slot
+        void onImageOrphaned(long timestamp, I image);
+
+        // a result whose image never arrived within the timeout, or that found no free slot
+        void onResultOrphaned(long timestamp, R result);
+    }
+
+    // slot states
+    private static final int FREE = 0;
+    private static final int CLAIMING = 1;
+    private static final int HOLDS_IMAGE = 2;
+    private static final int HOLDS_RESULT = 3;
+    private static final int BUSY = 4;
+
+    private final int capacity;
+    private final int mask;
+    private final int hash_shift;
+    private final AtomicIntegerArray states;
+    private final AtomicLongArray keys;
+    private final AtomicLongArray arrival_ns;
+    // only touched by the owner of a slot, published through the state array
+    private final Object[] halves;
+
+    private final long orphan_timeout_ns;
+    private final Listener<I, R> listener;
+    private volatile long last_sweep_ns;
+
+    private final AtomicLong frames_matched = new AtomicLong();
+    private final AtomicLong halves_orphaned = new AtomicLong();
+
+    // capacity is rounded up to a power of two and bounds how many unmatched halves can wait at once
+    public FrameMatcher(int capacity, long orphan_timeout_ms, Listener<I, R> listener) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(2, capacity) - 1);
+        this.capacity = 1 << bits;
+        this.mask = this.capacity - 1;
+        this.hash_shift = 64 - bits;
+        this.states = new AtomicIntegerArray(this.capacity);
+        this.keys = new AtomicLongArray(this.capacity);
+        this.arrival_ns = new AtomicLongArray(this.capacity);
+        this.halves = new Object[this.capacity];
+        this.orphan_timeout_ns = orphan_timeout_ms * 1000000L;
+        this.listener = listener;
+    }
+
+    // called from the image reader's listener with Image.getTimestamp()
+    public void offerImage(long timestamp, I image) {
+        offer(timestamp, image, HOLDS_IMAGE, HOLDS_RESULT);
+    }
+
+    // called from onCaptureCompleted with the result's SENSOR_TIMESTAMP
+    public void offerResult(long timestamp, R result) {
+        offer(timestamp, result, HOLDS_RESULT, HOLDS_IMAGE);
+    }
+
+    private void offer(long timestamp, Object half, int holds, int partner_holds) {
+        long now = System.nanoTime();
+        int home = home(timestamp);
+        // common case, the partner is already waiting
+        if (takePartner(timestamp, half, holds, partner_holds, home)) return;
+
+        int slot = claimSlot(home);
+        if (slot < 0) {
+            evict(now, orphan_timeout_ns);
+            slot = claimSlot(home);
+            if (slot < 0) {
+                // more halves in flight than the table was sized for
+                emitOrphan(timestamp, half, holds);
+                return;
+            }
+        }
+        keys.set(slot, timestamp);
+        arrival_ns.set(slot, now);
+        halves[slot] = half;
+        states.set(slot, holds);
+
+        // the partner may have missed us while we were parking and parked itself too
+        resolveRace(slot, timestamp, holds, partner_holds, home);
+
+        if (now - last_sweep_ns > orphan_timeout_ns / 4) {
+            last_sweep_ns = now;
+            evict(now, orphan_timeout_ns);
+        }
+    }
+
+    // hash the sensor timestamp to the first slot of its probe sequence
+    private int home(long timestamp) {
+        return (int) ((timestamp * 0x9E3779B97F4A7C15L) >>> hash_shift);
+    }
+
+    // looks for the partner half and emits the pair, returns false if the partner isn't parked yet
+    private boolean takePartner(long timestamp, Object half, int holds, int partner_holds, int home) {
+        for (int probe = 0; probe < capacity; probe++) {
+            int i = (home + probe) & mask;
+            if (states.get(i) != partner_holds || keys.get(i) != timestamp) continue;
+            if (!states.compareAndSet(i, partner_holds, BUSY)) continue;
+            if (keys.get(i) != timestamp) {
+                // slot was recycled for another frame between the key check and the CAS
+                states.set(i, partner_holds);
+                continue;
+            }
+            Object partner = releaseSlot(i);
+            emitMatch(timestamp, half, partner, holds);
+            return true;
+        }
+        return false;
+    }
+
+    private int claimSlot(int home) {
+        for (int probe = 0; probe < capacity; probe++) {
+            int i = (home + probe) & mask;
+            if (states.get(i) == FREE && states.compareAndSet(i, FREE, CLAIMING)) return i;
+        }
+        return -1;
+    }
+
+    // both halves parked in different slots, the thread that locks the lower slot first merges them
+    // so the two racing threads can never each lock one slot and wait on the other
+    private void resolveRace(int slot, long timestamp, int holds, int partner_holds, int home) {
+        for (int probe = 0; probe < capacity; probe++) {
+            int i = (home + probe) & mask;
+            if (i == slot || states.get(i) != partner_holds || keys.get(i) != timestamp) continue;
+            int first = Math.min(slot, i);
+            int second = Math.max(slot, i);
+            int first_holds = first == slot ? holds : partner_holds;
+            int second_holds = second == slot ? holds : partner_holds;
+            // losing here means the partner (or an eviction) already owns the pair
+            if (!states.compareAndSet(first, first_holds, BUSY)) return;
+            if (!states.compareAndSet(second, second_holds, BUSY)) {
+                states.set(first, first_holds);
+                return;
+            }
+            if (keys.get(first) != timestamp || keys.get(second) != timestamp) {
+                states.set(first, first_holds);
+                states.set(second, second_holds);
+                return;
+            }
+            Object mine = releaseSlot(slot);
+            Object partner = releaseSlot(i);
+            emitMatch(timestamp, mine, partner, holds);
+            return;
+        }
+    }
+
+    // evicts every half that has waited longer than timeout_ns
+    private void evict(long now, long timeout_ns) {
+        for (int i = 0; i < capacity; i++) {
+            int state = states.get(i);
+            if (state != HOLDS_IMAGE && state != HOLDS_RESULT) continue;
+            if (now - arrival_ns.get(i) <= timeout_ns) continue;
+            if (!states.compareAndSet(i, state, BUSY)) continue;
+            if (now - arrival_ns.get(i) <= timeout_ns) {
+                // recycled by a newer frame after the age check
+                states.set(i, state);
+                continue;
+            }
+            long timestamp = keys.get(i);
+            emitOrphan(timestamp, releaseSlot(i), state);
+        }
+    }
+
+    // hands every half older than the orphan timeout to the orphan callbacks, offer() only sweeps
+    // while halves keep arriving, so whoever waits on what an orphan holds calls this instead
+    public void evictExpired() {
+        evict(System.nanoTime(), orphan_timeout_ns);
+    }
+
+    // hands every parked half to the orphan callbacks, used when the pipeline shuts down
+    public void drain() {
+        evict(System.nanoTime(), -1);
+    }
+
+    // frees a BUSY slot owned by the caller and returns the half it held
+    private Object releaseSlot(int i) {
+        Object half = halves[i];
+        halves[i] = null;
+        states.set(i, FREE);
+        return half;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emitMatch(long timestamp, Object half, Object partner, int holds) {
+        frames_matched.incrementAndGet();
+        if (holds == HOLDS_IMAGE) {
+            listener.onMatched(timestamp, (I) half, (R) partner);
+        }
+        else {
+            listener.onMatched(timestamp, (I) partner, (R) half);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emitOrphan(long timestamp, Object half, int holds) {
+        halves_orphaned.incrementAndGet();
+        if (holds == HOLDS_IMAGE) {
+            listener.onImageOrphaned(timestamp, (I) half);
+        }
+        else {
+            listener.onResultOrphaned(timestamp, (R) half);
+        }
+    }
+
+    public long getFramesMatched() {return frames_matched.get();}
+
+    public long getHalvesOrphaned() {return halves_orphaned.get();}
+
+    // number of halves currently waiting for their partner
+    public int getPending() {
+        int pending = 0;
+        for (int i = 0; i < capacity; i++) {
+            int state = states.get(i);
+            if (state == HOLDS_IMAGE || state == HOLDS_RESULT) pending++;
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.rawstreamer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+frame timing for the capture callbacks, per stream it keeps the interval between consecutive
+sensor timestamps, the latency from the sensor timestamp to onCaptureCompleted, and counts of
+completed, failed and buffer lost frames, for the session as a whole it counts sequence gaps, frame
+numbers that never got an onCaptureStarted, which includes requests dropped when the repeating
+request is replaced, everything is lock-free so the callback thread records each frame while the
+UI thread builds the overlay, the summary is built with StringBuilder appends only
+ */
+public class FrameMetrics {
+    public static final int STREAM_PREVIEW = 0;
+    public static final int STREAM_RAW = 1;
+    private static final String[] STREAM_NAMES = {"preview", "raw"};
+
+    private static class StreamMetrics {
+        private final FrameHistogram interval = new FrameHistogram();
+        private final FrameHistogram latency = new FrameHistogram();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong buffers_lost = new AtomicLong();
+        // only touched by the callback thread
+        private long last_timestamp = -1;
+    }
+
+    private final StreamMetrics[] streams = {new StreamMetrics(), new StreamMetrics()};
+    private final AtomicLong sequence_gaps = new AtomicLong();
+    private final AtomicLong frames_skipped = new AtomicLong();
+    private long last_frame_number = -1;
+
+    // from onCaptureStarted, timestamp is the sensor timestamp of the frame's start of exposure
+    public void captureStarted(int stream, long frame_number, long timestamp) {
+        StreamMetrics metrics = streams[stream];
+        if (metrics.last_timestamp >= 0 && timestamp > metrics.last_timestamp) {
+            metrics.interval.record(timestamp - metrics.last_timestamp);
+        }
+        metrics.last_timestamp = timestamp;
+        // frame numbers are shared by every stream of the session
+        if (last_frame_number >= 0 && frame_number > last_frame_number + 1) {
+            sequence_gaps.incrementAndGet();
+            frames_skipped.addAndGet(frame_number - last_frame_number - 1);
+        }
+        if (frame_number > last_frame_number) last_frame_number = frame_number;
+    }
+
+    // from onCaptureCompleted, now in the sensor timestamp's clock
+    public void captureCompleted(int stream, long timestamp, long now) {
+        StreamMetrics metrics = streams[stream];
+        metrics.completed.incrementAndGet();
+        if (timestamp > 0 && now >= timestamp) metrics.latency.record(now - timestamp);
+    }
+
+    public void captureFailed(int stream) {streams[stream].failed.incrementAndGet();}
+
+    public void bufferLost(int stream) {streams[stream].buffers_lost.incrementAndGet();}
+
+    public long getCompleted(int stream) {return streams[stream].completed.get();}
+
+    public long getFailed(int stream) {return streams[stream].failed.get();}
+
+    public long getBuffersLost(int stream) {return streams[stream].buffers_lost.get();}
+
+    public FrameHistogram getInterval(int stream) {return streams[stream].interval;}
+
+    public FrameHistogram getLatency(int stream) {return streams[stream].latency;}
+
+    public long getSequenceGaps() {return sequence_gaps.get();}
+
+    public long getFramesSkipped() {return frames_skipped.get();}
+
+    // call on the callback thread, between sessions
+    public void reset() {
+        for (StreamMetrics metrics : streams) {
+            metrics.interval.reset();
+            metrics.latency.reset();
+            metrics.completed.set(0);
+            metrics.failed.set(0);
+            metrics.buffers_lost.set(0);
+            metrics.last_timestamp = -1;
+        }
+        sequence_gaps.set(0);
+        frames_skipped.set(0);
+        last_frame_number = -1;
+    }
+
+    // a line per stream that has seen frames, then the gaps, times in ms
+    public void appendSummary(StringBuilder out) {
+        for (int stream = 0; stream < streams.length; stream++) {
+            StreamMetrics metrics = streams[stream];
+            if (metrics.completed.get() == 0 && metrics.failed.get() == 0) continue;
+            out.append(STREAM_NAMES[stream]).append(' ');
+            long mean_interval = metrics.interval.getMean();
+            // hundredths of a frame per second
+            long fps = mean_interval == 0 ? 0 : 100000000000L / mean_interval;
+            out.append(fps / 100).append('.').append(fps / 10 % 10).append(fps % 10).append(" fps");
+            out.append("\n  interval");
+            appendPercentiles(out, metrics.interval);
+            out.append("\n  latency");
+            appendPercentiles(out, metrics.latency);
+            out.append("\n  frames ").append(metrics.completed.get())
+                    .append(" failed ").append(metrics.failed.get())
+                    .append(" lost ").append(metrics.buffers_lost.get()).append('\n');
+        }
+        out.append("gaps ").append(sequence_gaps.get()).append(" skipped ").append(frames_skipped.get());
+    }
+
+    private static void appendPercentiles(StringBuilder out, FrameHistogram histogram) {
+        out.append(" p50 ");
+        appendMillis(out, histogram.getPercentile(0.5));
+        out.append(" p99 ");
+        appendMillis(out, histogram.getPercentile(0.99));
+        out.append(" max ");
+        appendMillis(out, histogram.getMax());
+    }
+
+    // ns as ms to a tenth
+    static void appendMillis(StringBuilder out, long ns) {
+        long tenths = (ns + 50000) / 100000;
+        out.append(tenths / 10).append('.').append(tenths % 10);
+    }
+}
@@ -1,32 +1,320 @@
 package com.example.rawstreamer;
 
 import android.app.Activity;
-import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+grid of the raw images FileManager saves, thumbnails come from ThumbnailCache, binding a cell only
+looks at the memory cache and anything else is loaded through ThumbnailLoader and handed back to
+the main thread, the scroll listener keeps the loader's window and velocity current so it decodes
+visible cells first, prefetches in the direction of travel and drops what scrolled away, once the
+grid settles the visible cells are upgraded to a decode that fills the cell, tapping a cell opens
+it in ViewerFragment
+ */
 public class GalleryFragment extends Fragment {
-    private Intent intent;
-    private static final int REQUEST_OPEN_RESULT_CODE = 0;
+    private static final String TAG = "GalleryFragment";
+    private static final int COLUMNS = 4;
+    private static final int LOAD_THREADS = 2;
+    // weight of the newest scroll sample in the smoothed velocity
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
     private final Activity main_activity;
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+    private FileManager file_manager;
+    // opened on the list executor before the first listing is shown, closed with the view, the
+    // fragment is kept across tab switches so every view opens its own
+    private volatile ThumbnailCache thumbnail_cache;
+    private ExecutorService list_executor;
+    private ThumbnailLoader thumbnail_loader;
+    private RecyclerView grid;
+    private GridLayoutManager layout_manager;
+    private GalleryAdapter adapter;
+    private int cell_size;
+    private int upgrade_size;
+    // cells per second, positive scrolling down
+    private float velocity;
+    private long last_scroll_ms;
+    private int prefetched_start;
+    private int prefetched_end;
 
     public GalleryFragment(Activity main_activity) {
         this.main_activity = main_activity;
-        intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
-        intent.addCategory(Intent.CATEGORY_OPENABLE);
-        intent.setType("image/*");
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
-        this.main_activity.startActivityForResult(intent, REQUEST_OPEN_RESULT_CODE);
-        // Inflate the layout for this fragment
-        return inflater.inflate(R.layout.fragment_gallery, container, false);
+        Log.d(TAG, "GalleryFragment onCreateView");
+        View gallery_fragment_view = inflater.inflate(R.layout.fragment_gallery, container, false);
+        if (file_manager == null) file_manager = new FileManager();
+        list_executor = Executors.newSingleThreadExecutor();
+        thumbnail_loader = new ThumbnailLoader(LOAD_THREADS);
+        grid = gallery_fragment_view.findViewById(R.id.gallery_grid);
+        layout_manager = new GridLayoutManager(main_activity, COLUMNS);
+        grid.setLayoutManager(layout_manager);
+        grid.setHasFixedSize(true);
+        adapter = new GalleryAdapter();
+        grid.setAdapter(adapter);
+        grid.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recycler_view, int dx, int dy) {
+                long now = SystemClock.uptimeMillis();
+                long elapsed = Math.max(1, now - last_scroll_ms);
+                last_scroll_ms = now;
+                if (cell_size > 0 && elapsed < 100) {
+                    float sample = dy * COLUMNS * 1000f / (cell_size * elapsed);
+                    velocity += (sample - velocity) * VELOCITY_SMOOTHING;
+                }
+                updateWindow();
+            }
+
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView recycler_view, int state) {
+                if (state == RecyclerView.SCROLL_STATE_IDLE) {
+                    velocity = 0;
+                    updateWindow();
+                    upgradeVisible();
+                }
+                else {
+                    cancelUpgrades();
+                }
+            }
+        });
+        listFiles();
+        return gallery_fragment_view;
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        list_executor.shutdownNow();
+        thumbnail_loader.shutdown();
+        ThumbnailCache cache;
+        synchronized (this) {
+            cache = thumbnail_cache;
+            thumbnail_cache = null;
+        }
+        if (cache != null) cache.close();
+    }
+
+    // opens and maps the pack on the view's list executor, a cache opened after its view is gone, or
+    // after another view's listing already opened one, is closed again
+    private void openThumbnailCache(ExecutorService executor) {
+        if (thumbnail_cache != null) return;
+        // an eighth of the heap holds roughly 500 thumbnails on a 256MB heap
+        int memory_bytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        ThumbnailCache cache = new ThumbnailCache(new File(main_activity.getCacheDir(), "thumbnails.pack"), memory_bytes,
+                ForkJoinPool.commonPool());
+        synchronized (this) {
+            if (!executor.isShutdown() && thumbnail_cache == null) {
+                thumbnail_cache = cache;
+                return;
+            }
+        }
+        cache.close();
+    }
+
+    // tells the loader what is on screen and queues thumbnails the scroll is heading towards
+    private void updateWindow() {
+        int first = layout_manager.findFirstVisibleItemPosition();
+        int last = layout_manager.findLastVisibleItemPosition();
+        ThumbnailCache cache = thumbnail_cache;
+        if (first < 0 || last < first || cache == null) return;
+        thumbnail_loader.setWindow(first, last, velocity);
+        // cells bound while their position was still outside the window had their load dropped
+        for (int position = first; position <= last; position++) {
+            RecyclerView.ViewHolder view_holder = grid.findViewHolderForAdapterPosition(position);
+            if (view_holder instanceof ThumbnailHolder && !((ThumbnailHolder) view_holder).has_bitmap) loadThumbnail(position);
+        }
+        int start = thumbnail_loader.getPrefetchStart();
+        int end = Math.min(thumbnail_loader.getPrefetchEnd(), adapter.getItemCount());
+        // only positions that weren't in the last prefetch range, the rest are queued or loaded already
+        for (int position = start; position < end; position++) {
+            if (position >= prefetched_start && position < prefetched_end) continue;
+            if (cache.getCached(adapter.key(position)) == null) loadThumbnail(position);
+        }
+        prefetched_start = start;
+        prefetched_end = end;
+    }
+
+    private void loadThumbnail(int position) {
+        File file = adapter.files[position];
+        long length = adapter.lengths[position];
+        long modified = adapter.modified[position];
+        ThumbnailCache cache = thumbnail_cache;
+        if (cache == null) return;
+        thumbnail_loader.submit(position, ThumbnailLoader.LEVEL_THUMBNAIL, () -> {
+            Bitmap loaded = cache.load(file, length, modified);
+            if (loaded != null) main_handler.post(() -> deliver(position, ThumbnailCache.key(file, length, modified), loaded, false));
+        });
+    }
+
+    private void loadUpgrade(int position) {
+        File file = adapter.files[position];
+        long length = adapter.lengths[position];
+        long modified = adapter.modified[position];
+        int size = upgrade_size;
+        ThumbnailCache cache = thumbnail_cache;
+        if (cache == null) return;
+        thumbnail_loader.submit(position, ThumbnailLoader.LEVEL_UPGRADE, () -> {
+            Bitmap loaded = cache.loadUpgrade(file, length, modified, size);
+            if (loaded != null) main_handler.post(() -> deliver(position, ThumbnailCache.key(file, length, modified), loaded, true));
+        });
+    }
+
+    // shows a finished decode if its cell is still bound to the same file, and an upgrade only at rest
+    private void deliver(int position, String key, Bitmap bitmap, boolean upgrade) {
+        RecyclerView.ViewHolder view_holder = grid.findViewHolderForAdapterPosition(position);
+        if (!(view_holder instanceof ThumbnailHolder)) return;
+        ThumbnailHolder holder = (ThumbnailHolder) view_holder;
+        if (!key.equals(holder.key) || (holder.upgraded && !upgrade)) return;
+        if (upgrade && grid.getScrollState() != RecyclerView.SCROLL_STATE_IDLE) return;
+        holder.image.setImageBitmap(bitmap);
+        holder.has_bitmap = true;
+        holder.upgraded = upgrade;
+    }
+
+    private boolean upgradesWanted() {
+        return upgrade_size > ThumbnailCache.THUMBNAIL_SIZE;
+    }
+
+    private void upgradeVisible() {
+        if (!upgradesWanted()) return;
+        int first = layout_manager.findFirstVisibleItemPosition();
+        int last = layout_manager.findLastVisibleItemPosition();
+        for (int position = Math.max(0, first); position <= last; position++) loadUpgrade(position);
+    }
+
+    private void cancelUpgrades() {
+        int first = layout_manager.findFirstVisibleItemPosition();
+        int last = layout_manager.findLastVisibleItemPosition();
+        for (int position = Math.max(0, first); position <= last; position++) {
+            thumbnail_loader.cancel(position, ThumbnailLoader.LEVEL_UPGRADE);
+        }
+    }
+
+    private void openViewer(File file) {
+        getParentFragmentManager().beginTransaction()
+                .replace(R.id.fragment_frame, new ViewerFragment(main_activity, file))
+                .addToBackStack(null)
+                .commit();
+    }
+
+    // lists and stats the gallery off the main thread, a few thousand stat calls take a while, cells
+    // are only bound once the list (and so the thumbnail cache) is there
+    private void listFiles() {
+        ExecutorService executor = list_executor;
+        executor.execute(() -> {
+            openThumbnailCache(executor);
+            File[] files = file_manager.listRawFiles();
+            long[] lengths = new long[files.length];
+            long[] modified = new long[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lengths[i] = files[i].length();
+                modified[i] = files[i].lastModified();
+            }
+            Log.d(TAG, "Listed " + files.length + " raw images");
+            main_handler.post(() -> {
+                if (!executor.isShutdown()) adapter.setFiles(files, lengths, modified);
+            });
+        });
+    }
+
+    private static class ThumbnailHolder extends RecyclerView.ViewHolder {
+        private final ImageView image;
+        private String key;
+        private boolean has_bitmap;
+        private boolean upgraded;
+
+        ThumbnailHolder(ImageView image) {
+            super(image);
+            this.image = image;
+        }
+    }
+
+    private class GalleryAdapter extends RecyclerView.Adapter<ThumbnailHolder> {
+        private File[] files = new File[0];
+        private long[] lengths = new long[0];
+        private long[] modified = new long[0];
+
+        void setFiles(File[] files, long[] lengths, long[] modified) {
+            this.files = files;
+            this.lengths = lengths;
+            this.modified = modified;
+            thumbnail_loader.cancelAll();
+            prefetched_start = 0;
+            prefetched_end = 0;
+            notifyDataSetChanged();
+        }
+
+        String key(int position) {
+            return ThumbnailCache.key(files[position], lengths[position], modified[position]);
+        }
+
+        @Override
+        public int getItemCount() {
+            return files.length;
+        }
+
+        @NonNull
+        @Override
+        public ThumbnailHolder onCreateViewHolder(@NonNull ViewGroup parent, int view_type) {
+            ImageView image = (ImageView) LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.item_thumbnail, parent, false);
+            // square cells, so binding never changes the layout
+            cell_size = parent.getWidth() / COLUMNS;
+            upgrade_size = Math.min(cell_size, DngWriter.DEFAULT_PREVIEW_SIZE);
+            image.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, cell_size));
+            ThumbnailHolder holder = new ThumbnailHolder(image);
+            image.setOnClickListener(view -> {
+                int position = holder.getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) openViewer(files[position]);
+            });
+            return holder;
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull ThumbnailHolder holder, int position) {
+            String key = key(position);
+            holder.key = key;
+            ThumbnailCache cache = thumbnail_cache;
+            Bitmap bitmap = cache != null ? cache.getCachedUpgrade(key) : null;
+            holder.upgraded = bitmap != null;
+            if (bitmap == null && cache != null) bitmap = cache.getCached(key);
+            holder.image.setImageBitmap(bitmap);
+            holder.has_bitmap = bitmap != null;
+            if (bitmap == null) loadThumbnail(position);
+            if (!holder.upgraded && upgradesWanted() && grid.getScrollState() == RecyclerView.SCROLL_STATE_IDLE) {
+                loadUpgrade(position);
+            }
+        }
+
+        @Override
+        public void onViewRecycled(@NonNull ThumbnailHolder holder) {
+            holder.key = null;
+            holder.has_bitmap = false;
+            holder.upgraded = false;
+            holder.image.setImageBitmap(null);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,260 @@
+package com.example.rawstreamer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+lossless JPEG (ITU T.81 process 14) decoder for the DNG compression 7 tiles written by
+LosslessJpegEncoder and by other DNG writers, handles any predictor, point transform and
+1 - 4 interleaved components without subsampling, restart intervals are not supported
+
+decoded samples are laid out row by row with components interleaved, so a two component tile of a
+Bayer frame comes out as its original CFA rows, the sample buffer is reused between tiles
+ */
+public class LosslessJpegDecoder {
+
+    private final int[][] max_code = new int[4][LosslessJpegHuffman.MAX_CODE_LENGTH + 2];
+    private final int[][] value_offset = new int[4][LosslessJpegHuffman.MAX_CODE_LENGTH + 1];
+    private final int[][] table_values = new int[4][256];
+    private final boolean[] table_defined = new boolean[4];
+
+    private int precision;
+    private int width;
+    private int height;
+    private int components;
+    private final int[] component_ids = new int[4];
+    private final int[] component_tables = new int[4];
+    private int predictor;
+    private int point_transform;
+    private short[] samples = new short[0];
+
+    // entropy decoder state
+    private ByteBuffer source;
+    private long bit_buffer;
+    private int bit_count;
+    private boolean hit_marker;
+
+    // decodes one JPEG stream starting at the buffer's position, which is moved past it
+    public void decode(ByteBuffer data) throws IOException {
+        source = data;
+        if (nextMarker() != LosslessJpegEncoder.SOI) throw new IOException("Missing SOI marker");
+        width = 0;
+        for (int i = 0; i < 4; i++) table_defined[i] = false;
+        while (true) {
+            int marker = nextMarker();
+            int length = readShort() - 2;
+            if (marker == LosslessJpegEncoder.DHT) {
+                readHuffmanTables(length);
+            }
+            else if (marker == LosslessJpegEncoder.SOF3) {
+                readFrameHeader();
+            }
+            else if (marker == LosslessJpegEncoder.DRI) {
+                if (readShort() != 0) throw new IOException("Restart intervals not supported");
+            }
+            else if (marker == LosslessJpegEncoder.SOS) {
+                readScanHeader();
+                decodeScan();
+                break;
+            }
+            else if ((marker & 0xFFF0) == 0xFFC0 && marker != 0xFFC4 && marker != 0xFFC8 && marker != 0xFFCC) {
+                throw new IOException("Not a lossless JPEG, frame marker " + Integer.toHexString(marker));
+            }
+            else {
+                // APPn, COM and anything else the decoder has no use for
+                source.position(source.position() + length);
+            }
+        }
+        if (nextMarker() != LosslessJpegEncoder.EOI) throw new IOException("Missing EOI marker");
+        source = null;
+    }
+
+    public int getPrecision() {return precision;}
+
+    // samples per row, the frame width times the component count
+    public int getSampleWidth() {return width * components;}
+
+    public int getHeight() {return height;}
+
+    public int getComponents() {return components;}
+
+    // unsigned 16 bit samples, getSampleWidth() per row, valid until the next decode()
+    public short[] getSamples() {return samples;}
+
+    private void readHuffmanTables(int length) throws IOException {
+        int end = source.position() + length;
+        while (source.position() < end) {
+            int id = source.get() & 0xff;
+            if ((id >> 4) != 0 || (id & 0xf) > 3) throw new IOException("Bad Huffman table id " + id);
+            int table = id & 0xf;
+            int[] bits = new int[LosslessJpegHuffman.MAX_CODE_LENGTH + 1];
+            int count = 0;
+            for (int l = 1; l <= LosslessJpegHuffman.MAX_CODE_LENGTH; l++) {
+                bits[l] = source.get() & 0xff;
+                count += bits[l];
+            }
+            if (count > 256) throw new IOException("Huffman table too large");
+            for (int i = 0; i < count; i++) table_values[table][i] = source.get() & 0xff;
+            // first code of each length and where its values start, ITU T.81 F.2.2.3
+            int code = 0;
+            int k = 0;
+            for (int l = 1; l <= LosslessJpegHuffman.MAX_CODE_LENGTH; l++) {
+                value_offset[table][l] = k - code;
+                code += bits[l];
+                k += bits[l];
+                max_code[table][l] = bits[l] == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+            max_code[table][LosslessJpegHuffman.MAX_CODE_LENGTH + 1] = Integer.MAX_VALUE;
+            table_defined[table] = true;
+        }
+    }
+
+    private void readFrameHeader() throws IOException {
+        precision = source.get() & 0xff;
+        height = readShort();
+        width = readShort();
+        components = source.get() & 0xff;
+        if (precision < 2 || precision > 16) throw new IOException("Bad precision " + precision);
+        if (components < 1 || components > 4) throw new IOException("Bad component count " + components);
+        if (width == 0 || height == 0) throw new IOException("Bad frame size " + width + "x" + height);
+        for (int c = 0; c < components; c++) {
+            component_ids[c] = source.get() & 0xff;
+            if ((source.get() & 0xff) != 0x11) throw new IOException("Subsampled components not supported");
+            source.get();
+        }
+        int size = width * components * height;
+        if (samples.length < size) samples = new short[size];
+    }
+
+    private void readScanHeader() throws IOException {
+        if (width == 0) throw new IOException("Scan before frame header");
+        int scan_components = source.get() & 0xff;
+        if (scan_components != components) throw new IOException("Non interleaved scans not supported");
+        for (int c = 0; c < scan_components; c++) {
+            int id = source.get() & 0xff;
+            int tables = source.get() & 0xff;
+            if (id != component_ids[c]) throw new IOException("Scan component order differs from frame");
+            component_tables[c] = tables >> 4;
+            if (component_tables[c] > 3 || !table_defined[component_tables[c]]) {
+                throw new IOException("Missing Huffman table " + component_tables[c]);
+            }
+        }
+        predictor = source.get() & 0xff;
+        source.get();
+        point_transform = source.get() & 0xf;
+        if (predictor < 1 || predictor > 7) throw new IOException("Bad predictor " + predictor);
+    }
+
+    private void decodeScan() throws IOException {
+        bit_buffer = 0;
+        bit_count = 0;
+        hit_marker = false;
+        int row_samples = width * components;
+        int mask = (1 << (precision - point_transform)) - 1;
+        for (int y = 0; y < height; y++) {
+            int base = y * row_samples;
+            for (int x = 0; x < row_samples; x++) {
+                int c = x % components;
+                int predicted;
+                if (x < components) {
+                    predicted = y == 0 ? 1 << (precision - point_transform - 1) : sample(base - row_samples + x);
+                }
+                else if (y == 0) {
+                    predicted = sample(base + x - components);
+                }
+                else {
+                    int a = sample(base + x - components);
+                    int b = sample(base - row_samples + x);
+                    int c_diagonal = sample(base - row_samples + x - components);
+                    predicted = predict(a, b, c_diagonal);
+                }
+                int value = (predicted + readDifference(component_tables[c])) & mask;
+                samples[base + x] = (short) value;
+            }
+        }
+        if (point_transform != 0) {
+            int size = row_samples * height;
+            for (int i = 0; i < size; i++) samples[i] = (short) ((samples[i] & 0xffff) << point_transform);
+        }
+    }
+
+    // samples are stored before the point transform is undone
+    private int sample(int index) {
+        return samples[index] & 0xffff;
+    }
+
+    private int predict(int a, int b, int c) {
+        switch (predictor) {
+            case 1: return a;
+            case 2: return b;
+            case 3: return c;
+            case 4: return a + b - c;
+            case 5: return a + ((b - c) >> 1);
+            case 6: return b + ((a - c) >> 1);
+            default: return (a + b) >> 1;
+        }
+    }
+
+    private int readDifference(int table) throws IOException {
+        int code = readBit();
+        int length = 1;
+        while (code > max_code[table][length]) {
+            code = (code << 1) | readBit();
+            length++;
+            if (length > LosslessJpegHuffman.MAX_CODE_LENGTH) throw new IOException("Bad Huffman code");
+        }
+        int category = table_values[table][value_offset[table][length] + code];
+        if (category == 0) return 0;
+        if (category == 16) return 32768;
+        if (category > 16) throw new IOException("Bad difference category " + category);
+        int bits = readBits(category);
+        // values below half the range are negative, stored as one's complement
+        return bits < (1 << (category - 1)) ? bits - (1 << category) + 1 : bits;
+    }
+
+    private int readBit() throws IOException {
+        return readBits(1);
+    }
+
+    private int readBits(int count) throws IOException {
+        while (bit_count < count) fillByte();
+        bit_count -= count;
+        return (int) (bit_buffer >>> bit_count) & ((1 << count) - 1);
+    }
+
+    // next entropy coded byte, 0xFF 0x00 is a stuffed 0xFF, past a marker the data is padded with 1s
+    private void fillByte() throws IOException {
+        int b = 0xff;
+        if (!hit_marker) {
+            if (!source.hasRemaining()) throw new IOException("Truncated scan");
+            b = source.get() & 0xff;
+            if (b == 0xff) {
+                int next = source.get() & 0xff;
+                if (next != 0) {
+                    // leave the marker for nextMarker()
+                    hit_marker = true;
+                    source.position(source.position() - 2);
+                }
+            }
+        }
+        bit_buffer = (bit_buffer << 8) | b;
+        bit_count += 8;
+    }
+
+    private int nextMarker() throws IOException {
+        while (source.remaining() >= 2) {
+            if ((source.get() & 0xff) != 0xff) continue;
+            int code = source.get(source.position()) & 0xff;
+            // fill bytes and stuffed zeros
+            if (code == 0xff || code == 0) continue;
+            source.get();
+            return 0xff00 | code;
+        }
+        throw new IOException("Unexpected end of JPEG stream");
+    }
+
+    private int readShort() {
+        return ((source.get() & 0xff) << 8) | (source.get() & 0xff);
+    }
+}
@@ -0,0 +1,336 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+lossless JPEG (ITU T.81 process 14, "LJ92") encoder for 16 bit Bayer frames, the DNG compression 7
+codec
+
+the frame is cut into tiles that are encoded as independent JPEG streams in parallel on a fork-join
+pool, a tile of w x h CFA samples is coded as a w/2 x h image with two interleaved components, so
+the left neighbour predictor always sees a sample of the same colour, every tile gets its own
+optimal Huffman table from a first pass over its differences
+
+encoded tiles stay in reused per-tile buffers until the next encode(), not thread safe, keep one
+encoder per saver thread
+ */
+public class LosslessJpegEncoder {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int PRECISION = 16;
+    // predictor 1, the sample to the left (same component)
+    public static final int PREDICTOR_LEFT = 1;
+    public static final int COMPONENTS = 2;
+
+    // JPEG markers
+    static final int SOI = 0xFFD8;
+    static final int EOI = 0xFFD9;
+    static final int SOF3 = 0xFFC3;
+    static final int DHT = 0xFFC4;
+    static final int SOS = 0xFFDA;
+    static final int DRI = 0xFFDD;
+
+    // tiles per fork-join leaf task
+    private static final int TILES_PER_TASK = 2;
+
+    // per worker thread scratch space, sized for the largest tile seen
+    private static final ThreadLocal<TileEncoder> tile_encoder = new ThreadLocal<TileEncoder>() {
+        @Override
+        protected TileEncoder initialValue() {
+            return new TileEncoder();
+        }
+    };
+
+    private final ForkJoinPool fork_join_pool;
+    private final int tile_width;
+    private final int tile_height;
+    private int tiles_across;
+    private int tiles_down;
+    private TileOutput[] tiles = new TileOutput[0];
+
+    public LosslessJpegEncoder(ForkJoinPool fork_join_pool) {
+        this(fork_join_pool, DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE);
+    }
+
+    // TIFF needs tile dimensions that are multiples of 16
+    public LosslessJpegEncoder(ForkJoinPool fork_join_pool, int tile_width, int tile_height) {
+        if (tile_width <= 0 || tile_height <= 0 || tile_width % 16 != 0 || tile_height % 16 != 0) {
+            throw new IllegalArgumentException("Tile size must be a multiple of 16: " + tile_width + "x" + tile_height);
+        }
+        this.fork_join_pool = fork_join_pool;
+        this.tile_width = tile_width;
+        this.tile_height = tile_height;
+    }
+
+    /*
+    encodes a frame whose 16 bit little-endian samples start at the plane buffer's position, rows
+    row_stride bytes apart, edge tiles are padded by repeating the last samples of the same colour,
+    returns the total encoded size, the plane's position and limit are left untouched
+     */
+    public long encode(ByteBuffer plane, int width, int height, int row_stride) {
+        if (width % 2 != 0 || height % 2 != 0 || row_stride % 2 != 0) {
+            throw new IllegalArgumentException("Bayer frame must have even dimensions: " + width + "x" + height);
+        }
+        tiles_across = (width + tile_width - 1) / tile_width;
+        tiles_down = (height + tile_height - 1) / tile_height;
+        int tile_count = tiles_across * tiles_down;
+        if (tiles.length < tile_count) {
+            TileOutput[] grown = new TileOutput[tile_count];
+            System.arraycopy(tiles, 0, grown, 0, tiles.length);
+            for (int i = tiles.length; i < tile_count; i++) grown[i] = new TileOutput();
+            tiles = grown;
+        }
+        ShortBuffer samples = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        fork_join_pool.invoke(new EncodeTask(samples, width, height, row_stride / 2, 0, tile_count));
+
+        long total = 0;
+        for (int i = 0; i < tile_count; i++) total += tiles[i].length;
+        return total;
+    }
+
+    public int getTileWidth() {return tile_width;}
+
+    public int getTileHeight() {return tile_height;}
+
+    public int getTilesAcross() {return tiles_across;}
+
+    public int getTilesDown() {return tiles_down;}
+
+    public int getTileCount() {return tiles_across * tiles_down;}
+
+    public int getTileLength(int tile) {return tiles[tile].length;}
+
+    // the encoded tile ready to be written, row-major tile order
+    public ByteBuffer getTile(int tile) {
+        TileOutput output = tiles[tile];
+        output.view.limit(output.length);
+        output.view.position(0);
+        return output.view;
+    }
+
+    private static class TileOutput {
+        byte[] data = new byte[0];
+        ByteBuffer view = ByteBuffer.wrap(data);
+        int length;
+    }
+
+    // splits a range of tiles until it is small enough to encode directly
+    private class EncodeTask extends RecursiveAction {
+        private final ShortBuffer samples;
+        private final int width;
+        private final int height;
+        private final int stride;
+        private final int first_tile;
+        private final int end_tile;
+
+        EncodeTask(ShortBuffer samples, int width, int height, int stride, int first_tile, int end_tile) {
+            this.samples = samples;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.first_tile = first_tile;
+            this.end_tile = end_tile;
+        }
+
+        @Override
+        protected void compute() {
+            if (end_tile - first_tile <= TILES_PER_TASK) {
+                TileEncoder encoder = tile_encoder.get();
+                ShortBuffer view = samples.duplicate();
+                for (int tile = first_tile; tile < end_tile; tile++) {
+                    int x0 = (tile % tiles_across) * tile_width;
+                    int y0 = (tile / tiles_across) * tile_height;
+                    encoder.load(view, stride, x0, y0, Math.min(tile_width, width - x0),
+                            Math.min(tile_height, height - y0), tile_width, tile_height);
+                    encoder.encode(tiles[tile]);
+                }
+                return;
+            }
+            int middle = (first_tile + end_tile) >>> 1;
+            invokeAll(new EncodeTask(samples, width, height, stride, first_tile, middle),
+                    new EncodeTask(samples, width, height, stride, middle, end_tile));
+        }
+    }
+
+    // encodes one tile at a time, all buffers are reused between tiles
+    private static class TileEncoder {
+        private int width;
+        private int height;
+        private int[] samples = new int[0];
+        private int[] differences = new int[0];
+        private short[] row = new short[0];
+        private final long[] frequencies = new long[17];
+        private final int[] code = new int[17];
+        private final int[] code_size = new int[17];
+        private final int[] bits = new int[17];
+        private final int[] values = new int[17];
+
+        private TileOutput output;
+        private byte[] out;
+        private int out_length;
+        private long bit_buffer;
+        private int bit_count;
+
+        // copies a tile into samples, padding past valid_width / valid_height
+        void load(ShortBuffer view, int stride, int x0, int y0, int valid_width, int valid_height,
+                  int tile_width, int tile_height) {
+            width = tile_width;
+            height = tile_height;
+            int size = tile_width * tile_height;
+            if (samples.length < size) {
+                samples = new int[size];
+                differences = new int[size];
+            }
+            if (row.length < tile_width) row = new short[tile_width];
+            for (int y = 0; y < valid_height; y++) {
+                view.position((y0 + y) * stride + x0);
+                view.get(row, 0, valid_width);
+                int base = y * tile_width;
+                for (int x = 0; x < valid_width; x++) samples[base + x] = row[x] & 0xffff;
+                for (int x = valid_width; x < tile_width; x++) samples[base + x] = samples[base + x - 2];
+            }
+            for (int y = valid_height; y < tile_height; y++) {
+                System.arraycopy(samples, (y - 2) * tile_width, samples, y * tile_width, tile_width);
+            }
+        }
+
+        void encode(TileOutput output) {
+            computeDifferences();
+            LosslessJpegHuffman.buildTable(frequencies, bits, values);
+            LosslessJpegHuffman.buildCodes(bits, values, code, code_size);
+
+            // starts at a byte per sample, typical for 10-12 bit sensors, and grows row by row
+            this.output = output;
+            out = output.data;
+            out_length = 0;
+            ensureCapacity(1024 + width * height);
+            writeHeaders();
+            for (int y = 0; y < height; y++) {
+                // worst case is a 16 bit code plus 15 extra bits, doubled by 0xFF stuffing
+                ensureCapacity(width * 8 + 16);
+                int end = (y + 1) * width;
+                for (int i = y * width; i < end; i++) {
+                    int difference = differences[i];
+                    int category = category(difference);
+                    putBits(code[category], code_size[category]);
+                    if (category != 0 && category != 16) {
+                        putBits((difference < 0 ? difference - 1 : difference) & ((1 << category) - 1), category);
+                    }
+                }
+            }
+            flushBits();
+            putMarker(EOI);
+            output.length = out_length;
+            this.output = null;
+            out = null;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (out_length + extra <= out.length) return;
+            byte[] grown = new byte[Math.max(out_length + extra, out.length * 2)];
+            System.arraycopy(out, 0, grown, 0, out_length);
+            out = grown;
+            output.data = grown;
+            output.view = ByteBuffer.wrap(grown);
+        }
+
+        // prediction differences and their category histogram
+        private void computeDifferences() {
+            for (int i = 0; i < frequencies.length; i++) frequencies[i] = 0;
+            for (int y = 0; y < height; y++) {
+                int base = y * width;
+                for (int x = 0; x < width; x++) {
+                    int predicted;
+                    if (x < COMPONENTS) {
+                        predicted = y == 0 ? 1 << (PRECISION - 1) : samples[base - width + x];
+                    }
+                    else {
+                        predicted = samples[base + x - COMPONENTS];
+                    }
+                    // modulo 2^16, as a signed 16 bit value
+                    int difference = (short) (samples[base + x] - predicted);
+                    differences[base + x] = difference;
+                    frequencies[category(difference)]++;
+                }
+            }
+        }
+
+        private void writeHeaders() {
+            putMarker(SOI);
+
+            int count = 0;
+            for (int length = 1; length <= 16; length++) count += bits[length];
+            putMarker(DHT);
+            putShort(2 + 1 + 16 + count);
+            putByte(0x00);
+            for (int length = 1; length <= 16; length++) putByte(bits[length]);
+            for (int i = 0; i < count; i++) putByte(values[i]);
+
+            putMarker(SOF3);
+            putShort(8 + 3 * COMPONENTS);
+            putByte(PRECISION);
+            putShort(height);
+            putShort(width / COMPONENTS);
+            putByte(COMPONENTS);
+            for (int c = 0; c < COMPONENTS; c++) {
+                putByte(c);
+                putByte(0x11);
+                putByte(0);
+            }
+
+            putMarker(SOS);
+            putShort(6 + 2 * COMPONENTS);
+            putByte(COMPONENTS);
+            for (int c = 0; c < COMPONENTS; c++) {
+                putByte(c);
+                putByte(0x00);
+            }
+            putByte(PREDICTOR_LEFT);
+            putByte(0);
+            putByte(0);
+        }
+
+        private void putBits(int value, int size) {
+            bit_buffer = (bit_buffer << size) | value;
+            bit_count += size;
+            while (bit_count >= 8) {
+                int b = (int) (bit_buffer >>> (bit_count - 8)) & 0xff;
+                out[out_length++] = (byte) b;
+                // a 0xFF in entropy coded data is followed by a stuffed 0
+                if (b == 0xff) out[out_length++] = 0;
+                bit_count -= 8;
+            }
+        }
+
+        // pads the last byte with 1 bits
+        private void flushBits() {
+            if (bit_count > 0) putBits((1 << (8 - bit_count)) - 1, 8 - bit_count);
+            bit_buffer = 0;
+            bit_count = 0;
+        }
+
+        private void putMarker(int marker) {
+            putShort(marker);
+        }
+
+        private void putShort(int value) {
+            out[out_length++] = (byte) (value >> 8);
+            out[out_length++] = (byte) value;
+        }
+
+        private void putByte(int value) {
+            out[out_length++] = (byte) value;
+        }
+    }
+
+    // SSSS, the number of bits needed for a difference, 16 only for -32768
+    static int category(int difference) {
+        if (difference == 0) return 0;
+        if (difference == -32768) return 16;
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(difference));
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.rawstreamer;
+
+// Huffman tables for lossless JPEG, symbols are the 17 difference categories (SSSS 0 - 16)
+class LosslessJpegHuffman {
+
+    static final int SYMBOLS = 17;
+    static final int MAX_CODE_LENGTH = 16;
+
+    /*
+    optimal code lengths limited to 16 bits for the given symbol frequencies, as in ITU T.81 annex
+    K.2, bits[l] is the number of codes of length l (1 - 16) and values lists the symbols in code
+    order, a reserved symbol keeps the all ones code free
+     */
+    static void buildTable(long[] frequencies, int[] bits, int[] values) {
+        long[] frequency = new long[SYMBOLS + 1];
+        System.arraycopy(frequencies, 0, frequency, 0, SYMBOLS);
+        frequency[SYMBOLS] = 1;
+        int[] code_size = new int[SYMBOLS + 1];
+        int[] others = new int[SYMBOLS + 1];
+        for (int i = 0; i <= SYMBOLS; i++) others[i] = -1;
+
+        while (true) {
+            // the two least frequent trees, ties go to the larger symbol
+            int c1 = -1;
+            for (int i = 0; i <= SYMBOLS; i++) {
+                if (frequency[i] != 0 && (c1 < 0 || frequency[i] <= frequency[c1])) c1 = i;
+            }
+            int c2 = -1;
+            for (int i = 0; i <= SYMBOLS; i++) {
+                if (frequency[i] != 0 && i != c1 && (c2 < 0 || frequency[i] <= frequency[c2])) c2 = i;
+            }
+            if (c2 < 0) break;
+
+            frequency[c1] += frequency[c2];
+            frequency[c2] = 0;
+            code_size[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                code_size[c1]++;
+            }
+            others[c1] = c2;
+            code_size[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                code_size[c2]++;
+            }
+        }
+
+        int[] length_count = new int[SYMBOLS + 2];
+        for (int i = 0; i <= SYMBOLS; i++) {
+            if (code_size[i] > 0) length_count[code_size[i]]++;
+        }
+        // move codes longer than 16 bits up the tree
+        for (int i = length_count.length - 1; i > MAX_CODE_LENGTH; i--) {
+            while (length_count[i] > 0) {
+                int j = i - 2;
+                while (length_count[j] == 0) j--;
+                length_count[i] -= 2;
+                length_count[i - 1]++;
+                length_count[j + 1] += 2;
+                length_count[j]--;
+            }
+        }
+        // drop the reserved code, the longest one
+        int longest = MAX_CODE_LENGTH;
+        while (length_count[longest] == 0) longest--;
+        length_count[longest]--;
+
+        for (int length = 0; length <= MAX_CODE_LENGTH; length++) bits[length] = length == 0 ? 0 : length_count[length];
+        int count = 0;
+        for (int length = 1; length <= length_count.length - 1; length++) {
+            for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+                if (code_size[symbol] == length) values[count++] = symbol;
+            }
+        }
+    }
+
+    // canonical codes for a table, indexed by symbol, unused symbols get size 0
+    static void buildCodes(int[] bits, int[] values, int[] code, int[] code_size) {
+        for (int i = 0; i < SYMBOLS; i++) code_size[i] = 0;
+        int next_code = 0;
+        int k = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            for (int i = 0; i < bits[length]; i++) {
+                code[values[k]] = next_code++;
+                code_size[values[k]] = length;
+                k++;
+            }
+            next_code <<= 1;
+        }
+    }
+}
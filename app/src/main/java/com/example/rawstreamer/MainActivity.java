@@ -28,6 +28,9 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         requestCameraPermissions();
+        // kept for the life of the activity, the camera session behind the photo fragment outlives its views
+        photo_fragment = new PhotoFragment(this);
+        gallery_fragment = new GalleryFragment(this);
         SmoothBottomBar nav_bar = findViewById(R.id.nav_bar);
         nav_bar.setOnItemSelectedListener((OnItemSelectedListener) pos -> {
             Log.d(TAG, "Navigation item selected: " + pos);
@@ -60,17 +63,22 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         requestCameraPermissions();
-        photo_fragment = new PhotoFragment(this);
-        // video_fragment =
-        gallery_fragment = new GalleryFragment(this);
-        // begin app with photo fragment
-        replaceFragment(photo_fragment);
+        // begin app with photo fragment, a view it still has only needs the camera back
+        if (active_fragment == 1 && photo_fragment.getView() != null) {
+            photo_fragment.resumeCamera();
+        }
+        else {
+            replaceFragment(photo_fragment);
+        }
+        active_fragment = 1;
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         freeCurrentFragment();
+        // the camera is given up whenever the app leaves the foreground
+        CameraSessionHost.get(this).close();
     }
 
     @Override
@@ -116,9 +124,7 @@ public class MainActivity extends AppCompatActivity {
                 break;
             case 1:
                 Log.d(TAG, "Free photo fragment");
-                unregisterReceiver(photo_fragment.getBatteryReceiver());
-                unregisterReceiver(photo_fragment.getUIManager().getWifiStateReceiver());
-                photo_fragment.getCameraController().onPause();
+                photo_fragment.pauseCamera();
                 break;
             case 2:
                 break;
@@ -0,0 +1,95 @@
+package com.example.rawstreamer;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+an output file allocated at its final size up front and mapped read-write, so a frame is written
+with plain memory copies instead of a stream of write() calls, and the filesystem gets to place the
+whole file at once rather than growing it extent by extent
+
+finish() flushes the mapping and trims the file to what was actually written with a single
+truncate, abort() deletes a partly written file
+ */
+public class MappedOutputFile {
+
+    private static final String TAG = "MappedOutputFile";
+
+    private final File file;
+    private final RandomAccessFile random_access_file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long size;
+
+    private MappedOutputFile(File file, RandomAccessFile random_access_file, MappedByteBuffer buffer, long size) {
+        this.file = file;
+        this.random_access_file = random_access_file;
+        this.channel = random_access_file.getChannel();
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    // preallocates an existing, empty file to size bytes and maps it
+    public static MappedOutputFile create(File file, long size) throws IOException {
+        if (size <= 0 || size > Integer.MAX_VALUE) throw new IllegalArgumentException("Can't map " + size + " bytes");
+        RandomAccessFile random_access_file = new RandomAccessFile(file, "rw");
+        try {
+            preallocate(random_access_file, size);
+            MappedByteBuffer buffer = random_access_file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedOutputFile(file, random_access_file, buffer, size);
+        }
+        catch (IOException | RuntimeException e) {
+            random_access_file.close();
+            throw e;
+        }
+    }
+
+    // real block allocation where the filesystem supports it, a sparse file otherwise
+    private static void preallocate(RandomAccessFile random_access_file, long size) throws IOException {
+        try {
+            Os.posix_fallocate(random_access_file.getFD(), 0, size);
+        }
+        catch (ErrnoException e) {
+            Log.d(TAG, "fallocate not available, extending file instead: " + e);
+            random_access_file.setLength(size);
+        }
+    }
+
+    public File getFile() {return file;}
+
+    public long getSize() {return size;}
+
+    // little-endian view of the whole file, position 0 is the start of the file
+    public MappedByteBuffer getBuffer() {return buffer;}
+
+    // flushes the mapping and trims the file to length bytes
+    public void finish(long length) throws IOException {
+        try {
+            buffer.force();
+            if (length < size) channel.truncate(length);
+        }
+        finally {
+            random_access_file.close();
+        }
+    }
+
+    // closes and deletes the file, for writes that failed part way
+    public void abort() {
+        try {
+            random_access_file.close();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Error closing output file: " + e);
+        }
+        if (!file.delete()) Log.e(TAG, "Couldn't delete partial file: " + file);
+    }
+}
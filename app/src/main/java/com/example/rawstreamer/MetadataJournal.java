@@ -0,0 +1,202 @@
+package com.example.rawstreamer;
+
+import android.hardware.camera2.CaptureResult;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+/*
+append-only binary journal of per frame capture metadata, one file per camera session, recording a
+result copies the few values kept into a fixed size slot of an in-memory ring and returns, a writer
+task on the given executor drains the ring to the file in batches so the camera thread never
+touches storage, every record is prefixed with its length so later versions can append fields that
+older readers skip, if the writer falls a whole ring behind new records are dropped and counted
+rather than blocking the camera, the recorded count only covers records that reached the file, once
+a write fails everything after it is counted as dropped, MetadataJournalReader reads the files back on any JVM
+ */
+public class MetadataJournal {
+    private static final String TAG = "MetadataJournal";
+    // "RSMJ" little-endian
+    public static final int MAGIC = 0x4a4d5352;
+    public static final int VERSION = 1;
+    // magic, version, record payload size and session start in wall clock ms
+    public static final int HEADER_SIZE = 16;
+    public static final int LENGTH_PREFIX = 2;
+    // payload of a version 1 record, all little-endian
+    public static final int OFFSET_TIMESTAMP = 0;
+    public static final int OFFSET_FRAME_NUMBER = 8;
+    public static final int OFFSET_EXPOSURE_TIME = 16;
+    public static final int OFFSET_FRAME_DURATION = 24;
+    public static final int OFFSET_ISO = 32;
+    public static final int OFFSET_ZOOM_RATIO = 36;
+    public static final int OFFSET_AE_STATE = 40;
+    public static final int OFFSET_AF_STATE = 41;
+    public static final int PAYLOAD_SIZE = 42;
+    public static final int RECORD_SIZE = LENGTH_PREFIX + PAYLOAD_SIZE;
+    // stored for values a result didn't have, zoom uses NaN
+    public static final int UNKNOWN = -1;
+
+    private final File file;
+    private final Executor writer_executor;
+    private final int capacity;
+    // records are written once filled reaches this, so the writer runs a few times a minute
+    private final int flush_records;
+    private final ByteBuffer ring;
+    private final FileChannel channel;
+    // ring state, guarded by this, slots head to head + count are waiting for the writer
+    private int head;
+    private int count;
+    private boolean flush_queued;
+    private boolean closed;
+    private boolean write_failed;
+    // records written to the file and records lost, to a full ring or a failed write
+    private long recorded;
+    private long dropped;
+    // held for the whole of a drain, so close() and the writer task never write at the same time
+    private final Object write_lock = new Object();
+    private final Runnable flush_task = this::drain;
+
+    // creates file, which is truncated if it exists, and writes its header
+    public MetadataJournal(File file, int capacity, Executor writer_executor) throws IOException {
+        this.file = file;
+        this.writer_executor = writer_executor;
+        this.capacity = Math.max(4, capacity);
+        flush_records = Math.max(1, this.capacity / 4);
+        ring = ByteBuffer.allocateDirect(this.capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) PAYLOAD_SIZE).putLong(System.currentTimeMillis());
+        header.flip();
+        try {
+            while (header.hasRemaining()) channel.write(header);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {return file;}
+
+    public synchronized long getRecordedCount() {return recorded;}
+
+    public synchronized long getDroppedCount() {return dropped;}
+
+    // called for every completed result, reads only the keys the journal keeps
+    public void record(CaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        Long exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Long frame_duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        Float zoom_ratio = result.get(CaptureResult.CONTROL_ZOOM_RATIO);
+        Integer ae_state = result.get(CaptureResult.CONTROL_AE_STATE);
+        Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+        record(timestamp != null ? timestamp : UNKNOWN, result.getFrameNumber(),
+                exposure_time != null ? exposure_time : UNKNOWN, frame_duration != null ? frame_duration : UNKNOWN,
+                iso != null ? iso : UNKNOWN, zoom_ratio != null ? zoom_ratio : Float.NaN,
+                ae_state != null ? ae_state : UNKNOWN, af_state != null ? af_state : UNKNOWN);
+    }
+
+    public synchronized void record(long timestamp, long frame_number, long exposure_time, long frame_duration,
+                                    int iso, float zoom_ratio, int ae_state, int af_state) {
+        if (closed) return;
+        if (count == capacity || write_failed) {
+            dropped++;
+            return;
+        }
+        int slot = ((head + count) % capacity) * RECORD_SIZE;
+        ring.putShort(slot, (short) PAYLOAD_SIZE);
+        int payload = slot + LENGTH_PREFIX;
+        ring.putLong(payload + OFFSET_TIMESTAMP, timestamp);
+        ring.putLong(payload + OFFSET_FRAME_NUMBER, frame_number);
+        ring.putLong(payload + OFFSET_EXPOSURE_TIME, exposure_time);
+        ring.putLong(payload + OFFSET_FRAME_DURATION, frame_duration);
+        ring.putInt(payload + OFFSET_ISO, iso);
+        ring.putFloat(payload + OFFSET_ZOOM_RATIO, zoom_ratio);
+        ring.put(payload + OFFSET_AE_STATE, (byte) ae_state);
+        ring.put(payload + OFFSET_AF_STATE, (byte) af_state);
+        count++;
+        if (count >= flush_records && !flush_queued) {
+            flush_queued = true;
+            writer_executor.execute(flush_task);
+        }
+    }
+
+    // writes whatever the ring holds now, on the writer executor
+    public synchronized void flush() {
+        if (closed || flush_queued || count == 0) return;
+        flush_queued = true;
+        writer_executor.execute(flush_task);
+    }
+
+    // writes what is left on the calling thread and closes the file, later records are ignored, the
+    // caller reports the counts
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        synchronized (write_lock) {
+            drain();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't close " + file + ": " + e);
+            }
+        }
+    }
+
+    // the slots being written are never reused until head moves past them, so only the bookkeeping
+    // needs the ring's lock
+    private void drain() {
+        synchronized (write_lock) {
+            while (true) {
+                int start;
+                int pending;
+                synchronized (this) {
+                    start = head;
+                    pending = count;
+                    if (pending == 0 || write_failed || !channel.isOpen()) {
+                        flush_queued = false;
+                        return;
+                    }
+                }
+                boolean failed = false;
+                try {
+                    int first = Math.min(pending, capacity - start);
+                    write(start, first);
+                    if (first < pending) write(0, pending - first);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't write " + file + ": " + e);
+                    failed = true;
+                }
+                synchronized (this) {
+                    if (failed) {
+                        // the batch may be partly written, none of it counts as recorded, nor does
+                        // anything queued behind it
+                        write_failed = true;
+                        dropped += count;
+                        head = (head + count) % capacity;
+                        count = 0;
+                    }
+                    else {
+                        recorded += pending;
+                        head = (head + pending) % capacity;
+                        count -= pending;
+                    }
+                }
+            }
+        }
+    }
+
+    private void write(int first_slot, int slots) throws IOException {
+        ByteBuffer records = ring.duplicate();
+        records.limit((first_slot + slots) * RECORD_SIZE).position(first_slot * RECORD_SIZE);
+        while (records.hasRemaining()) channel.write(records);
+    }
+}
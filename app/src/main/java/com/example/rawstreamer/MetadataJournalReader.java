@@ -0,0 +1,121 @@
+package com.example.rawstreamer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/*
+reads a MetadataJournal file front to back for offline analysis, it only uses java.io and nio so it
+runs on a desktop JVM as well as on the device, the file is streamed through a fixed buffer and the
+current record is held in primitive fields, so hours of frames are read without allocating per
+record, fields a newer writer appended after the known ones are skipped, a record cut off at the
+end of the file, what a crash mid write leaves, ends the journal and is reported by isTruncated()
+ */
+public class MetadataJournalReader {
+    private static final int BUFFER_SIZE = 128 << 10;
+
+    private final RandomAccessFile input;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final int version;
+    private final long session_start_ms;
+    private boolean end_of_file;
+    private boolean truncated;
+    private long records_read;
+
+    private long timestamp;
+    private long frame_number;
+    private long exposure_time;
+    private long frame_duration;
+    private int iso;
+    private float zoom_ratio;
+    private int ae_state;
+    private int af_state;
+
+    public MetadataJournalReader(File file) throws IOException {
+        input = new RandomAccessFile(file, "r");
+        channel = input.getChannel();
+        buffer.limit(0);
+        try {
+            if (!fill(MetadataJournal.HEADER_SIZE) || buffer.getInt() != MetadataJournal.MAGIC) {
+                throw new IOException("Not a metadata journal: " + file);
+            }
+            version = buffer.getShort() & 0xffff;
+            buffer.getShort();
+            session_start_ms = buffer.getLong();
+            if (version < 1) throw new IOException("Bad journal version " + version);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    public int getVersion() {return version;}
+
+    // wall clock time the journal was created
+    public long getSessionStartMs() {return session_start_ms;}
+
+    public long getRecordsRead() {return records_read;}
+
+    // whether the journal ended part way through a record
+    public boolean isTruncated() {return truncated;}
+
+    // moves to the next record, false once there are none left
+    public boolean next() throws IOException {
+        if (!fill(MetadataJournal.LENGTH_PREFIX)) return false;
+        int length = buffer.getShort(buffer.position()) & 0xffff;
+        if (length < MetadataJournal.PAYLOAD_SIZE) throw new IOException("Bad record length " + length + " after " + records_read);
+        if (!fill(MetadataJournal.LENGTH_PREFIX + length)) return false;
+        int payload = buffer.position() + MetadataJournal.LENGTH_PREFIX;
+        timestamp = buffer.getLong(payload + MetadataJournal.OFFSET_TIMESTAMP);
+        frame_number = buffer.getLong(payload + MetadataJournal.OFFSET_FRAME_NUMBER);
+        exposure_time = buffer.getLong(payload + MetadataJournal.OFFSET_EXPOSURE_TIME);
+        frame_duration = buffer.getLong(payload + MetadataJournal.OFFSET_FRAME_DURATION);
+        iso = buffer.getInt(payload + MetadataJournal.OFFSET_ISO);
+        zoom_ratio = buffer.getFloat(payload + MetadataJournal.OFFSET_ZOOM_RATIO);
+        ae_state = buffer.get(payload + MetadataJournal.OFFSET_AE_STATE);
+        af_state = buffer.get(payload + MetadataJournal.OFFSET_AF_STATE);
+        buffer.position(payload + length);
+        records_read++;
+        return true;
+    }
+
+    // makes sure bytes are buffered from the position on, false at the end of the file
+    private boolean fill(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            if (end_of_file) {
+                truncated = buffer.hasRemaining();
+                return false;
+            }
+            buffer.compact();
+            if (channel.read(buffer) < 0) end_of_file = true;
+            buffer.flip();
+        }
+        return true;
+    }
+
+    // sensor timestamp in ns, UNKNOWN if the result had none
+    public long getTimestamp() {return timestamp;}
+
+    public long getFrameNumber() {return frame_number;}
+
+    public long getExposureTime() {return exposure_time;}
+
+    public long getFrameDuration() {return frame_duration;}
+
+    public int getIso() {return iso;}
+
+    // NaN if the result had none
+    public float getZoomRatio() {return zoom_ratio;}
+
+    public int getAeState() {return ae_state;}
+
+    public int getAfState() {return af_state;}
+
+    public void close() throws IOException {
+        input.close();
+    }
+}
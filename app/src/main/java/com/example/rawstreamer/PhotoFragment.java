@@ -36,10 +36,22 @@ public class PhotoFragment extends Fragment {
         ui_manager = new UIManager(photo_fragment_view, this.main_activity);
         battery_receiver = new BatteryReceiver(photo_fragment_view);
         camera_controller = new CameraController(ui_manager);
+        resumeCamera();
+        return photo_fragment_view;
+    }
+
+    // shows the camera in this fragment's view, a running session is picked up where it was left
+    public void resumeCamera() {
         camera_controller.onResume();
         main_activity.registerReceiver(battery_receiver, battery_intent_filter);
         main_activity.registerReceiver(ui_manager.getWifiStateReceiver(), wifi_intent_filter);
-        return photo_fragment_view;
+    }
+
+    // stops showing the camera, the session itself is kept by CameraSessionHost
+    public void pauseCamera() {
+        main_activity.unregisterReceiver(battery_receiver);
+        main_activity.unregisterReceiver(ui_manager.getWifiStateReceiver());
+        camera_controller.onPause();
     }
 
     public UIManager getUIManager() {
@@ -0,0 +1,124 @@
+package com.example.rawstreamer;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.util.Log;
+
+import java.util.concurrent.ForkJoinPool;
+
+/*
+one burst of RAW captures merged into a single DNG, set as the tag of every capture request of the
+burst so matched frames and lost captures can be routed back to it
+
+every capture holds a saver pool slot, a frame's slot and buffer are released as soon as it is merged,
+except for the latest frame, whose buffer receives the merged result once the whole burst is in, the
+merger and aligner are shared between bursts so only one burst may be in flight at a time
+
+with an aligner every frame is aligned against the first one merged before it is added, so a handheld
+burst merges tile by tile instead of smearing
+ */
+public class RawBurst {
+
+    private static final String TAG = "RawBurst";
+
+    private final BurstMerger burst_merger;
+    private final FrameAligner frame_aligner;
+    private final ForkJoinPool fork_join_pool;
+    private final DngSaverPool saver_pool;
+    private final CameraCharacteristics camera_characteristics;
+    private final FileManager file_manager;
+    private final int compression;
+    private final int frame_count;
+    // frames merged or lost, guarded by this
+    private int frames_done;
+    private RawFrame held_frame;
+    private final long start_ns;
+    private volatile boolean finished;
+
+    // frame_aligner may be null for bursts taken on a tripod, it must use the merger's tile size
+    public RawBurst(BurstMerger burst_merger, FrameAligner frame_aligner, ForkJoinPool fork_join_pool, DngSaverPool saver_pool,
+                    int frame_count, CameraCharacteristics camera_characteristics, FileManager file_manager, int compression) {
+        if (frame_aligner != null && frame_aligner.getTileSize() != burst_merger.getTileSize()) {
+            throw new IllegalArgumentException("Aligner and merger tile sizes differ");
+        }
+        this.burst_merger = burst_merger;
+        this.frame_aligner = frame_aligner;
+        this.fork_join_pool = fork_join_pool;
+        this.saver_pool = saver_pool;
+        this.frame_count = frame_count;
+        this.camera_characteristics = camera_characteristics;
+        this.file_manager = file_manager;
+        this.compression = compression;
+        this.start_ns = System.nanoTime();
+        burst_merger.reset();
+        if (frame_aligner != null) frame_aligner.reset();
+    }
+
+    public int getFrameCount() {return frame_count;}
+
+    // true once the merged frame is written (or the burst lost every frame)
+    public boolean isFinished() {return finished;}
+
+    // merges a frame on the fork-join pool, never blocks the callback thread
+    public void addFrame(RawFrame raw_frame) {
+        fork_join_pool.execute(() -> {
+            RawFrame released = null;
+            boolean complete;
+            try {
+                synchronized (this) {
+                    int[] motion = frame_aligner != null ? frame_aligner.align(raw_frame.getBuffer(), raw_frame.getRowStride()) : null;
+                    burst_merger.add(raw_frame.getBuffer(), raw_frame.getRowStride(), motion);
+                    released = held_frame;
+                    held_frame = raw_frame;
+                    complete = ++frames_done == frame_count;
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Error merging frame: " + e);
+                released = raw_frame;
+                complete = frameDone();
+            }
+            if (released != null) {
+                released.release();
+                saver_pool.releaseSlot();
+            }
+            if (complete) finish();
+        });
+    }
+
+    // a capture of the burst that will never deliver a frame, its slot is released by the caller
+    public void frameLost() {
+        if (frameDone()) fork_join_pool.execute(this::finish);
+    }
+
+    private synchronized boolean frameDone() {
+        return ++frames_done == frame_count;
+    }
+
+    // writes the merged frame through the latest frame's buffer, then gives back its slot
+    private void finish() {
+        RawFrame raw_frame;
+        synchronized (this) {
+            raw_frame = held_frame;
+            held_frame = null;
+        }
+        if (raw_frame == null) {
+            Log.e(TAG, "Burst lost every frame");
+            finished = true;
+            return;
+        }
+        try {
+            burst_merger.resolve(raw_frame.getBuffer(), raw_frame.getRowStride());
+            Log.d(TAG, "Merged " + burst_merger.getFrameCount() + " of " + frame_count + " frames in "
+                    + (System.nanoTime() - start_ns) / 1000000 + " ms, tiles rejected: " + burst_merger.getTilesRejected());
+            new DngImageSaver(raw_frame, camera_characteristics, file_manager, compression).run();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Error saving merged frame: " + e);
+            raw_frame.release();
+        }
+        finally {
+            saver_pool.releaseSlot();
+            finished = true;
+        }
+    }
+}
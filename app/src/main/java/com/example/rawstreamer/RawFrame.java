@@ -0,0 +1,86 @@
+package com.example.rawstreamer;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CaptureResult;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+// a RAW frame copied out of an Image into a pooled buffer, rows tightly packed (row stride is
+// width * 2), together with the capture result it was matched with
+public class RawFrame {
+
+    private final FrameBufferPool pool;
+    private ByteBuffer buffer;
+    private int width;
+    private int height;
+    private long timestamp;
+    private CaptureResult capture_result;
+
+    public RawFrame(FrameBufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    // copies a RAW_SENSOR image into a buffer from the pool, returns null if the pool is exhausted,
+    // the image is not closed, callers close it right after this returns
+    public static RawFrame copyOf(Image image, CaptureResult capture_result, FrameBufferPool pool) {
+        ByteBuffer buffer = pool.acquire();
+        if (buffer == null) return null;
+        RawFrame frame = new RawFrame(pool, buffer);
+        frame.copyFrom(image, capture_result);
+        return frame;
+    }
+
+    // single copy of the image plane into this frame's buffer, dropping any row padding, moves the
+    // plane buffer's position and limit rather than allocating views, the image is closed right after
+    public void copyFrom(Image image, CaptureResult capture_result) {
+        if (image.getFormat() != ImageFormat.RAW_SENSOR) {
+            throw new IllegalArgumentException("Not a RAW_SENSOR image: " + image.getFormat());
+        }
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer source = plane.getBuffer();
+        int row_stride = plane.getRowStride();
+        int row_bytes = image.getWidth() * 2;
+        int base = source.position();
+        buffer.clear();
+        if (row_stride == row_bytes) {
+            source.limit(base + row_bytes * image.getHeight());
+            buffer.put(source);
+        }
+        else {
+            for (int y = 0; y < image.getHeight(); y++) {
+                int start = base + y * row_stride;
+                // limit first, a row can start past the previous limit
+                source.limit(start + row_bytes);
+                source.position(start);
+                buffer.put(source);
+            }
+        }
+        buffer.flip();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.timestamp = image.getTimestamp();
+        this.capture_result = capture_result;
+    }
+
+    public ByteBuffer getBuffer() {return buffer;}
+
+    public int getWidth() {return width;}
+
+    public int getHeight() {return height;}
+
+    public int getRowStride() {return width * 2;}
+
+    public long getTimestamp() {return timestamp;}
+
+    public CaptureResult getCaptureResult() {return capture_result;}
+
+    // hands the buffer back to the pool, the frame must not be used afterwards
+    public void release() {
+        if (buffer == null) return;
+        pool.release(buffer);
+        buffer = null;
+        capture_result = null;
+    }
+}
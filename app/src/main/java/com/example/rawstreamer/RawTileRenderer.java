@@ -0,0 +1,244 @@
+package com.example.rawstreamer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+renders square tiles of a DNG written by DngWriter at any of a pyramid of levels without ever
+demosaicing the whole frame, level 0 is full resolution through the bilinear path, level n above
+that bins 2^(n-1) quads per pixel so every level halves the one below, a tile only reads the
+sensor data under it, plus a 2 pixel margin at level 0 so bilinear edges match the neighbours,
+coarse levels are binned a band of rows at a time so scratch memory depends on the frame width
+and never on its height, lossless JPEG tiles are decoded on demand and the last few are kept
+ */
+public class RawTileRenderer {
+    public static final int TILE_SIZE = 256;
+    private static final int MARGIN = 2;
+    // sensor rows per band when binning
+    private static final int BAND_ROWS = 256;
+    private static final int RAW_TILE_CACHE = 16;
+
+    private final DemosaicEngine engine;
+    private final int width;
+    private final int height;
+    // full row width of an uncompressed strip, may be one more than width
+    private final int stored_width;
+    private final int compression;
+    private final int cfa_pattern;
+    // the uncompressed strip, or the lossless JPEG tiles, as slices of the mapping
+    private final ByteBuffer strip;
+    private final int raw_tile_width;
+    private final int raw_tile_height;
+    private final int raw_tiles_across;
+    private final ByteBuffer[] raw_tile_data;
+    private final int level_count;
+
+    private final LosslessJpegDecoder decoder = new LosslessJpegDecoder();
+    private final Map<Integer, short[]> raw_tiles = new LinkedHashMap<Integer, short[]>(RAW_TILE_CACHE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, short[]> eldest) {
+            return size() > RAW_TILE_CACHE;
+        }
+    };
+    private int raw_tile_sample_width;
+    private ByteBuffer region = ByteBuffer.allocateDirect(0);
+    private int[] region_argb = new int[0];
+
+    public RawTileRenderer(ForkJoinPool fork_join_pool, File source) throws IOException {
+        this(fork_join_pool, new DngReader(source));
+    }
+
+    public RawTileRenderer(ForkJoinPool fork_join_pool, DngReader reader) throws IOException {
+        int raw_ifd = reader.findRawIfd();
+        if (raw_ifd < 0) throw new IOException("No raw image");
+        if (reader.getLong(raw_ifd, DngWriter.TAG_BITS_PER_SAMPLE, 0, 0) != 16) {
+            throw new IOException("Raw image isn't 16 bit CFA data");
+        }
+        stored_width = reader.getInt(raw_ifd, DngWriter.TAG_IMAGE_WIDTH, 0, 0);
+        // demosaicing works on whole quads
+        width = stored_width & ~1;
+        height = reader.getInt(raw_ifd, DngWriter.TAG_IMAGE_LENGTH, 0, 0) & ~1;
+        if (width < 2 || height < 2) throw new IOException("Raw image too small");
+        compression = reader.getInt(raw_ifd, DngWriter.TAG_COMPRESSION, 0, DngWriter.COMPRESSION_NONE);
+        if (compression == DngWriter.COMPRESSION_LOSSLESS_JPEG) {
+            raw_tile_width = reader.getInt(raw_ifd, DngWriter.TAG_TILE_WIDTH, 0, 0);
+            raw_tile_height = reader.getInt(raw_ifd, DngWriter.TAG_TILE_LENGTH, 0, 0);
+            if (raw_tile_width <= 0 || raw_tile_height <= 0) throw new IOException("Missing tile size");
+            raw_tiles_across = (stored_width + raw_tile_width - 1) / raw_tile_width;
+            raw_tile_data = new ByteBuffer[raw_tiles_across * ((height + raw_tile_height - 1) / raw_tile_height)];
+            for (int i = 0; i < raw_tile_data.length; i++) {
+                raw_tile_data[i] = reader.getTile(raw_ifd, i);
+                if (raw_tile_data[i] == null) throw new IOException("Bad tile " + i);
+            }
+            strip = null;
+        }
+        else if (compression == DngWriter.COMPRESSION_NONE) {
+            // samples are copied as they are, and the engine reads little-endian
+            if (reader.getByteOrder() != ByteOrder.LITTLE_ENDIAN) throw new IOException("Big-endian strip");
+            strip = reader.getStrip(raw_ifd, 0);
+            if (strip == null || strip.capacity() < (long) stored_width * height * 2) throw new IOException("Bad strip");
+            raw_tile_width = 0;
+            raw_tile_height = 0;
+            raw_tiles_across = 0;
+            raw_tile_data = null;
+        }
+        else {
+            throw new IOException("Unsupported compression " + compression);
+        }
+
+        cfa_pattern = cfaPattern(reader, raw_ifd);
+        engine = new DemosaicEngine(fork_join_pool);
+        engine.setCfaPattern(cfa_pattern);
+        int[] black_levels = new int[4];
+        for (int i = 0; i < 4; i++) black_levels[i] = reader.getInt(raw_ifd, DngWriter.TAG_BLACK_LEVEL, i, 0);
+        engine.setLevels(black_levels, reader.getInt(raw_ifd, DngWriter.TAG_WHITE_LEVEL, 0, 65535));
+        // camera tags stay in IFD0 when the raw image is a SubIFD
+        int main_ifd = reader.getIfd(0);
+        double red = reader.getRational(main_ifd, DngWriter.TAG_AS_SHOT_NEUTRAL, 0, 0);
+        double green = reader.getRational(main_ifd, DngWriter.TAG_AS_SHOT_NEUTRAL, 1, 0);
+        double blue = reader.getRational(main_ifd, DngWriter.TAG_AS_SHOT_NEUTRAL, 2, 0);
+        if (red > 0 && green > 0 && blue > 0) engine.setWhiteBalance((float) (green / red), 1, (float) (green / blue));
+
+        // levels stop once the whole frame fits a tile
+        int levels = 1;
+        while (levels <= 7 && Math.max(getLevelWidth(levels - 1), getLevelHeight(levels - 1)) > TILE_SIZE
+                && getLevelWidth(levels) > 0 && getLevelHeight(levels) > 0) {
+            levels++;
+        }
+        level_count = levels;
+    }
+
+    public int getWidth() {return width;}
+
+    public int getHeight() {return height;}
+
+    // CFA layout of the file as a SENSOR_INFO_COLOR_FILTER_ARRANGEMENT value
+    public int getCfaPattern() {return cfa_pattern;}
+
+    public int getLevelCount() {return level_count;}
+
+    public int getLevelWidth(int level) {return level == 0 ? width : DemosaicEngine.getBinnedSize(width, 1 << (level - 1));}
+
+    public int getLevelHeight(int level) {return level == 0 ? height : DemosaicEngine.getBinnedSize(height, 1 << (level - 1));}
+
+    public int getTilesAcross(int level) {return (getLevelWidth(level) + TILE_SIZE - 1) / TILE_SIZE;}
+
+    public int getTilesDown(int level) {return (getLevelHeight(level) + TILE_SIZE - 1) / TILE_SIZE;}
+
+    public int getTileWidth(int level, int tile_x) {return Math.min(TILE_SIZE, getLevelWidth(level) - tile_x * TILE_SIZE);}
+
+    public int getTileHeight(int level, int tile_y) {return Math.min(TILE_SIZE, getLevelHeight(level) - tile_y * TILE_SIZE);}
+
+    /*
+    renders a tile into argb with rows TILE_SIZE apart, argb must hold TILE_SIZE * TILE_SIZE pixels,
+    only getTileWidth() by getTileHeight() of them are written
+     */
+    public synchronized void render(int level, int tile_x, int tile_y, int[] argb) throws IOException {
+        if (level < 0 || level >= level_count || tile_x < 0 || tile_y < 0
+                || tile_x >= getTilesAcross(level) || tile_y >= getTilesDown(level)) {
+            throw new IllegalArgumentException("No tile " + tile_x + "," + tile_y + " at level " + level);
+        }
+        if (argb.length < TILE_SIZE * TILE_SIZE) throw new IllegalArgumentException("Output too small");
+        int output_x = tile_x * TILE_SIZE;
+        int output_y = tile_y * TILE_SIZE;
+        int tile_width = getTileWidth(level, tile_x);
+        int tile_height = getTileHeight(level, tile_y);
+        if (level == 0) {
+            int x0 = Math.max(0, output_x - MARGIN);
+            int y0 = Math.max(0, output_y - MARGIN);
+            int region_width = Math.min(width, output_x + tile_width + MARGIN) - x0;
+            int region_height = Math.min(height, output_y + tile_height + MARGIN) - y0;
+            readRegion(x0, y0, region_width, region_height);
+            if (region_argb.length < region_width * region_height) region_argb = new int[region_width * region_height];
+            engine.demosaic(region, region_width, region_height, region_width * 2, DemosaicEngine.MODE_BILINEAR, region_argb);
+            for (int y = 0; y < tile_height; y++) {
+                System.arraycopy(region_argb, (output_y - y0 + y) * region_width + output_x - x0, argb, y * TILE_SIZE, tile_width);
+            }
+            return;
+        }
+        int bin = 1 << (level - 1);
+        int step = bin * 2;
+        int band = Math.max(1, BAND_ROWS / step);
+        int region_width = tile_width * step;
+        if (region_argb.length < tile_width * band) region_argb = new int[tile_width * band];
+        for (int row = 0; row < tile_height; row += band) {
+            int rows = Math.min(band, tile_height - row);
+            readRegion(output_x * step, (output_y + row) * step, region_width, rows * step);
+            engine.bin(region, region_width, rows * step, region_width * 2, bin, region_argb);
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(region_argb, y * tile_width, argb, (row + y) * TILE_SIZE, tile_width);
+            }
+        }
+    }
+
+    // copies sensor samples x0, y0 to x0 + w, y0 + h into the region buffer, rows packed
+    private void readRegion(int x0, int y0, int w, int h) throws IOException {
+        int bytes = w * h * 2;
+        if (region.capacity() < bytes) region = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        region.clear();
+        if (compression == DngWriter.COMPRESSION_NONE) {
+            ByteBuffer row = strip.duplicate();
+            for (int y = 0; y < h; y++) {
+                int offset = ((y0 + y) * stored_width + x0) * 2;
+                row.limit(offset + w * 2).position(offset);
+                region.put(row);
+            }
+            region.clear();
+            return;
+        }
+        ShortBuffer samples = region.asShortBuffer();
+        int first_tile_x = x0 / raw_tile_width;
+        int last_tile_x = (x0 + w - 1) / raw_tile_width;
+        int first_tile_y = y0 / raw_tile_height;
+        int last_tile_y = (y0 + h - 1) / raw_tile_height;
+        for (int tile_y = first_tile_y; tile_y <= last_tile_y; tile_y++) {
+            for (int tile_x = first_tile_x; tile_x <= last_tile_x; tile_x++) {
+                short[] tile = rawTile(tile_y * raw_tiles_across + tile_x);
+                int tile_x0 = tile_x * raw_tile_width;
+                int tile_y0 = tile_y * raw_tile_height;
+                int from_x = Math.max(x0, tile_x0);
+                int to_x = Math.min(x0 + w, tile_x0 + raw_tile_width);
+                int from_y = Math.max(y0, tile_y0);
+                int to_y = Math.min(y0 + h, tile_y0 + raw_tile_height);
+                for (int y = from_y; y < to_y; y++) {
+                    samples.position((y - y0) * w + from_x - x0);
+                    samples.put(tile, (y - tile_y0) * raw_tile_sample_width + from_x - tile_x0, to_x - from_x);
+                }
+            }
+        }
+        region.clear();
+    }
+
+    // decoded samples of a lossless JPEG tile, raw_tile_sample_width per row
+    private short[] rawTile(int index) throws IOException {
+        short[] tile = raw_tiles.get(index);
+        if (tile != null) return tile;
+        decoder.decode(raw_tile_data[index].duplicate());
+        if (decoder.getSampleWidth() < raw_tile_width || decoder.getHeight() < raw_tile_height) {
+            throw new IOException("Tile " + index + " is " + decoder.getSampleWidth() + "x" + decoder.getHeight());
+        }
+        raw_tile_sample_width = decoder.getSampleWidth();
+        tile = Arrays.copyOf(decoder.getSamples(), raw_tile_sample_width * raw_tile_height);
+        raw_tiles.put(index, tile);
+        return tile;
+    }
+
+    // maps the CFAPattern tag back to a layout, RGGB if it's missing or unknown
+    private static int cfaPattern(DngReader reader, int ifd) {
+        if (reader.getCount(ifd, DngWriter.TAG_CFA_PATTERN) != 4) return DngMetadata.CFA_RGGB;
+        for (int pattern = DngMetadata.CFA_RGGB; pattern <= DngMetadata.CFA_BGGR; pattern++) {
+            byte[] colours = DngMetadata.cfaColors(pattern);
+            boolean matches = true;
+            for (int i = 0; i < 4; i++) matches &= reader.getLong(ifd, DngWriter.TAG_CFA_PATTERN, i, -1) == colours[i];
+            if (matches) return pattern;
+        }
+        return DngMetadata.CFA_RGGB;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.rawstreamer;
+
+import android.hardware.camera2.CaptureRequest;
+
+import java.util.Arrays;
+
+/*
+coalesces live control changes (zoom ratio, AE target FPS range, later exposure and focus) into the
+repeating preview request, a posted value only replaces the pending value of its key, so a slider
+dragged across many steps between two frames costs one request with the latest value, the first
+change after a frame is submitted straight away and later ones wait for the next frame to start, so
+at most one request goes to the camera per sensor frame, submitting replaces the repeating request
+in place and never stops it
+
+the request a change went out in is remembered, when its first frame starts the time from the
+oldest change it carries to that frame's start of exposure is recorded as the update latency, all
+times are in the sensor timestamp's clock, every method is synchronized so edits to the request
+builder made while holding the scheduler's lock never race a submit
+ */
+public class RequestUpdateScheduler {
+
+    // what the scheduler drives, in the app the preview request builder and the capture session
+    public interface Target {
+        // sets a value on the request builder
+        void set(Object key, Object value);
+
+        // builds the request and sets it repeating, returns the submitted request, or null when there
+        // is no session to submit to (the builder still keeps the values) or the submit failed
+        Object submit();
+    }
+
+    private final Target target;
+    // pending values, key i of pending_count is waiting to be set
+    private Object[] pending_keys = new Object[4];
+    private Object[] pending_values = new Object[4];
+    private int pending_count;
+    // sensor clock time of the oldest pending change
+    private long pending_since_ns;
+    // a request has gone out since the last frame started
+    private boolean submitted_this_frame;
+    // the latest request carrying changes whose first frame hasn't started yet
+    private Object awaiting_request;
+    private long awaiting_since_ns;
+
+    private final FrameHistogram update_latency = new FrameHistogram();
+    private long posted;
+    private long submitted;
+    // requests per second is measured between two summaries
+    private long last_summary_ns = -1;
+    private long last_summary_submitted;
+
+    public RequestUpdateScheduler(Target target) {
+        this.target = target;
+    }
+
+    public <T> void post(CaptureRequest.Key<T> key, T value, long now_ns) {postValue(key, value, now_ns);}
+
+    // replaces any pending value of the key, submits now unless a request already went out this frame
+    synchronized void postValue(Object key, Object value, long now_ns) {
+        posted++;
+        int index = 0;
+        while (index < pending_count && !pending_keys[index].equals(key)) index++;
+        if (index == pending_count) {
+            if (pending_count == pending_keys.length) {
+                pending_keys = Arrays.copyOf(pending_keys, pending_count * 2);
+                pending_values = Arrays.copyOf(pending_values, pending_count * 2);
+            }
+            if (pending_count == 0) pending_since_ns = now_ns;
+            pending_keys[pending_count++] = key;
+        }
+        pending_values[index] = value;
+        if (!submitted_this_frame) submitPending();
+    }
+
+    // submits the request as it stands with anything pending applied, for session and output changes
+    // that must go out whatever the frame gate says
+    public synchronized void submit() {
+        submitPending();
+    }
+
+    // from onCaptureStarted of the repeating request, timestamp is the frame's sensor timestamp
+    public synchronized void frameStarted(Object request, long timestamp) {
+        if (awaiting_request != null && request == awaiting_request) {
+            update_latency.record(timestamp - awaiting_since_ns);
+            awaiting_request = null;
+        }
+        submitted_this_frame = false;
+        if (pending_count > 0) submitPending();
+    }
+
+    private void submitPending() {
+        boolean changes = pending_count > 0;
+        for (int i = 0; i < pending_count; i++) {
+            target.set(pending_keys[i], pending_values[i]);
+            pending_keys[i] = null;
+            pending_values[i] = null;
+        }
+        pending_count = 0;
+        Object request = target.submit();
+        if (request == null) return;
+        submitted++;
+        submitted_this_frame = true;
+        // a request replacing one that never reached a frame carries its changes too, and still owes
+        // the older change its latency
+        if (changes && awaiting_request == null) awaiting_since_ns = pending_since_ns;
+        if (changes || awaiting_request != null) awaiting_request = request;
+    }
+
+    // forgets pending values and the frame gate, for a new session, counters are kept
+    public synchronized void reset() {
+        Arrays.fill(pending_keys, 0, pending_count, null);
+        Arrays.fill(pending_values, 0, pending_count, null);
+        pending_count = 0;
+        submitted_this_frame = false;
+        awaiting_request = null;
+    }
+
+    public synchronized long getPostedCount() {return posted;}
+
+    public synchronized long getSubmittedCount() {return submitted;}
+
+    public FrameHistogram getUpdateLatency() {return update_latency;}
+
+    // requests per second since the previous summary, posted changes and the update latency, times in ms
+    public synchronized void appendSummary(StringBuilder out, long now_ns) {
+        // hundredths of a request per second
+        long rate = 0;
+        if (last_summary_ns >= 0 && now_ns > last_summary_ns) {
+            rate = (submitted - last_summary_submitted) * 100000000000L / (now_ns - last_summary_ns);
+        }
+        last_summary_ns = now_ns;
+        last_summary_submitted = submitted;
+        out.append("requests ").append(rate / 100).append('.').append(rate / 10 % 10).append(rate % 10)
+                .append("/s submitted ").append(submitted).append(" posted ").append(posted);
+        out.append("\n  update p50 ");
+        FrameMetrics.appendMillis(out, update_latency.getPercentile(0.5));
+        out.append(" p99 ");
+        FrameMetrics.appendMillis(out, update_latency.getPercentile(0.99));
+        out.append(" max ");
+        FrameMetrics.appendMillis(out, update_latency.getMax());
+    }
+}
@@ -0,0 +1,355 @@
+package com.example.rawstreamer;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.RggbChannelVector;
+import android.util.Range;
+import android.util.Rational;
+
+import java.util.Arrays;
+
+/*
+finds which capture result values changed since the previous result, every registered key owns a
+fixed run of long slots holding its last value, a diff reads each key, compares its value slot by
+slot while overwriting it and lists the keys that changed in a reusable index buffer, so once keys
+are registered a diff allocates nothing beyond the boxed values camera2 hands out anyway, keys are
+registered through a method for their value type instead of being inspected with reflection, the
+first result reports every key it has, one instance belongs to the camera callback thread and must
+not be shared with any other thread since diffs overwrite the stored values without locking
+ */
+public class ResultDiffEngine {
+    static final int KIND_INT = 0;
+    static final int KIND_LONG = 1;
+    static final int KIND_FLOAT = 2;
+    static final int KIND_BOOLEAN = 3;
+    static final int KIND_INT_ARRAY = 4;
+    static final int KIND_FLOAT_ARRAY = 5;
+    static final int KIND_RECT = 6;
+    static final int KIND_INT_RANGE = 7;
+    static final int KIND_GAINS = 8;
+    static final int KIND_RATIONAL_ARRAY = 9;
+    static final int KIND_TRANSFORM = 10;
+    static final int KIND_METERING_ARRAY = 11;
+    // element count of a key the last result didn't have
+    static final int ABSENT = -1;
+    private static final int TRANSFORM_VALUES = 18;
+    private static final int METERING_VALUES = 5;
+
+    private Object[] keys = new Object[16];
+    private String[] names = new String[16];
+    private int[] kinds = new int[16];
+    private int[] offsets = new int[16];
+    private int[] capacities = new int[16];
+    private int[] lengths = new int[16];
+    private int key_count;
+    private long[] slots = new long[64];
+    private int slot_count;
+    private int[] changed = new int[16];
+    private int changed_count;
+    private final int[] transform_scratch = new int[TRANSFORM_VALUES];
+    // the key being read, its next slot, end of its slots and whether anything differed so far
+    private int position;
+    private int end;
+    private boolean value_changed;
+
+    // the keys worth watching on a preview stream, settings and 3A state rather than statistics
+    public static ResultDiffEngine withDefaultKeys() {
+        ResultDiffEngine engine = new ResultDiffEngine();
+        engine.addInt(CaptureResult.CONTROL_MODE);
+        engine.addInt(CaptureResult.CONTROL_AE_MODE);
+        engine.addInt(CaptureResult.CONTROL_AE_STATE);
+        engine.addBoolean(CaptureResult.CONTROL_AE_LOCK);
+        engine.addInt(CaptureResult.CONTROL_AE_EXPOSURE_COMPENSATION);
+        engine.addInt(CaptureResult.CONTROL_AE_ANTIBANDING_MODE);
+        engine.addIntRange(CaptureResult.CONTROL_AE_TARGET_FPS_RANGE);
+        engine.addMeteringRegions(CaptureResult.CONTROL_AE_REGIONS, 4);
+        engine.addInt(CaptureResult.CONTROL_AF_MODE);
+        engine.addInt(CaptureResult.CONTROL_AF_STATE);
+        engine.addMeteringRegions(CaptureResult.CONTROL_AF_REGIONS, 4);
+        engine.addInt(CaptureResult.CONTROL_AWB_MODE);
+        engine.addInt(CaptureResult.CONTROL_AWB_STATE);
+        engine.addBoolean(CaptureResult.CONTROL_AWB_LOCK);
+        engine.addInt(CaptureResult.CONTROL_SCENE_MODE);
+        engine.addInt(CaptureResult.CONTROL_VIDEO_STABILIZATION_MODE);
+        engine.addFloat(CaptureResult.CONTROL_ZOOM_RATIO);
+        engine.addLong(CaptureResult.SENSOR_EXPOSURE_TIME);
+        engine.addInt(CaptureResult.SENSOR_SENSITIVITY);
+        engine.addLong(CaptureResult.SENSOR_FRAME_DURATION);
+        engine.addRationalArray(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT, 3);
+        engine.addFloat(CaptureResult.LENS_APERTURE);
+        engine.addFloat(CaptureResult.LENS_FOCAL_LENGTH);
+        engine.addFloat(CaptureResult.LENS_FOCUS_DISTANCE);
+        engine.addInt(CaptureResult.LENS_STATE);
+        engine.addInt(CaptureResult.LENS_OPTICAL_STABILIZATION_MODE);
+        engine.addInt(CaptureResult.COLOR_CORRECTION_MODE);
+        engine.addGains(CaptureResult.COLOR_CORRECTION_GAINS);
+        engine.addTransform(CaptureResult.COLOR_CORRECTION_TRANSFORM);
+        engine.addInt(CaptureResult.NOISE_REDUCTION_MODE);
+        engine.addInt(CaptureResult.EDGE_MODE);
+        engine.addInt(CaptureResult.TONEMAP_MODE);
+        engine.addInt(CaptureResult.FLASH_STATE);
+        engine.addInt(CaptureResult.STATISTICS_FACE_DETECT_MODE);
+        engine.addInt(CaptureResult.STATISTICS_SCENE_FLICKER);
+        engine.addRect(CaptureResult.SCALER_CROP_REGION);
+        return engine;
+    }
+
+    // registration, each returns the key's index, arrays keep their first max_length elements
+    public int addInt(CaptureResult.Key<Integer> key) {return register(key, key.getName(), KIND_INT, 1);}
+
+    public int addLong(CaptureResult.Key<Long> key) {return register(key, key.getName(), KIND_LONG, 1);}
+
+    public int addFloat(CaptureResult.Key<Float> key) {return register(key, key.getName(), KIND_FLOAT, 1);}
+
+    public int addBoolean(CaptureResult.Key<Boolean> key) {return register(key, key.getName(), KIND_BOOLEAN, 1);}
+
+    public int addIntArray(CaptureResult.Key<int[]> key, int max_length) {
+        return register(key, key.getName(), KIND_INT_ARRAY, max_length);
+    }
+
+    public int addFloatArray(CaptureResult.Key<float[]> key, int max_length) {
+        return register(key, key.getName(), KIND_FLOAT_ARRAY, max_length);
+    }
+
+    public int addRect(CaptureResult.Key<Rect> key) {return register(key, key.getName(), KIND_RECT, 4);}
+
+    public int addIntRange(CaptureResult.Key<Range<Integer>> key) {return register(key, key.getName(), KIND_INT_RANGE, 2);}
+
+    public int addGains(CaptureResult.Key<RggbChannelVector> key) {return register(key, key.getName(), KIND_GAINS, 4);}
+
+    public int addRationalArray(CaptureResult.Key<Rational[]> key, int max_length) {
+        return register(key, key.getName(), KIND_RATIONAL_ARRAY, max_length * 2);
+    }
+
+    public int addTransform(CaptureResult.Key<ColorSpaceTransform> key) {
+        return register(key, key.getName(), KIND_TRANSFORM, TRANSFORM_VALUES);
+    }
+
+    public int addMeteringRegions(CaptureResult.Key<MeteringRectangle[]> key, int max_regions) {
+        return register(key, key.getName(), KIND_METERING_ARRAY, max_regions * METERING_VALUES);
+    }
+
+    int register(Object key, String name, int kind, int slot_capacity) {
+        if (key_count == keys.length) {
+            int grown = keys.length * 2;
+            keys = Arrays.copyOf(keys, grown);
+            names = Arrays.copyOf(names, grown);
+            kinds = Arrays.copyOf(kinds, grown);
+            offsets = Arrays.copyOf(offsets, grown);
+            capacities = Arrays.copyOf(capacities, grown);
+            lengths = Arrays.copyOf(lengths, grown);
+            changed = Arrays.copyOf(changed, grown);
+        }
+        if (slot_count + slot_capacity > slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, slot_count + slot_capacity));
+        }
+        keys[key_count] = key;
+        names[key_count] = name;
+        kinds[key_count] = kind;
+        offsets[key_count] = slot_count;
+        capacities[key_count] = slot_capacity;
+        lengths[key_count] = ABSENT;
+        slot_count += slot_capacity;
+        return key_count++;
+    }
+
+    // compares a result with the previous one, returns how many keys changed
+    public int diff(CaptureResult result) {
+        begin();
+        for (int i = 0; i < key_count; i++) offer(i, result.get((CaptureResult.Key<?>) keys[i]));
+        return changed_count;
+    }
+
+    // forgets every value, the next diff reports all keys present again
+    public void reset() {
+        Arrays.fill(lengths, 0, key_count, ABSENT);
+        Arrays.fill(slots, 0, slot_count, 0);
+        changed_count = 0;
+    }
+
+    void begin() {
+        changed_count = 0;
+    }
+
+    // takes a key's value from the current result, null when the result doesn't have it
+    void offer(int index, Object value) {
+        position = offsets[index];
+        end = position + capacities[index];
+        value_changed = false;
+        int length = 1;
+        if (value == null) {
+            length = ABSENT;
+        }
+        else {
+            switch (kinds[index]) {
+                case KIND_INT:
+                    put((Integer) value);
+                    break;
+                case KIND_LONG:
+                    put((Long) value);
+                    break;
+                case KIND_FLOAT:
+                    putFloat((Float) value);
+                    break;
+                case KIND_BOOLEAN:
+                    put((Boolean) value ? 1 : 0);
+                    break;
+                case KIND_INT_ARRAY:
+                    int[] ints = (int[]) value;
+                    for (int element : ints) put(element);
+                    length = ints.length;
+                    break;
+                case KIND_FLOAT_ARRAY:
+                    float[] floats = (float[]) value;
+                    for (float element : floats) putFloat(element);
+                    length = floats.length;
+                    break;
+                case KIND_RECT:
+                    Rect rect = (Rect) value;
+                    put(rect.left);
+                    put(rect.top);
+                    put(rect.right);
+                    put(rect.bottom);
+                    break;
+                case KIND_INT_RANGE:
+                    Range<?> range = (Range<?>) value;
+                    put((Integer) range.getLower());
+                    put((Integer) range.getUpper());
+                    break;
+                case KIND_GAINS:
+                    RggbChannelVector gains = (RggbChannelVector) value;
+                    putFloat(gains.getRed());
+                    putFloat(gains.getGreenEven());
+                    putFloat(gains.getGreenOdd());
+                    putFloat(gains.getBlue());
+                    break;
+                case KIND_RATIONAL_ARRAY:
+                    Rational[] rationals = (Rational[]) value;
+                    for (Rational rational : rationals) {
+                        put(rational.getNumerator());
+                        put(rational.getDenominator());
+                    }
+                    length = rationals.length;
+                    break;
+                case KIND_TRANSFORM:
+                    ((ColorSpaceTransform) value).copyElements(transform_scratch, 0);
+                    for (int element : transform_scratch) put(element);
+                    break;
+                case KIND_METERING_ARRAY:
+                    MeteringRectangle[] regions = (MeteringRectangle[]) value;
+                    for (MeteringRectangle region : regions) {
+                        put(region.getX());
+                        put(region.getY());
+                        put(region.getWidth());
+                        put(region.getHeight());
+                        put(region.getMeteringWeight());
+                    }
+                    length = regions.length;
+                    break;
+            }
+        }
+        // a new length is a change even when the kept elements match
+        if (length != lengths[index]) value_changed = true;
+        lengths[index] = length;
+        if (value_changed) changed[changed_count++] = index;
+    }
+
+    // values past a key's capacity are dropped, its length still tells a longer array apart
+    private void put(long value) {
+        if (position < end && slots[position] != value) {
+            slots[position] = value;
+            value_changed = true;
+        }
+        position++;
+    }
+
+    // by bits, so a NaN that stays NaN isn't a change
+    private void putFloat(float value) {
+        put(Float.floatToIntBits(value));
+    }
+
+    public int getKeyCount() {return key_count;}
+
+    public String getName(int index) {return names[index];}
+
+    public int getChangedCount() {return changed_count;}
+
+    // index of the i'th key that changed in the last diff, in registration order
+    public int getChangedIndex(int i) {return changed[i];}
+
+    public CaptureResult.Key<?> getChangedKey(int i) {return (CaptureResult.Key<?>) keys[changed[i]];}
+
+    // elements the last result had for a key, 1 for single values, ABSENT if it had none
+    public int getLength(int index) {return lengths[index];}
+
+    // raw slot of a key's stored value, floats are their int bits
+    public long getSlot(int index, int slot) {
+        if (slot < 0 || slot >= capacities[index]) throw new IndexOutOfBoundsException("Slot " + slot);
+        return slots[offsets[index] + slot];
+    }
+
+    // every changed key as "name: value" lines, only StringBuilder appends, no formatting
+    public void appendChanges(StringBuilder out) {
+        for (int i = 0; i < changed_count; i++) {
+            int index = changed[i];
+            out.append(names[index]).append(": ");
+            appendValue(index, out);
+            out.append('\n');
+        }
+    }
+
+    public void appendValue(int index, StringBuilder out) {
+        int length = lengths[index];
+        if (length == ABSENT) {
+            out.append("null");
+            return;
+        }
+        int offset = offsets[index];
+        int kind = kinds[index];
+        switch (kind) {
+            case KIND_INT:
+            case KIND_LONG:
+                out.append(slots[offset]);
+                return;
+            case KIND_FLOAT:
+                out.append(Float.intBitsToFloat((int) slots[offset]));
+                return;
+            case KIND_BOOLEAN:
+                out.append(slots[offset] != 0);
+                return;
+        }
+        // everything else is a bracketed list of elements
+        // rationals are numerator and denominator slots
+        boolean rational = kind == KIND_RATIONAL_ARRAY || kind == KIND_TRANSFORM;
+        int per_element = rational ? 2 : kind == KIND_METERING_ARRAY ? METERING_VALUES : 1;
+        int values = kind == KIND_INT_ARRAY || kind == KIND_FLOAT_ARRAY || kind == KIND_RATIONAL_ARRAY
+                || kind == KIND_METERING_ARRAY ? length * per_element : capacities[index];
+        int shown = Math.min(values, capacities[index]);
+        out.append('[');
+        for (int i = 0; i < shown; i += per_element) {
+            if (i > 0) out.append(", ");
+            long value = slots[offset + i];
+            if (kind == KIND_FLOAT_ARRAY || kind == KIND_GAINS) {
+                out.append(Float.intBitsToFloat((int) value));
+            }
+            else if (rational) {
+                out.append(value).append('/').append(slots[offset + i + 1]);
+            }
+            else if (kind == KIND_METERING_ARRAY) {
+                out.append('(');
+                for (int j = 0; j < METERING_VALUES; j++) {
+                    if (j > 0) out.append(", ");
+                    out.append(slots[offset + i + j]);
+                }
+                out.append(')');
+            }
+            else {
+                out.append(value);
+            }
+        }
+        if (shown < values) out.append(", ...");
+        out.append(']');
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.rawstreamer;
+
+/*
+frame synchronous zoom animator, the slider picks a step of the zoom table and pinch scales the
+target freely between the table's ends, either only moves the target, the ratio sent to the camera
+follows it once per frame from the capture callback, covering a fixed share of the remaining
+distance in log zoom per unit of time, so a 1x to 2x move looks the same as 5x to 10x, fast at first
+and easing into the target however far it is and whatever the frame rate
+
+the table is a float[] built once per camera, targets are set from the UI thread and steps run on
+the camera thread, every step is a few float ops with no allocation
+ */
+public class SmoothZoom {
+    // the remaining distance shrinks by e every time constant, about 95% is covered in 3
+    public static final long DEFAULT_TIME_CONSTANT_NS = 90000000L;
+    // longer gaps between frames (a stall) count as this
+    private static final long MAX_STEP_NS = 100000000L;
+    // close enough in log zoom (0.05%) to land on the target
+    private static final double SETTLE_DISTANCE = 0.0005;
+
+    private final float[] ratios;
+    private final float min_ratio;
+    private final float max_ratio;
+    private final long time_constant_ns;
+    private float current;
+    private float target;
+    private long last_step_ns = -1;
+
+    public SmoothZoom(float[] ratios) {
+        this(ratios, DEFAULT_TIME_CONSTANT_NS);
+    }
+
+    // ratios is the non-decreasing zoom table, from CameraMath.buildZoomRatios()
+    public SmoothZoom(float[] ratios, long time_constant_ns) {
+        if (ratios.length == 0) throw new IllegalArgumentException("Empty zoom table");
+        this.ratios = ratios.clone();
+        this.time_constant_ns = time_constant_ns;
+        min_ratio = this.ratios[0];
+        max_ratio = this.ratios[this.ratios.length - 1];
+        current = target = clamp(1.0f);
+    }
+
+    public int getStepCount() {return ratios.length;}
+
+    public float getRatio(int index) {return ratios[index];}
+
+    public float getMinRatio() {return min_ratio;}
+
+    public float getMaxRatio() {return max_ratio;}
+
+    // index of the table step closest to ratio in log zoom, the first of equal steps
+    public int nearestIndex(float ratio) {
+        int low = 0;
+        int high = ratios.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ratios[middle] < ratio) low = middle + 1;
+            else high = middle;
+        }
+        if (low > 0 && ratio * ratio < ratios[low] * ratios[low - 1]) low--;
+        while (low > 0 && ratios[low - 1] == ratios[low]) low--;
+        return low;
+    }
+
+    // slider, targets a step of the table, clamped to the table
+    public synchronized void setTargetIndex(int index) {
+        target = ratios[Math.max(0, Math.min(ratios.length - 1, index))];
+    }
+
+    // pinch, scales the target by a gesture's scale factor
+    public synchronized void scaleTarget(float factor) {
+        if (factor > 0) target = clamp(target * factor);
+    }
+
+    // moves straight to ratio without animating, e.g. when a new session starts
+    public synchronized void jumpTo(float ratio) {
+        current = target = clamp(ratio);
+    }
+
+    public synchronized float getCurrentRatio() {return current;}
+
+    public synchronized float getTargetRatio() {return target;}
+
+    public synchronized boolean isSettled() {return current == target;}
+
+    /*
+    moves the current ratio towards the target for a frame with the given sensor timestamp, call it
+    for every frame, returns whether the current ratio changed and so needs sending to the camera
+     */
+    public synchronized boolean step(long timestamp) {
+        // the first frame only sets the clock, as does one from before the last (a new session)
+        long elapsed = last_step_ns < 0 ? 0 : Math.min(MAX_STEP_NS, Math.max(0, timestamp - last_step_ns));
+        last_step_ns = timestamp;
+        if (current == target) return false;
+        double distance = Math.log(target / current);
+        if (Math.abs(distance) <= SETTLE_DISTANCE) {
+            current = target;
+            return true;
+        }
+        double moved = distance * -Math.expm1(-(double) elapsed / time_constant_ns);
+        if (moved == 0) return false;
+        float next = clamp((float) (current * Math.exp(moved)));
+        if (next == current) next = target;
+        current = next;
+        return true;
+    }
+
+    private float clamp(float ratio) {
+        return Math.max(min_ratio, Math.min(max_ratio, ratio));
+    }
+}
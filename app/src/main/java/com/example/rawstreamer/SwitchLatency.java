@@ -0,0 +1,122 @@
+package com.example.rawstreamer;
+
+import java.util.Arrays;
+
+/*
+end to end timing of camera switches, from the tap to the first completed frame of the new camera
+or lens, a facing or logical ID switch goes through closing the old device, opening the new one and
+configuring its session, a lens handover inside a logical multi-camera only needs a new request, so
+does coming back to the preview tab while the session is kept (warm), otherwise (cold) the camera
+is opened again, the time of every phase reached is kept so the last switch can be broken down
+
+the switch is done once a frame of the first request submitted after the session is configured (a
+later one replacing it before any frame carries the switch too) completes, taps come from the UI
+thread and everything else from the camera thread, so every method is synchronized, times are in
+elapsedRealtimeNanos whichever clock the sensors use
+ */
+public class SwitchLatency {
+    public static final int KIND_FACING = 0;
+    public static final int KIND_LOGICAL = 1;
+    public static final int KIND_LENS = 2;
+    // back to the preview tab, on the running session or with the camera opened again
+    public static final int KIND_TAB_WARM = 3;
+    public static final int KIND_TAB_COLD = 4;
+    private static final String[] KIND_NAMES = {"facing", "logical", "lens", "tab warm", "tab cold"};
+
+    public static final int PHASE_TAP = 0;
+    public static final int PHASE_CLOSED = 1;
+    public static final int PHASE_OPENED = 2;
+    public static final int PHASE_CONFIGURED = 3;
+    public static final int PHASE_FIRST_FRAME = 4;
+    private static final String[] PHASE_NAMES = {"tap", "close", "open", "session", "frame"};
+
+    private final FrameHistogram[] totals = new FrameHistogram[KIND_NAMES.length];
+    // the switch in flight, kind -1 when there is none
+    private int kind = -1;
+    private int phase;
+    private final long[] phase_ns = new long[PHASE_NAMES.length];
+    private Object switch_request;
+    // the last finished switch, phases it skipped are -1
+    private int last_kind = -1;
+    private final long[] last_phase_ns = new long[PHASE_NAMES.length];
+    private long superseded;
+
+    public SwitchLatency() {
+        for (int i = 0; i < totals.length; i++) totals[i] = new FrameHistogram();
+    }
+
+    // a tap, a switch still in flight is superseded and not recorded
+    public synchronized void begin(int kind, long now_ns) {
+        if (this.kind >= 0) superseded++;
+        this.kind = kind;
+        phase = PHASE_TAP;
+        Arrays.fill(phase_ns, -1);
+        phase_ns[PHASE_TAP] = now_ns;
+        switch_request = null;
+    }
+
+    // the switch couldn't go ahead
+    public synchronized void cancel() {
+        kind = -1;
+        switch_request = null;
+    }
+
+    // a phase of the switch in flight is done, phases only move forward
+    public synchronized void mark(int phase, long now_ns) {
+        if (kind < 0 || phase <= this.phase || phase >= PHASE_FIRST_FRAME) return;
+        this.phase = phase;
+        phase_ns[phase] = now_ns;
+    }
+
+    // from the preview's submit, remembers the request carrying the switch
+    public synchronized void requestSubmitted(Object request) {
+        if (kind >= 0 && phase == PHASE_CONFIGURED) switch_request = request;
+    }
+
+    // from onCaptureCompleted of the preview, returns whether this frame finished the switch
+    public synchronized boolean frameCompleted(Object request, long now_ns) {
+        if (kind < 0 || switch_request == null || request != switch_request) return false;
+        phase_ns[PHASE_FIRST_FRAME] = now_ns;
+        totals[kind].record(now_ns - phase_ns[PHASE_TAP]);
+        last_kind = kind;
+        System.arraycopy(phase_ns, 0, last_phase_ns, 0, phase_ns.length);
+        kind = -1;
+        switch_request = null;
+        return true;
+    }
+
+    public synchronized boolean isPending() {return kind >= 0;}
+
+    public FrameHistogram getTotal(int kind) {return totals[kind];}
+
+    public synchronized long getSupersededCount() {return superseded;}
+
+    // tap to first frame per kind of switch and the phases of the last one, times in ms
+    public synchronized void appendSummary(StringBuilder out) {
+        out.append("switches");
+        boolean any = false;
+        for (int i = 0; i < totals.length; i++) {
+            FrameHistogram total = totals[i];
+            if (total.getCount() == 0) continue;
+            any = true;
+            out.append("\n  ").append(KIND_NAMES[i]).append(" n ").append(total.getCount()).append(" p50 ");
+            FrameMetrics.appendMillis(out, total.getPercentile(0.5));
+            out.append(" p99 ");
+            FrameMetrics.appendMillis(out, total.getPercentile(0.99));
+            out.append(" max ");
+            FrameMetrics.appendMillis(out, total.getMax());
+        }
+        if (!any) {
+            out.append(" none");
+            return;
+        }
+        out.append("\n  last ").append(KIND_NAMES[last_kind]);
+        long previous = last_phase_ns[PHASE_TAP];
+        for (int i = PHASE_CLOSED; i < last_phase_ns.length; i++) {
+            if (last_phase_ns[i] < 0) continue;
+            out.append(' ').append(PHASE_NAMES[i]).append(' ');
+            FrameMetrics.appendMillis(out, last_phase_ns[i] - previous);
+            previous = last_phase_ns[i];
+        }
+    }
+}
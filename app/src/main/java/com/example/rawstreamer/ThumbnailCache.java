@@ -0,0 +1,137 @@
+package com.example.rawstreamer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.Executor;
+
+/*
+two level thumbnail cache for the gallery, decoded bitmaps live in a memory LRU bounded by their
+byte size, encoded thumbnails live on disk across runs in a ThumbnailPack, both are keyed by the
+source's path, size and mtime so a rewritten file never shows a stale thumbnail, getCached() only
+touches memory and is safe to call while binding views, load() may read and decode files and
+belongs on a worker, if the pack can't be opened thumbnails are only cached in memory, sharper
+upgrades for cells bigger than a thumbnail are decoded on demand and only kept in a smaller LRU
+of their own
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+    // small enough that a fling decodes them faster than they scroll past, the upgrade fills the cell
+    public static final int THUMBNAIL_SIZE = 160;
+    private static final int JPEG_QUALITY = 85;
+
+    private final LruCache<String, Bitmap> memory_cache;
+    private final LruCache<String, Bitmap> upgrade_cache;
+    private final ThumbnailPack disk_cache;
+
+    // a quarter of memory_bytes goes to upgrades
+    public ThumbnailCache(File pack_file, int memory_bytes, Executor compaction_executor) {
+        memory_cache = new BitmapLruCache(memory_bytes - memory_bytes / 4);
+        upgrade_cache = new BitmapLruCache(memory_bytes / 4);
+        ThumbnailPack pack = null;
+        try {
+            pack = new ThumbnailPack(pack_file, compaction_executor);
+            if (pack.wasDiscarded()) Log.d(TAG, "Discarded damaged thumbnail pack " + pack_file);
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't open thumbnail pack: " + e);
+        }
+        disk_cache = pack;
+    }
+
+    // memory cache key, includes everything that invalidates a thumbnail
+    public static String key(File file, long length, long modified) {
+        return file.getPath() + '|' + length + '|' + modified;
+    }
+
+    private static class BitmapLruCache extends LruCache<String, Bitmap> {
+        BitmapLruCache(int max_bytes) {
+            super(max_bytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    }
+
+    public Bitmap getCached(String key) {
+        return memory_cache.get(key);
+    }
+
+    public Bitmap getCachedUpgrade(String key) {
+        return upgrade_cache.get(key);
+    }
+
+    // thumbnail of file, from memory, disk or the file itself in that order, null if it can't be read
+    public Bitmap load(File file, long length, long modified) {
+        String key = key(file, length, modified);
+        Bitmap bitmap = memory_cache.get(key);
+        if (bitmap != null) return bitmap;
+        byte[] encoded = disk_cache != null ? disk_cache.get(file, length, modified) : null;
+        if (encoded != null) bitmap = BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
+        if (bitmap == null) {
+            bitmap = decode(file, THUMBNAIL_SIZE);
+            if (bitmap == null) return null;
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            if (disk_cache != null && bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output)) {
+                disk_cache.put(file, length, modified, output.toByteArray());
+            }
+        }
+        memory_cache.put(key, bitmap);
+        return bitmap;
+    }
+
+    // file decoded to fit size, which should be over THUMBNAIL_SIZE, never stored on disk
+    public Bitmap loadUpgrade(File file, long length, long modified, int size) {
+        String key = key(file, length, modified);
+        Bitmap bitmap = upgrade_cache.get(key);
+        if (bitmap != null) return bitmap;
+        bitmap = decode(file, size);
+        if (bitmap != null) upgrade_cache.put(key, bitmap);
+        return bitmap;
+    }
+
+    public void clearMemory() {
+        memory_cache.evictAll();
+        upgrade_cache.evictAll();
+    }
+
+    // drops the memory caches and closes the pack, loads still running afterwards only decode
+    public void close() {
+        clearMemory();
+        if (disk_cache == null) return;
+        Log.d(TAG, "Closing thumbnail pack, " + disk_cache.getEntryCount() + " entries, "
+                + disk_cache.getCompactionCount() + " compactions");
+        try {
+            disk_cache.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't close thumbnail pack: " + e);
+        }
+    }
+
+    // the embedded preview when there is one, otherwise let the platform decoder subsample the raw
+    private static Bitmap decode(File file, int size) {
+        try {
+            DngThumbnail thumbnail = DngThumbnail.decode(file, size);
+            if (thumbnail != null) {
+                return Bitmap.createBitmap(thumbnail.argb, thumbnail.width, thumbnail.height, Bitmap.Config.ARGB_8888);
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+            int sample_size = 1;
+            while (Math.max(options.outWidth, options.outHeight) / (sample_size * 2) >= size) sample_size *= 2;
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sample_size;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't decode " + file + ": " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.rawstreamer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+schedules gallery decodes on a bounded pool whose queue is ordered by where each item sits
+relative to the screen, visible cells first in reading order, then cells the scroll is heading
+towards, then a row or so behind, every time the visible window moves the queue is reordered and
+anything that fell out of the prefetch range is cancelled, the prefetch range reaches further
+ahead the faster the grid is moving, a submit for a position and level that is already queued
+is ignored, the queued one does the same work and gets reprioritised with the window
+ */
+public class ThumbnailLoader {
+    public static final int LEVEL_THUMBNAIL = 0;
+    public static final int LEVEL_UPGRADE = 1;
+    // cells kept ahead of the scroll direction when still, and how far ahead velocity reaches
+    private static final int BASE_PREFETCH = 8;
+    private static final float PREFETCH_SECONDS = 0.5f;
+    private static final int MAX_PREFETCH = 256;
+    private static final int BEHIND = 4;
+
+    private final ThreadPoolExecutor executor;
+    private final Map<Long, Task> tasks = new HashMap<>();
+    private final List<Runnable> reordered = new ArrayList<>();
+    private long sequence;
+    private int first_visible;
+    private int last_visible = -1;
+    private int ahead = BASE_PREFETCH;
+    private int behind = BEHIND;
+    private int direction = 1;
+
+    public ThumbnailLoader(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+        executor.prestartAllCoreThreads();
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final long key;
+        private final int position;
+        private final int level;
+        private final Runnable work;
+        private final long order = sequence++;
+        private int priority;
+        private volatile boolean cancelled;
+
+        Task(long key, int position, int level, Runnable work) {
+            this.key = key;
+            this.position = position;
+            this.level = level;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ThumbnailLoader.this) {
+                if (tasks.get(key) == this) tasks.remove(key);
+            }
+            if (!cancelled) work.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) return Integer.compare(priority, other.priority);
+            return Long.compare(order, other.order);
+        }
+    }
+
+    // queues work for a position unless some is already queued for it at this level, work that
+    // falls outside the prefetch range is dropped straight away
+    public synchronized void submit(int position, int level, Runnable work) {
+        if (executor.isShutdown()) return;
+        int priority = priority(position, level);
+        if (priority < 0) return;
+        long key = (long) position << 1 | level;
+        if (tasks.containsKey(key)) return;
+        Task task = new Task(key, position, level, work);
+        task.priority = priority;
+        tasks.put(key, task);
+        executor.execute(task);
+    }
+
+    public synchronized void cancel(int position, int level) {
+        Task task = tasks.remove((long) position << 1 | level);
+        if (task == null) return;
+        task.cancelled = true;
+        executor.remove(task);
+    }
+
+    public synchronized void cancelAll() {
+        for (Task task : tasks.values()) task.cancelled = true;
+        tasks.clear();
+        executor.getQueue().clear();
+    }
+
+    /*
+    moves the window to the cells first to last now on screen, velocity in cells per second with
+    positive meaning towards higher positions, queued work is reprioritised and work outside the
+    new prefetch range cancelled
+     */
+    public synchronized void setWindow(int first, int last, float velocity) {
+        first_visible = first;
+        last_visible = last;
+        if (velocity != 0) direction = velocity > 0 ? 1 : -1;
+        ahead = Math.min(MAX_PREFETCH, BASE_PREFETCH + (int) (Math.abs(velocity) * PREFETCH_SECONDS));
+        behind = BEHIND;
+        reordered.clear();
+        executor.getQueue().drainTo(reordered);
+        for (Runnable runnable : reordered) {
+            Task task = (Task) runnable;
+            task.priority = priority(task.position, task.level);
+            if (task.priority < 0) {
+                task.cancelled = true;
+                if (tasks.get(task.key) == task) tasks.remove(task.key);
+            }
+            else {
+                executor.getQueue().add(task);
+            }
+        }
+        reordered.clear();
+    }
+
+    // first position worth prefetching ahead of the window, and one past the last
+    public synchronized int getPrefetchStart() {
+        return direction > 0 ? last_visible + 1 : Math.max(0, first_visible - ahead);
+    }
+
+    public synchronized int getPrefetchEnd() {
+        return direction > 0 ? last_visible + 1 + ahead : first_visible;
+    }
+
+    /*
+    lower runs sooner, -1 outside the prefetch range, visible cells go in reading order, then cells
+    ahead by distance, then cells behind, upgrades only matter on screen and come after everything
+    visible at the thumbnail level
+     */
+    synchronized int priority(int position, int level) {
+        // nothing laid out yet, take everything in order
+        if (last_visible < first_visible) return level == LEVEL_UPGRADE ? -1 : position;
+        int visible = last_visible - first_visible + 1;
+        if (position >= first_visible && position <= last_visible) {
+            return level == LEVEL_UPGRADE ? visible + position - first_visible : position - first_visible;
+        }
+        if (level == LEVEL_UPGRADE) return -1;
+        int distance_ahead = direction > 0 ? position - last_visible : first_visible - position;
+        int distance_behind = direction > 0 ? first_visible - position : position - last_visible;
+        if (distance_ahead > 0 && distance_ahead <= ahead) return visible * 2 + distance_ahead;
+        if (distance_behind > 0 && distance_behind <= behind) return visible * 2 + ahead + distance_behind;
+        return -1;
+    }
+
+    public void shutdown() {
+        cancelAll();
+        executor.shutdownNow();
+    }
+}
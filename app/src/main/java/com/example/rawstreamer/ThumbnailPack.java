@@ -0,0 +1,446 @@
+package com.example.rawstreamer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+/*
+persistent thumbnail store in a single memory mapped file, a fixed header, then an index of
+fixed size entries sorted by key, then the payload region thumbnails are appended to, an entry is
+the 64 bit hash of the source's path, the source's size and mtime, and where its payload is, so a
+lookup is a binary search straight over the mapping without creating any objects, replacing or
+removing a thumbnail leaves its old payload behind as stale bytes, once enough of the payload
+region is stale the pack is compacted into a fresh file on the executor while lookups and puts
+carry on, the header's dirty flag is set while the index is being changed so a pack left behind
+mid update by a killed process is thrown away rather than trusted
+ */
+public class ThumbnailPack {
+    private static final String TAG = "ThumbnailPack";
+    private static final int MAGIC = 0x314b5054;
+    private static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int ENTRY_SIZE = 40;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_COUNT = 12;
+    private static final int HEADER_PAYLOAD_END = 16;
+    private static final int HEADER_STALE_BYTES = 24;
+    private static final int HEADER_DIRTY = 32;
+    private static final int ENTRY_KEY = 0;
+    private static final int ENTRY_LENGTH = 8;
+    private static final int ENTRY_MODIFIED = 16;
+    private static final int ENTRY_OFFSET = 24;
+    private static final int ENTRY_PAYLOAD_LENGTH = 32;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_PAYLOAD_BYTES = 1 << 20;
+    private static final long DEFAULT_COMPACTION_BYTES = 4 << 20;
+
+    private final File file;
+    private final Executor compaction_executor;
+    private RandomAccessFile access;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private long payload_end;
+    private long stale_bytes;
+    // bumped whenever the file is replaced, a compaction that started before then is dropped
+    private int generation;
+    private boolean compacting;
+    private long compactions;
+    // the file on disk was damaged (or unreadable) when opened and was started over
+    private boolean discarded;
+    private boolean closed;
+    private long compaction_threshold = DEFAULT_COMPACTION_BYTES;
+    private byte[] move_scratch = new byte[INITIAL_CAPACITY * ENTRY_SIZE];
+
+    public ThumbnailPack(File file, Executor compaction_executor) throws IOException {
+        this.file = file;
+        this.compaction_executor = compaction_executor;
+        open();
+    }
+
+    // 64 bit FNV-1a of the path, collisions between a few thousand paths are not a concern
+    public static long key(File source) {
+        String path = source.getPath();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // compaction starts once this many payload bytes, and at least a quarter of them, are stale
+    public synchronized void setCompactionThreshold(long bytes) {this.compaction_threshold = bytes;}
+
+    public synchronized int getEntryCount() {return count;}
+
+    public synchronized long getStaleBytes() {return stale_bytes;}
+
+    public synchronized long getFileSize() {return buffer.capacity();}
+
+    public synchronized long getCompactionCount() {return compactions;}
+
+    public synchronized boolean wasDiscarded() {return discarded;}
+
+    // payload stored for source at this size and mtime, otherwise null
+    public synchronized byte[] get(File source, long length, long modified) {
+        if (closed) return null;
+        int slot = find(key(source));
+        if (slot < 0) return null;
+        int entry = HEADER_SIZE + slot * ENTRY_SIZE;
+        if (buffer.getLong(entry + ENTRY_LENGTH) != length || buffer.getLong(entry + ENTRY_MODIFIED) != modified) {
+            return null;
+        }
+        byte[] payload = new byte[buffer.getInt(entry + ENTRY_PAYLOAD_LENGTH)];
+        ByteBuffer source_bytes = buffer.duplicate();
+        source_bytes.position((int) buffer.getLong(entry + ENTRY_OFFSET));
+        source_bytes.get(payload);
+        return payload;
+    }
+
+    // appends payload as the thumbnail of source at this size and mtime, replacing any older one
+    public synchronized void put(File source, long length, long modified, byte[] payload) {
+        if (closed) return;
+        try {
+            long key = key(source);
+            int slot = find(key);
+            if (slot < 0 && count == capacity) {
+                rebuild(capacity * 2);
+                slot = find(key);
+            }
+            ensurePayloadSpace(payload.length);
+            long offset = payload_end;
+            ByteBuffer destination = buffer.duplicate();
+            destination.position((int) offset);
+            destination.put(payload);
+            setDirty(true);
+            if (slot >= 0) {
+                stale_bytes += buffer.getInt(HEADER_SIZE + slot * ENTRY_SIZE + ENTRY_PAYLOAD_LENGTH);
+            }
+            else {
+                slot = -slot - 1;
+                moveEntries(slot, slot + 1, count - slot);
+                count++;
+            }
+            writeEntry(buffer, slot, key, length, modified, offset, payload.length);
+            payload_end = offset + payload.length;
+            writeHeader(buffer);
+            maybeCompact();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't store thumbnail of " + source + ": " + e);
+        }
+    }
+
+    public synchronized void remove(File source) {
+        if (closed) return;
+        int slot = find(key(source));
+        if (slot < 0) return;
+        setDirty(true);
+        stale_bytes += buffer.getInt(HEADER_SIZE + slot * ENTRY_SIZE + ENTRY_PAYLOAD_LENGTH);
+        moveEntries(slot + 1, slot, count - slot - 1);
+        count--;
+        writeHeader(buffer);
+        maybeCompact();
+    }
+
+    // closes the file (the mapping goes away with the buffer), lookups miss and puts are dropped from
+    // then on, a compaction still running is dropped like after a rebuild
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        generation++;
+        channel.close();
+        access.close();
+    }
+
+    // binary search of the mapped index, the slot holding key or -(insertion point) - 1
+    private int find(long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middle_key = buffer.getLong(HEADER_SIZE + middle * ENTRY_SIZE + ENTRY_KEY);
+            if (middle_key < key) low = middle + 1;
+            else if (middle_key > key) high = middle - 1;
+            else return middle;
+        }
+        return -low - 1;
+    }
+
+    private void moveEntries(int from, int to, int entries) {
+        if (entries <= 0) return;
+        int bytes = entries * ENTRY_SIZE;
+        // the regions overlap, so copy through scratch rather than relying on put() doing a memmove
+        if (move_scratch.length < bytes) move_scratch = new byte[Math.max(bytes, move_scratch.length * 2)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(HEADER_SIZE + from * ENTRY_SIZE);
+        source.get(move_scratch, 0, bytes);
+        ByteBuffer destination = buffer.duplicate();
+        destination.position(HEADER_SIZE + to * ENTRY_SIZE);
+        destination.put(move_scratch, 0, bytes);
+    }
+
+    // grows the file so payload_bytes more fit after payload_end, at least doubling it
+    private void ensurePayloadSpace(int payload_bytes) throws IOException {
+        long needed = payload_end + payload_bytes;
+        if (needed <= buffer.capacity()) return;
+        long size = Math.max(needed, buffer.capacity() * 2L);
+        if (size > Integer.MAX_VALUE) throw new IOException("Thumbnail pack full");
+        access.setLength(size);
+        buffer = map(channel, size);
+    }
+
+    private void maybeCompact() {
+        if (compacting || stale_bytes < compaction_threshold || stale_bytes * 4 < payload_end - payloadStart(capacity)) return;
+        compacting = true;
+        int started_generation = generation;
+        compaction_executor.execute(() -> compact(started_generation));
+    }
+
+    /*
+    copies every live payload into a new file without holding the lock, then takes the lock again
+    to carry over whatever was put in the meantime and swap the new file in, a pack that was
+    replaced in between by a rebuild makes this a no op
+     */
+    private void compact(int started_generation) {
+        Snapshot snapshot;
+        synchronized (this) {
+            if (generation != started_generation) {
+                compacting = false;
+                return;
+            }
+            snapshot = new Snapshot();
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            snapshot.write(temporary);
+            synchronized (this) {
+                if (generation == started_generation) {
+                    finishRebuild(snapshot, temporary);
+                    compactions++;
+                }
+            }
+        } catch (Exception e) {
+            // runs on the executor, nothing above it would catch this
+            Log.e(TAG, "Couldn't compact " + file + ": " + e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            if (temporary.exists()) temporary.delete();
+        }
+    }
+
+    // synchronous rebuild, used when the index is full
+    private void rebuild(int new_capacity) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        snapshot.capacity = new_capacity;
+        File temporary = new File(file.getPath() + ".tmp");
+        snapshot.write(temporary);
+        finishRebuild(snapshot, temporary);
+    }
+
+    // live entries as they were when it was taken, and where their payloads went in the new file
+    private class Snapshot {
+        // duplicates come back big endian, only bulk copies go through this one
+        private final ByteBuffer source = buffer.duplicate();
+        private final int entries = count;
+        private final long[] keys = new long[count];
+        private final long[] offsets = new long[count];
+        private final int[] lengths = new int[count];
+        private final long[] new_offsets = new long[count];
+        private int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, count)) * 2);
+        private RandomAccessFile target_access;
+        private MappedByteBuffer target;
+        private long target_end;
+
+        Snapshot() {
+            for (int i = 0; i < count; i++) {
+                keys[i] = buffer.getLong(HEADER_SIZE + i * ENTRY_SIZE + ENTRY_KEY);
+                offsets[i] = buffer.getLong(HEADER_SIZE + i * ENTRY_SIZE + ENTRY_OFFSET);
+                lengths[i] = buffer.getInt(HEADER_SIZE + i * ENTRY_SIZE + ENTRY_PAYLOAD_LENGTH);
+            }
+        }
+
+        void write(File temporary) throws IOException {
+            long live_bytes = 0;
+            for (int i = 0; i < entries; i++) live_bytes += lengths[i];
+            long size = payloadStart(capacity) + Math.max(INITIAL_PAYLOAD_BYTES, live_bytes + live_bytes / 2);
+            if (size > Integer.MAX_VALUE) throw new IOException("Thumbnail pack full");
+            temporary.delete();
+            target_access = new RandomAccessFile(temporary, "rw");
+            target_access.setLength(size);
+            target = map(target_access.getChannel(), size);
+            target_end = payloadStart(capacity);
+            for (int i = 0; i < entries; i++) {
+                new_offsets[i] = target_end;
+                target_end = copyPayload(source, offsets[i], lengths[i]);
+            }
+        }
+
+        // copies a payload to the end of the new file, growing it if needed, returns the new end
+        long copyPayload(ByteBuffer from, long offset, int length) throws IOException {
+            if (target_end + length > target.capacity()) {
+                long size = Math.max(target_end + length, target.capacity() * 2L);
+                if (size > Integer.MAX_VALUE) throw new IOException("Thumbnail pack full");
+                target_access.setLength(size);
+                target = map(target_access.getChannel(), size);
+            }
+            ByteBuffer payload = from.duplicate();
+            payload.limit((int) (offset + length)).position((int) offset);
+            ByteBuffer destination = target.duplicate();
+            destination.position((int) target_end);
+            destination.put(payload);
+            return target_end + length;
+        }
+
+        // new offset of an entry the snapshot copied, -1 if it is newer than the snapshot
+        long newOffset(long key, long offset) {
+            int low = 0;
+            int high = entries - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < key) low = middle + 1;
+                else if (keys[middle] > key) high = middle - 1;
+                else return offsets[middle] == offset ? new_offsets[middle] : -1;
+            }
+            return -1;
+        }
+    }
+
+    // writes the current index into the snapshot's file, copying newer payloads, and swaps it in
+    private void finishRebuild(Snapshot snapshot, File temporary) throws IOException {
+        try {
+            for (int i = 0; i < count; i++) {
+                int entry = HEADER_SIZE + i * ENTRY_SIZE;
+                long key = buffer.getLong(entry + ENTRY_KEY);
+                long offset = buffer.getLong(entry + ENTRY_OFFSET);
+                int length = buffer.getInt(entry + ENTRY_PAYLOAD_LENGTH);
+                long new_offset = snapshot.newOffset(key, offset);
+                if (new_offset < 0) {
+                    new_offset = snapshot.target_end;
+                    snapshot.target_end = snapshot.copyPayload(buffer, offset, length);
+                }
+                writeEntry(snapshot.target, i, key, buffer.getLong(entry + ENTRY_LENGTH),
+                        buffer.getLong(entry + ENTRY_MODIFIED), new_offset, length);
+            }
+            capacity = snapshot.capacity;
+            payload_end = snapshot.target_end;
+            stale_bytes = 0;
+            writeHeader(snapshot.target);
+            snapshot.target.force();
+        } finally {
+            snapshot.target_access.close();
+        }
+        channel.close();
+        access.close();
+        boolean replaced = temporary.renameTo(file);
+        if (replaced) generation++;
+        try {
+            // the old file is still in place when the rename failed, it is mapped again and kept
+            openFile();
+        } catch (IOException e) {
+            // nothing is mapped any more, the pack behaves as if closed
+            closed = true;
+            generation++;
+            access.close();
+            throw e;
+        }
+        if (!replaced) throw new IOException("Couldn't replace " + file);
+    }
+
+    private void open() throws IOException {
+        // left behind by a compaction that never finished
+        new File(file.getPath() + ".tmp").delete();
+        try {
+            if (file.length() >= HEADER_SIZE) {
+                openFile();
+                if (validHeader()) return;
+                discarded = true;
+                channel.close();
+                access.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open " + file + ": " + e);
+            discarded = true;
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) Log.e(TAG, "Couldn't create " + parent);
+        file.delete();
+        capacity = INITIAL_CAPACITY;
+        count = 0;
+        payload_end = payloadStart(capacity);
+        stale_bytes = 0;
+        try (RandomAccessFile created = new RandomAccessFile(file, "rw")) {
+            created.setLength(payload_end + INITIAL_PAYLOAD_BYTES);
+            writeHeader(map(created.getChannel(), created.length()));
+        }
+        openFile();
+    }
+
+    // maps the file and reads its header into the fields
+    private void openFile() throws IOException {
+        access = new RandomAccessFile(file, "rw");
+        channel = access.getChannel();
+        buffer = map(channel, channel.size());
+        capacity = buffer.getInt(HEADER_CAPACITY);
+        count = buffer.getInt(HEADER_COUNT);
+        payload_end = buffer.getLong(HEADER_PAYLOAD_END);
+        stale_bytes = buffer.getLong(HEADER_STALE_BYTES);
+    }
+
+    private boolean validHeader() {
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION) return false;
+        if (buffer.getInt(HEADER_DIRTY) != 0) return false;
+        if (capacity <= 0 || count < 0 || count > capacity) return false;
+        long payload_start = payloadStart(capacity);
+        return payload_end >= payload_start && payload_end <= buffer.capacity() && stale_bytes >= 0;
+    }
+
+    private static long payloadStart(int capacity) {
+        return HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+    }
+
+    private void setDirty(boolean dirty) {
+        buffer.putInt(HEADER_DIRTY, dirty ? 1 : 0);
+    }
+
+    // header for the current fields, also clears the dirty flag
+    private void writeHeader(ByteBuffer target) {
+        target.putInt(HEADER_MAGIC, MAGIC);
+        target.putInt(HEADER_VERSION, VERSION);
+        target.putInt(HEADER_CAPACITY, capacity);
+        target.putInt(HEADER_COUNT, count);
+        target.putLong(HEADER_PAYLOAD_END, payload_end);
+        target.putLong(HEADER_STALE_BYTES, stale_bytes);
+        target.putInt(HEADER_DIRTY, 0);
+    }
+
+    private static void writeEntry(ByteBuffer target, int slot, long key, long length, long modified, long offset,
+                                   int payload_length) {
+        int entry = HEADER_SIZE + slot * ENTRY_SIZE;
+        target.putLong(entry + ENTRY_KEY, key);
+        target.putLong(entry + ENTRY_LENGTH, length);
+        target.putLong(entry + ENTRY_MODIFIED, modified);
+        target.putLong(entry + ENTRY_OFFSET, offset);
+        target.putInt(entry + ENTRY_PAYLOAD_LENGTH, payload_length);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long size) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        return mapped;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// a single TIFF image file directory, entries are kept sorted by tag as TIFF requires and values
+// are stored already encoded little-endian so serializing is a straight copy
+public class TiffIfd {
+
+    // TIFF field types
+    public static final int TYPE_BYTE = 1;
+    public static final int TYPE_ASCII = 2;
+    public static final int TYPE_SHORT = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_RATIONAL = 5;
+    public static final int TYPE_UNDEFINED = 7;
+    public static final int TYPE_SRATIONAL = 10;
+
+    // tag (2) + type (2) + count (4) + value or offset (4)
+    public static final int ENTRY_SIZE = 12;
+    // rationals are written over a fixed denominator, fine enough for 1/8000 s exposures
+    private static final int RATIONAL_DENOMINATOR = 1000000;
+    private static final double RATIONAL_MAX = Integer.MAX_VALUE / (double) RATIONAL_DENOMINATOR;
+
+    private static class Entry {
+        final int tag;
+        final int type;
+        final int count;
+        final byte[] data;
+
+        Entry(int tag, int type, int count, byte[] data) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.data = data;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public void putBytes(int tag, int type, byte... values) {
+        put(tag, type, values.length, values.clone());
+    }
+
+    public void putShort(int tag, int... values) {
+        ByteBuffer data = allocate(values.length * 2);
+        for (int value : values) data.putShort((short) value);
+        put(tag, TYPE_SHORT, values.length, data.array());
+    }
+
+    // unsigned 32 bit values
+    public void putLong(int tag, long... values) {
+        ByteBuffer data = allocate(values.length * 4);
+        for (long value : values) data.putInt((int) value);
+        put(tag, TYPE_LONG, values.length, data.array());
+    }
+
+    public void putRational(int tag, double... values) {
+        ByteBuffer data = allocate(values.length * 8);
+        for (double value : values) putRationalValue(data, Math.max(0, value));
+        put(tag, TYPE_RATIONAL, values.length, data.array());
+    }
+
+    public void putSRational(int tag, double... values) {
+        ByteBuffer data = allocate(values.length * 8);
+        for (double value : values) putRationalValue(data, value);
+        put(tag, TYPE_SRATIONAL, values.length, data.array());
+    }
+
+    // values too large for the fixed denominator are stored as whole numbers
+    private static void putRationalValue(ByteBuffer data, double value) {
+        if (Math.abs(value) < RATIONAL_MAX) {
+            data.putInt((int) Math.round(value * RATIONAL_DENOMINATOR));
+            data.putInt(RATIONAL_DENOMINATOR);
+        }
+        else {
+            data.putInt((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(value))));
+            data.putInt(1);
+        }
+    }
+
+    // null terminated ASCII
+    public void putAscii(int tag, String value) {
+        byte[] chars = value.getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[chars.length + 1];
+        System.arraycopy(chars, 0, data, 0, chars.length);
+        put(tag, TYPE_ASCII, data.length, data);
+    }
+
+    // adds or replaces the entry for a tag, keeping entries sorted by tag
+    private void put(int tag, int type, int count, byte[] data) {
+        int index = 0;
+        while (index < entries.size() && entries.get(index).tag < tag) index++;
+        Entry entry = new Entry(tag, type, count, data);
+        if (index < entries.size() && entries.get(index).tag == tag) {
+            entries.set(index, entry);
+        }
+        else {
+            entries.add(index, entry);
+        }
+    }
+
+    public boolean contains(int tag) {
+        return find(tag) != null;
+    }
+
+    public int getEntryCount() {return entries.size();}
+
+    // total bytes of the directory including out-of-line values, always even
+    public int getByteSize() {
+        int size = 2 + entries.size() * ENTRY_SIZE + 4;
+        for (Entry entry : entries) {
+            if (entry.data.length > 4) size += (entry.data.length + 1) & ~1;
+        }
+        return size;
+    }
+
+    /*
+    writes the directory at the buffer's position, which must correspond to file offset ifd_offset,
+    values that don't fit in an entry follow the entry table, next_ifd_offset is 0 for the last
+    directory in the chain
+     */
+    public void write(ByteBuffer out, long ifd_offset, long next_ifd_offset) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        int entry_position = out.position();
+        int value_position = entry_position + 2 + entries.size() * ENTRY_SIZE + 4;
+        long value_offset = ifd_offset + (value_position - entry_position);
+
+        out.putShort(entry_position, (short) entries.size());
+        entry_position += 2;
+        for (Entry entry : entries) {
+            out.putShort(entry_position, (short) entry.tag);
+            out.putShort(entry_position + 2, (short) entry.type);
+            out.putInt(entry_position + 4, entry.count);
+            if (entry.data.length <= 4) {
+                // small values are stored inline, left justified
+                out.putInt(entry_position + 8, 0);
+                for (int i = 0; i < entry.data.length; i++) out.put(entry_position + 8 + i, entry.data[i]);
+            }
+            else {
+                out.putInt(entry_position + 8, (int) value_offset);
+                int padded = (entry.data.length + 1) & ~1;
+                for (int i = 0; i < entry.data.length; i++) out.put(value_position + i, entry.data[i]);
+                if (padded != entry.data.length) out.put(value_position + entry.data.length, (byte) 0);
+                value_offset += padded;
+                value_position += padded;
+            }
+            entry_position += ENTRY_SIZE;
+        }
+        out.putInt(entry_position, (int) next_ifd_offset);
+        out.position(value_position);
+        out.order(order);
+    }
+
+    private Entry find(int tag) {
+        for (Entry entry : entries) {
+            if (entry.tag == tag) return entry;
+        }
+        return null;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.rawstreamer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/*
+pan and zoom view over a RawTileRenderer, each frame picks the coarsest level that still has at
+least one level pixel per screen pixel and draws the tiles of that level under the screen, tiles
+that aren't rendered yet are drawn from the nearest coarser level already in the cache and queued
+for the worker, which skips them if they have scrolled off or the level changed by the time it
+gets to them, rendered tiles live in a byte bounded LRU keyed by file, level and tile so memory
+stays the same whatever the sensor size
+ */
+public class TiledImageView extends View {
+    private static final String TAG = "TiledImageView";
+    private static final int CACHE_BYTES = 48 << 20;
+    // how far past 1:1 the view zooms in
+    private static final float MAX_SCALE = 8;
+    // per worker thread, tiles are copied into a bitmap straight away
+    private static final ThreadLocal<int[]> render_argb =
+            ThreadLocal.withInitial(() -> new int[RawTileRenderer.TILE_SIZE * RawTileRenderer.TILE_SIZE]);
+
+    private final LruCache<Long, Bitmap> tile_cache = new LruCache<Long, Bitmap>(CACHE_BYTES) {
+        @Override
+        protected int sizeOf(Long key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+    private final Set<Long> pending = new HashSet<>();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect source_rect = new Rect();
+    private final RectF destination_rect = new RectF();
+    private final ScaleGestureDetector scale_detector;
+    private final GestureDetector gesture_detector;
+
+    private volatile RawTileRenderer renderer;
+    private int file_id;
+    private ExecutorService render_executor;
+    // screen = sensor * scale + offset
+    private float scale;
+    private float offset_x;
+    private float offset_y;
+    // what the last frame showed, read by the worker to drop stale requests
+    private volatile int visible_level = -1;
+    private volatile int visible_x0;
+    private volatile int visible_y0;
+    private volatile int visible_x1;
+    private volatile int visible_y1;
+
+    public TiledImageView(Context context, AttributeSet attributes) {
+        super(context, attributes);
+        scale_detector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoom(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        gesture_detector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onScroll(MotionEvent first, MotionEvent current, float distance_x, float distance_y) {
+                offset_x -= distance_x;
+                offset_y -= distance_y;
+                clampOffset();
+                postInvalidateOnAnimation();
+                return true;
+            }
+
+            // toggles between fitting the frame and 1:1 around the tap
+            @Override
+            public boolean onDoubleTap(MotionEvent event) {
+                float fit = fitScale();
+                zoom(scale > fit * 1.01f ? fit / scale : 1 / scale, event.getX(), event.getY());
+                return true;
+            }
+        });
+    }
+
+    // file_id only has to differ between files open at the same time, renders run on render_executor
+    public void setSource(RawTileRenderer renderer, int file_id, ExecutorService render_executor) {
+        this.renderer = renderer;
+        this.file_id = file_id;
+        this.render_executor = render_executor;
+        synchronized (pending) {
+            pending.clear();
+        }
+        scale = 0;
+        invalidate();
+    }
+
+    public void clearCache() {
+        tile_cache.evictAll();
+    }
+
+    private static long tileKey(int file_id, int level, int tile_x, int tile_y) {
+        return (long) file_id << 40 | (long) level << 36 | (long) tile_y << 18 | tile_x;
+    }
+
+    private float fitScale() {
+        return Math.min(getWidth() / (float) renderer.getWidth(), getHeight() / (float) renderer.getHeight());
+    }
+
+    private void zoom(float factor, float focus_x, float focus_y) {
+        if (renderer == null) return;
+        float new_scale = Math.max(fitScale(), Math.min(MAX_SCALE, scale * factor));
+        factor = new_scale / scale;
+        offset_x = focus_x - (focus_x - offset_x) * factor;
+        offset_y = focus_y - (focus_y - offset_y) * factor;
+        scale = new_scale;
+        clampOffset();
+        postInvalidateOnAnimation();
+    }
+
+    // centres the frame along a side it doesn't fill, otherwise keeps its edges on screen
+    private void clampOffset() {
+        float image_width = renderer.getWidth() * scale;
+        float image_height = renderer.getHeight() * scale;
+        offset_x = image_width <= getWidth() ? (getWidth() - image_width) / 2
+                : Math.min(0, Math.max(getWidth() - image_width, offset_x));
+        offset_y = image_height <= getHeight() ? (getHeight() - image_height) / 2
+                : Math.min(0, Math.max(getHeight() - image_height, offset_y));
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (renderer == null) return false;
+        boolean handled = scale_detector.onTouchEvent(event);
+        if (!scale_detector.isInProgress()) handled |= gesture_detector.onTouchEvent(event);
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int old_width, int old_height) {
+        super.onSizeChanged(width, height, old_width, old_height);
+        scale = 0;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (renderer == null || getWidth() == 0) return;
+        if (scale == 0) {
+            scale = fitScale();
+            clampOffset();
+        }
+        // one level pixel is 2^level sensor pixels, pick the coarsest still at least one per screen pixel
+        int level = 0;
+        while (level + 1 < renderer.getLevelCount() && (1 << (level + 1)) * scale <= 1) level++;
+        int level_size = RawTileRenderer.TILE_SIZE << level;
+        int x0 = Math.max(0, (int) Math.floor(-offset_x / scale / level_size));
+        int y0 = Math.max(0, (int) Math.floor(-offset_y / scale / level_size));
+        int x1 = Math.min(renderer.getTilesAcross(level) - 1, (int) Math.floor((getWidth() - offset_x) / scale / level_size));
+        int y1 = Math.min(renderer.getTilesDown(level) - 1, (int) Math.floor((getHeight() - offset_y) / scale / level_size));
+        visible_level = level;
+        visible_x0 = x0;
+        visible_y0 = y0;
+        visible_x1 = x1;
+        visible_y1 = y1;
+        for (int tile_y = y0; tile_y <= y1; tile_y++) {
+            for (int tile_x = x0; tile_x <= x1; tile_x++) {
+                Bitmap bitmap = tile_cache.get(tileKey(file_id, level, tile_x, tile_y));
+                if (bitmap != null) {
+                    drawTile(canvas, bitmap, level, tile_x, tile_y, level, tile_x, tile_y);
+                    continue;
+                }
+                request(level, tile_x, tile_y);
+                drawFallback(canvas, level, tile_x, tile_y);
+            }
+        }
+    }
+
+    // draws the part of a coarser cached tile that covers a missing one
+    private void drawFallback(Canvas canvas, int level, int tile_x, int tile_y) {
+        for (int coarser = level + 1; coarser < renderer.getLevelCount(); coarser++) {
+            int shift = coarser - level;
+            Bitmap bitmap = tile_cache.get(tileKey(file_id, coarser, tile_x >> shift, tile_y >> shift));
+            if (bitmap != null) {
+                drawTile(canvas, bitmap, coarser, tile_x >> shift, tile_y >> shift, level, tile_x, tile_y);
+                return;
+            }
+        }
+    }
+
+    // draws the region of bitmap, a tile at level, that lies under the target tile at target_level
+    private void drawTile(Canvas canvas, Bitmap bitmap, int level, int tile_x, int tile_y,
+                          int target_level, int target_x, int target_y) {
+        int target_size = RawTileRenderer.TILE_SIZE << target_level;
+        // the target tile in sensor pixels, cut to the frame
+        float left = target_x * target_size;
+        float top = target_y * target_size;
+        float right = Math.min(left + target_size, renderer.getLevelWidth(target_level) << target_level);
+        float bottom = Math.min(top + target_size, renderer.getLevelHeight(target_level) << target_level);
+        // the same rectangle in the bitmap's pixels
+        int bitmap_size = RawTileRenderer.TILE_SIZE << level;
+        float bitmap_left = (left - tile_x * bitmap_size) / (1 << level);
+        float bitmap_top = (top - tile_y * bitmap_size) / (1 << level);
+        source_rect.set((int) bitmap_left, (int) bitmap_top,
+                Math.min(bitmap.getWidth(), (int) Math.ceil(bitmap_left + (right - left) / (1 << level))),
+                Math.min(bitmap.getHeight(), (int) Math.ceil(bitmap_top + (bottom - top) / (1 << level))));
+        destination_rect.left = offset_x + left * scale;
+        destination_rect.top = offset_y + top * scale;
+        destination_rect.right = offset_x + right * scale;
+        destination_rect.bottom = offset_y + bottom * scale;
+        canvas.drawBitmap(bitmap, source_rect, destination_rect, paint);
+    }
+
+    private void request(int level, int tile_x, int tile_y) {
+        long key = tileKey(file_id, level, tile_x, tile_y);
+        synchronized (pending) {
+            if (!pending.add(key)) return;
+        }
+        RawTileRenderer source = renderer;
+        int source_id = file_id;
+        render_executor.execute(() -> {
+            try {
+                // gone from the screen while it waited
+                if (source != renderer || level != visible_level || tile_x < visible_x0 || tile_x > visible_x1
+                        || tile_y < visible_y0 || tile_y > visible_y1) {
+                    return;
+                }
+                int[] argb = render_argb.get();
+                source.render(level, tile_x, tile_y, argb);
+                Bitmap bitmap = Bitmap.createBitmap(source.getTileWidth(level, tile_x), source.getTileHeight(level, tile_y),
+                        Bitmap.Config.ARGB_8888);
+                bitmap.setPixels(argb, 0, RawTileRenderer.TILE_SIZE, 0, 0, bitmap.getWidth(), bitmap.getHeight());
+                tile_cache.put(tileKey(source_id, level, tile_x, tile_y), bitmap);
+                postInvalidateOnAnimation();
+            } catch (Exception e) {
+                Log.e(TAG, "Couldn't render tile " + tile_x + "," + tile_y + " at level " + level + ": " + e);
+            } finally {
+                synchronized (pending) {
+                    pending.remove(key);
+                }
+            }
+        });
+    }
+}
@@ -39,6 +39,7 @@ public class UIManager {
     private final TextureView texture_view;
     private final ArcSeekBar zoom_slider;
     private final TextView zoom_value;
+    private final TextView metrics_overlay;
     private final ImageView lens_facing_image;
     private final ImageButton capture_button;
     private final Chronometer chronometer;
@@ -62,6 +63,7 @@ public class UIManager {
         this.texture_view = photo_view.findViewById(R.id.textureView);
         this.zoom_slider = photo_view.findViewById(R.id.zoom_slider);
         this.zoom_value = photo_view.findViewById(R.id.zoom_value);
+        this.metrics_overlay = photo_view.findViewById(R.id.metrics_overlay);
         this.lens_facing_image = photo_view.findViewById(R.id.lens_facing);
         this.capture_button = photo_view.findViewById(R.id.capture_button);
         this.cam_facing_switch = photo_view.findViewById(R.id.cam_facing_switch);
@@ -244,6 +246,10 @@ public class UIManager {
         return this.lens_switch;
     }
 
+    public ImageButton getCaptureButton() {
+        return this.capture_button;
+    }
+
     public CarouselPicker getCarousel() {return this.carousel_picker;}
 
     public Button getSettingButton() {return this.setting_button;}
@@ -300,6 +306,14 @@ public class UIManager {
         });
     }
 
+    public void setMetricsOverlayVisible(boolean visible) {
+        activity.runOnUiThread(() -> metrics_overlay.setVisibility(visible ? View.VISIBLE : View.GONE));
+    }
+
+    public void setMetricsOverlayText(String text) {
+        activity.runOnUiThread(() -> metrics_overlay.setText(text));
+    }
+
     private void adjustBrightness(int brightness) {
         WindowManager.LayoutParams lp = activity.getWindow().getAttributes();
         lp.screenBrightness = (brightness / 255f);
@@ -0,0 +1,68 @@
+package com.example.rawstreamer;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Toast;
+
+import androidx.fragment.app.Fragment;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+// full resolution view of one raw image, opened from the gallery
+public class ViewerFragment extends Fragment {
+    private static final String TAG = "ViewerFragment";
+    private static int next_file_id;
+
+    private final Activity main_activity;
+    private final File file;
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+    // renders one tile at a time, each render already spreads over the fork join pool
+    private ExecutorService render_executor;
+    private TiledImageView image_view;
+
+    public ViewerFragment(Activity main_activity, File file) {
+        this.main_activity = main_activity;
+        this.file = file;
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        Log.d(TAG, "ViewerFragment onCreateView: " + file);
+        View viewer_fragment_view = inflater.inflate(R.layout.fragment_viewer, container, false);
+        image_view = viewer_fragment_view.findViewById(R.id.viewer_image);
+        render_executor = Executors.newSingleThreadExecutor();
+        int file_id = ++next_file_id;
+        ExecutorService executor = render_executor;
+        // parsing the IFDs touches the file, keep it off the main thread
+        executor.execute(() -> {
+            try {
+                RawTileRenderer renderer = new RawTileRenderer(ForkJoinPool.commonPool(), file);
+                main_handler.post(() -> {
+                    if (!executor.isShutdown()) image_view.setSource(renderer, file_id, executor);
+                });
+            } catch (Exception e) {
+                Log.e(TAG, "Couldn't open " + file + ": " + e);
+                main_handler.post(() -> Toast.makeText(main_activity, "Couldn't open " + file.getName(),
+                        Toast.LENGTH_SHORT).show());
+            }
+        });
+        return viewer_fragment_view;
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        render_executor.shutdownNow();
+        image_view.clearCache();
+    }
+}
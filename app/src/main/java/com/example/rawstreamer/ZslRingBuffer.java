@@ -0,0 +1,181 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+zero shutter lag ring of the most recent RAW frames from a continuous stream, every slot owns a
+pooled frame buffer for as long as the ring lives so streaming never allocates
+
+a single writer (the camera callback thread) fills the oldest slot with beginWrite() / endWrite(),
+the shutter commits the frames around its press timestamp, a committed frame leaves the ring with
+its buffer and its slot is refilled with a spare buffer from the pool, so committing never copies
+ */
+public class ZslRingBuffer {
+
+    private final FrameBufferPool pool;
+    private final RawFrame[] frames;
+    private final long[] timestamps;
+    private final boolean[] published;
+    private int next_slot;
+    private int write_slot = -1;
+    private boolean closed;
+
+    // takes capacity buffers from the pool, fails if the pool can't spare them
+    public ZslRingBuffer(FrameBufferPool pool, int capacity) {
+        this.pool = pool;
+        this.frames = new RawFrame[capacity];
+        this.timestamps = new long[capacity];
+        this.published = new boolean[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ByteBuffer buffer = pool.acquire();
+            if (buffer == null) {
+                for (int j = 0; j < i; j++) frames[j].release();
+                throw new IllegalStateException("Frame buffer pool can't hold a ring of " + capacity);
+            }
+            frames[i] = new RawFrame(pool, buffer);
+        }
+    }
+
+    public int getCapacity() {return frames.length;}
+
+    // hands out the oldest slot's frame for the next streamed image, null once closed, the frame
+    // is invisible to commits until endWrite()
+    public synchronized RawFrame beginWrite() {
+        if (closed) return null;
+        write_slot = next_slot;
+        next_slot = (next_slot + 1) % frames.length;
+        published[write_slot] = false;
+        return frames[write_slot];
+    }
+
+    // publishes the frame handed out by beginWrite() under its sensor timestamp
+    public synchronized void endWrite(long timestamp) {
+        if (write_slot < 0) return;
+        if (closed) {
+            abortWrite();
+            return;
+        }
+        timestamps[write_slot] = timestamp;
+        published[write_slot] = true;
+        write_slot = -1;
+        notifyAll();
+    }
+
+    // the frame handed out by beginWrite() could not be filled, its slot stays empty
+    public synchronized void abortWrite() {
+        // a ring closed mid write hands the last buffer back here
+        if (closed && write_slot >= 0) frames[write_slot].release();
+        write_slot = -1;
+    }
+
+    // number of frames a commit could currently pick from
+    public synchronized int getPublished() {
+        int count = 0;
+        for (boolean is_published : published) if (is_published) count++;
+        return count;
+    }
+
+    /*
+    takes the frame closest to press_ns plus up to frames_before older and frames_after newer ones,
+    oldest first, waiting up to timeout_ms for the newer frames to be streamed, returns fewer frames
+    when the ring or the pool's spare buffers run out, every returned frame must be released
+     */
+    public synchronized List<RawFrame> commit(long press_ns, int frames_before, int frames_after, long timeout_ms) {
+        List<RawFrame> committed = new ArrayList<>();
+        int closest = findClosest(press_ns);
+        if (closest < 0) return committed;
+        long closest_ns = timestamps[closest];
+
+        long deadline_ns = System.nanoTime() + timeout_ms * 1000000L;
+        while (!closed && countNewer(closest_ns) < frames_after) {
+            long remaining_ms = (deadline_ns - System.nanoTime()) / 1000000L;
+            if (remaining_ms <= 0) break;
+            try {
+                wait(remaining_ms);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (closed) return committed;
+
+        // step back from the closest frame to the oldest one wanted, then take frames in order
+        long from_ns = closest_ns;
+        int before = 0;
+        for (int slot = findOlder(from_ns); slot >= 0 && before < frames_before; slot = findOlder(from_ns)) {
+            from_ns = timestamps[slot];
+            before++;
+        }
+        int wanted = before + 1 + frames_after;
+        while (committed.size() < wanted) {
+            int slot = findAtOrAfter(from_ns);
+            if (slot < 0) break;
+            from_ns = timestamps[slot] + 1;
+            RawFrame frame = take(slot);
+            if (frame == null) break;
+            committed.add(frame);
+        }
+        return committed;
+    }
+
+    // gives every buffer back to the pool, a frame still being written is given back when its write ends
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < frames.length; i++) {
+            if (i != write_slot) frames[i].release();
+            published[i] = false;
+        }
+        notifyAll();
+    }
+
+    // swaps a published slot's frame for a fresh one on a spare buffer, null if there is no spare
+    private RawFrame take(int slot) {
+        ByteBuffer spare = pool.acquire();
+        if (spare == null) return null;
+        RawFrame frame = frames[slot];
+        frames[slot] = new RawFrame(pool, spare);
+        published[slot] = false;
+        return frame;
+    }
+
+    private int findClosest(long press_ns) {
+        int closest = -1;
+        long closest_distance = Long.MAX_VALUE;
+        for (int i = 0; i < frames.length; i++) {
+            if (!published[i]) continue;
+            long distance = Math.abs(timestamps[i] - press_ns);
+            if (distance < closest_distance) {
+                closest_distance = distance;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+
+    private int countNewer(long timestamp) {
+        int count = 0;
+        for (int i = 0; i < frames.length; i++) if (published[i] && timestamps[i] > timestamp) count++;
+        return count;
+    }
+
+    // newest published slot strictly older than timestamp
+    private int findOlder(long timestamp) {
+        int found = -1;
+        for (int i = 0; i < frames.length; i++) {
+            if (published[i] && timestamps[i] < timestamp && (found < 0 || timestamps[i] > timestamps[found])) found = i;
+        }
+        return found;
+    }
+
+    // oldest published slot at or after timestamp
+    private int findAtOrAfter(long timestamp) {
+        int found = -1;
+        for (int i = 0; i < frames.length; i++) {
+            if (published[i] && timestamps[i] >= timestamp && (found < 0 || timestamps[i] < timestamps[found])) found = i;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class BurstMergerTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    private interface SampleSource {
+        int sample(int x, int y);
+    }
+
+    private static ByteBuffer frame(int width, int height, int row_stride, SampleSource source) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(row_stride * height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) plane.putShort(y * row_stride + x * 2, (short) source.sample(x, y));
+        }
+        return plane;
+    }
+
+    private static int scene(int x, int y) {
+        return 400 + (x * 7 + y * 3) % 200 + (x & 1) * 100;
+    }
+
+    // root mean square difference from the noiseless scene
+    private static double noise(ByteBuffer plane, int width, int height, int row_stride) {
+        double sum = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double difference = (plane.getShort(y * row_stride + x * 2) & 0xffff) - scene(x, y);
+                sum += difference * difference;
+            }
+        }
+        return Math.sqrt(sum / (width * height));
+    }
+
+    @Test
+    public void noiseFallsWithFrameCount() {
+        Random random = new Random(11);
+        int width = 128;
+        int height = 96;
+        BurstMerger merger = new BurstMerger(POOL, width, height);
+        ByteBuffer single = null;
+        for (int i = 0; i < 8; i++) {
+            ByteBuffer plane = frame(width, height, width * 2, (x, y) -> (int) Math.round(scene(x, y) + random.nextGaussian() * 20));
+            if (single == null) single = plane;
+            merger.add(plane, width * 2);
+        }
+        assertEquals(8, merger.getFrameCount());
+        ByteBuffer merged = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        merger.resolve(merged, width * 2);
+        double single_noise = noise(single, width, height, width * 2);
+        double merged_noise = noise(merged, width, height, width * 2);
+        // sqrt(8) would be 2.8, allow for rounding
+        assertTrue(single_noise + " vs " + merged_noise, merged_noise < single_noise / 2.5);
+    }
+
+    @Test
+    public void identicalFramesAreBitExact() {
+        Random random = new Random(5);
+        int width = 70;
+        int height = 50;
+        ByteBuffer plane = frame(width, height, width * 2, (x, y) -> random.nextInt(65536));
+        BurstMerger merger = new BurstMerger(POOL, width, height, 16);
+        for (int i = 0; i < 5; i++) merger.add(plane, width * 2);
+        ByteBuffer merged = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        merger.resolve(merged, width * 2);
+        for (int i = 0; i < width * height * 2; i++) assertEquals("byte " + i, plane.get(i), merged.get(i));
+        assertEquals(0, plane.position());
+        assertEquals(plane.capacity(), plane.limit());
+    }
+
+    @Test
+    public void movedTileIsRejected() {
+        int width = 64;
+        int height = 64;
+        BurstMerger merger = new BurstMerger(POOL, width, height, 32);
+        merger.setRejectionThreshold(50);
+        merger.add(frame(width, height, width * 2, (x, y) -> 1000), width * 2);
+        merger.add(frame(width, height, width * 2, (x, y) -> 1010), width * 2);
+        // something bright moves into the top left tile of the last frame
+        merger.add(frame(width, height, width * 2, (x, y) -> x < 32 && y < 32 ? 4000 : 1020), width * 2);
+        assertEquals(1, merger.getTilesRejected());
+        ByteBuffer merged = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        merger.resolve(merged, width * 2);
+        assertEquals(1005, merged.getShort(0));
+        assertEquals(1010, merged.getShort((40 * width + 40) * 2));
+    }
+
+    @Test
+    public void paddedRowsAndPartialTiles() {
+        int width = 50;
+        int height = 38;
+        int row_stride = width * 2 + 12;
+        BurstMerger merger = new BurstMerger(POOL, width, height, 16);
+        merger.add(frame(width, height, row_stride, (x, y) -> x * 10 + y), row_stride);
+        merger.add(frame(width, height, row_stride, (x, y) -> x * 10 + y + 2), row_stride);
+        assertEquals(4, merger.getTilesAcross());
+        assertEquals(3, merger.getTilesDown());
+        ByteBuffer merged = frame(width, height, row_stride, (x, y) -> 0);
+        merged.putShort(width * 2, (short) 12345);
+        merger.resolve(merged, row_stride);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) assertEquals(x * 10 + y + 1, merged.getShort(y * row_stride + x * 2));
+        }
+        // row padding is left alone
+        assertEquals(12345, merged.getShort(width * 2));
+    }
+
+    @Test
+    public void resetStartsANewBurst() {
+        int width = 32;
+        int height = 32;
+        BurstMerger merger = new BurstMerger(POOL, width, height);
+        merger.add(frame(width, height, width * 2, (x, y) -> 100), width * 2);
+        merger.reset();
+        merger.add(frame(width, height, width * 2, (x, y) -> 300), width * 2);
+        ByteBuffer merged = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        merger.resolve(merged, width * 2);
+        assertEquals(1, merger.getFrameCount());
+        assertEquals(300, merged.getShort(0));
+    }
+}
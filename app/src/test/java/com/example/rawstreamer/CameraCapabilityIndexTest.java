@@ -0,0 +1,166 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CameraCapabilityIndexTest {
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("camera_index_test", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    // a logical rear camera with RAW and three lenses, a second rear camera and a front camera without
+    private static CameraCapabilityIndex sample() {
+        CameraCapabilityIndex.Camera rear = new CameraCapabilityIndex.Camera("0", 1, new String[] {"2", "3", "4"},
+                90, true, 0.6f, 10.0f, new int[] {15, 30, 30, 30, 60, 60},
+                new int[] {1920, 3840, 640}, new int[] {1080, 2160, 480},
+                new int[] {4032, 2016}, new int[] {3024, 1512}, new float[] {0.6f, 1.0f, 4.8f});
+        CameraCapabilityIndex.Camera tele = new CameraCapabilityIndex.Camera("5", 1, new String[0],
+                90, true, 1.0f, 4.0f, new int[] {30, 30}, new int[] {1920}, new int[] {1080},
+                new int[0], new int[0], new float[0]);
+        CameraCapabilityIndex.Camera front = new CameraCapabilityIndex.Camera("1", 0, new String[0],
+                270, false, 1.0f, 1.0f, new int[] {15, 30}, new int[] {1280}, new int[] {720},
+                new int[0], new int[0], new float[0]);
+        return new CameraCapabilityIndex("build/1", new CameraCapabilityIndex.Camera[] {rear, front, tele});
+    }
+
+    @Test
+    public void roundTripKeepsEveryField() throws IOException {
+        File file = tempFile();
+        sample().write(file);
+        CameraCapabilityIndex index = CameraCapabilityIndex.read(file, "build/1");
+        assertNotNull(index);
+        assertEquals("build/1", index.getFingerprint());
+        assertEquals(3, index.getCameraCount());
+
+        CameraCapabilityIndex.Camera rear = index.getCamera("0");
+        assertArrayEquals(new String[] {"2", "3", "4"}, rear.physical_ids);
+        assertEquals(1, rear.facing);
+        assertEquals(90, rear.sensor_orientation);
+        assertTrue(rear.realtime_timestamps);
+        assertEquals(0.6f, rear.min_zoom, 0);
+        assertEquals(10.0f, rear.max_zoom, 0);
+        assertArrayEquals(new int[] {15, 30, 30, 30, 60, 60}, rear.fps_ranges);
+        assertArrayEquals(new int[] {1920, 3840, 640}, rear.preview_widths);
+        assertArrayEquals(new int[] {1080, 2160, 480}, rear.preview_heights);
+        assertArrayEquals(new int[] {4032, 2016}, rear.raw_widths);
+        assertArrayEquals(new int[] {3024, 1512}, rear.raw_heights);
+        assertArrayEquals(new float[] {0.6f, 1.0f, 4.8f}, rear.lens_zoom_ratios, 0);
+
+        CameraCapabilityIndex.Camera front = index.getCamera("1");
+        assertFalse(front.realtime_timestamps);
+        assertEquals(270, front.sensor_orientation);
+        assertFalse(front.isRawSupported());
+    }
+
+    @Test
+    public void anotherBuildIsIgnored() throws IOException {
+        File file = tempFile();
+        sample().write(file);
+        assertNull(CameraCapabilityIndex.read(file, "build/2"));
+    }
+
+    @Test
+    public void damagedFilesAreIgnored() throws IOException {
+        File file = tempFile();
+        sample().write(file);
+        long length = file.length();
+
+        // cut short
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(length - 3);
+        }
+        assertNull(CameraCapabilityIndex.read(file, "build/1"));
+
+        // trailing bytes
+        sample().write(file);
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(length + 1);
+        }
+        assertNull(CameraCapabilityIndex.read(file, "build/1"));
+
+        // wrong magic
+        sample().write(file);
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.writeInt(0);
+        }
+        assertNull(CameraCapabilityIndex.read(file, "build/1"));
+
+        assertNull(CameraCapabilityIndex.read(new File(file.getPath() + ".missing"), "build/1"));
+    }
+
+    @Test
+    public void writeReplacesAnOlderIndex() throws IOException {
+        File file = tempFile();
+        new CameraCapabilityIndex("build/0", new CameraCapabilityIndex.Camera[0]).write(file);
+        sample().write(file);
+        assertNotNull(CameraCapabilityIndex.read(file, "build/1"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void lookupsByFacing() {
+        CameraCapabilityIndex index = sample();
+        assertEquals(Arrays.asList("0", "5"), index.getIds(1));
+        assertEquals(Collections.singletonList("1"), index.getIds(0));
+        assertEquals("0", index.getFirstId(1));
+        assertEquals("1", index.getFirstId(0));
+        assertEquals("", index.getFirstId(2));
+        assertEquals(1, index.getFacing("5"));
+        assertEquals(-1, index.getFacing("9"));
+        assertNull(index.getCamera("9"));
+    }
+
+    @Test
+    public void cameraHelpers() {
+        CameraCapabilityIndex index = sample();
+        CameraCapabilityIndex.Camera rear = index.getCamera("0");
+        assertTrue(rear.isLogicalMultiCamera());
+        assertFalse(index.getCamera("5").isLogicalMultiCamera());
+        assertEquals(0, rear.largestRawIndex());
+        assertEquals(-1, index.getCamera("1").largestRawIndex());
+        assertEquals(3, rear.getFpsRangeCount());
+    }
+
+    @Test
+    public void lensRatiosFollowTheEquivalentFocalLength() {
+        // ultra wide, main (the logical camera's own field of view) and a 5x tele with a smaller sensor
+        float[] ratios = CameraCapabilityIndex.lensZoomRatios(0.5f, new float[] {0.3f, 0.5f, 2.5f}, 0.6f, 10.0f);
+        assertArrayEquals(new float[] {0.6f, 1.0f, 5.0f}, ratios, 0);
+        // unordered, clamped to the zoom range, unknown lenses skipped
+        ratios = CameraCapabilityIndex.lensZoomRatios(0.5f, new float[] {3.0f, 0, 0.2f, 0.5f}, 0.6f, 4.0f);
+        assertArrayEquals(new float[] {0.6f, 1.0f, 4.0f}, ratios, 0);
+    }
+
+    @Test
+    public void lensesWithTheSameFieldOfViewAreMerged() {
+        // two sensors behind the same focal length (mono + colour) aren't two lenses
+        assertEquals(0, CameraCapabilityIndex.lensZoomRatios(0.5f, new float[] {0.5f, 0.505f}, 1, 8).length);
+        assertArrayEquals(new float[] {1.0f, 2.0f},
+                CameraCapabilityIndex.lensZoomRatios(0.5f, new float[] {0.5f, 0.505f, 1.0f}, 1, 8), 0);
+        // no logical focal length, no handover
+        assertEquals(0, CameraCapabilityIndex.lensZoomRatios(0, new float[] {0.5f, 1.0f}, 1, 8).length);
+    }
+
+    @Test
+    public void nextLensCyclesThroughTheLenses() {
+        CameraCapabilityIndex.Camera rear = sample().getCamera("0");
+        assertEquals(1.0f, rear.nextLensZoomRatio(0.6f), 0);
+        // anywhere between two lenses goes to the next one
+        assertEquals(4.8f, rear.nextLensZoomRatio(2.3f), 0);
+        // within the tolerance counts as already on that lens
+        assertEquals(4.8f, rear.nextLensZoomRatio(1.01f), 0);
+        assertEquals(0.6f, rear.nextLensZoomRatio(4.8f), 0);
+        assertEquals(0.6f, rear.nextLensZoomRatio(10.0f), 0);
+        assertEquals(-1, sample().getCamera("5").nextLensZoomRatio(1.0f), 0);
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CameraMathTest {
+
+    @Test
+    public void zoomRatiosRunFromMinToMaxThroughOne() {
+        float[] ratios = CameraMath.buildZoomRatios(0.666f, 10f);
+        // rounded up so the first step isn't below the camera's minimum
+        assertEquals(0.67f, ratios[0], 0);
+        assertEquals(10f, ratios[ratios.length - 1], 0);
+        boolean has_one = false;
+        for (int i = 1; i < ratios.length; i++) {
+            assertTrue(ratios[i] >= ratios[i - 1]);
+            has_one |= ratios[i] == 1f;
+        }
+        assertTrue(has_one);
+
+        ratios = CameraMath.buildZoomRatios(1f, 8f);
+        assertEquals(1f, ratios[0], 0);
+        assertEquals(8f, ratios[ratios.length - 1], 0);
+        assertEquals(60, ratios.length);
+    }
+
+    @Test
+    public void optimalSizeIsTheSmallestCoveringOneWithTheSameAspect() {
+        int[] widths = {4032, 3840, 1920, 2560, 1280};
+        int[] heights = {3024, 2160, 1080, 1440, 720};
+        assertEquals(2, CameraMath.chooseOptimalSize(widths, heights, 1920, 1080));
+        assertEquals(2, CameraMath.chooseOptimalSize(widths, heights, 1600, 900));
+        assertEquals(0, CameraMath.chooseOptimalSize(widths, heights, 4000, 3000));
+        // nothing big enough falls back to the first size
+        assertEquals(0, CameraMath.chooseOptimalSize(widths, heights, 7680, 4320));
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class DemosaicEngineTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+    private static final int[] CFAS = {DemosaicEngine.CFA_RGGB, DemosaicEngine.CFA_GRBG,
+            DemosaicEngine.CFA_GBRG, DemosaicEngine.CFA_BGGR};
+    // colour of each 2x2 site per CFA, 0 red, 1 green, 2 blue
+    private static final int[][] SITES = {{0, 1, 1, 2}, {1, 0, 2, 1}, {1, 2, 0, 1}, {2, 1, 1, 0}};
+
+    // a Bayer frame of a flat colour, given as raw values per channel
+    private static ByteBuffer flat(int cfa, int width, int height, int row_stride, int[] rgb) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(row_stride * height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                plane.putShort(y * row_stride + x * 2, (short) rgb[SITES[cfa][(y & 1) * 2 + (x & 1)]]);
+            }
+        }
+        return plane;
+    }
+
+    private static void assertAll(int[] argb, int count, int expected) {
+        for (int i = 0; i < count; i++) {
+            if (argb[i] != expected) fail("pixel " + i + ": " + Integer.toHexString(argb[i]) + " != " + Integer.toHexString(expected));
+        }
+    }
+
+    @Test
+    public void primariesComeOutPureForEveryPattern() {
+        int width = 40;
+        int height = 30;
+        DemosaicEngine engine = new DemosaicEngine(POOL);
+        engine.setLevels(new int[] {64, 64, 64, 64}, 1023);
+        int[] argb = new int[width * height];
+        int[][] primaries = {{1023, 64, 64}, {64, 1023, 64}, {64, 64, 1023}};
+        int[] expected = {0xffff0000, 0xff00ff00, 0xff0000ff};
+        for (int cfa : CFAS) {
+            engine.setCfaPattern(cfa);
+            for (int p = 0; p < 3; p++) {
+                ByteBuffer plane = flat(cfa, width, height, width * 2, primaries[p]);
+                engine.demosaic(plane, width, height, width * 2, DemosaicEngine.MODE_BILINEAR, argb);
+                assertAll(argb, width * height, expected[p]);
+                engine.demosaic(plane, width, height, width * 2, DemosaicEngine.MODE_SUPERPIXEL, argb);
+                assertAll(argb, width * height / 4, expected[p]);
+            }
+        }
+    }
+
+    @Test
+    public void whiteBalanceAndLevelsGiveNeutralGrey() {
+        int width = 64;
+        int height = 48;
+        int row_stride = width * 2 + 20;
+        DemosaicEngine engine = new DemosaicEngine(POOL);
+        engine.setCfaPattern(DemosaicEngine.CFA_BGGR);
+        engine.setLevels(new int[] {100, 100, 100, 100}, 4000);
+        // a grey card reads red 1/2, blue 1/4 of green above black
+        engine.setWhiteBalance(2, 1, 4);
+        ByteBuffer plane = flat(DemosaicEngine.CFA_BGGR, width, height, row_stride, new int[] {100 + 250, 100 + 500, 100 + 125});
+        int[] argb = new int[width * height];
+        engine.demosaic(plane, width, height, row_stride, DemosaicEngine.MODE_BILINEAR, argb);
+        int grey = argb[0] & 0xff;
+        assertEquals(grey * 0x010101 | 0xff000000, argb[0]);
+        assertAll(argb, width * height, argb[0]);
+        // 500 / 3900 linear is about 99 in sRGB
+        assertEquals(99, grey, 1);
+        assertEquals(0, plane.position());
+    }
+
+    @Test
+    public void bilinearInterpolatesAGradient() {
+        int width = 16;
+        int height = 8;
+        DemosaicEngine engine = new DemosaicEngine(POOL);
+        engine.setCfaPattern(DemosaicEngine.CFA_RGGB);
+        ByteBuffer plane = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        // every channel ramps the same way, so interpolated values match the ramp wherever it is linear
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) plane.putShort((y * width + x) * 2, (short) (x * 4000));
+        }
+        int[] argb = new int[width * height];
+        engine.demosaic(plane, width, height, width * 2, DemosaicEngine.MODE_BILINEAR, argb);
+        for (int y = 0; y < height; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int pixel = argb[y * width + x];
+                int red = pixel >> 16 & 0xff;
+                assertEquals("at " + x + "," + y, red, pixel >> 8 & 0xff);
+                assertEquals("at " + x + "," + y, red, pixel & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void outputIsReusedAcrossSizes() {
+        DemosaicEngine engine = new DemosaicEngine(POOL);
+        int[] argb = new int[64 * 64];
+        engine.demosaic(flat(0, 64, 64, 128, new int[] {0, 0, 0}), 64, 64, 128, DemosaicEngine.MODE_BILINEAR, argb);
+        assertAll(argb, 64 * 64, 0xff000000);
+        engine.demosaic(flat(0, 32, 16, 64, new int[] {65535, 65535, 65535}), 32, 16, 64, DemosaicEngine.MODE_SUPERPIXEL, argb);
+        assertAll(argb, 16 * 8, 0xffffffff);
+        assertEquals(0xff000000, argb[16 * 8]);
+        assertEquals(16, DemosaicEngine.getOutputWidth(DemosaicEngine.MODE_SUPERPIXEL, 32));
+    }
+
+    @Test
+    public void binningAveragesQuads() {
+        int width = 40;
+        int height = 24;
+        DemosaicEngine engine = new DemosaicEngine(POOL);
+        engine.setCfaPattern(DemosaicEngine.CFA_GRBG);
+        ByteBuffer plane = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        // alternating dark and bright quads average to the middle
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) plane.putShort((y * width + x) * 2, (short) (((x / 2 + y / 2) & 1) == 0 ? 0 : 65535));
+        }
+        int[] superpixel = new int[20 * 12];
+        engine.demosaic(plane, width, height, width * 2, DemosaicEngine.MODE_SUPERPIXEL, superpixel);
+        assertEquals(0xff000000, superpixel[0]);
+        assertEquals(0xffffffff, superpixel[1]);
+        // 20 x 12 quads binned by 3, the last two columns of quads don't fill a bin
+        assertEquals(6, DemosaicEngine.getBinnedSize(width, 3));
+        assertEquals(4, DemosaicEngine.getBinnedSize(height, 3));
+        int[] binned = new int[10 * 6];
+        engine.bin(plane, width, height, width * 2, 2, binned);
+        assertAll(binned, 10 * 6, binned[0]);
+        int grey = binned[0] & 0xff;
+        assertEquals(grey * 0x010101 | 0xff000000, binned[0]);
+        // half of full scale in sRGB
+        assertEquals(188, grey, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallOutput() {
+        new DemosaicEngine(POOL).demosaic(flat(0, 8, 8, 16, new int[] {0, 0, 0}), 8, 8, 16, DemosaicEngine.MODE_BILINEAR, new int[63]);
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class DngReaderTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static ByteBuffer frame() {
+        ByteBuffer plane = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) plane.putShort(i * 2, (short) (i % 1000));
+        return plane;
+    }
+
+    private static DngMetadata metadata() {
+        DngMetadata metadata = new DngMetadata();
+        metadata.cfa_pattern = DngMetadata.CFA_RGGB;
+        metadata.black_level = new int[] {10, 11, 12, 13};
+        metadata.white_level = 1023;
+        metadata.make = "Example";
+        metadata.iso = 400;
+        metadata.exposure_time_s = 0.01;
+        metadata.as_shot_neutral = new double[] {0.5, 1, 0.8};
+        return metadata;
+    }
+
+    private static File write(int preview_size, int compression) throws IOException {
+        File file = File.createTempFile("dng_reader_test", ".dng");
+        file.deleteOnExit();
+        DngWriter writer = new DngWriter();
+        writer.setPreviewSize(preview_size);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            writer.write(output.getChannel(), metadata(), frame(), WIDTH, HEIGHT, WIDTH * 2, compression);
+        }
+        return file;
+    }
+
+    @Test
+    public void readsTagsOfEveryType() throws IOException {
+        DngReader reader = new DngReader(write(0, DngWriter.COMPRESSION_NONE));
+        int ifd = reader.getIfd(0);
+        assertEquals(-1, reader.getIfd(1));
+        assertEquals(ifd, reader.findRawIfd());
+        assertEquals(-1, reader.findPreviewIfd());
+        assertEquals(WIDTH, reader.getInt(ifd, DngWriter.TAG_IMAGE_WIDTH, 0, 0));
+        assertEquals(400, reader.getLong(ifd, DngWriter.TAG_ISO_SPEED_RATINGS, 0, 0));
+        assertEquals(4, reader.getCount(ifd, DngWriter.TAG_BLACK_LEVEL));
+        for (int i = 0; i < 4; i++) assertEquals(10 + i, reader.getLong(ifd, DngWriter.TAG_BLACK_LEVEL, i, 0));
+        assertEquals(-7, reader.getLong(ifd, DngWriter.TAG_BLACK_LEVEL, 4, -7));
+        assertEquals(0.01, reader.getRational(ifd, DngWriter.TAG_EXPOSURE_TIME, 0, 0), 1e-6);
+        assertEquals(0.8, reader.getRational(ifd, DngWriter.TAG_AS_SHOT_NEUTRAL, 2, 0), 1e-6);
+        assertEquals("Example", reader.getAscii(ifd, DngWriter.TAG_MAKE));
+        assertNull(reader.getAscii(ifd, DngWriter.TAG_MODEL));
+        assertEquals(TiffIfd.TYPE_BYTE, reader.getType(ifd, DngWriter.TAG_CFA_PATTERN));
+        assertFalse(reader.hasTag(ifd, DngWriter.TAG_TILE_OFFSETS));
+        for (int i = 1; i < reader.getEntryCount(ifd); i++) {
+            assertTrue(reader.getTag(ifd, i - 1) < reader.getTag(ifd, i));
+        }
+    }
+
+    @Test
+    public void stripIsASliceOfTheFile() throws IOException {
+        DngReader reader = new DngReader(write(0, DngWriter.COMPRESSION_NONE));
+        int ifd = reader.findRawIfd();
+        assertEquals(1, reader.getStripCount(ifd));
+        ByteBuffer strip = reader.getStrip(ifd, 0);
+        assertTrue(strip.isDirect());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, strip.order());
+        assertEquals(WIDTH * HEIGHT * 2, strip.remaining());
+        ByteBuffer expected = frame();
+        for (int i = 0; i < WIDTH * HEIGHT; i++) assertEquals(expected.getShort(i * 2), strip.getShort(i * 2));
+        assertNull(reader.getStrip(ifd, 1));
+    }
+
+    @Test
+    public void findsRawSubIfdBehindPreview() throws IOException {
+        DngReader reader = new DngReader(write(32, DngWriter.COMPRESSION_LOSSLESS_JPEG));
+        int preview = reader.getIfd(0);
+        assertEquals(preview, reader.findPreviewIfd());
+        int raw = reader.findRawIfd();
+        assertEquals(reader.getSubIfd(preview, 0), raw);
+        assertEquals(-1, reader.getSubIfd(preview, 1));
+        assertEquals(DngWriter.COMPRESSION_LOSSLESS_JPEG, reader.getLong(raw, DngWriter.TAG_COMPRESSION, 0, 0));
+        int tile_width = reader.getInt(raw, DngWriter.TAG_TILE_WIDTH, 0, 0);
+        int tile_height = reader.getInt(raw, DngWriter.TAG_TILE_LENGTH, 0, 0);
+        int tiles = ((WIDTH + tile_width - 1) / tile_width) * ((HEIGHT + tile_height - 1) / tile_height);
+        assertEquals(tiles, reader.getTileCount(raw));
+        LosslessJpegDecoder decoder = new LosslessJpegDecoder();
+        decoder.decode(reader.getTile(raw, 0));
+        assertEquals(tile_height, decoder.getHeight());
+        assertEquals(0, decoder.getSamples()[0]);
+        assertEquals(WIDTH + 1, decoder.getSamples()[decoder.getSampleWidth() + 1]);
+    }
+
+    @Test
+    public void readsBigEndianAndStopsAtChainLoops() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(64).order(ByteOrder.BIG_ENDIAN);
+        file.putShort(0, (short) 0x4d4d).putShort(2, (short) 42).putInt(4, 8);
+        // one entry, an inline SHORT, then a next IFD pointing back at itself
+        file.putShort(8, (short) 1);
+        file.putShort(10, (short) DngWriter.TAG_IMAGE_WIDTH).putShort(12, (short) TiffIfd.TYPE_SHORT).putInt(14, 1);
+        file.putShort(18, (short) 4000);
+        file.putInt(22, 8);
+        DngReader reader = new DngReader(file);
+        assertEquals(ByteOrder.BIG_ENDIAN, reader.getByteOrder());
+        assertEquals(4000, reader.getLong(8, DngWriter.TAG_IMAGE_WIDTH, 0, 0));
+        assertEquals(-1, reader.getIfd(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new DngReader(ByteBuffer.wrap("not a tiff file at all".getBytes()));
+    }
+}
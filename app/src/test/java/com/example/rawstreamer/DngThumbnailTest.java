@@ -0,0 +1,84 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class DngThumbnailTest {
+
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 96;
+
+    // flat grey Bayer frame, every preview pixel comes out the same
+    private static ByteBuffer greyFrame() {
+        ByteBuffer plane = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) plane.putShort(i * 2, (short) 512);
+        return plane;
+    }
+
+    private static DngMetadata metadata() {
+        DngMetadata metadata = new DngMetadata();
+        metadata.cfa_pattern = DngMetadata.CFA_RGGB;
+        metadata.black_level = new int[] {0, 0, 0, 0};
+        metadata.white_level = 1023;
+        return metadata;
+    }
+
+    private static File write(int preview_size, int compression) throws IOException {
+        File file = File.createTempFile("dng_thumbnail_test", ".dng");
+        file.deleteOnExit();
+        DngWriter writer = new DngWriter();
+        writer.setPreviewSize(preview_size);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            writer.write(output.getChannel(), metadata(), greyFrame(), WIDTH, HEIGHT, WIDTH * 2, compression);
+        }
+        return file;
+    }
+
+    @Test
+    public void embeddedPreviewIsScaledToFit() throws IOException {
+        // a 32 x 24 preview, scaled by 2 to fit 20
+        DngThumbnail thumbnail = DngThumbnail.decode(write(32, DngWriter.COMPRESSION_LOSSLESS_JPEG), 20);
+        assertNotNull(thumbnail);
+        assertEquals(16, thumbnail.width);
+        assertEquals(12, thumbnail.height);
+        int grey = thumbnail.argb[0] & 0xff;
+        assertTrue(grey > 0 && grey < 255);
+        for (int pixel : thumbnail.argb) assertEquals(0xff000000 | grey * 0x010101, pixel);
+    }
+
+    @Test
+    public void smallPreviewIsKept() throws IOException {
+        DngThumbnail thumbnail = DngThumbnail.decode(write(32, DngWriter.COMPRESSION_NONE), 256);
+        assertNotNull(thumbnail);
+        assertEquals(32, thumbnail.width);
+        assertEquals(24, thumbnail.height);
+    }
+
+    @Test
+    public void fileWithoutPreviewGivesNull() throws IOException {
+        assertNull(DngThumbnail.decode(write(0, DngWriter.COMPRESSION_NONE), 256));
+        File empty = File.createTempFile("dng_thumbnail_test", ".dng");
+        empty.deleteOnExit();
+        assertNull(DngThumbnail.decode(empty, 256));
+    }
+
+    @Test
+    public void scaleAveragesBoxes() {
+        ByteBuffer rgb = ByteBuffer.allocate(4 * 2 * 3);
+        // left box red 0 and 200, right box blue 100 everywhere
+        int[][] pixels = {{0, 0, 0}, {200, 0, 0}, {0, 0, 100}, {0, 0, 100}, {0, 0, 0}, {200, 0, 0}, {0, 0, 100}, {0, 0, 100}};
+        for (int[] pixel : pixels) rgb.put((byte) pixel[0]).put((byte) pixel[1]).put((byte) pixel[2]);
+        DngThumbnail thumbnail = DngThumbnail.scale(rgb, 4, 2, 2);
+        assertEquals(2, thumbnail.width);
+        assertEquals(1, thumbnail.height);
+        assertEquals(0xff640000, thumbnail.argb[0]);
+        assertEquals(0xff000064, thumbnail.argb[1]);
+    }
+}
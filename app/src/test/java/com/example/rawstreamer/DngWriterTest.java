@@ -0,0 +1,301 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class DngWriterTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    // synthetic 10 bit Bayer frame, padding bytes are 0x7f so leaking them into the strip is visible
+    private static ByteBuffer bayerFrame(int row_stride) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(row_stride * HEIGHT).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < plane.capacity(); i++) plane.put(i, (byte) 0x7f);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) plane.putShort(y * row_stride + x * 2, sample(x, y));
+        }
+        return plane;
+    }
+
+    private static short sample(int x, int y) {
+        return (short) ((x * 7 + y * 13 + (x & 1) * 300) & 0x3ff);
+    }
+
+    private static DngMetadata metadata() {
+        DngMetadata metadata = new DngMetadata();
+        metadata.make = "Test";
+        metadata.model = "Sensor";
+        metadata.cfa_pattern = DngMetadata.CFA_BGGR;
+        metadata.black_level = new int[] {64, 65, 66, 67};
+        metadata.white_level = 1023;
+        metadata.color_matrix1 = new double[] {1, -0.5, 0, 0, 1, 0, 0.25, 0, 1};
+        metadata.calibration_illuminant1 = 21;
+        metadata.as_shot_neutral = new double[] {0.5, 1, 0.75};
+        metadata.exposure_time_s = 1 / 8000.0;
+        metadata.iso = 400;
+        return metadata;
+    }
+
+    private static ByteBuffer writeAndRead(ByteBuffer plane, int row_stride) throws IOException {
+        return writeAndRead(plane, row_stride, DngWriter.COMPRESSION_NONE);
+    }
+
+    private static ByteBuffer writeAndRead(ByteBuffer plane, int row_stride, int compression) throws IOException {
+        File file = File.createTempFile("dng_writer_test", ".dng");
+        file.deleteOnExit();
+        long written;
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = output.getChannel();
+            written = new DngWriter().write(channel, metadata(), plane, WIDTH, HEIGHT, row_stride, compression);
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(written, bytes.length);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // offset of a tag's entry in IFD0, -1 if missing
+    private static int findEntry(ByteBuffer file, int tag) {
+        return findEntry(file, file.getInt(4), tag);
+    }
+
+    private static int findEntry(ByteBuffer file, int ifd, int tag) {
+        int count = file.getShort(ifd) & 0xffff;
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * TiffIfd.ENTRY_SIZE;
+            int entry_tag = file.getShort(entry) & 0xffff;
+            assertTrue("entries must be sorted", entry_tag > previous);
+            previous = entry_tag;
+            if (entry_tag == tag) return entry;
+        }
+        return -1;
+    }
+
+    private static long longValue(ByteBuffer file, int tag) {
+        return longValue(file, file.getInt(4), tag);
+    }
+
+    private static long longValue(ByteBuffer file, int ifd, int tag) {
+        int entry = findEntry(file, ifd, tag);
+        assertTrue("missing tag " + tag, entry >= 0);
+        int type = file.getShort(entry + 2);
+        return type == TiffIfd.TYPE_SHORT ? file.getShort(entry + 8) & 0xffff : file.getInt(entry + 8) & 0xffffffffL;
+    }
+
+    private static void assertStrip(ByteBuffer file) {
+        assertStrip(file, file.getInt(4));
+    }
+
+    private static void assertStrip(ByteBuffer file, int ifd) {
+        int strip_offset = (int) longValue(file, ifd, DngWriter.TAG_STRIP_OFFSETS);
+        assertEquals(WIDTH * HEIGHT * 2, longValue(file, ifd, DngWriter.TAG_STRIP_BYTE_COUNTS));
+        assertEquals(file.capacity(), strip_offset + WIDTH * HEIGHT * 2);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(sample(x, y), file.getShort(strip_offset + (y * WIDTH + x) * 2));
+            }
+        }
+    }
+
+    @Test
+    public void writesHeaderAndCoreTags() throws IOException {
+        ByteBuffer file = writeAndRead(bayerFrame(WIDTH * 2), WIDTH * 2);
+        assertEquals('I', file.get(0));
+        assertEquals('I', file.get(1));
+        assertEquals(42, file.getShort(2));
+        assertEquals(WIDTH, longValue(file, DngWriter.TAG_IMAGE_WIDTH));
+        assertEquals(HEIGHT, longValue(file, DngWriter.TAG_IMAGE_LENGTH));
+        assertEquals(16, longValue(file, DngWriter.TAG_BITS_PER_SAMPLE));
+        assertEquals(DngWriter.COMPRESSION_NONE, longValue(file, DngWriter.TAG_COMPRESSION));
+        assertEquals(DngWriter.PHOTOMETRIC_CFA, longValue(file, DngWriter.TAG_PHOTOMETRIC_INTERPRETATION));
+        assertEquals(1023, longValue(file, DngWriter.TAG_WHITE_LEVEL));
+        assertEquals(400, longValue(file, DngWriter.TAG_ISO_SPEED_RATINGS));
+
+        // BGGR packed inline as bytes
+        int cfa = findEntry(file, DngWriter.TAG_CFA_PATTERN);
+        assertEquals(4, file.getInt(cfa + 4));
+        assertEquals(2, file.get(cfa + 8));
+        assertEquals(1, file.get(cfa + 9));
+        assertEquals(1, file.get(cfa + 10));
+        assertEquals(0, file.get(cfa + 11));
+    }
+
+    @Test
+    public void writesOutOfLineValues() throws IOException {
+        ByteBuffer file = writeAndRead(bayerFrame(WIDTH * 2), WIDTH * 2);
+        int black_level = findEntry(file, DngWriter.TAG_BLACK_LEVEL);
+        assertEquals(4, file.getInt(black_level + 4));
+        int offset = file.getInt(black_level + 8);
+        for (int i = 0; i < 4; i++) assertEquals(64 + i, file.getInt(offset + i * 4));
+
+        int exposure = findEntry(file, DngWriter.TAG_EXPOSURE_TIME);
+        offset = file.getInt(exposure + 8);
+        assertEquals(1 / 8000.0, file.getInt(offset) / (double) file.getInt(offset + 4), 1e-9);
+
+        int color_matrix = findEntry(file, DngWriter.TAG_COLOR_MATRIX1);
+        assertEquals(TiffIfd.TYPE_SRATIONAL, file.getShort(color_matrix + 2));
+        offset = file.getInt(color_matrix + 8);
+        assertEquals(-0.5, file.getInt(offset + 8) / (double) file.getInt(offset + 12), 1e-9);
+        assertEquals(0, offset % 2);
+    }
+
+    @Test
+    public void packedRowsStreamUnchanged() throws IOException {
+        ByteBuffer plane = bayerFrame(WIDTH * 2);
+        assertStrip(writeAndRead(plane, WIDTH * 2));
+        assertEquals(0, plane.position());
+        assertEquals(plane.capacity(), plane.limit());
+    }
+
+    @Test
+    public void paddedRowsDropPadding() throws IOException {
+        int row_stride = WIDTH * 2 + 24;
+        assertStrip(writeAndRead(bayerFrame(row_stride), row_stride));
+    }
+
+    @Test
+    public void losslessJpegTilesDecodeToFrame() throws IOException {
+        int row_stride = WIDTH * 2 + 8;
+        ByteBuffer file = writeAndRead(bayerFrame(row_stride), row_stride, DngWriter.COMPRESSION_LOSSLESS_JPEG);
+        assertEquals(DngWriter.COMPRESSION_LOSSLESS_JPEG, longValue(file, DngWriter.TAG_COMPRESSION));
+        assertEquals(-1, findEntry(file, DngWriter.TAG_STRIP_OFFSETS));
+        int tile_width = (int) longValue(file, DngWriter.TAG_TILE_WIDTH);
+        int tile_height = (int) longValue(file, DngWriter.TAG_TILE_LENGTH);
+        int tiles_across = (WIDTH + tile_width - 1) / tile_width;
+        int tiles = tiles_across * ((HEIGHT + tile_height - 1) / tile_height);
+
+        int offsets = findEntry(file, DngWriter.TAG_TILE_OFFSETS);
+        int byte_counts = findEntry(file, DngWriter.TAG_TILE_BYTE_COUNTS);
+        assertEquals(tiles, file.getInt(offsets + 4));
+        assertEquals(tiles, file.getInt(byte_counts + 4));
+        LosslessJpegDecoder decoder = new LosslessJpegDecoder();
+        long end = 0;
+        for (int tile = 0; tile < tiles; tile++) {
+            int offset = tiles == 1 ? file.getInt(offsets + 8) : file.getInt(file.getInt(offsets + 8) + tile * 4);
+            int length = tiles == 1 ? file.getInt(byte_counts + 8) : file.getInt(file.getInt(byte_counts + 8) + tile * 4);
+            ByteBuffer data = file.duplicate();
+            data.limit(offset + length);
+            data.position(offset);
+            decoder.decode(data.slice());
+            end = Math.max(end, offset + length);
+            int x0 = (tile % tiles_across) * tile_width;
+            int y0 = (tile / tiles_across) * tile_height;
+            for (int y = y0; y < Math.min(HEIGHT, y0 + tile_height); y++) {
+                for (int x = x0; x < Math.min(WIDTH, x0 + tile_width); x++) {
+                    assertEquals(sample(x, y), decoder.getSamples()[(y - y0) * decoder.getSampleWidth() + x - x0]);
+                }
+            }
+        }
+        assertEquals(file.capacity(), end);
+    }
+
+    @Test
+    public void preparedWriteToMappedFileMatchesChannelWrite() throws IOException {
+        int row_stride = WIDTH * 2 + 8;
+        ByteBuffer plane = bayerFrame(row_stride);
+        for (int compression : new int[] {DngWriter.COMPRESSION_NONE, DngWriter.COMPRESSION_LOSSLESS_JPEG}) {
+            ByteBuffer expected = writeAndRead(plane, row_stride, compression);
+            DngWriter writer = new DngWriter();
+            long size = writer.prepare(metadata(), plane, WIDTH, HEIGHT, row_stride, compression);
+            assertEquals(expected.capacity(), size);
+
+            File file = File.createTempFile("dng_writer_test", ".dng");
+            file.deleteOnExit();
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                ByteBuffer mapped = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                assertEquals(size, writer.writeTo(mapped));
+                assertEquals(size, mapped.position());
+            }
+            assertEquals(expected, ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN));
+            assertEquals(0, plane.position());
+        }
+    }
+
+    @Test
+    public void previewIfdPointsAtRawSubIfd() throws IOException {
+        int row_stride = WIDTH * 2 + 8;
+        ByteBuffer plane = bayerFrame(row_stride);
+        DngWriter writer = new DngWriter();
+        // 32 quads across, binned by 2
+        writer.setPreviewSize(16);
+        File file = File.createTempFile("dng_writer_test", ".dng");
+        file.deleteOnExit();
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            writer.write(output.getChannel(), metadata(), plane, WIDTH, HEIGHT, row_stride, DngWriter.COMPRESSION_NONE);
+        }
+        ByteBuffer dng = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(DngWriter.SUBFILE_PREVIEW, longValue(dng, DngWriter.TAG_NEW_SUBFILE_TYPE));
+        assertEquals(DngWriter.PHOTOMETRIC_RGB, longValue(dng, DngWriter.TAG_PHOTOMETRIC_INTERPRETATION));
+        assertEquals(16, longValue(dng, DngWriter.TAG_IMAGE_WIDTH));
+        assertEquals(12, longValue(dng, DngWriter.TAG_IMAGE_LENGTH));
+        assertEquals(3, longValue(dng, DngWriter.TAG_SAMPLES_PER_PIXEL));
+        assertEquals(16 * 12 * 3, longValue(dng, DngWriter.TAG_STRIP_BYTE_COUNTS));
+        // colour tags live in IFD0, sensor tags in the raw IFD
+        assertTrue(findEntry(dng, DngWriter.TAG_COLOR_MATRIX1) >= 0);
+        assertTrue(findEntry(dng, DngWriter.TAG_DNG_VERSION) >= 0);
+        assertEquals(-1, findEntry(dng, DngWriter.TAG_CFA_PATTERN));
+
+        int raw_ifd = (int) longValue(dng, DngWriter.TAG_SUB_IFDS);
+        assertEquals(DngWriter.SUBFILE_MAIN, longValue(dng, raw_ifd, DngWriter.TAG_NEW_SUBFILE_TYPE));
+        assertEquals(DngWriter.PHOTOMETRIC_CFA, longValue(dng, raw_ifd, DngWriter.TAG_PHOTOMETRIC_INTERPRETATION));
+        assertEquals(1023, longValue(dng, raw_ifd, DngWriter.TAG_WHITE_LEVEL));
+        assertEquals(-1, findEntry(dng, raw_ifd, DngWriter.TAG_DNG_VERSION));
+        assertEquals(0, dng.getInt(raw_ifd + 2 + (dng.getShort(raw_ifd) & 0xffff) * TiffIfd.ENTRY_SIZE));
+        assertStrip(dng, raw_ifd);
+
+        // the preview sits between the IFDs and the sensor data, and isn't black
+        int preview_offset = (int) longValue(dng, DngWriter.TAG_STRIP_OFFSETS);
+        assertTrue(preview_offset > raw_ifd);
+        assertTrue(preview_offset + 16 * 12 * 3 <= longValue(dng, raw_ifd, DngWriter.TAG_STRIP_OFFSETS));
+        int sum = 0;
+        for (int i = 0; i < 16 * 12 * 3; i++) sum += dng.get(preview_offset + i) & 0xff;
+        assertTrue(sum > 0);
+        assertEquals(0, plane.position());
+    }
+
+    @Test
+    public void previewWithLosslessJpegMatchesMappedWrite() throws IOException {
+        ByteBuffer plane = bayerFrame(WIDTH * 2);
+        DngWriter writer = new DngWriter();
+        // binned down to a single pixel, 3 bytes that need padding to keep the sensor data word aligned
+        writer.setPreviewSize(1);
+        File channel_file = File.createTempFile("dng_writer_test", ".dng");
+        channel_file.deleteOnExit();
+        try (RandomAccessFile output = new RandomAccessFile(channel_file, "rw")) {
+            writer.write(output.getChannel(), metadata(), plane, WIDTH, HEIGHT, WIDTH * 2, DngWriter.COMPRESSION_LOSSLESS_JPEG);
+        }
+        long size = writer.prepare(metadata(), plane, WIDTH, HEIGHT, WIDTH * 2, DngWriter.COMPRESSION_LOSSLESS_JPEG);
+        ByteBuffer mapped = ByteBuffer.allocate((int) size);
+        assertEquals(size, writer.writeTo(mapped));
+        mapped.flip();
+        assertEquals(ByteBuffer.wrap(Files.readAllBytes(channel_file.toPath())), mapped);
+        ByteBuffer file = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(1, longValue(file, DngWriter.TAG_IMAGE_WIDTH));
+        assertEquals(1, longValue(file, DngWriter.TAG_IMAGE_LENGTH));
+        int raw_ifd = (int) longValue(file, DngWriter.TAG_SUB_IFDS);
+        assertEquals(DngWriter.COMPRESSION_LOSSLESS_JPEG, longValue(file, raw_ifd, DngWriter.TAG_COMPRESSION));
+        assertEquals(0, longValue(file, raw_ifd, DngWriter.TAG_TILE_OFFSETS) % 2);
+    }
+
+    @Test
+    public void optionalTagsLeftOut() {
+        DngMetadata metadata = new DngMetadata();
+        TiffIfd ifd = DngWriter.buildIfd(metadata, WIDTH, HEIGHT);
+        assertFalse(ifd.contains(DngWriter.TAG_MAKE));
+        assertFalse(ifd.contains(DngWriter.TAG_COLOR_MATRIX1));
+        assertFalse(ifd.contains(DngWriter.TAG_EXPOSURE_TIME));
+        assertTrue(ifd.contains(DngWriter.TAG_UNIQUE_CAMERA_MODEL));
+        assertEquals(0, ifd.getByteSize() % 2);
+    }
+}
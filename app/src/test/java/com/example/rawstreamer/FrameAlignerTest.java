@@ -0,0 +1,140 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class FrameAlignerTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+    private static final int SCENE_SIZE = 512;
+    private static final int[] SCENE = texture(new Random(21));
+
+    // smoothed random texture, every quad differs from its neighbours so alignment has something to find
+    private static int[] texture(Random random) {
+        int[] noise = new int[SCENE_SIZE * SCENE_SIZE];
+        for (int i = 0; i < noise.length; i++) noise[i] = random.nextInt(4096);
+        int[] smooth = new int[noise.length];
+        for (int y = 0; y < SCENE_SIZE; y++) {
+            for (int x = 0; x < SCENE_SIZE; x++) {
+                int sum = 0;
+                for (int j = -2; j <= 2; j++) {
+                    for (int i = -2; i <= 2; i++) {
+                        int sx = Math.min(Math.max(x + i, 0), SCENE_SIZE - 1);
+                        int sy = Math.min(Math.max(y + j, 0), SCENE_SIZE - 1);
+                        sum += noise[sy * SCENE_SIZE + sx];
+                    }
+                }
+                smooth[y * SCENE_SIZE + x] = 500 + sum / 25;
+            }
+        }
+        return smooth;
+    }
+
+    private interface SampleSource {
+        int sample(int x, int y);
+    }
+
+    private static ByteBuffer frame(int width, int height, int row_stride, SampleSource source) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(row_stride * height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) plane.putShort(y * row_stride + x * 2, (short) source.sample(x, y));
+        }
+        return plane;
+    }
+
+    // the scene seen through a camera moved by shift_x, shift_y, so content appears at -shift
+    private static int scene(int x, int y, int shift_x, int shift_y) {
+        return SCENE[(y + 100 + shift_y) * SCENE_SIZE + x + 100 + shift_x];
+    }
+
+    @Test
+    public void globalShiftIsFoundForInteriorTiles() {
+        int width = 256;
+        int height = 192;
+        FrameAligner aligner = new FrameAligner(POOL, width, height, 32);
+        aligner.align(frame(width, height, width * 2, (x, y) -> scene(x, y, 0, 0)), width * 2);
+        // content moves 6 left and 10 down, so tile content is found at +(-6, 10)
+        Random random = new Random(1);
+        int[] motion = aligner.align(frame(width, height, width * 2,
+                (x, y) -> scene(x, y, 6, -10) + random.nextInt(20)), width * 2);
+        for (int tile_y = 1; tile_y < aligner.getTilesDown() - 1; tile_y++) {
+            for (int tile_x = 1; tile_x < aligner.getTilesAcross() - 1; tile_x++) {
+                int tile = tile_y * aligner.getTilesAcross() + tile_x;
+                assertEquals("tile " + tile + " x", -6, motion[tile * 2]);
+                assertEquals("tile " + tile + " y", 10, motion[tile * 2 + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void largeShiftIsFoundOnCoarseLevels() {
+        int width = 256;
+        int height = 256;
+        FrameAligner aligner = new FrameAligner(POOL, width, height, 64);
+        aligner.align(frame(width, height, width * 2, (x, y) -> scene(x, y, 0, 0)), width * 2);
+        int[] motion = aligner.align(frame(width, height, width * 2, (x, y) -> scene(x, y, -48, 36)), width * 2);
+        int tile = aligner.getTilesAcross() + 1;
+        assertEquals(48, motion[tile * 2]);
+        assertEquals(-36, motion[tile * 2 + 1]);
+    }
+
+    @Test
+    public void tilesFollowLocalMotion() {
+        int width = 256;
+        int height = 128;
+        FrameAligner aligner = new FrameAligner(POOL, width, height, 32);
+        aligner.align(frame(width, height, width * 2, (x, y) -> scene(x, y, 0, 0)), width * 2);
+        // the left half moves right, the right half moves up
+        int[] motion = aligner.align(frame(width, height, width * 2,
+                (x, y) -> x < width / 2 ? scene(x, y, -8, 0) : scene(x, y, 0, 6)), width * 2);
+        for (int tile_y = 1; tile_y < aligner.getTilesDown() - 1; tile_y++) {
+            int left = tile_y * aligner.getTilesAcross() + 1;
+            int right = tile_y * aligner.getTilesAcross() + aligner.getTilesAcross() - 2;
+            assertEquals(8, motion[left * 2]);
+            assertEquals(0, motion[left * 2 + 1]);
+            assertEquals(0, motion[right * 2]);
+            assertEquals(-6, motion[right * 2 + 1]);
+        }
+    }
+
+    @Test
+    public void referenceFrameHasNoMotion() {
+        int width = 128;
+        int height = 128;
+        FrameAligner aligner = new FrameAligner(POOL, width, height, 32);
+        ByteBuffer plane = frame(width, height, width * 2, (x, y) -> scene(x, y, 0, 0));
+        for (int value : aligner.align(plane, width * 2)) assertEquals(0, value);
+        for (int value : aligner.align(plane, width * 2)) assertEquals(0, value);
+        aligner.reset();
+        ByteBuffer moved = frame(width, height, width * 2, (x, y) -> scene(x, y, 4, 4));
+        for (int value : aligner.align(moved, width * 2)) assertEquals(0, value);
+    }
+
+    @Test
+    public void alignedMergeKeepsDetail() {
+        int width = 192;
+        int height = 128;
+        int row_stride = width * 2 + 16;
+        FrameAligner aligner = new FrameAligner(POOL, width, height, 32);
+        BurstMerger merger = new BurstMerger(POOL, width, height, 32);
+        int[][] shifts = {{0, 0}, {4, -2}, {-6, 8}, {2, 2}};
+        for (int[] shift : shifts) {
+            ByteBuffer plane = frame(width, height, row_stride, (x, y) -> scene(x, y, shift[0], shift[1]));
+            merger.add(plane, row_stride, aligner.align(plane, row_stride));
+        }
+        ByteBuffer merged = frame(width, height, row_stride, (x, y) -> 0);
+        merger.resolve(merged, row_stride);
+        // away from the edges, where clamped reads differ, the merge reproduces the reference exactly
+        for (int y = 16; y < height - 16; y++) {
+            for (int x = 16; x < width - 16; x++) {
+                assertEquals(x + "," + y, scene(x, y, 0, 0), merged.getShort(y * row_stride + x * 2));
+            }
+        }
+    }
+}
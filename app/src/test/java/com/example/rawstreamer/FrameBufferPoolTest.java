@@ -0,0 +1,58 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+
+    @Test
+    public void buffersAreDirectAndSizedForFrame() {
+        FrameBufferPool pool = FrameBufferPool.forRawSize(40, 30, 2);
+        ByteBuffer buffer = pool.acquire();
+        assertTrue(buffer.isDirect());
+        assertEquals(40 * 30 * 2, buffer.capacity());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+        assertEquals(0, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+    }
+
+    @Test
+    public void tracksHighWaterAndExhaustion() throws InterruptedException {
+        FrameBufferPool pool = new FrameBufferPool(3, 16);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        ByteBuffer third = pool.acquire();
+        assertNotNull(third);
+        assertNull(pool.acquire());
+        assertNull(pool.acquire(5));
+        assertEquals(2, pool.getExhaustions());
+        assertEquals(3, pool.getInUse());
+
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getInUse());
+        assertEquals(3, pool.getHighWater());
+        assertEquals(3, pool.getAcquisitions());
+    }
+
+    @Test
+    public void releasedBufferIsClearedOnReuse() {
+        FrameBufferPool pool = new FrameBufferPool(1, 16);
+        ByteBuffer buffer = pool.acquire();
+        buffer.putInt(7).flip();
+        pool.release(buffer);
+        ByteBuffer again = pool.acquire();
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(16, again.limit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffer() {
+        new FrameBufferPool(1, 16).release(ByteBuffer.allocate(16));
+    }
+}
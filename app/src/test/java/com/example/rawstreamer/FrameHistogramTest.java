@@ -0,0 +1,40 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithinAnEighth() {
+        for (long value = 0; value < 1 << 16; value++) {
+            int bucket = FrameHistogram.bucket(value);
+            long upper = FrameHistogram.bucketUpperBound(bucket);
+            assertTrue(value <= upper);
+            assertTrue(upper - value <= value / 8);
+            if (bucket > 0) assertTrue(value > FrameHistogram.bucketUpperBound(bucket - 1));
+        }
+        assertEquals(FrameHistogram.BUCKETS - 1, FrameHistogram.bucket(Long.MAX_VALUE));
+        assertEquals(0, FrameHistogram.bucket(-5));
+    }
+
+    @Test
+    public void percentilesOfFrameIntervals() {
+        FrameHistogram histogram = new FrameHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        // 99 frames at 30 fps and one 100 ms stall
+        for (int i = 0; i < 99; i++) histogram.record(33333333);
+        histogram.record(100000000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 33333333 && p50 <= 33333333 + 33333333 / 8);
+        assertEquals(p50, histogram.getPercentile(0.99));
+        assertEquals(100000000, histogram.getPercentile(1));
+        assertEquals((99 * 33333333L + 100000000) / 100, histogram.getMean());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
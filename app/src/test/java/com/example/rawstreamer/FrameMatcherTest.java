@@ -0,0 +1,147 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FrameMatcherTest {
+
+    // records what the matcher emitted
+    private static class CountingListener implements FrameMatcher.Listener<Long, Long> {
+        final AtomicInteger matched = new AtomicInteger();
+        final AtomicInteger mismatched = new AtomicInteger();
+        final AtomicInteger images_orphaned = new AtomicInteger();
+        final AtomicInteger results_orphaned = new AtomicInteger();
+        final AtomicLong last_orphan = new AtomicLong();
+
+        @Override
+        public void onMatched(long timestamp, Long image, Long result) {
+            matched.incrementAndGet();
+            if (image != timestamp || result != -timestamp) mismatched.incrementAndGet();
+        }
+
+        @Override
+        public void onImageOrphaned(long timestamp, Long image) {
+            images_orphaned.incrementAndGet();
+            last_orphan.set(timestamp);
+        }
+
+        @Override
+        public void onResultOrphaned(long timestamp, Long result) {
+            results_orphaned.incrementAndGet();
+            last_orphan.set(timestamp);
+        }
+    }
+
+    @Test
+    public void matchesInEitherOrder() {
+        CountingListener listener = new CountingListener();
+        FrameMatcher<Long, Long> matcher = new FrameMatcher<>(8, 1000, listener);
+        matcher.offerImage(100L, 100L);
+        assertEquals(0, listener.matched.get());
+        matcher.offerResult(100L, -100L);
+        matcher.offerResult(200L, -200L);
+        matcher.offerImage(200L, 200L);
+        assertEquals(2, listener.matched.get());
+        assertEquals(0, listener.mismatched.get());
+        assertEquals(0, matcher.getPending());
+    }
+
+    @Test
+    public void drainOrphansUnmatchedHalves() {
+        CountingListener listener = new CountingListener();
+        FrameMatcher<Long, Long> matcher = new FrameMatcher<>(8, 1000, listener);
+        matcher.offerImage(1L, 1L);
+        matcher.offerResult(2L, -2L);
+        assertEquals(2, matcher.getPending());
+        matcher.drain();
+        assertEquals(1, listener.images_orphaned.get());
+        assertEquals(1, listener.results_orphaned.get());
+        assertEquals(0, matcher.getPending());
+    }
+
+    @Test
+    public void evictsHalvesOlderThanTimeout() throws InterruptedException {
+        CountingListener listener = new CountingListener();
+        FrameMatcher<Long, Long> matcher = new FrameMatcher<>(8, 5, listener);
+        matcher.offerImage(1L, 1L);
+        Thread.sleep(20);
+        matcher.offerImage(2L, 2L);
+        assertEquals(1, listener.images_orphaned.get());
+        assertEquals(1L, listener.last_orphan.get());
+        assertEquals(1, matcher.getPending());
+    }
+
+    @Test
+    public void evictExpiredWithoutNewHalves() throws InterruptedException {
+        CountingListener listener = new CountingListener();
+        FrameMatcher<Long, Long> matcher = new FrameMatcher<>(8, 5, listener);
+        matcher.offerImage(1L, 1L);
+        matcher.evictExpired();
+        assertEquals(0, listener.images_orphaned.get());
+        Thread.sleep(20);
+        matcher.evictExpired();
+        assertEquals(1, listener.images_orphaned.get());
+        assertEquals(0, matcher.getPending());
+    }
+
+    @Test
+    public void fullTableOrphansNewHalf() {
+        CountingListener listener = new CountingListener();
+        FrameMatcher<Long, Long> matcher = new FrameMatcher<>(4, 1000, listener);
+        for (long ts = 1; ts <= 5; ts++) matcher.offerImage(ts, ts);
+        assertEquals(4, matcher.getPending());
+        assertEquals(1, listener.images_orphaned.get());
+        assertEquals(5L, listener.last_orphan.get());
+    }
+
+    @Test
+    public void concurrentProducersPairEveryFrame() throws InterruptedException {
+        final int frames = 200000;
+        final int max_lag = 16;
+        CountingListener listener = new CountingListener();
+        FrameMatcher<Long, Long> matcher = new FrameMatcher<>(64, 10000, listener);
+        AtomicLong images_offered = new AtomicLong();
+        AtomicLong results_offered = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        // either side may run ahead of the other, but never by more than the table can hold
+        Thread images = new Thread(() -> {
+            await(start);
+            for (long ts = 1; ts <= frames; ts++) {
+                while (ts - results_offered.get() > max_lag) Thread.yield();
+                matcher.offerImage(ts, ts);
+                images_offered.set(ts);
+            }
+        });
+        Thread results = new Thread(() -> {
+            await(start);
+            for (long ts = 1; ts <= frames; ts++) {
+                while (ts - images_offered.get() > max_lag) Thread.yield();
+                matcher.offerResult(ts, -ts);
+                results_offered.set(ts);
+            }
+        });
+        images.start();
+        results.start();
+        start.countDown();
+        images.join();
+        results.join();
+        assertEquals(frames, listener.matched.get());
+        assertEquals(0, listener.mismatched.get());
+        assertEquals(0, listener.images_orphaned.get() + listener.results_orphaned.get());
+        assertEquals(0, matcher.getPending());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameMetricsTest {
+
+    @Test
+    public void intervalsLatencyAndGaps() {
+        FrameMetrics metrics = new FrameMetrics();
+        long frame_ns = 33333333;
+        for (int frame = 0; frame < 10; frame++) {
+            // frames 4 and 5 never start
+            if (frame == 4 || frame == 5) continue;
+            long timestamp = frame * frame_ns;
+            metrics.captureStarted(FrameMetrics.STREAM_PREVIEW, frame, timestamp);
+            metrics.captureCompleted(FrameMetrics.STREAM_PREVIEW, timestamp, timestamp + 50000000);
+        }
+        metrics.captureFailed(FrameMetrics.STREAM_PREVIEW);
+        metrics.bufferLost(FrameMetrics.STREAM_PREVIEW);
+        assertEquals(8, metrics.getCompleted(FrameMetrics.STREAM_PREVIEW));
+        assertEquals(1, metrics.getFailed(FrameMetrics.STREAM_PREVIEW));
+        assertEquals(1, metrics.getBuffersLost(FrameMetrics.STREAM_PREVIEW));
+        assertEquals(7, metrics.getInterval(FrameMetrics.STREAM_PREVIEW).getCount());
+        assertEquals(3 * frame_ns, metrics.getInterval(FrameMetrics.STREAM_PREVIEW).getMax());
+        assertEquals(50000000, metrics.getLatency(FrameMetrics.STREAM_PREVIEW).getMax());
+        assertEquals(1, metrics.getSequenceGaps());
+        assertEquals(2, metrics.getFramesSkipped());
+
+        // a raw frame shares the session's frame numbers without adding a gap
+        metrics.captureStarted(FrameMetrics.STREAM_RAW, 9, 9 * frame_ns);
+        assertEquals(1, metrics.getSequenceGaps());
+
+        StringBuilder summary = new StringBuilder();
+        metrics.appendSummary(summary);
+        assertTrue(summary.toString().startsWith("preview "));
+        assertTrue(summary.toString().contains("frames 8 failed 1 lost 1"));
+        assertFalse(summary.toString().contains("raw"));
+        assertTrue(summary.toString().endsWith("gaps 1 skipped 2"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getCompleted(FrameMetrics.STREAM_PREVIEW));
+        assertEquals(0, metrics.getSequenceGaps());
+    }
+
+    @Test
+    public void millisToATenth() {
+        StringBuilder out = new StringBuilder();
+        FrameMetrics.appendMillis(out, 33333333);
+        out.append(' ');
+        FrameMetrics.appendMillis(out, 49999);
+        out.append(' ');
+        FrameMetrics.appendMillis(out, 1250000);
+        assertEquals("33.3 0.0 1.3", out.toString());
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class LosslessJpegTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    private static ByteBuffer frame(int width, int height, int row_stride, SampleSource source) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(row_stride * height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) plane.putShort(y * row_stride + x * 2, (short) source.sample(x, y));
+        }
+        return plane;
+    }
+
+    private interface SampleSource {
+        int sample(int x, int y);
+    }
+
+    // decodes every tile and checks it against the frame, padding included in the comparison area only
+    private static void assertRoundTrip(LosslessJpegEncoder encoder, ByteBuffer plane, int width, int height,
+                                        int row_stride) throws IOException {
+        LosslessJpegDecoder decoder = new LosslessJpegDecoder();
+        for (int tile = 0; tile < encoder.getTileCount(); tile++) {
+            ByteBuffer data = encoder.getTile(tile).duplicate();
+            decoder.decode(data);
+            assertEquals(0, data.remaining());
+            assertEquals(encoder.getTileWidth(), decoder.getSampleWidth());
+            assertEquals(encoder.getTileHeight(), decoder.getHeight());
+            assertEquals(LosslessJpegEncoder.PRECISION, decoder.getPrecision());
+            int x0 = (tile % encoder.getTilesAcross()) * encoder.getTileWidth();
+            int y0 = (tile / encoder.getTilesAcross()) * encoder.getTileHeight();
+            short[] samples = decoder.getSamples();
+            for (int y = 0; y < encoder.getTileHeight() && y0 + y < height; y++) {
+                for (int x = 0; x < encoder.getTileWidth() && x0 + x < width; x++) {
+                    short expected = plane.getShort((y0 + y) * row_stride + (x0 + x) * 2);
+                    if (expected != samples[y * decoder.getSampleWidth() + x]) {
+                        fail("tile " + tile + " differs at " + (x0 + x) + "," + (y0 + y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fullRangeNoiseIsBitExact() throws IOException {
+        Random random = new Random(42);
+        int width = 96;
+        int height = 64;
+        ByteBuffer plane = frame(width, height, width * 2, (x, y) -> random.nextInt(65536));
+        LosslessJpegEncoder encoder = new LosslessJpegEncoder(POOL, 32, 32);
+        encoder.encode(plane, width, height, width * 2);
+        assertEquals(3 * 2, encoder.getTileCount());
+        assertRoundTrip(encoder, plane, width, height, width * 2);
+    }
+
+    @Test
+    public void extremeDifferencesAreBitExact() throws IOException {
+        // neighbours of the same colour 32768 apart hit the 16 bit category
+        int width = 64;
+        int height = 32;
+        ByteBuffer plane = frame(width, height, width * 2, (x, y) -> ((x / 2 + y) % 2 == 0) ? 0 : 32768 + (x & 1) * 32767);
+        LosslessJpegEncoder encoder = new LosslessJpegEncoder(POOL, 32, 32);
+        encoder.encode(plane, width, height, width * 2);
+        assertRoundTrip(encoder, plane, width, height, width * 2);
+    }
+
+    @Test
+    public void flatTileIsBitExact() throws IOException {
+        int width = 32;
+        int height = 16;
+        ByteBuffer plane = frame(width, height, width * 2, (x, y) -> 32768);
+        LosslessJpegEncoder encoder = new LosslessJpegEncoder(POOL, 32, 16);
+        encoder.encode(plane, width, height, width * 2);
+        assertRoundTrip(encoder, plane, width, height, width * 2);
+    }
+
+    @Test
+    public void paddedRowsAndPartialTilesAreBitExact() throws IOException {
+        Random random = new Random(7);
+        int width = 202;
+        int height = 134;
+        int row_stride = width * 2 + 36;
+        ByteBuffer plane = frame(width, height, row_stride,
+                (x, y) -> (64 + x * 2 + y * 3 + (x & 1) * 200 + random.nextInt(16)) & 0x3ff);
+        LosslessJpegEncoder encoder = new LosslessJpegEncoder(POOL, 64, 48);
+        encoder.encode(plane, width, height, row_stride);
+        assertEquals(4, encoder.getTilesAcross());
+        assertEquals(3, encoder.getTilesDown());
+        assertRoundTrip(encoder, plane, width, height, row_stride);
+        assertEquals(0, plane.position());
+        assertEquals(plane.capacity(), plane.limit());
+    }
+
+    @Test
+    public void tenBitFrameAtLeastHalvesSize() throws IOException {
+        Random random = new Random(3);
+        int width = 512;
+        int height = 256;
+        ByteBuffer plane = frame(width, height, width * 2,
+                (x, y) -> (int) (64 + 400 + 300 * Math.sin(x / 40.0) * Math.cos(y / 30.0) + (x & 1) * 50
+                        + random.nextGaussian() * 4));
+        LosslessJpegEncoder encoder = new LosslessJpegEncoder(POOL);
+        long encoded = encoder.encode(plane, width, height, width * 2);
+        assertTrue("encoded " + encoded + " bytes", encoded < width * height * 2 / 2);
+        assertRoundTrip(encoder, plane, width, height, width * 2);
+    }
+
+    @Test
+    public void encoderIsReusableAcrossFrameSizes() throws IOException {
+        LosslessJpegEncoder encoder = new LosslessJpegEncoder(POOL, 32, 32);
+        ByteBuffer large = frame(128, 96, 256, (x, y) -> x * y);
+        encoder.encode(large, 128, 96, 256);
+        ByteBuffer small = frame(40, 20, 80, (x, y) -> x + y);
+        encoder.encode(small, 40, 20, 80);
+        assertEquals(2, encoder.getTileCount());
+        assertRoundTrip(encoder, small, 40, 20, 80);
+    }
+
+    @Test
+    public void huffmanCodesAreLimitedTo16Bits() {
+        // Fibonacci frequencies give the most unbalanced tree
+        long[] frequencies = new long[LosslessJpegHuffman.SYMBOLS];
+        long a = 1;
+        long b = 1;
+        for (int i = 0; i < frequencies.length; i++) {
+            frequencies[i] = a;
+            long next = a + b;
+            a = b;
+            b = next;
+        }
+        int[] bits = new int[17];
+        int[] values = new int[17];
+        LosslessJpegHuffman.buildTable(frequencies, bits, values);
+        int count = 0;
+        double kraft = 0;
+        for (int length = 1; length <= 16; length++) {
+            count += bits[length];
+            kraft += bits[length] / Math.pow(2, length);
+        }
+        assertEquals(LosslessJpegHuffman.SYMBOLS, count);
+        assertTrue(kraft < 1);
+    }
+}
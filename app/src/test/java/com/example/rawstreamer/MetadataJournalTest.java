@@ -0,0 +1,141 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class MetadataJournalTest {
+
+    // runs writer tasks only when asked, like a writer thread that has fallen behind
+    private static class QueuedExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {tasks.add(task);}
+
+        void runAll() {
+            while (!tasks.isEmpty()) tasks.remove(0).run();
+        }
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("metadata_journal_test", ".journal");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void record(MetadataJournal journal, int frame) {
+        journal.record(1000000L * frame, frame, 10000 + frame, 33333333, 100 + frame, 1 + frame / 100f,
+                frame % 4, MetadataJournal.UNKNOWN);
+    }
+
+    private static void assertFrame(MetadataJournalReader reader, int frame) {
+        assertEquals(1000000L * frame, reader.getTimestamp());
+        assertEquals(frame, reader.getFrameNumber());
+        assertEquals(10000 + frame, reader.getExposureTime());
+        assertEquals(33333333, reader.getFrameDuration());
+        assertEquals(100 + frame, reader.getIso());
+        assertEquals(1 + frame / 100f, reader.getZoomRatio(), 0);
+        assertEquals(frame % 4, reader.getAeState());
+        assertEquals(MetadataJournal.UNKNOWN, reader.getAfState());
+    }
+
+    @Test
+    public void recordsAreReadBackInOrderAcrossRingWraps() throws IOException {
+        File file = tempFile();
+        long before = System.currentTimeMillis();
+        // writer tasks run straight away, so the ring wraps many times
+        MetadataJournal journal = new MetadataJournal(file, 16, Runnable::run);
+        for (int frame = 0; frame < 1000; frame++) record(journal, frame);
+        journal.close();
+        assertEquals(0, journal.getDroppedCount());
+        assertEquals(MetadataJournal.HEADER_SIZE + 1000L * MetadataJournal.RECORD_SIZE, file.length());
+
+        MetadataJournalReader reader = new MetadataJournalReader(file);
+        assertEquals(MetadataJournal.VERSION, reader.getVersion());
+        assertTrue(reader.getSessionStartMs() >= before);
+        for (int frame = 0; frame < 1000; frame++) {
+            assertTrue(reader.next());
+            assertFrame(reader, frame);
+        }
+        assertFalse(reader.next());
+        assertFalse(reader.isTruncated());
+        reader.close();
+    }
+
+    @Test
+    public void fullRingDropsNewRecords() throws IOException {
+        File file = tempFile();
+        QueuedExecutor writer = new QueuedExecutor();
+        MetadataJournal journal = new MetadataJournal(file, 8, writer);
+        for (int frame = 0; frame < 10; frame++) record(journal, frame);
+        assertEquals(2, journal.getDroppedCount());
+        // only one writer task is queued however many records pile up
+        assertEquals(1, writer.tasks.size());
+        // nothing counts as recorded before it is written
+        assertEquals(0, journal.getRecordedCount());
+        writer.runAll();
+        assertEquals(8, journal.getRecordedCount());
+        record(journal, 10);
+        journal.close();
+        record(journal, 11);
+        assertEquals(9, journal.getRecordedCount());
+
+        MetadataJournalReader reader = new MetadataJournalReader(file);
+        for (int frame = 0; frame < 8; frame++) {
+            assertTrue(reader.next());
+            assertFrame(reader, frame);
+        }
+        assertTrue(reader.next());
+        assertFrame(reader, 10);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void longerRecordsAreSkippedAndCutRecordsEndTheJournal() throws IOException {
+        File file = tempFile();
+        MetadataJournal journal = new MetadataJournal(file, 8, Runnable::run);
+        record(journal, 1);
+        journal.close();
+        // a record from a newer writer with 6 extra bytes, then one cut off by a crash
+        int longer = MetadataJournal.PAYLOAD_SIZE + 6;
+        ByteBuffer tail = ByteBuffer.allocate(MetadataJournal.LENGTH_PREFIX + longer + 10).order(ByteOrder.LITTLE_ENDIAN);
+        tail.putShort((short) longer).putLong(MetadataJournal.LENGTH_PREFIX + MetadataJournal.OFFSET_TIMESTAMP, 7);
+        tail.putLong(MetadataJournal.LENGTH_PREFIX + MetadataJournal.OFFSET_FRAME_NUMBER, 2);
+        tail.position(MetadataJournal.LENGTH_PREFIX + longer);
+        tail.putShort((short) MetadataJournal.PAYLOAD_SIZE);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(output.length());
+            output.write(tail.array());
+        }
+
+        MetadataJournalReader reader = new MetadataJournalReader(file);
+        assertTrue(reader.next());
+        assertFrame(reader, 1);
+        assertTrue(reader.next());
+        assertEquals(2, reader.getFrameNumber());
+        assertFalse(reader.next());
+        assertTrue(reader.isTruncated());
+        assertEquals(2, reader.getRecordsRead());
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = tempFile();
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.write(new byte[64]);
+        }
+        new MetadataJournalReader(file);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class RawTileRendererTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 404;
+    private static final ByteBuffer FRAME = frame(new Random(3));
+
+    private static ByteBuffer frame(Random random) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane.putShort((y * WIDTH + x) * 2, (short) (64 + (x * 3 + y * 2) % 700 + random.nextInt(200)));
+            }
+        }
+        return plane;
+    }
+
+    private static DngMetadata metadata() {
+        DngMetadata metadata = new DngMetadata();
+        metadata.cfa_pattern = DngMetadata.CFA_GBRG;
+        metadata.black_level = new int[] {60, 62, 64, 66};
+        metadata.white_level = 1023;
+        metadata.as_shot_neutral = new double[] {0.5, 1, 0.8};
+        return metadata;
+    }
+
+    private static File write(int compression, int preview_size) throws IOException {
+        File file = File.createTempFile("raw_tile_renderer_test", ".dng");
+        file.deleteOnExit();
+        DngWriter writer = new DngWriter();
+        writer.setPreviewSize(preview_size);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            writer.write(output.getChannel(), metadata(), FRAME, WIDTH, HEIGHT, WIDTH * 2, compression);
+        }
+        return file;
+    }
+
+    // the engine a viewer of the whole frame would use
+    private static DemosaicEngine referenceEngine() {
+        DemosaicEngine engine = new DemosaicEngine(POOL);
+        engine.setCfaPattern(DemosaicEngine.CFA_GBRG);
+        engine.setLevels(new int[] {60, 62, 64, 66}, 1023);
+        engine.setWhiteBalance(2, 1, 1.25f);
+        return engine;
+    }
+
+    // renders every tile of a level and checks it against the same level made from the whole frame
+    private static void assertLevel(RawTileRenderer renderer, int level, int[] expected) throws IOException {
+        int level_width = renderer.getLevelWidth(level);
+        int[] tile = new int[RawTileRenderer.TILE_SIZE * RawTileRenderer.TILE_SIZE];
+        for (int tile_y = 0; tile_y < renderer.getTilesDown(level); tile_y++) {
+            for (int tile_x = 0; tile_x < renderer.getTilesAcross(level); tile_x++) {
+                renderer.render(level, tile_x, tile_y, tile);
+                for (int y = 0; y < renderer.getTileHeight(level, tile_y); y++) {
+                    for (int x = 0; x < renderer.getTileWidth(level, tile_x); x++) {
+                        int level_x = tile_x * RawTileRenderer.TILE_SIZE + x;
+                        int level_y = tile_y * RawTileRenderer.TILE_SIZE + y;
+                        assertEquals("level " + level + " at " + level_x + "," + level_y,
+                                expected[level_y * level_width + level_x], tile[y * RawTileRenderer.TILE_SIZE + x]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertMatchesWholeFrame(RawTileRenderer renderer) throws IOException {
+        DemosaicEngine engine = referenceEngine();
+        int[] full = new int[WIDTH * HEIGHT];
+        engine.demosaic(FRAME, WIDTH, HEIGHT, WIDTH * 2, DemosaicEngine.MODE_BILINEAR, full);
+        assertLevel(renderer, 0, full);
+        for (int level = 1; level < renderer.getLevelCount(); level++) {
+            int bin = 1 << (level - 1);
+            int[] binned = new int[DemosaicEngine.getBinnedSize(WIDTH, bin) * DemosaicEngine.getBinnedSize(HEIGHT, bin)];
+            engine.bin(FRAME, WIDTH, HEIGHT, WIDTH * 2, bin, binned);
+            assertLevel(renderer, level, binned);
+        }
+    }
+
+    @Test
+    public void tiledLosslessJpegMatchesWholeFrame() throws IOException {
+        RawTileRenderer renderer = new RawTileRenderer(POOL, write(DngWriter.COMPRESSION_LOSSLESS_JPEG, DngWriter.DEFAULT_PREVIEW_SIZE));
+        assertEquals(DemosaicEngine.CFA_GBRG, renderer.getCfaPattern());
+        // 600 x 404, 300 x 202, then 150 x 101 fits a tile
+        assertEquals(3, renderer.getLevelCount());
+        assertEquals(3, renderer.getTilesAcross(0));
+        assertEquals(2, renderer.getTilesDown(0));
+        assertEquals(101, renderer.getLevelHeight(2));
+        assertMatchesWholeFrame(renderer);
+    }
+
+    @Test
+    public void uncompressedStripMatchesWholeFrame() throws IOException {
+        assertMatchesWholeFrame(new RawTileRenderer(POOL, write(DngWriter.COMPRESSION_NONE, 0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = File.createTempFile("raw_tile_renderer_test", ".jpg");
+        file.deleteOnExit();
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.write(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0, 0, 0, 0, 0});
+        }
+        new RawTileRenderer(POOL, file);
+    }
+}
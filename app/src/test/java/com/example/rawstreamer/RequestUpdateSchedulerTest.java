@@ -0,0 +1,108 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RequestUpdateSchedulerTest {
+
+    // a request builder and session, every submit hands out a new request object
+    private static class FakeTarget implements RequestUpdateScheduler.Target {
+        final Map<Object, Object> builder = new HashMap<>();
+        boolean has_session = true;
+        int sets;
+        int submits;
+        Object last_request;
+
+        @Override
+        public void set(Object key, Object value) {
+            builder.put(key, value);
+            sets++;
+        }
+
+        @Override
+        public Object submit() {
+            if (!has_session) return null;
+            submits++;
+            last_request = new Object();
+            return last_request;
+        }
+    }
+
+    private final FakeTarget target = new FakeTarget();
+    private final RequestUpdateScheduler scheduler = new RequestUpdateScheduler(target);
+
+    @Test
+    public void changesWithinAFrameAreCoalescedToTheLatest() {
+        scheduler.submit();
+        Object running = target.last_request;
+        scheduler.frameStarted(running, 0);
+        // the first change after a frame goes straight out
+        scheduler.postValue("zoom", 1.0f, 10);
+        assertEquals(2, target.submits);
+        // a slider dragged across 20 steps before the next frame
+        for (int step = 1; step <= 20; step++) scheduler.postValue("zoom", 1.0f + step / 10f, 10 + step);
+        scheduler.postValue("fps", 60, 40);
+        assertEquals(2, target.submits);
+        scheduler.frameStarted(running, 33);
+        assertEquals(3, target.submits);
+        assertEquals(3.0f, target.builder.get("zoom"));
+        assertEquals(60, target.builder.get("fps"));
+        // nothing pending, no request
+        scheduler.frameStarted(running, 66);
+        assertEquals(3, target.submits);
+        assertEquals(22, scheduler.getPostedCount());
+        assertEquals(3, scheduler.getSubmittedCount());
+    }
+
+    @Test
+    public void latencyRunsFromTheOldestChangeToItsFirstFrame() {
+        scheduler.submit();
+        Object running = target.last_request;
+        scheduler.frameStarted(running, 0);
+        scheduler.postValue("zoom", 2f, 1000);
+        Object first = target.last_request;
+        scheduler.postValue("zoom", 3f, 5000);
+        // the request with 2x never reached a frame before the one with 3x replaced it
+        scheduler.frameStarted(running, 33000);
+        Object second = target.last_request;
+        assertNotSame(first, second);
+        assertEquals(0, scheduler.getUpdateLatency().getCount());
+        scheduler.frameStarted(second, 66000);
+        assertEquals(1, scheduler.getUpdateLatency().getCount());
+        assertEquals(65000, scheduler.getUpdateLatency().getMax());
+        // a forced submit without changes isn't an update
+        scheduler.submit();
+        scheduler.frameStarted(target.last_request, 100000);
+        assertEquals(1, scheduler.getUpdateLatency().getCount());
+    }
+
+    @Test
+    public void changesWithoutASessionStayInTheBuilder() {
+        target.has_session = false;
+        scheduler.postValue("zoom", 2f, 0);
+        scheduler.postValue("zoom", 4f, 0);
+        assertEquals(0, target.submits);
+        assertEquals(4f, target.builder.get("zoom"));
+        target.has_session = true;
+        scheduler.submit();
+        assertEquals(1, target.submits);
+        assertEquals(1, scheduler.getSubmittedCount());
+    }
+
+    @Test
+    public void summaryReportsRequestsPerSecond() {
+        StringBuilder out = new StringBuilder();
+        scheduler.appendSummary(out, 0);
+        for (int i = 0; i < 30; i++) {
+            scheduler.postValue("zoom", (float) i, i);
+            scheduler.frameStarted(target.last_request, i + 1);
+        }
+        out.setLength(0);
+        scheduler.appendSummary(out, 2000000000L);
+        assertTrue(out.toString(), out.toString().startsWith("requests 15.00/s submitted 30 posted 30"));
+    }
+}
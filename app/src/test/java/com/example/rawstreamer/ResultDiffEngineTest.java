@@ -0,0 +1,77 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResultDiffEngineTest {
+
+    private final ResultDiffEngine engine = new ResultDiffEngine();
+    private final int iso = engine.register(null, "sensor.iso", ResultDiffEngine.KIND_INT, 1);
+    private final int exposure = engine.register(null, "sensor.exposure", ResultDiffEngine.KIND_LONG, 1);
+    private final int focus = engine.register(null, "lens.focus", ResultDiffEngine.KIND_FLOAT, 1);
+    private final int lock = engine.register(null, "ae.lock", ResultDiffEngine.KIND_BOOLEAN, 1);
+    private final int levels = engine.register(null, "black.levels", ResultDiffEngine.KIND_FLOAT_ARRAY, 4);
+
+    // one result, a null value is a key the result doesn't have
+    private int frame(Integer iso_value, Long exposure_value, Float focus_value, Boolean lock_value, float[] levels_value) {
+        engine.begin();
+        engine.offer(iso, iso_value);
+        engine.offer(exposure, exposure_value);
+        engine.offer(focus, focus_value);
+        engine.offer(lock, lock_value);
+        engine.offer(levels, levels_value);
+        return engine.getChangedCount();
+    }
+
+    @Test
+    public void firstResultReportsEveryPresentKey() {
+        assertEquals(4, frame(100, 10000000L, 1.5f, false, null));
+        assertEquals(iso, engine.getChangedIndex(0));
+        assertEquals(lock, engine.getChangedIndex(3));
+        assertEquals(ResultDiffEngine.ABSENT, engine.getLength(levels));
+    }
+
+    @Test
+    public void onlyChangedKeysAreReported() {
+        frame(100, 10000000L, Float.NaN, false, new float[] {64, 64, 64, 64});
+        // a NaN that stays NaN and equal arrays in new objects are unchanged
+        assertEquals(0, frame(100, 10000000L, Float.NaN, false, new float[] {64, 64, 64, 64}));
+        assertEquals(2, frame(200, 10000000L, Float.NaN, true, new float[] {64, 64, 64, 64}));
+        assertEquals(iso, engine.getChangedIndex(0));
+        assertEquals(lock, engine.getChangedIndex(1));
+        assertEquals(200, engine.getSlot(iso, 0));
+        assertEquals(1, frame(200, 10000000L, Float.NaN, true, new float[] {64, 64, 65, 64}));
+        assertEquals(levels, engine.getChangedIndex(0));
+    }
+
+    @Test
+    public void presenceAndLengthChangesAreReported() {
+        frame(100, 1L, 0f, false, new float[] {1, 2});
+        // the same leading elements but a longer array, and a key going missing
+        assertEquals(2, frame(null, 1L, 0f, false, new float[] {1, 2, 3}));
+        assertEquals(iso, engine.getChangedIndex(0));
+        assertEquals(levels, engine.getChangedIndex(1));
+        // arrays past capacity keep their length, so growing past it is still seen
+        frame(null, 1L, 0f, false, new float[] {1, 2, 3, 4, 5});
+        assertEquals(0, frame(null, 1L, 0f, false, new float[] {1, 2, 3, 4, 5}));
+        assertEquals(1, frame(null, 1L, 0f, false, new float[] {1, 2, 3, 4, 5, 6}));
+        // back with the value it had before it went missing
+        assertEquals(1, frame(100, 1L, 0f, false, new float[] {1, 2, 3, 4, 5, 6}));
+    }
+
+    @Test
+    public void changesAreFormatted() {
+        frame(100, 5L, 0.25f, true, new float[] {1, 2, 3, 4, 5});
+        StringBuilder out = new StringBuilder();
+        engine.appendChanges(out);
+        assertEquals("sensor.iso: 100\nsensor.exposure: 5\nlens.focus: 0.25\nae.lock: true\n"
+                + "black.levels: [1.0, 2.0, 3.0, 4.0, ...]\n", out.toString());
+        frame(null, 5L, 0.25f, true, new float[] {1, 2, 3, 4, 5});
+        out.setLength(0);
+        engine.appendChanges(out);
+        assertEquals("sensor.iso: null\n", out.toString());
+        engine.reset();
+        assertEquals(5, frame(100, 5L, 0.25f, true, new float[] {1, 2, 3, 4, 5}));
+    }
+}
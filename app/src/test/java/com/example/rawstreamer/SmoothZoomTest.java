@@ -0,0 +1,74 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SmoothZoomTest {
+
+    private static final long FRAME_NS = 33333333;
+
+    private static int framesToSettle(SmoothZoom zoom, long frame_ns) {
+        long timestamp = 0;
+        zoom.step(timestamp);
+        int frames = 0;
+        while (!zoom.isSettled() && frames < 1000) {
+            float before = zoom.getCurrentRatio();
+            timestamp += frame_ns;
+            assertTrue(zoom.step(timestamp));
+            float after = zoom.getCurrentRatio();
+            // never overshoots
+            if (zoom.getTargetRatio() > before) assertTrue(after > before && after <= zoom.getTargetRatio());
+            else assertTrue(after < before && after >= zoom.getTargetRatio());
+            frames++;
+        }
+        return frames;
+    }
+
+    @Test
+    public void startsAtOneAndGlidesToTheTarget() {
+        SmoothZoom zoom = new SmoothZoom(CameraMath.buildZoomRatios(0.6f, 10f));
+        assertEquals(1f, zoom.getCurrentRatio(), 0);
+        assertFalse(zoom.step(0));
+        zoom.setTargetIndex(zoom.getStepCount() - 1);
+        assertEquals(10f, zoom.getTargetRatio(), 0);
+        int frames = framesToSettle(zoom, FRAME_NS);
+        assertEquals(10f, zoom.getCurrentRatio(), 0);
+        // well under a second at 30 fps, but more than a jump
+        assertTrue(frames > 5 && frames < 30);
+        assertFalse(zoom.step(100 * FRAME_NS));
+    }
+
+    @Test
+    public void settlingTimeDoesNotDependOnFrameRateOrStartingPoint() {
+        SmoothZoom zoom = new SmoothZoom(CameraMath.buildZoomRatios(0.5f, 20f));
+        zoom.jumpTo(1f);
+        zoom.scaleTarget(2f);
+        int frames_30 = framesToSettle(zoom, FRAME_NS);
+        zoom.jumpTo(5f);
+        zoom.scaleTarget(2f);
+        int frames_30_far = framesToSettle(zoom, FRAME_NS);
+        assertEquals(frames_30, frames_30_far, 1);
+        zoom.jumpTo(1f);
+        zoom.scaleTarget(2f);
+        int frames_60 = framesToSettle(zoom, FRAME_NS / 2);
+        assertEquals(frames_30 * 2, frames_60, 2);
+    }
+
+    @Test
+    public void targetsAreClampedAndSnapToNearestSteps() {
+        float[] ratios = {0.5f, 0.7f, 1f, 1f, 2f, 4f, 8f};
+        SmoothZoom zoom = new SmoothZoom(ratios);
+        zoom.scaleTarget(100f);
+        assertEquals(8f, zoom.getTargetRatio(), 0);
+        zoom.setTargetIndex(-3);
+        assertEquals(0.5f, zoom.getTargetRatio(), 0);
+        zoom.setTargetIndex(50);
+        assertEquals(8f, zoom.getTargetRatio(), 0);
+        assertEquals(2, zoom.nearestIndex(1f));
+        assertEquals(2, zoom.nearestIndex(1.3f));
+        assertEquals(4, zoom.nearestIndex(1.5f));
+        assertEquals(0, zoom.nearestIndex(0.1f));
+        assertEquals(6, zoom.nearestIndex(30f));
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SwitchLatencyTest {
+
+    private static final long MS = 1000000L;
+
+    private final SwitchLatency latency = new SwitchLatency();
+
+    @Test
+    public void facingSwitchRunsFromTapToTheFirstFrameOfTheNewSession() {
+        Object old_request = new Object();
+        latency.begin(SwitchLatency.KIND_FACING, 0);
+        // the old session is still streaming until the device closes
+        latency.requestSubmitted(old_request);
+        assertFalse(latency.frameCompleted(old_request, 5 * MS));
+        latency.mark(SwitchLatency.PHASE_CLOSED, 40 * MS);
+        latency.mark(SwitchLatency.PHASE_OPENED, 120 * MS);
+        latency.mark(SwitchLatency.PHASE_CONFIGURED, 180 * MS);
+        Object new_request = new Object();
+        latency.requestSubmitted(new_request);
+        assertTrue(latency.isPending());
+        assertTrue(latency.frameCompleted(new_request, 230 * MS));
+        assertFalse(latency.isPending());
+        // later frames of the same request don't count again
+        assertFalse(latency.frameCompleted(new_request, 263 * MS));
+
+        FrameHistogram total = latency.getTotal(SwitchLatency.KIND_FACING);
+        assertEquals(1, total.getCount());
+        assertEquals(230 * MS, total.getMax());
+
+        StringBuilder out = new StringBuilder();
+        latency.appendSummary(out);
+        assertTrue(out.toString(), out.toString().contains("last facing close 40.0 open 80.0 session 60.0 frame 50.0"));
+    }
+
+    @Test
+    public void aLaterRequestReplacingTheSwitchRequestCarriesIt() {
+        latency.begin(SwitchLatency.KIND_LENS, 0);
+        latency.mark(SwitchLatency.PHASE_CONFIGURED, 0);
+        Object first = new Object();
+        Object second = new Object();
+        latency.requestSubmitted(first);
+        latency.requestSubmitted(second);
+        assertFalse(latency.frameCompleted(first, 10 * MS));
+        assertTrue(latency.frameCompleted(second, 40 * MS));
+
+        StringBuilder out = new StringBuilder();
+        latency.appendSummary(out);
+        // a handover skips closing and opening
+        assertTrue(out.toString(), out.toString().contains("last lens session 0.0 frame 40.0"));
+    }
+
+    @Test
+    public void phasesOnlyMoveForward() {
+        latency.begin(SwitchLatency.KIND_LOGICAL, 0);
+        latency.mark(SwitchLatency.PHASE_OPENED, 10 * MS);
+        latency.mark(SwitchLatency.PHASE_CLOSED, 20 * MS);
+        // nothing submitted before the session is configured is the switch
+        Object early = new Object();
+        latency.requestSubmitted(early);
+        assertFalse(latency.frameCompleted(early, 30 * MS));
+        latency.mark(SwitchLatency.PHASE_CONFIGURED, 40 * MS);
+        Object request = new Object();
+        latency.requestSubmitted(request);
+        assertTrue(latency.frameCompleted(request, 50 * MS));
+
+        StringBuilder out = new StringBuilder();
+        latency.appendSummary(out);
+        assertTrue(out.toString(), out.toString().contains("last logical open 10.0 session 30.0 frame 10.0"));
+    }
+
+    @Test
+    public void tabReturnsAreTimedApartByWhetherTheSessionWasKept() {
+        // the session is kept, resuming it is one request
+        latency.begin(SwitchLatency.KIND_TAB_WARM, 0);
+        latency.mark(SwitchLatency.PHASE_CONFIGURED, 1 * MS);
+        Object resumed = new Object();
+        latency.requestSubmitted(resumed);
+        assertTrue(latency.frameCompleted(resumed, 45 * MS));
+        // the camera was closed, it opens and configures a session again
+        latency.begin(SwitchLatency.KIND_TAB_COLD, 100 * MS);
+        latency.mark(SwitchLatency.PHASE_OPENED, 300 * MS);
+        latency.mark(SwitchLatency.PHASE_CONFIGURED, 420 * MS);
+        Object opened = new Object();
+        latency.requestSubmitted(opened);
+        assertTrue(latency.frameCompleted(opened, 500 * MS));
+
+        assertEquals(45 * MS, latency.getTotal(SwitchLatency.KIND_TAB_WARM).getMax());
+        assertEquals(400 * MS, latency.getTotal(SwitchLatency.KIND_TAB_COLD).getMax());
+        StringBuilder out = new StringBuilder();
+        latency.appendSummary(out);
+        assertTrue(out.toString(), out.toString().contains("\n  tab warm n 1 "));
+        assertTrue(out.toString(), out.toString().contains("last tab cold open 200.0 session 120.0 frame 80.0"));
+    }
+
+    @Test
+    public void supersededAndCancelledSwitchesAreNotRecorded() {
+        latency.begin(SwitchLatency.KIND_FACING, 0);
+        latency.begin(SwitchLatency.KIND_FACING, 10 * MS);
+        assertEquals(1, latency.getSupersededCount());
+        latency.cancel();
+        assertFalse(latency.isPending());
+        // marks and frames without a switch in flight are ignored
+        latency.mark(SwitchLatency.PHASE_CONFIGURED, 20 * MS);
+        Object request = new Object();
+        latency.requestSubmitted(request);
+        assertFalse(latency.frameCompleted(request, 30 * MS));
+        assertEquals(0, latency.getTotal(SwitchLatency.KIND_FACING).getCount());
+
+        StringBuilder out = new StringBuilder();
+        latency.appendSummary(out);
+        assertEquals("switches none", out.toString());
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailLoaderTest {
+
+    // a one thread loader held busy until release() so the queue order can be observed
+    private static class Harness {
+        final ThumbnailLoader loader = new ThumbnailLoader(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+        Harness(int first, int last) throws InterruptedException {
+            loader.setWindow(first, last, 0);
+            loader.submit(first, ThumbnailLoader.LEVEL_THUMBNAIL, () -> {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+        }
+
+        void submit(int position, int level) {
+            loader.submit(position, level, () -> ran.add(position + (level == ThumbnailLoader.LEVEL_UPGRADE ? "u" : "")));
+        }
+
+        // lets the queue drain, then gives anything that shouldn't run a moment to show up
+        List<String> release(int expected) throws InterruptedException {
+            blocked.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ran.size() < expected && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            Thread.sleep(50);
+            loader.shutdown();
+            return ran;
+        }
+    }
+
+    @Test
+    public void visibleCellsRunFirstInReadingOrder() throws InterruptedException {
+        Harness harness = new Harness(20, 27);
+        harness.submit(30, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.submit(27, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.submit(22, ThumbnailLoader.LEVEL_UPGRADE);
+        harness.submit(18, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.submit(21, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.submit(28, ThumbnailLoader.LEVEL_THUMBNAIL);
+        // visible thumbnails, visible upgrades, then ahead by distance, then behind
+        assertEquals(Arrays.asList("21", "27", "22u", "28", "30", "18"), harness.release(6));
+    }
+
+    @Test
+    public void scrollingUpReordersAndCancels() throws InterruptedException {
+        Harness harness = new Harness(40, 47);
+        harness.loader.setWindow(40, 47, -40);
+        for (int position = 30; position < 60; position++) harness.submit(position, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.submit(44, ThumbnailLoader.LEVEL_UPGRADE);
+        // the window moves up, what was visible is now behind and only a few cells of it are kept
+        harness.loader.setWindow(32, 39, -40);
+        List<String> ran = harness.release(14);
+        assertEquals(Arrays.asList("32", "33", "34", "35", "36", "37", "38", "39", "31", "30",
+                "40", "41", "42", "43"), ran);
+    }
+
+    @Test
+    public void prefetchReachGrowsWithVelocity() {
+        ThumbnailLoader loader = new ThumbnailLoader(1);
+        loader.setWindow(100, 111, 0);
+        assertEquals(112, loader.getPrefetchStart());
+        assertEquals(120, loader.getPrefetchEnd());
+        assertTrue(loader.priority(119, ThumbnailLoader.LEVEL_THUMBNAIL) >= 0);
+        assertEquals(-1, loader.priority(121, ThumbnailLoader.LEVEL_THUMBNAIL));
+        loader.setWindow(100, 111, 200);
+        assertEquals(112 + 108, loader.getPrefetchEnd());
+        assertTrue(loader.priority(200, ThumbnailLoader.LEVEL_THUMBNAIL) >= 0);
+        assertEquals(-1, loader.priority(200, ThumbnailLoader.LEVEL_UPGRADE));
+        loader.setWindow(200, 211, -200);
+        assertEquals(200 - 108, loader.getPrefetchStart());
+        assertEquals(200, loader.getPrefetchEnd());
+        assertTrue(loader.priority(150, ThumbnailLoader.LEVEL_THUMBNAIL) < loader.priority(213, ThumbnailLoader.LEVEL_THUMBNAIL));
+        loader.setWindow(4, 15, -200);
+        assertEquals(0, loader.getPrefetchStart());
+        loader.shutdown();
+    }
+
+    @Test
+    public void duplicateSubmitsRunOnce() throws InterruptedException {
+        Harness harness = new Harness(0, 7);
+        harness.submit(3, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.submit(3, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.submit(3, ThumbnailLoader.LEVEL_UPGRADE);
+        harness.submit(4, ThumbnailLoader.LEVEL_THUMBNAIL);
+        harness.loader.cancel(4, ThumbnailLoader.LEVEL_THUMBNAIL);
+        assertEquals(Arrays.asList("3", "3u"), harness.release(2));
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailPackTest {
+
+    // runs compactions when the test says so
+    private static class QueuedExecutor implements Executor {
+        private final List<Runnable> queued = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            queued.add(runnable);
+        }
+
+        void runAll() {
+            List<Runnable> running = new ArrayList<>(queued);
+            queued.clear();
+            for (Runnable runnable : running) runnable.run();
+        }
+    }
+
+    private static File packFile() throws IOException {
+        File folder = Files.createTempDirectory("thumbnail_pack_test").toFile();
+        folder.deleteOnExit();
+        File file = new File(folder, "thumbnails.pack");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static File source(int i) {
+        return new File("/storage/Raw Images/RAW_" + i + ".dng");
+    }
+
+    private static byte[] payload(int i, int length) {
+        byte[] payload = new byte[length];
+        for (int j = 0; j < length; j++) payload[j] = (byte) (i * 31 + j);
+        return payload;
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException {
+        File file = packFile();
+        ThumbnailPack pack = new ThumbnailPack(file, Runnable::run);
+        for (int i = 0; i < 100; i++) pack.put(source(i), 1000 + i, i, payload(i, 50 + i));
+        ThumbnailPack reopened = new ThumbnailPack(file, Runnable::run);
+        assertEquals(100, reopened.getEntryCount());
+        for (int i = 0; i < 100; i++) assertArrayEquals(payload(i, 50 + i), reopened.get(source(i), 1000 + i, i));
+        assertNull(reopened.get(source(100), 1100, 100));
+    }
+
+    @Test
+    public void changedSizeOrTimeIsAMiss() throws IOException {
+        ThumbnailPack pack = new ThumbnailPack(packFile(), Runnable::run);
+        pack.put(source(1), 1000, 42, payload(1, 10));
+        assertNull(pack.get(source(1), 1001, 42));
+        assertNull(pack.get(source(1), 1000, 43));
+        pack.put(source(1), 1001, 43, payload(2, 20));
+        assertArrayEquals(payload(2, 20), pack.get(source(1), 1001, 43));
+        assertNull(pack.get(source(1), 1000, 42));
+        assertEquals(10, pack.getStaleBytes());
+        pack.remove(source(1));
+        assertNull(pack.get(source(1), 1001, 43));
+        assertEquals(0, pack.getEntryCount());
+    }
+
+    @Test
+    public void indexGrowsPastItsCapacity() throws IOException {
+        File file = packFile();
+        ThumbnailPack pack = new ThumbnailPack(file, Runnable::run);
+        // more entries than the initial index holds, and more payload than the initial file
+        for (int i = 0; i < 3000; i++) pack.put(source(i), i, i, payload(i, 700));
+        assertEquals(3000, pack.getEntryCount());
+        ThumbnailPack reopened = new ThumbnailPack(file, Runnable::run);
+        for (int i = 0; i < 3000; i++) assertArrayEquals(payload(i, 700), reopened.get(source(i), i, i));
+    }
+
+    @Test
+    public void compactionDropsStaleBytesAndKeepsNewerPuts() throws IOException {
+        File file = packFile();
+        QueuedExecutor executor = new QueuedExecutor();
+        ThumbnailPack pack = new ThumbnailPack(file, executor);
+        pack.setCompactionThreshold(0);
+        for (int i = 0; i < 50; i++) pack.put(source(i), 1, 1, payload(i, 1000));
+        for (int i = 0; i < 50; i++) pack.remove(source(i * 2));
+        assertEquals(25 * 1000, pack.getStaleBytes());
+        // puts made after the compaction was scheduled are kept
+        pack.put(source(1), 2, 2, payload(101, 300));
+        pack.put(source(200), 1, 1, payload(200, 400));
+        executor.runAll();
+        assertEquals(1, pack.getCompactionCount());
+        assertEquals(0, pack.getStaleBytes());
+        assertEquals(26, pack.getEntryCount());
+        assertArrayEquals(payload(101, 300), pack.get(source(1), 2, 2));
+        assertArrayEquals(payload(200, 400), pack.get(source(200), 1, 1));
+        for (int i = 3; i < 50; i += 2) assertArrayEquals(payload(i, 1000), pack.get(source(i), 1, 1));
+        assertNull(pack.get(source(2), 1, 1));
+        ThumbnailPack reopened = new ThumbnailPack(file, executor);
+        assertEquals(26, reopened.getEntryCount());
+        assertArrayEquals(payload(7, 1000), reopened.get(source(7), 1, 1));
+    }
+
+    @Test
+    public void damagedPackIsDiscarded() throws IOException {
+        File file = packFile();
+        ThumbnailPack pack = new ThumbnailPack(file, Runnable::run);
+        assertFalse(pack.wasDiscarded());
+        pack.put(source(1), 1, 1, payload(1, 10));
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.seek(0);
+            access.writeInt(0);
+        }
+        ThumbnailPack reopened = new ThumbnailPack(file, Runnable::run);
+        assertTrue(reopened.wasDiscarded());
+        assertEquals(0, reopened.getEntryCount());
+        assertNull(reopened.get(source(1), 1, 1));
+        reopened.put(source(1), 1, 1, payload(1, 10));
+        assertArrayEquals(payload(1, 10), reopened.get(source(1), 1, 1));
+    }
+
+    @Test
+    public void closedPackMissesAndKeepsWhatWasStored() throws IOException {
+        File file = packFile();
+        QueuedExecutor executor = new QueuedExecutor();
+        ThumbnailPack pack = new ThumbnailPack(file, executor);
+        pack.setCompactionThreshold(0);
+        for (int i = 0; i < 4; i++) pack.put(source(i), 1, 1, payload(i, 100));
+        pack.remove(source(0));
+        pack.remove(source(1));
+        pack.close();
+        // the compaction scheduled before closing is dropped
+        executor.runAll();
+        assertEquals(0, pack.getCompactionCount());
+        assertNull(pack.get(source(2), 1, 1));
+        pack.put(source(9), 1, 1, payload(9, 100));
+        pack.close();
+        ThumbnailPack reopened = new ThumbnailPack(file, executor);
+        assertFalse(reopened.wasDiscarded());
+        assertEquals(2, reopened.getEntryCount());
+        assertArrayEquals(payload(3, 100), reopened.get(source(3), 1, 1));
+        assertNull(reopened.get(source(9), 1, 1));
+    }
+}
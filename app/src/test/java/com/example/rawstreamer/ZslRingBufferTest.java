@@ -0,0 +1,102 @@
+package com.example.rawstreamer;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ZslRingBufferTest {
+
+    private static final long FRAME_NS = 33000000L;
+
+    // streams frames at 1, 2, 3 ... frame durations, each tagged with its index in the buffer
+    private static void stream(ZslRingBuffer ring, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            RawFrame frame = ring.beginWrite();
+            frame.getBuffer().clear();
+            frame.getBuffer().putInt(0, i);
+            ring.endWrite(i * FRAME_NS);
+        }
+    }
+
+    private static int index(RawFrame frame) {
+        return frame.getBuffer().getInt(0);
+    }
+
+    @Test
+    public void commitsClosestFrame() {
+        FrameBufferPool pool = new FrameBufferPool(5, 16);
+        ZslRingBuffer ring = new ZslRingBuffer(pool, 4);
+        stream(ring, 1, 6);
+        List<RawFrame> frames = ring.commit(5 * FRAME_NS - FRAME_NS / 3, 0, 0, 0);
+        assertEquals(1, frames.size());
+        assertEquals(5, index(frames.get(0)));
+        // the committed slot was refilled from the pool, nothing was copied
+        assertEquals(5, pool.getInUse());
+        assertEquals(3, ring.getPublished());
+        frames.get(0).release();
+        assertEquals(4, pool.getInUse());
+    }
+
+    @Test
+    public void commitsFramesAroundPressInOrder() {
+        FrameBufferPool pool = new FrameBufferPool(9, 16);
+        ZslRingBuffer ring = new ZslRingBuffer(pool, 6);
+        stream(ring, 1, 10);
+        List<RawFrame> frames = ring.commit(8 * FRAME_NS, 1, 1, 0);
+        assertEquals(3, frames.size());
+        for (int i = 0; i < 3; i++) assertEquals(7 + i, index(frames.get(i)));
+    }
+
+    @Test
+    public void waitsForFramesAfterPress() throws InterruptedException {
+        FrameBufferPool pool = new FrameBufferPool(10, 16);
+        ZslRingBuffer ring = new ZslRingBuffer(pool, 6);
+        stream(ring, 1, 4);
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            stream(ring, 5, 2);
+        });
+        writer.start();
+        List<RawFrame> frames = ring.commit(4 * FRAME_NS, 1, 2, 5000);
+        writer.join();
+        assertEquals(4, frames.size());
+        for (int i = 0; i < 4; i++) assertEquals(3 + i, index(frames.get(i)));
+    }
+
+    @Test
+    public void shortOnSpareBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(5, 16);
+        ZslRingBuffer ring = new ZslRingBuffer(pool, 4);
+        stream(ring, 1, 4);
+        List<RawFrame> frames = ring.commit(3 * FRAME_NS, 1, 1, 0);
+        assertEquals(1, frames.size());
+        assertEquals(2, index(frames.get(0)));
+        assertEquals(1, pool.getExhaustions());
+    }
+
+    @Test
+    public void closeReturnsBuffersIncludingOneBeingWritten() {
+        FrameBufferPool pool = new FrameBufferPool(4, 16);
+        ZslRingBuffer ring = new ZslRingBuffer(pool, 4);
+        stream(ring, 1, 2);
+        assertNotNull(ring.beginWrite());
+        ring.close();
+        assertEquals(1, pool.getInUse());
+        ring.endWrite(3 * FRAME_NS);
+        assertEquals(0, pool.getInUse());
+        assertNull(ring.beginWrite());
+        assertTrue(ring.commit(FRAME_NS, 0, 0, 0).isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void ringLargerThanPoolFails() {
+        new ZslRingBuffer(new FrameBufferPool(2, 16), 3);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.rawstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// a handheld burst as RawBurst runs it, every frame aligned against the first then merged
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BurstMergeBenchmark {
+    @Param({"2016x1512", "4032x3024"})
+    public String size;
+
+    @Param({"4", "8"})
+    public int frame_count;
+
+    private ForkJoinPool pool;
+    private BurstMerger merger;
+    private FrameAligner aligner;
+    private int width;
+    private int height;
+    private ByteBuffer[] frames;
+    private ByteBuffer merged;
+
+    @Setup
+    public void setup() {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        width = dimensions[0];
+        height = dimensions[1];
+        frames = new ByteBuffer[frame_count];
+        for (int i = 0; i < frame_count; i++) {
+            // hand shake of a few pixels, even so the colours line up
+            frames[i] = SyntheticFrames.bayer(width, height, width * 2, (i % 3) * 2, (i % 2) * 4, i);
+        }
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        merger = new BurstMerger(pool, width, height);
+        aligner = new FrameAligner(pool, width, height, merger.getTileSize());
+        merged = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    // cost of one frame after the reference, the per frame cost of a burst
+    @Benchmark
+    public int[] align() {
+        aligner.reset();
+        aligner.align(frames[0], width * 2);
+        return aligner.align(frames[1], width * 2);
+    }
+
+    @Benchmark
+    public ByteBuffer mergeBurst() {
+        merger.reset();
+        aligner.reset();
+        for (ByteBuffer frame : frames) merger.add(frame, width * 2, aligner.align(frame, width * 2));
+        merger.resolve(merged, width * 2);
+        return merged;
+    }
+}
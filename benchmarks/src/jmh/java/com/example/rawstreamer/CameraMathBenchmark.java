@@ -0,0 +1,47 @@
+package com.example.rawstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// the per camera setup done on every camera switch, zoom steps and preview size choice
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CameraMathBenchmark {
+    // zoom ranges of a main camera, an ultra wide logical camera and a periscope
+    @Param({"1.0-8.0", "0.6-10.0", "0.5-30.0"})
+    public String zoom_range;
+
+    private float min_zoom;
+    private float max_zoom;
+    // SurfaceTexture output sizes as a phone reports them, largest first
+    private final int[] widths = {4032, 4000, 3840, 3264, 3024, 2560, 2448, 2304, 2016, 1920, 1920, 1600,
+            1440, 1440, 1280, 1280, 1088, 1024, 960, 800, 720, 720, 640, 640, 352, 320, 176};
+    private final int[] heights = {3024, 3000, 2160, 2448, 3024, 1440, 2448, 1728, 1512, 1440, 1080, 1200,
+            1080, 720, 960, 720, 1088, 768, 720, 600, 720, 480, 480, 360, 288, 240, 144};
+
+    @Setup
+    public void setup() {
+        int dash = zoom_range.indexOf('-');
+        min_zoom = Float.parseFloat(zoom_range.substring(0, dash));
+        max_zoom = Float.parseFloat(zoom_range.substring(dash + 1));
+    }
+
+    @Benchmark
+    public float[] buildZoomRatios() {
+        return CameraMath.buildZoomRatios(min_zoom, max_zoom);
+    }
+
+    @Benchmark
+    public int chooseOptimalSize() {
+        return CameraMath.chooseOptimalSize(widths, heights, 1920, 1080);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.rawstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// full frame demosaic for the viewer and the binned previews used for DNG previews and thumbnails
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DemosaicBenchmark {
+    @Param({"2016x1512", "4032x3024"})
+    public String size;
+
+    private ForkJoinPool pool;
+    private DemosaicEngine engine;
+    private int width;
+    private int height;
+    private ByteBuffer plane;
+    private int[] argb;
+
+    @Setup
+    public void setup() {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        width = dimensions[0];
+        height = dimensions[1];
+        plane = SyntheticFrames.bayer(width, height, width * 2, 0, 0, 1);
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        engine = new DemosaicEngine(pool);
+        engine.setLevels(new int[] {SyntheticFrames.BLACK_LEVEL, SyntheticFrames.BLACK_LEVEL,
+                SyntheticFrames.BLACK_LEVEL, SyntheticFrames.BLACK_LEVEL}, SyntheticFrames.WHITE_LEVEL);
+        engine.setWhiteBalance(2, 1, 1.6f);
+        argb = new int[width * height];
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int[] bilinear() {
+        engine.demosaic(plane, width, height, width * 2, DemosaicEngine.MODE_BILINEAR, argb);
+        return argb;
+    }
+
+    @Benchmark
+    public int[] superpixel() {
+        engine.demosaic(plane, width, height, width * 2, DemosaicEngine.MODE_SUPERPIXEL, argb);
+        return argb;
+    }
+
+    // a quad per thumbnail pixel, about what DngWriter's preview bins a 12MP frame down by
+    @Benchmark
+    public int[] bin4() {
+        engine.bin(plane, width, height, width * 2, 4, argb);
+        return argb;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.rawstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+// encoding one DNG into memory, as DngImageSaver does into a mapped file, so storage isn't measured
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DngWriterBenchmark {
+    @Param({"2016x1512", "4032x3024"})
+    public String size;
+
+    @Param({"" + DngWriter.COMPRESSION_NONE, "" + DngWriter.COMPRESSION_LOSSLESS_JPEG})
+    public int compression;
+
+    @Param({"0", "" + DngWriter.DEFAULT_PREVIEW_SIZE})
+    public int preview_size;
+
+    private final DngWriter writer = new DngWriter();
+    private final DngMetadata metadata = SyntheticFrames.metadata();
+    private int width;
+    private int height;
+    private ByteBuffer plane;
+    private ByteBuffer out;
+
+    @Setup
+    public void setup() {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        width = dimensions[0];
+        height = dimensions[1];
+        plane = SyntheticFrames.bayer(width, height, width * 2, 0, 0, 1);
+        writer.setPreviewSize(preview_size);
+        // an uncompressed frame is the largest the output can be
+        long largest = writer.prepare(metadata, plane, width, height, width * 2, DngWriter.COMPRESSION_NONE);
+        out = ByteBuffer.allocateDirect((int) largest * 2).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public long write() {
+        writer.prepare(metadata, plane, width, height, width * 2, compression);
+        out.clear();
+        return writer.writeTo(out);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.rawstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+the diff run on every preview result, the keys are registered by kind the way withDefaultKeys()
+registers the real ones, values are boxed up front as CaptureResult.get() hands them over, steady
+results are the common case, changing results move the 3A values every frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResultDiffBenchmark {
+    private static final int RESULTS = 64;
+
+    @Param({"steady", "changing"})
+    public String results;
+
+    private ResultDiffEngine engine;
+    private int key_count;
+    // values[result][key]
+    private Object[][] values;
+    private int next;
+
+    @Setup
+    public void setup() {
+        engine = new ResultDiffEngine();
+        int[] kinds = {ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT,
+                ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT,
+                ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT,
+                ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT, ResultDiffEngine.KIND_INT,
+                ResultDiffEngine.KIND_LONG, ResultDiffEngine.KIND_LONG, ResultDiffEngine.KIND_LONG,
+                ResultDiffEngine.KIND_FLOAT, ResultDiffEngine.KIND_FLOAT, ResultDiffEngine.KIND_FLOAT,
+                ResultDiffEngine.KIND_FLOAT, ResultDiffEngine.KIND_BOOLEAN, ResultDiffEngine.KIND_BOOLEAN,
+                ResultDiffEngine.KIND_INT_ARRAY, ResultDiffEngine.KIND_FLOAT_ARRAY};
+        key_count = kinds.length;
+        for (int i = 0; i < key_count; i++) {
+            int kind = kinds[i];
+            engine.register(null, "key." + i, kind, kind == ResultDiffEngine.KIND_INT_ARRAY
+                    || kind == ResultDiffEngine.KIND_FLOAT_ARRAY ? 4 : 1);
+        }
+        boolean changing = results.equals("changing");
+        values = new Object[RESULTS][key_count];
+        for (int result = 0; result < RESULTS; result++) {
+            // the 3A values are the first keys of each kind
+            int step = changing ? result : 0;
+            for (int i = 0; i < key_count; i++) {
+                boolean moves = i == 0 || i == 12 || i == 15 || i == 22;
+                int value = moves ? step : i;
+                switch (kinds[i]) {
+                    case ResultDiffEngine.KIND_INT:
+                        values[result][i] = value;
+                        break;
+                    case ResultDiffEngine.KIND_LONG:
+                        values[result][i] = 10000000L + value;
+                        break;
+                    case ResultDiffEngine.KIND_FLOAT:
+                        values[result][i] = 1.5f + value;
+                        break;
+                    case ResultDiffEngine.KIND_BOOLEAN:
+                        values[result][i] = Boolean.FALSE;
+                        break;
+                    case ResultDiffEngine.KIND_INT_ARRAY:
+                        values[result][i] = new int[] {0, 1, 3};
+                        break;
+                    case ResultDiffEngine.KIND_FLOAT_ARRAY:
+                        values[result][i] = new float[] {1.9f + value / 100f, 1, 1, 2.1f};
+                        break;
+                }
+            }
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public int diff() {
+        Object[] result = values[next];
+        next = (next + 1) % RESULTS;
+        engine.begin();
+        for (int i = 0; i < key_count; i++) engine.offer(i, result[i]);
+        return engine.getChangedCount();
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.rawstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+// 10 bit Bayer frames for the benchmarks, a gradient scene with per channel offsets plus noise
+class SyntheticFrames {
+    static final int WHITE_LEVEL = 1023;
+    static final int BLACK_LEVEL = 64;
+
+    private SyntheticFrames() {}
+
+    // width and height from a "WxH" benchmark parameter
+    static int[] parseSize(String size) {
+        int x = size.indexOf('x');
+        return new int[] {Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1))};
+    }
+
+    // frame shifted by dx, dy Bayer pixels against the scene, as a handheld burst would be
+    static ByteBuffer bayer(int width, int height, int row_stride, int dx, int dy, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer plane = ByteBuffer.allocateDirect(row_stride * height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sx = x + dx;
+                int sy = y + dy;
+                int value = BLACK_LEVEL + (sx * 5 + sy * 3) % 600 + (sx & 1) * 120 + (sy & 1) * 60
+                        + (int) (random.nextGaussian() * 12);
+                plane.putShort(y * row_stride + x * 2, (short) Math.max(0, Math.min(WHITE_LEVEL, value)));
+            }
+        }
+        return plane;
+    }
+
+    static DngMetadata metadata() {
+        DngMetadata metadata = new DngMetadata();
+        metadata.make = "Benchmark";
+        metadata.model = "Synthetic";
+        metadata.date_time = "2022:09:10 12:00:00";
+        metadata.cfa_pattern = DngMetadata.CFA_RGGB;
+        metadata.black_level = new int[] {BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL};
+        metadata.white_level = WHITE_LEVEL;
+        metadata.color_matrix1 = new double[] {1.2, -0.3, -0.1, -0.4, 1.3, 0.1, -0.1, 0.2, 0.7};
+        metadata.calibration_illuminant1 = 21;
+        metadata.as_shot_neutral = new double[] {0.5, 1, 0.6};
+        metadata.exposure_time_s = 1 / 120.0;
+        metadata.iso = 400;
+        return metadata;
+    }
+}